@@ -0,0 +1,143 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.leedsbeckett.ltidemo.app.ClientIndex;
+import uk.ac.leedsbeckett.ltidemo.launch.UnverifiedIdToken;
+
+/**
+ * Checking a launch against the registered clients as the number of
+ * clients grows. 'lookup' uses the index, 'check' reads a token first as
+ * the launch servlet does and 'scan' searches the parsed configuration for
+ * comparison. The strings looked up are not the interned copies held in
+ * the index, as they wouldn't be in a real request.
+ * 
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@Threads( 4 )
+public class ClientIndexBenchmark
+{
+  static final int ISSUERS = 10;
+  
+  @Param( { "10", "1000", "10000" } )
+  int clients;
+  
+  JsonNode config;
+  ClientIndex index;
+  String[][] launches;
+  String[] tokens;
+  
+  @Setup
+  public void setup()
+  {
+    ObjectMapper mapper = new ObjectMapper();
+    ObjectNode root = mapper.createObjectNode();
+    for ( int i=0; i<ISSUERS; i++ )
+    {
+      ObjectNode issuer = root.withArray( "issuers" ).addObject();
+      issuer.put( "name", "https://platform-" + i + ".example.com" );
+      issuer.putArray( "clients" );
+    }
+    for ( int i=0; i<clients; i++ )
+    {
+      ObjectNode client = ((ObjectNode)root.get( "issuers" ).get( i % ISSUERS )).withArray( "clients" ).addObject();
+      client.put( "client_id", "client-" + i );
+      client.put( "key_set_url", "https://platform-" + ( i % ISSUERS ) + ".example.com/jwks" );
+      client.putArray( "deployment_ids" ).add( "deployment-" + i );
+    }
+    config = root;
+    index = ClientIndex.build( root );
+    
+    launches = new String[clients][];
+    tokens = new String[clients];
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    String header = encoder.encodeToString( "{\"alg\":\"RS256\",\"kid\":\"key\"}".getBytes( StandardCharsets.UTF_8 ) );
+    for ( int i=0; i<clients; i++ )
+    {
+      String issuer = new String( "https://platform-" + ( i % ISSUERS ) + ".example.com" );
+      String clientid = new String( "client-" + i );
+      String deploymentid = new String( "deployment-" + i );
+      launches[i] = new String[] { issuer, clientid, deploymentid };
+      ObjectNode claims = mapper.createObjectNode();
+      claims.put( "iss", issuer );
+      claims.put( "aud", clientid );
+      claims.put( "https://purl.imsglobal.org/spec/lti/claim/deployment_id", deploymentid );
+      claims.put( "nonce", "nonce-" + i );
+      tokens[i] = header + "." + encoder.encodeToString( claims.toString().getBytes( StandardCharsets.UTF_8 ) ) + ".signature";
+    }
+  }
+  
+  @Benchmark
+  public boolean lookup()
+  {
+    String[] launch = launches[ThreadLocalRandom.current().nextInt( clients )];
+    return index.isRegistered( launch[0], launch[1], launch[2] );
+  }
+  
+  @Benchmark
+  public boolean check()
+  {
+    UnverifiedIdToken token = UnverifiedIdToken.parse( tokens[ThreadLocalRandom.current().nextInt( clients )] );
+    return index.isRegistered( token.getIssuer(), token.getClientId(), token.getDeploymentId() );
+  }
+  
+  @Benchmark
+  public boolean scan()
+  {
+    String[] launch = launches[ThreadLocalRandom.current().nextInt( clients )];
+    for ( JsonNode issuer : config.path( "issuers" ) )
+    {
+      if ( !launch[0].equals( issuer.path( "name" ).asText() ) )
+        continue;
+      for ( JsonNode client : issuer.path( "clients" ) )
+      {
+        if ( !launch[1].equals( client.path( "client_id" ).asText() ) )
+          continue;
+        for ( JsonNode deployment : client.path( "deployment_ids" ) )
+          if ( launch[2].equals( deployment.asText() ) )
+            return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.bench;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+import uk.ac.leedsbeckett.ltidemo.state.BenchmarkStates;
+import uk.ac.leedsbeckett.ltidemo.state.DemoState;
+import uk.ac.leedsbeckett.ltidemo.tool.CourseResourceServlet;
+import uk.ac.leedsbeckett.ltidemo.tool.Resource;
+
+/**
+ * The course resource page, rendered by the servlet itself with mock
+ * request and response objects. The fragment cache can be turned off by
+ * setting its size to zero, so that every render builds the entry list.
+ * Run from the project directory so that the templates are found, or set
+ * the ltidemo.webapp system property.
+ * 
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class CourseResourceRenderBenchmark
+{
+  @Param( { "10", "100" } )
+  int entries;
+  
+  @Param( { "8388608", "0" } )
+  long fragmentcachebytes;
+  
+  CourseResourceServlet servlet;
+  HttpServletRequest request;
+  HttpServletRequest conditional;
+  ServletMocks.CountingOutputStream out = new ServletMocks.CountingOutputStream();
+  
+  @Setup
+  public void setup() throws ServletException, IOException
+  {
+    DemoApplicationContext appcontext = new DemoApplicationContext();
+    appcontext.getFragmentCache().setMaxBytes( fragmentcachebytes );
+    Map<String,Object> attributes = new HashMap<>();
+    attributes.put( DemoApplicationContext.KEY, appcontext );
+    ServletContext context = ServletMocks.context( attributes );
+    
+    DemoState state = BenchmarkStates.launch( appcontext.getStateStore(), "resource-1" );
+    Resource resource = appcontext.getStore().get( state.getCourseLaunchState().getPlatformName(), "resource-1", true );
+    for ( int i=0; i<entries; i++ )
+      resource.addEntry( "Person <" + i + ">" );
+
+    servlet = new CourseResourceServlet();
+    servlet.init( ServletMocks.config( context, "CourseResourceServlet" ) );
+    
+    Map<String,String> parameters = Map.of( "state_id", state.getId() );
+    request = ServletMocks.get( context, parameters, Map.of() );
+    
+    // Render once to find the page's ETag.
+    Map<String,String> headers = new HashMap<>();
+    servlet.service( request, ServletMocks.response( out ) );
+    if ( out.status != 0 || out.count == 0 )
+      throw new IllegalStateException( "The page did not render. Are the templates in " + ServletMocks.WEBAPP.toAbsolutePath() + "?" );
+    headers.put( "If-None-Match", out.headers.get( "ETag" ) );
+    conditional = ServletMocks.get( context, parameters, headers );
+  }
+  
+  @Benchmark
+  public long render() throws ServletException, IOException
+  {
+    out.count = 0;
+    servlet.service( request, ServletMocks.response( out ) );
+    return out.count;
+  }
+  
+  @Benchmark
+  public int notModified() throws ServletException, IOException
+  {
+    out.status = 0;
+    servlet.service( conditional, ServletMocks.response( out ) );
+    return out.status;
+  }
+}
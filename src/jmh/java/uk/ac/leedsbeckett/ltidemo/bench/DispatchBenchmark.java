@@ -0,0 +1,146 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.leedsbeckett.ltidemo.app.RequestExecutors;
+
+/**
+ * Compares handing requests to virtual threads with handing them to a pool
+ * of platform threads, as RequestDispatchFilter does. Each simulated request
+ * waits a millisecond, standing in for a token check, a fetch from another
+ * node or a disk write, while holding either a ReentrantLock or a monitor.
+ * On a JVM with virtual threads the monitor pins the carrier thread, which
+ * is why the persistence and replication code uses locks.
+ * 
+ * On a JVM without virtual threads 'virtual' falls back to the platform
+ * pool, as the filter does, so both modes measure the same thing.
+ * 
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class DispatchBenchmark
+{
+  static final int REQUESTS = 2000;
+  static final int STRIPES = 1024;
+  
+  @Param( { RequestExecutors.MODE_PLATFORM, RequestExecutors.MODE_VIRTUAL } )
+  String mode;
+  
+  @Param( { "lock", "monitor" } )
+  String guard;
+  
+  @Param( { "200" } )
+  int threads;
+  
+  @Param( { "1000" } )
+  long waitmicros;
+  
+  ExecutorService executor;
+  final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+  final Object[] monitors = new Object[STRIPES];
+  
+  @Setup( Level.Trial )
+  public void setup()
+  {
+    executor = RequestExecutors.create( mode, threads );
+    for ( int i=0; i<STRIPES; i++ )
+    {
+      locks[i] = new ReentrantLock();
+      monitors[i] = new Object();
+    }
+  }
+  
+  @TearDown( Level.Trial )
+  public void tearDown() throws InterruptedException
+  {
+    executor.shutdown();
+    executor.awaitTermination( 10, TimeUnit.SECONDS );
+  }
+  
+  void request( int n )
+  {
+    long nanos = TimeUnit.MICROSECONDS.toNanos( waitmicros );
+    int stripe = n % STRIPES;
+    if ( "monitor".equals( guard ) )
+    {
+      synchronized ( monitors[stripe] )
+      {
+        LockSupport.parkNanos( nanos );
+      }
+    }
+    else
+    {
+      ReentrantLock lock = locks[stripe];
+      lock.lock();
+      try
+      {
+        LockSupport.parkNanos( nanos );
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation( REQUESTS )
+  public void dispatch() throws InterruptedException
+  {
+    CountDownLatch done = new CountDownLatch( REQUESTS );
+    for ( int i=0; i<REQUESTS; i++ )
+    {
+      final int n = i;
+      executor.execute( () -> 
+      {
+        try
+        {
+          request( n );
+        }
+        finally
+        {
+          done.countDown();
+        }
+      } );
+    }
+    done.await();
+  }
+}
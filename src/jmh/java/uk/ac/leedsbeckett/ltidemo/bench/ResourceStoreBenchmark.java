@@ -0,0 +1,106 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.bench;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.leedsbeckett.ltidemo.tool.Resource;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceEntry;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
+
+/**
+ * The resource store and the entries of a resource. Lookups run on every
+ * core at once. Adding and listing entries run as a group of one reader and
+ * some writers; change the number of writers with e.g. -tg 1,8.
+ * 
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ResourceStoreBenchmark
+{
+  @Param( { "1000" } )
+  int resources;
+  
+  ResourceStore store;
+  String[] ids;
+  Resource resource;
+  
+  @Setup
+  public void setup()
+  {
+    store = new ResourceStore();
+    ids = new String[resources];
+    for ( int i=0; i<resources; i++ )
+    {
+      ids[i] = "resource-" + i;
+      store.get( "https://platform.example.com", ids[i], true );
+    }
+    resource = store.get( "https://platform.example.com", "shared", true );
+    for ( int i=0; i<100; i++ )
+      resource.addEntry( "Person " + i );
+  }
+  
+  @Benchmark
+  @Threads( Threads.MAX )
+  public Resource get()
+  {
+    return store.get( "https://platform.example.com", ids[ThreadLocalRandom.current().nextInt( resources )], false );
+  }
+  
+  @Benchmark
+  @Threads( 1 )
+  public void addEntry()
+  {
+    resource.addEntry( "Benchmark Person" );
+  }
+  
+  @Benchmark
+  @Group( "readwrite" )
+  @GroupThreads( 3 )
+  public void writer()
+  {
+    resource.addEntry( "Benchmark Person" );
+  }
+  
+  @Benchmark
+  @Group( "readwrite" )
+  @GroupThreads( 1 )
+  public List<ResourceEntry> reader()
+  {
+    return resource.getEntries();
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Just enough of the servlet API to run a servlet outside a container. The
+ * objects are dynamic proxies; methods that aren't implemented here return
+ * null, zero or false.
+ * 
+ * @author jon
+ */
+public class ServletMocks
+{
+  /**
+   * Where the web application's files are, for templates.
+   */
+  public static final Path WEBAPP = Paths.get( System.getProperty( "ltidemo.webapp", "src/main/webapp" ) );
+  
+  static Object defaultValue( Class<?> type )
+  {
+    if ( type == boolean.class ) return false;
+    if ( type == int.class ) return 0;
+    if ( type == long.class ) return 0L;
+    return null;
+  }
+  
+  @SuppressWarnings( "unchecked" )
+  static <T> T proxy( Class<T> type, Map<String,Function<Object[],Object>> methods )
+  {
+    return (T)Proxy.newProxyInstance( ServletMocks.class.getClassLoader(), new Class<?>[] { type }, 
+            ( p, method, args ) -> 
+    {
+      Function<Object[],Object> f = methods.get( method.getName() );
+      return f == null ? defaultValue( method.getReturnType() ) : f.apply( args );
+    } );
+  }
+  
+  /**
+   * Create a servlet context.
+   * 
+   * @param attributes The context's attributes.
+   * @return The context.
+   */
+  public static ServletContext context( Map<String,Object> attributes )
+  {
+    Map<String,Function<Object[],Object>> m = new HashMap<>();
+    m.put( "getAttribute", a -> attributes.get( (String)a[0] ) );
+    m.put( "getContextPath", a -> "" );
+    m.put( "getResourceAsStream", a -> 
+    {
+      try
+      {
+        return Files.newInputStream( WEBAPP.resolve( ((String)a[0]).substring( 1 ) ) );
+      }
+      catch ( IOException ex )
+      {
+        return (InputStream)null;
+      }
+    } );
+    return proxy( ServletContext.class, m );
+  }
+  
+  /**
+   * Create a servlet configuration.
+   * 
+   * @param context The servlet context.
+   * @param name The servlet's name.
+   * @return The configuration.
+   */
+  public static ServletConfig config( ServletContext context, String name )
+  {
+    Map<String,Function<Object[],Object>> m = new HashMap<>();
+    m.put( "getServletContext", a -> context );
+    m.put( "getServletName", a -> name );
+    m.put( "getInitParameterNames", a -> Collections.emptyEnumeration() );
+    return proxy( ServletConfig.class, m );
+  }
+  
+  /**
+   * Create a GET request.
+   * 
+   * @param context The servlet context.
+   * @param parameters The request parameters.
+   * @param headers The request headers.
+   * @return The request.
+   */
+  public static HttpServletRequest get( ServletContext context, Map<String,String> parameters, Map<String,String> headers )
+  {
+    Map<String,Function<Object[],Object>> m = new HashMap<>();
+    m.put( "getServletContext", a -> context );
+    m.put( "getMethod", a -> "GET" );
+    m.put( "getContextPath", a -> "" );
+    m.put( "getServerName", a -> "localhost" );
+    m.put( "getParameter", a -> parameters.get( (String)a[0] ) );
+    m.put( "getHeader", a -> headers.get( (String)a[0] ) );
+    m.put( "getDispatcherType", a -> DispatcherType.REQUEST );
+    return proxy( HttpServletRequest.class, m );
+  }
+  
+  /**
+   * Create a response that counts and discards what is written.
+   * 
+   * @param out The stream the body is written to.
+   * @return The response.
+   */
+  public static HttpServletResponse response( CountingOutputStream out )
+  {
+    Map<String,Function<Object[],Object>> m = new HashMap<>();
+    m.put( "getOutputStream", a -> out );
+    m.put( "encodeURL", a -> a[0] );
+    m.put( "encodeRedirectURL", a -> a[0] );
+    m.put( "setHeader", a -> { out.headers.put( (String)a[0], (String)a[1] ); return null; } );
+    m.put( "setStatus", a -> { out.status = (Integer)a[0]; return null; } );
+    m.put( "sendError", a -> { out.status = (Integer)a[0]; return null; } );
+    return proxy( HttpServletResponse.class, m );
+  }
+  
+  /**
+   * An output stream that only counts bytes. It also keeps the status and
+   * headers set on the response.
+   */
+  public static class CountingOutputStream extends ServletOutputStream
+  {
+    public long count;
+    public int status;
+    public final Map<String,String> headers = new HashMap<>();
+
+    @Override
+    public void write( int b )
+    {
+      count++;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len )
+    {
+      count += len;
+    }
+
+    @Override
+    public boolean isReady()
+    {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener( WriteListener listener )
+    {
+      throw new IllegalStateException( "Not asynchronous." );
+    }
+    
+    @Override
+    public void close()
+    {
+      // Kept open so that it can be reused.
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.leedsbeckett.ltidemo.persist.ResourcePersistence;
+import uk.ac.leedsbeckett.ltidemo.tool.Resource;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
+
+/**
+ * Rebuilding the resource store from a snapshot at start up, as the web
+ * application does. Each fork writes a snapshot and then times one load of
+ * it before any of the loading code has been compiled, as in a real
+ * restart. Writing the snapshot has already grown the heap, so a restart
+ * with a small default heap takes longer than this by the time it spends
+ * growing the heap; the web application logs that figure as it starts.
+ * 
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 0 )
+@Measurement( iterations = 1 )
+@Fork( 5 )
+public class StartupBenchmark
+{
+  static final String PLATFORM = "https://platform.example.com";
+  static final int PEOPLE = 1000;
+  
+  @Param( { "100000", "1000000" } )
+  int resources;
+  
+  @Param( { "3" } )
+  int entries;
+  
+  Path directory;
+  ResourcePersistence persistence;
+  
+  @Setup( Level.Trial )
+  public void setup() throws IOException
+  {
+    directory = Files.createTempDirectory( "startup-benchmark" );
+    ResourceStore store = new ResourceStore();
+    for ( int i=0; i<resources; i++ )
+    {
+      Resource resource = store.get( PLATFORM, "resource-" + i, true );
+      for ( int j=0; j<entries; j++ )
+        resource.addEntry( "Person " + ( ( i + j ) % PEOPLE ) );
+    }
+    ResourcePersistence writer = new ResourcePersistence( directory, store, 0L );
+    writer.open();
+    // Closing writes the snapshot.
+    writer.close();
+    store = null;
+    System.gc();
+  }
+  
+  @Benchmark
+  public ResourceStore open() throws IOException
+  {
+    ResourceStore store = new ResourceStore();
+    persistence = new ResourcePersistence( directory, store, 0L );
+    persistence.open();
+    return store;
+  }
+  
+  @TearDown( Level.Trial )
+  public void tearDown() throws IOException
+  {
+    if ( persistence != null )
+      persistence.getJournal().close();
+    try ( Stream<Path> files = Files.walk( directory ) )
+    {
+      files.sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.leedsbeckett.ltidemo.state.BenchmarkStates;
+import uk.ac.leedsbeckett.ltidemo.state.CourseLaunchState;
+import uk.ac.leedsbeckett.ltidemo.state.DemoLtiStateStore;
+import uk.ac.leedsbeckett.ltidemo.state.DemoState;
+
+/**
+ * Creating launch states, as every login does, and looking them up, as
+ * every tool page does. New states are created in a second store where
+ * they expire after a second, so that it stays about the same size.
+ * 
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@Threads( 4 )
+public class StateStoreBenchmark
+{
+  @Param( { "10000" } )
+  int states;
+  
+  DemoLtiStateStore store;
+  DemoLtiStateStore newstore;
+  String[] ids;
+  
+  @Setup
+  public void setup()
+  {
+    store = new DemoLtiStateStore();
+    ids = new String[states];
+    for ( int i=0; i<states; i++ )
+      ids[i] = BenchmarkStates.launch( store, "resource-" + i ).getId();
+    newstore = new DemoLtiStateStore();
+    newstore.setExpiry( 1000L, 1000L );
+    newstore.start();
+  }
+  
+  @TearDown
+  public void tearDown()
+  {
+    newstore.stop();
+  }
+  
+  @Benchmark
+  public DemoState create()
+  {
+    return BenchmarkStates.create( newstore );
+  }
+  
+  @Benchmark
+  public CourseLaunchState lookup()
+  {
+    return store.getCourseLaunchState( ids[ThreadLocalRandom.current().nextInt( states )] );
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.state;
+
+import java.util.List;
+
+/**
+ * Creates launched states for benchmarks. It lives in the state package
+ * because the store only creates states for the LTI library.
+ * 
+ * @author jon
+ */
+public class BenchmarkStates
+{
+  /**
+   * Create a state in a store as the login servlet would.
+   * 
+   * @param store The store.
+   * @return The new state.
+   */
+  public static DemoState create( DemoLtiStateStore store )
+  {
+    return (DemoState)store.newState( null );
+  }
+  
+  /**
+   * Create a state that has been through a course launch.
+   * 
+   * @param store The store.
+   * @param resourceid The ID of the resource launched.
+   * @return The new state.
+   */
+  public static DemoState launch( DemoLtiStateStore store, String resourceid )
+  {
+    DemoState state = create( store );
+    CourseLaunchState course = new CourseLaunchState();
+    course.setPersonName( "Benchmark Person" );
+    course.setPlatformName( "https://platform.example.com" );
+    course.setCourseTitle( "Benchmark Course" );
+    course.setResourceId( resourceid );
+    course.setRoles( List.of( "http://purl.imsglobal.org/vocab/lis/v2/membership#Instructor" ) );
+    course.setAllowedToClearResource( true );
+    state.setCourseLaunchState( course );
+    return state;
+  }
+}
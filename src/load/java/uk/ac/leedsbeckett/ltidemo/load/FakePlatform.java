@@ -0,0 +1,314 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for an LTI 1.3 platform such as Blackboard Learn. It has an RSA
+ * key pair, serves the public key as a JWKS document on localhost and signs
+ * id_tokens with the claims that DemoLtiLaunchServlet reads. The load
+ * generator plays the part of the platform's authorisation endpoint itself,
+ * so only the key set is served over HTTP.
+ * 
+ * @author jon
+ */
+public class FakePlatform implements Closeable
+{
+  static final String LTI = "https://purl.imsglobal.org/spec/lti/claim/";
+  static final String INSTRUCTOR = "http://purl.imsglobal.org/vocab/lis/v2/membership#Instructor";
+  static final String LEARNER = "http://purl.imsglobal.org/vocab/lis/v2/membership#Learner";
+  static final String TOOL_TYPE = "lti.jonmaber.co.uk#tool_type";
+  
+  final ObjectMapper mapper = new ObjectMapper();
+  final KeyPair keypair;
+  final String kid = UUID.randomUUID().toString();
+  final String[] clientids;
+  final String[] deploymentids;
+  final HttpServer server;
+  final String issuer;
+  final AtomicInteger keysetrequests = new AtomicInteger();
+  
+  /**
+   * Generate keys and start serving the key set, with the tool registered
+   * under one client.
+   * 
+   * @throws IOException If the server can't start.
+   */
+  public FakePlatform() throws IOException
+  {
+    this( 1 );
+  }
+  
+  /**
+   * Generate keys and start serving the key set, with the tool registered
+   * under a number of clients that all share the key set. Each client has
+   * one deployment.
+   * 
+   * @param clients How many clients.
+   * @throws IOException If the server can't start.
+   */
+  public FakePlatform( int clients ) throws IOException
+  {
+    clientids = new String[clients];
+    deploymentids = new String[clients];
+    for ( int i=0; i<clients; i++ )
+    {
+      clientids[i] = UUID.randomUUID().toString();
+      deploymentids[i] = UUID.randomUUID().toString();
+    }
+    
+    try
+    {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+      generator.initialize( 2048 );
+      keypair = generator.generateKeyPair();
+    }
+    catch ( NoSuchAlgorithmException ex )
+    {
+      throw new IOException( "RSA is not available.", ex );
+    }
+    
+    byte[] jwks = mapper.writeValueAsBytes( getKeySet() );
+    server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+    server.createContext( "/jwks", exchange -> 
+    {
+      keysetrequests.incrementAndGet();
+      exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+      exchange.sendResponseHeaders( 200, jwks.length );
+      try ( OutputStream out = exchange.getResponseBody() )
+      {
+        out.write( jwks );
+      }
+    } );
+    server.start();
+    issuer = "http://localhost:" + server.getAddress().getPort();
+  }
+  
+  static String base64url( BigInteger value )
+  {
+    byte[] bytes = value.toByteArray();
+    // Drop the sign byte.
+    if ( bytes.length > 1 && bytes[0] == 0 )
+      bytes = Arrays.copyOfRange( bytes, 1, bytes.length );
+    return Base64.getUrlEncoder().withoutPadding().encodeToString( bytes );
+  }
+  
+  ObjectNode getKeySet()
+  {
+    RSAPublicKey key = (RSAPublicKey)keypair.getPublic();
+    ObjectNode jwks = mapper.createObjectNode();
+    ObjectNode jwk = jwks.putArray( "keys" ).addObject();
+    jwk.put( "kty", "RSA" );
+    jwk.put( "alg", "RS256" );
+    jwk.put( "use", "sig" );
+    jwk.put( "kid", kid );
+    jwk.put( "n", base64url( key.getModulus() ) );
+    jwk.put( "e", base64url( key.getPublicExponent() ) );
+    return jwks;
+  }
+  
+  /**
+   * The issuer, which is also the base URL of this platform.
+   * 
+   * @return The issuer.
+   */
+  public String getIssuer()
+  {
+    return issuer;
+  }
+
+  /**
+   * The ID of the key that id_tokens are signed with.
+   * 
+   * @return The key ID.
+   */
+  public String getKeyId()
+  {
+    return kid;
+  }
+
+  /**
+   * How many times the key set has been requested.
+   * 
+   * @return Count.
+   */
+  public int getKeySetRequests()
+  {
+    return keysetrequests.get();
+  }
+
+  /**
+   * How many clients the tool is registered under.
+   * 
+   * @return Count.
+   */
+  public int getClientCount()
+  {
+    return clientids.length;
+  }
+
+  /**
+   * The first client ID that the tool is registered under.
+   * 
+   * @return The client ID.
+   */
+  public String getClientId()
+  {
+    return clientids[0];
+  }
+
+  /**
+   * One of the client IDs that the tool is registered under.
+   * 
+   * @param client Number of the client.
+   * @return The client ID.
+   */
+  public String getClientId( int client )
+  {
+    return clientids[client];
+  }
+
+  /**
+   * The deployment of the tool under the first client.
+   * 
+   * @return The deployment ID.
+   */
+  public String getDeploymentId()
+  {
+    return deploymentids[0];
+  }
+
+  /**
+   * The deployment of the tool under one of its clients.
+   * 
+   * @param client Number of the client.
+   * @return The deployment ID.
+   */
+  public String getDeploymentId( int client )
+  {
+    return deploymentids[client];
+  }
+  
+  /**
+   * Create the tool's configuration file, which registers this platform as
+   * an issuer with all of its clients.
+   * 
+   * @return The configuration in JSON.
+   * @throws IOException If the JSON can't be written.
+   */
+  public String getToolConfiguration() throws IOException
+  {
+    ObjectNode root = mapper.createObjectNode();
+    ObjectNode iss = root.putArray( "issuers" ).addObject();
+    iss.put( "name", issuer );
+    ArrayNode clients = iss.putArray( "clients" );
+    for ( int i=0; i<clientids.length; i++ )
+    {
+      ObjectNode client = clients.addObject();
+      client.put( "client_id", clientids[i] );
+      client.put( "auth_login_url", issuer + "/auth" );
+      client.put( "auth_token_url", issuer + "/token" );
+      client.put( "key_set_url", issuer + "/jwks" );
+      ArrayNode deployments = client.putArray( "deployment_ids" );
+      deployments.add( deploymentids[i] );
+    }
+    return mapper.writerWithDefaultPrettyPrinter().writeValueAsString( root );
+  }
+  
+  /**
+   * Create a signed id_token for a resource link launch.
+   * 
+   * @param nonce The nonce the tool sent with its login redirect.
+   * @param targetlinkuri Where the launch is going.
+   * @param tooltype Which tool: coursecontent, course or system.
+   * @param user Number of the user launching.
+   * @param resource Number of the resource launched.
+   * @param client Number of the client the tool was launched under.
+   * @return The token.
+   */
+  public String createIdToken( String nonce, String targetlinkuri, String tooltype, int user, int resource, int client )
+  {
+    long now = System.currentTimeMillis();
+    Map<String,Object> claims = new LinkedHashMap<>();
+    claims.put( "nonce", nonce );
+    claims.put( "azp", clientids[client] );
+    claims.put( "name", "Load User " + user );
+    claims.put( LTI + "message_type", "LtiResourceLinkRequest" );
+    claims.put( LTI + "version", "1.3.0" );
+    claims.put( LTI + "deployment_id", deploymentids[client] );
+    claims.put( LTI + "target_link_uri", targetlinkuri );
+    claims.put( LTI + "resource_link", Map.of( 
+            "id", "resource-" + resource, 
+            "title", "Load Resource " + resource ) );
+    claims.put( LTI + "context", Map.of( 
+            "id", "course-" + (resource % 10),
+            "label", "LOAD" + (resource % 10),
+            "title", "Load Course " + (resource % 10),
+            "type", List.of( "http://purl.imsglobal.org/vocab/lis/v2/course#CourseOffering" ) ) );
+    claims.put( LTI + "roles", List.of( user % 10 == 0 ? INSTRUCTOR : LEARNER ) );
+    claims.put( LTI + "tool_platform", Map.of( 
+            "guid", clientids[0],
+            "name", "Load Test Platform",
+            "url", issuer,
+            "product_family_code", "loadtest" ) );
+    claims.put( LTI + "custom", Map.of( TOOL_TYPE, tooltype ) );
+    
+    return Jwts.builder()
+            .setHeaderParam( "kid", kid )
+            .setClaims( claims )
+            .setIssuer( issuer )
+            .setAudience( clientids[client] )
+            .setSubject( "user-" + user )
+            .setIssuedAt( new Date( now ) )
+            .setExpiration( new Date( now + 300000L ) )
+            .signWith( keypair.getPrivate(), SignatureAlgorithm.RS256 )
+            .compact();
+  }
+
+  /**
+   * Stop serving the key set.
+   */
+  @Override
+  public void close()
+  {
+    server.stop( 0 );
+  }
+}
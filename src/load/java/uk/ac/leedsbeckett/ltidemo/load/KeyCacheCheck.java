@@ -0,0 +1,183 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import uk.ac.leedsbeckett.ltidemo.app.ClientIndex;
+import uk.ac.leedsbeckett.ltidemo.launch.PlatformKeyCache;
+
+/**
+ * Checks the platform key cache against the fake platform's key set
+ * server. It checks that launches arriving together for a key set that
+ * isn't cached share one fetch without waiting for it, that an unknown key
+ * ID doesn't cause a fetch every time it is looked up, that keys in use
+ * are fetched again before they expire, that a login warms the cache and
+ * that a key set which can't be fetched isn't tried again for every
+ * launch. Each check is an assertion and the run exits with status 1 when
+ * one fails, which fails the build.
+ * 
+ * @author jon
+ */
+public class KeyCacheCheck
+{
+  static final int THREADS = 50;
+  
+  /**
+   * Longest that a lookup may take. Lookups never wait for the network so
+   * this only allows for a slow machine.
+   */
+  static final long MAX_LOOKUP_MILLIS = 100L;
+  
+  static void check( boolean passed, String message )
+  {
+    if ( !passed )
+      throw new AssertionError( message );
+  }
+  
+  /**
+   * Wait for a background fetch to put a key into the cache.
+   * 
+   * @param cache The cache.
+   * @param registration The client.
+   * @param kid The key ID.
+   * @throws InterruptedException If interrupted.
+   */
+  static void awaitKey( PlatformKeyCache cache, ClientIndex.Registration registration, String kid ) throws InterruptedException
+  {
+    long end = System.currentTimeMillis() + 5000L;
+    while ( cache.lookup( registration, kid ) != PlatformKeyCache.Lookup.FOUND )
+    {
+      check( System.currentTimeMillis() < end, "The key set was not fetched in the background." );
+      Thread.sleep( 20L );
+    }
+  }
+  
+  public static void main( String[] args ) throws Exception
+  {
+    try
+    {
+      run();
+    }
+    catch ( AssertionError e )
+    {
+      System.out.println( "FAIL " + e.getMessage() );
+      System.exit( 1 );
+    }
+    System.out.println( "All key cache checks passed." );
+    System.exit( 0 );
+  }
+  
+  static void run() throws Exception
+  {
+    try ( FakePlatform platform = new FakePlatform() )
+    {
+      String configuration = platform.getToolConfiguration();
+      ClientIndex index = ClientIndex.build( new ObjectMapper().readTree( configuration ) );
+      ClientIndex.Registration registration = index.find( platform.getIssuer(), platform.getClientId() );
+      ClientIndex unreachable = ClientIndex.build( new ObjectMapper().readTree( 
+              configuration.replace( platform.getIssuer() + "/jwks", "http://127.0.0.1:1/jwks" ) ) );
+      ClientIndex.Registration broken = unreachable.find( platform.getIssuer(), platform.getClientId() );
+      PlatformKeyCache cache = new PlatformKeyCache();
+      cache.setExpiry( 2000L, 1000L );
+      cache.start();
+      try
+      {
+        // Many launches arriving together for a key set that isn't cached.
+        ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+        CountDownLatch go = new CountDownLatch( 1 );
+        List<Future<Long>> results = new ArrayList<>();
+        for ( int i=0; i<THREADS; i++ )
+          results.add( executor.submit( () -> 
+          {
+            go.await();
+            long start = System.nanoTime();
+            check( cache.lookup( registration, platform.getKeyId() ) != PlatformKeyCache.Lookup.NOT_PUBLISHED,
+                    "A key was reported as not published before its key set was fetched." );
+            return System.nanoTime() - start;
+          } ) );
+        go.countDown();
+        long slowest = 0L;
+        for ( Future<Long> result : results )
+          slowest = Math.max( slowest, result.get() );
+        executor.shutdown();
+        check( TimeUnit.NANOSECONDS.toMillis( slowest ) < MAX_LOOKUP_MILLIS, 
+                "A lookup of a key set that isn't cached took " + TimeUnit.NANOSECONDS.toMillis( slowest ) + "ms." );
+        awaitKey( cache, registration, platform.getKeyId() );
+        check( platform.getKeySetRequests() == 1, 
+                THREADS + " lookups together made " + platform.getKeySetRequests() + " fetches." );
+        
+        // A key ID the platform doesn't publish.
+        int before = platform.getKeySetRequests();
+        for ( int i=0; i<100; i++ )
+          check( cache.lookup( registration, "unknown-" + ( i % 3 ) ) == PlatformKeyCache.Lookup.NOT_PUBLISHED,
+                  "A key ID the platform doesn't publish was not reported." );
+        check( platform.getKeySetRequests() == before,
+                ( platform.getKeySetRequests() - before ) + " fetches for 100 lookups of unknown keys." );
+        
+        // Keep using the key past the refresh point but not the expiry.
+        long misses = cache.getMisses();
+        Thread.sleep( 1700L );
+        cache.lookup( registration, platform.getKeyId() );
+        Thread.sleep( 500L );
+        check( cache.lookup( registration, platform.getKeyId() ) == PlatformKeyCache.Lookup.FOUND 
+                && cache.getMisses() == misses && platform.getKeySetRequests() == before + 1,
+                "Refresh ahead made " + ( platform.getKeySetRequests() - before ) + " fetches and the key set was missing for " 
+                + ( cache.getMisses() - misses ) + " lookups." );
+        
+        // Login warming a client whose keys have expired.
+        Thread.sleep( 2100L );
+        before = platform.getKeySetRequests();
+        cache.warm( registration );
+        Thread.sleep( 500L );
+        misses = cache.getMisses();
+        check( cache.lookup( registration, platform.getKeyId() ) == PlatformKeyCache.Lookup.FOUND 
+                && cache.getMisses() == misses && platform.getKeySetRequests() == before + 1,
+                "Warming made " + ( platform.getKeySetRequests() - before ) + " fetches and the key set was missing for " 
+                + ( cache.getMisses() - misses ) + " lookups." );
+        
+        // A key set that can't be fetched is not tried for every launch.
+        long fetches = cache.getFetches();
+        long failures = cache.getFailures();
+        check( cache.lookup( broken, platform.getKeyId() ) == PlatformKeyCache.Lookup.NOT_CACHED,
+                "A key from a key set that can't be fetched was not left to the library." );
+        Thread.sleep( 500L );
+        for ( int i=0; i<100; i++ )
+          check( cache.lookup( broken, platform.getKeyId() ) == PlatformKeyCache.Lookup.NOT_CACHED,
+                  "A key from a key set that can't be fetched was not left to the library." );
+        check( cache.getFetches() - fetches == 1 && cache.getFailures() - failures == 1,
+                "101 lookups of a key set that can't be fetched made " + ( cache.getFetches() - fetches ) + " fetches." );
+        Thread.sleep( 1100L );
+        cache.lookup( broken, platform.getKeyId() );
+        Thread.sleep( 500L );
+        check( cache.getFetches() - fetches == 2,
+                "A failed key set was not fetched again after the negative time." );
+      }
+      finally
+      {
+        cache.stop();
+      }
+    }
+  }
+}
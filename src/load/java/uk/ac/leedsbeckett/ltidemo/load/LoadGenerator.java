@@ -0,0 +1,324 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.load;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drives complete LTI launches against the tool running in embedded Tomcat.
+ * Each flow logs in as the platform's browser would, receives the tool's
+ * redirect to the platform, posts an id_token signed by the fake platform
+ * to the launch URL and then fetches the tool page it is redirected to,
+ * unless the tool renders the page in the launch response.
+ * Requests are sent asynchronously so thousands of flows can be in progress
+ * without a thread each.
+ * 
+ * Options, all optional:
+ * <pre>
+ * --flows n          Number of measured flows, default 10000.
+ * --warmup n         Flows run before measuring, default 1000.
+ * --concurrency n    Flows in progress at once, default 1000.
+ * --resources n      Number of different resources launched, default 100.
+ * --users n          Number of different users, default 1000.
+ * --clients n        Number of clients the tool is registered under, default
+ *                    1. Each flow launches under one picked at random, so
+ *                    a run shows how launch latency changes with the
+ *                    number of registered clients.
+ * --tooltype t       coursecontent, course or system, default coursecontent.
+ * --maxthreads n     Tomcat's request threads, default 200.
+ * --webapp dir       The web application, default src/main/webapp.
+ * --param name=value A context parameter for the tool, may be repeated.
+ * --metrics true     Print the tool's metrics at the end.
+ * </pre>
+ * 
+ * @author jon
+ */
+public class LoadGenerator
+{
+  final FakePlatform platform;
+  final String toolurl;
+  final HttpClient client;
+  final String tooltype;
+  final int users;
+  final int resources;
+  
+  final StepStats login  = new StepStats( "login" );
+  final StepStats launch = new StepStats( "launch" );
+  final StepStats page   = new StepStats( "page" );
+  final StepStats flow   = new StepStats( "flow" );
+
+  LoadGenerator( FakePlatform platform, String toolurl, String tooltype, int users, int resources )
+  {
+    this.platform = platform;
+    this.toolurl = toolurl;
+    this.tooltype = tooltype;
+    this.users = users;
+    this.resources = resources;
+    this.client = HttpClient.newBuilder()
+            .followRedirects( HttpClient.Redirect.NEVER )
+            .connectTimeout( Duration.ofSeconds( 10 ) )
+            .build();
+  }
+  
+  static String form( Map<String,String> fields )
+  {
+    StringBuilder sb = new StringBuilder();
+    for ( Map.Entry<String,String> e : fields.entrySet() )
+    {
+      if ( sb.length() > 0 ) sb.append( '&' );
+      sb.append( URLEncoder.encode( e.getKey(), StandardCharsets.UTF_8 ) )
+        .append( '=' )
+        .append( URLEncoder.encode( e.getValue(), StandardCharsets.UTF_8 ) );
+    }
+    return sb.toString();
+  }
+  
+  static Map<String,String> query( URI uri )
+  {
+    Map<String,String> map = new HashMap<>();
+    String q = uri.getRawQuery();
+    if ( q == null )
+      return map;
+    for ( String pair : q.split( "&" ) )
+    {
+      int eq = pair.indexOf( '=' );
+      if ( eq > 0 )
+        map.put( URLDecoder.decode( pair.substring( 0, eq ), StandardCharsets.UTF_8 ), 
+                 URLDecoder.decode( pair.substring( eq + 1 ), StandardCharsets.UTF_8 ) );
+    }
+    return map;
+  }
+  
+  static HttpRequest post( URI uri, Map<String,String> fields )
+  {
+    return HttpRequest.newBuilder( uri )
+            .timeout( Duration.ofSeconds( 60 ) )
+            .header( "Content-Type", "application/x-www-form-urlencoded" )
+            .POST( HttpRequest.BodyPublishers.ofString( form( fields ) ) )
+            .build();
+  }
+  
+  /**
+   * Thrown to end a flow after a step has failed.
+   */
+  static class StepFailed extends RuntimeException
+  {
+    StepFailed( String message )
+    {
+      super( message, null, false, false );
+    }
+  }
+  
+  /**
+   * One launch by one user. Remembers which step is running so that an
+   * exception, such as a timeout, is counted against it.
+   */
+  class Flow
+  {
+    final int user = ThreadLocalRandom.current().nextInt( users );
+    final int resource = ThreadLocalRandom.current().nextInt( resources );
+    final int registration = ThreadLocalRandom.current().nextInt( platform.getClientCount() );
+    final String targetlinkuri = toolurl + "/launch";
+    final long flowstart = System.nanoTime();
+    StepStats step;
+    long start;
+    
+    <T> CompletableFuture<HttpResponse<T>> send( StepStats next, HttpRequest request, HttpResponse.BodyHandler<T> handler )
+    {
+      step = next;
+      start = System.nanoTime();
+      return client.sendAsync( request, handler );
+    }
+    
+    /**
+     * Find where a response redirects to, recording an error if it doesn't.
+     */
+    URI redirect( HttpResponse<?> response )
+    {
+      String location = response.headers().firstValue( "Location" ).orElse( null );
+      if ( response.statusCode() / 100 != 3 || location == null )
+        throw new StepFailed( "HTTP " + response.statusCode() );
+      step.success( start );
+      return response.request().uri().resolve( location );
+    }
+    
+    CompletableFuture<Void> run()
+    {
+      Map<String,String> loginfields = new LinkedHashMap<>();
+      loginfields.put( "iss", platform.getIssuer() );
+      loginfields.put( "login_hint", "user-" + user );
+      loginfields.put( "target_link_uri", targetlinkuri );
+      loginfields.put( "lti_message_hint", "resource-" + resource );
+      loginfields.put( "client_id", platform.getClientId( registration ) );
+      loginfields.put( "lti_deployment_id", platform.getDeploymentId( registration ) );
+
+      return send( login, post( URI.create( toolurl + "/login" ), loginfields ), HttpResponse.BodyHandlers.discarding() )
+              .thenCompose( response -> 
+              {
+                // The tool sends the browser to the platform to authenticate.
+                // Act as the platform and post the id_token back.
+                Map<String,String> auth = query( redirect( response ) );
+                String redirecturi = auth.getOrDefault( "redirect_uri", targetlinkuri );
+                String token = platform.createIdToken( auth.get( "nonce" ), targetlinkuri, tooltype, user, resource, registration );
+                Map<String,String> launchfields = new LinkedHashMap<>();
+                launchfields.put( "id_token", token );
+                launchfields.put( "state", auth.getOrDefault( "state", "" ) );
+                return send( launch, post( URI.create( redirecturi ), launchfields ), HttpResponse.BodyHandlers.ofByteArray() );
+              } )
+              .thenCompose( response -> 
+              {
+                // With launch.response=render the launch response is the
+                // tool page itself.
+                if ( response.statusCode() == 200 )
+                  return CompletableFuture.completedFuture( response );
+                HttpRequest request = HttpRequest.newBuilder( redirect( response ) ).timeout( Duration.ofSeconds( 60 ) ).build();
+                return send( page, request, HttpResponse.BodyHandlers.ofByteArray() );
+              } )
+              .handle( ( response, ex ) -> 
+              {
+                if ( ex == null && response.statusCode() == 200 )
+                {
+                  step.success( start );
+                  flow.success( flowstart );
+                  return null;
+                }
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                if ( cause == null )
+                  step.error( "HTTP " + response.statusCode() );
+                else if ( cause instanceof StepFailed )
+                  step.error( cause.getMessage() );
+                else
+                  step.error( cause.getClass().getSimpleName() );
+                flow.error( step.name );
+                return null;
+              } );
+    }
+  }
+  
+  /**
+   * Run flows, keeping a number in progress.
+   * 
+   * @param count How many.
+   * @param concurrency How many at once.
+   * @throws InterruptedException If interrupted.
+   */
+  void run( int count, int concurrency ) throws InterruptedException
+  {
+    Semaphore permits = new Semaphore( concurrency );
+    for ( int i=0; i<count; i++ )
+    {
+      permits.acquire();
+      new Flow().run().whenComplete( ( v, ex ) -> permits.release() );
+    }
+    permits.acquire( concurrency );
+  }
+  
+  void reset()
+  {
+    login.reset();
+    launch.reset();
+    page.reset();
+    flow.reset();
+  }
+  
+  void report( double seconds )
+  {
+    System.out.printf( "%nFlows completed in %.1f seconds%n%n", seconds );
+    StepStats.printHeading( System.out );
+    login.print( System.out, seconds );
+    launch.print( System.out, seconds );
+    page.print( System.out, seconds );
+    flow.print( System.out, seconds );
+  }
+  
+  /**
+   * Start the fake platform and the tool and run the load.
+   * 
+   * @param args Options, see the class description.
+   * @throws Exception If anything goes wrong outside a flow.
+   */
+  public static void main( String[] args ) throws Exception
+  {
+    Map<String,String> options = new HashMap<>();
+    Map<String,String> parameters = new LinkedHashMap<>();
+    for ( int i=0; i+1<args.length; i+=2 )
+    {
+      if ( !args[i].startsWith( "--" ) )
+        throw new IllegalArgumentException( "Expected an option: " + args[i] );
+      if ( "--param".equals( args[i] ) )
+      {
+        String[] p = args[i+1].split( "=", 2 );
+        parameters.put( p[0], p.length > 1 ? p[1] : "" );
+      }
+      else
+        options.put( args[i].substring( 2 ), args[i+1] );
+    }
+    int flows       = Integer.parseInt( options.getOrDefault( "flows", "10000" ) );
+    int warmup      = Integer.parseInt( options.getOrDefault( "warmup", "1000" ) );
+    int concurrency = Integer.parseInt( options.getOrDefault( "concurrency", "1000" ) );
+    int resources   = Integer.parseInt( options.getOrDefault( "resources", "100" ) );
+    int users       = Integer.parseInt( options.getOrDefault( "users", "1000" ) );
+    int clients     = Integer.parseInt( options.getOrDefault( "clients", "1" ) );
+    int maxthreads  = Integer.parseInt( options.getOrDefault( "maxthreads", "200" ) );
+    String tooltype = options.getOrDefault( "tooltype", "coursecontent" );
+    Path webapp     = Paths.get( options.getOrDefault( "webapp", "src/main/webapp" ) );
+    
+    try ( FakePlatform platform = new FakePlatform( clients );
+          ToolServer tool = new ToolServer( webapp, platform.getToolConfiguration(), parameters, 0, maxthreads ) )
+    {
+      LoadGenerator generator = new LoadGenerator( platform, tool.getBaseUrl(), tooltype, users, resources );
+      System.out.println( "Platform " + platform.getIssuer() + " with " + clients + " clients, tool " + tool.getBaseUrl() );
+      if ( warmup > 0 )
+      {
+        System.out.println( "Warming up with " + warmup + " flows" );
+        generator.run( warmup, concurrency );
+        generator.reset();
+      }
+      System.out.println( "Running " + flows + " flows, " + concurrency + " at a time" );
+      long start = System.nanoTime();
+      generator.run( flows, concurrency );
+      generator.report( (System.nanoTime() - start) / 1e9 );
+      System.out.println( "\nThe tool's metrics are at " + tool.getBaseUrl() + "/admin/metrics" );
+      if ( options.containsKey( "metrics" ) )
+        System.out.println( generator.client.send( HttpRequest.newBuilder( URI.create( tool.getBaseUrl() + "/admin/metrics" ) ).build(), 
+                                                   HttpResponse.BodyHandlers.ofString() ).body() );
+    }
+    catch ( IOException ex )
+    {
+      System.err.println( "Unable to run: " + ex.getMessage() );
+      System.exit( 1 );
+    }
+    System.exit( 0 );
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.load;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latency and errors for one step of the launch flow.
+ * 
+ * @author jon
+ */
+public class StepStats
+{
+  static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros( 2L );
+  
+  final String name;
+  final Histogram histogram = new ConcurrentHistogram( HIGHEST_MICROS, 3 );
+  final LongAdder errors = new LongAdder();
+  final ConcurrentHashMap<String,LongAdder> reasons = new ConcurrentHashMap<>();
+
+  /**
+   * Create statistics for a step.
+   * 
+   * @param name The name of the step.
+   */
+  public StepStats( String name )
+  {
+    this.name = name;
+  }
+  
+  /**
+   * Record a step that succeeded.
+   * 
+   * @param startnanos When the step started, from System.nanoTime().
+   */
+  public void success( long startnanos )
+  {
+    long micros = TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - startnanos );
+    histogram.recordValue( Math.min( micros, HIGHEST_MICROS ) );
+  }
+  
+  /**
+   * Record a step that failed.
+   * 
+   * @param reason A short description, such as the HTTP status.
+   */
+  public void error( String reason )
+  {
+    errors.increment();
+    reasons.computeIfAbsent( reason, k -> new LongAdder() ).increment();
+  }
+  
+  /**
+   * Forget everything recorded, at the end of the warm up.
+   */
+  public void reset()
+  {
+    histogram.reset();
+    errors.reset();
+    reasons.clear();
+  }
+  
+  static String millis( long micros )
+  {
+    return String.format( "%10.2f", micros / 1000.0 );
+  }
+  
+  /**
+   * Print a line of the report.
+   * 
+   * @param out Where to print.
+   * @param seconds How long the measurement ran.
+   */
+  public void print( PrintStream out, double seconds )
+  {
+    out.printf( "%-8s %9d %7d %10.1f%s%s%s%s%n", 
+            name, 
+            histogram.getTotalCount(), 
+            errors.sum(), 
+            histogram.getTotalCount() / seconds,
+            millis( histogram.getValueAtPercentile( 50.0 ) ),
+            millis( histogram.getValueAtPercentile( 99.0 ) ),
+            millis( histogram.getValueAtPercentile( 99.9 ) ),
+            millis( histogram.getMaxValue() ) );
+    Map<String,LongAdder> sorted = new TreeMap<>( reasons );
+    sorted.forEach( ( reason, count ) -> out.printf( "         %7d x %s%n", count.sum(), reason ) );
+  }
+  
+  /**
+   * Print the heading of the report.
+   * 
+   * @param out Where to print.
+   */
+  public static void printHeading( PrintStream out )
+  {
+    out.printf( "%-8s %9s %7s %10s%10s%10s%10s%10s%n", "step", "ok", "errors", "per sec", "p50 ms", "p99 ms", "p99.9 ms", "max ms" );
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.load;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.stream.Stream;
+import javax.servlet.http.HttpServlet;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.commons.io.FileUtils;
+import org.apache.tomcat.util.descriptor.web.FilterDef;
+import org.apache.tomcat.util.descriptor.web.FilterMap;
+import uk.ac.leedsbeckett.ltidemo.app.DemoContextListener;
+import uk.ac.leedsbeckett.ltidemo.app.FixedLtiConfiguration;
+import uk.ac.leedsbeckett.ltidemo.launch.DemoLtiLaunchServlet;
+import uk.ac.leedsbeckett.ltidemo.launch.DemoLtiLoginServlet;
+import uk.ac.leedsbeckett.ltidemo.metrics.MetricsServlet;
+import uk.ac.leedsbeckett.ltidemo.metrics.RequestTimingFilter;
+import uk.ac.leedsbeckett.ltidemo.tool.CourseResourceServlet;
+import uk.ac.leedsbeckett.ltidemo.tool.PlatformResourceServlet;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceEventServlet;
+
+/**
+ * Runs the tool in embedded Tomcat. The web application's files are copied
+ * to a temporary directory so that the configuration file can be replaced
+ * with one that trusts the fake platform. The servlets are added by hand
+ * with the names and URLs in their annotations, along with the request
+ * timing filter from web.xml. There is no security constraint, so the
+ * metrics can be read at /admin/metrics while the load runs.
+ * 
+ * @author jon
+ */
+public class ToolServer implements Closeable
+{
+  final Path basedir;
+  final Tomcat tomcat = new Tomcat();
+  
+  /**
+   * Start the tool.
+   * 
+   * @param webapp The web application directory, src/main/webapp.
+   * @param config The LTI configuration to use.
+   * @param parameters Context parameters.
+   * @param port The port to listen on, zero for any.
+   * @param maxthreads Size of the connector's thread pool.
+   * @throws IOException If the files can't be copied.
+   * @throws LifecycleException If Tomcat doesn't start.
+   */
+  public ToolServer( Path webapp, String config, Map<String,String> parameters, int port, int maxthreads ) 
+          throws IOException, LifecycleException
+  {
+    basedir = Files.createTempDirectory( "ltidemo-load" );
+    Path docbase = basedir.resolve( "webapp" );
+    copy( webapp, docbase );
+    Files.writeString( docbase.resolve( "WEB-INF/config.json" ), config, StandardCharsets.UTF_8 );
+    
+    tomcat.setBaseDir( basedir.resolve( "tomcat" ).toString() );
+    tomcat.setPort( port );
+    tomcat.getConnector().setProperty( "maxThreads", Integer.toString( maxthreads ) );
+    Context context = tomcat.addContext( "", docbase.toString() );
+    parameters.forEach( context::addParameter );
+    context.addApplicationListener( DemoContextListener.class.getName() );
+    add( context, "DemoLtiLoginServlet",     FixedLtiConfiguration.LOGIN_PATTERN,  new DemoLtiLoginServlet() );
+    add( context, "DemoLtiLaunchServlet",    FixedLtiConfiguration.LAUNCH_PATTERN, new DemoLtiLaunchServlet() );
+    add( context, "CourseResourceServlet",   "/courseresource",                    new CourseResourceServlet() );
+    add( context, "PlatformResourceServlet", "/platformresource",                  new PlatformResourceServlet() );
+    add( context, "ResourceEventServlet",    "/courseresource/events",             new ResourceEventServlet() );
+    add( context, "MetricsServlet",          "/admin/metrics",                     new MetricsServlet() );
+    
+    FilterDef timing = new FilterDef();
+    timing.setFilterName( "RequestTimingFilter" );
+    timing.setFilter( new RequestTimingFilter() );
+    timing.setAsyncSupported( "true" );
+    context.addFilterDef( timing );
+    FilterMap timingmap = new FilterMap();
+    timingmap.setFilterName( "RequestTimingFilter" );
+    for ( String name : new String[] { "DemoLtiLoginServlet", "DemoLtiLaunchServlet", "CourseResourceServlet", "PlatformResourceServlet" } )
+      timingmap.addServletName( name );
+    context.addFilterMap( timingmap );
+    tomcat.start();
+  }
+  
+  static void copy( Path from, Path to ) throws IOException
+  {
+    try ( Stream<Path> paths = Files.walk( from ) )
+    {
+      for ( Path p : (Iterable<Path>)paths::iterator )
+      {
+        Path target = to.resolve( from.relativize( p ).toString() );
+        if ( Files.isDirectory( p ) )
+          Files.createDirectories( target );
+        else
+          Files.copy( p, target, StandardCopyOption.REPLACE_EXISTING );
+      }
+    }
+  }
+  
+  static void add( Context context, String name, String pattern, HttpServlet servlet )
+  {
+    Tomcat.addServlet( context, name, servlet ).setAsyncSupported( true );
+    context.addServletMappingDecoded( pattern, name );
+  }
+  
+  /**
+   * The URL of the tool's root.
+   * 
+   * @return The URL.
+   */
+  public String getBaseUrl()
+  {
+    return "http://localhost:" + tomcat.getConnector().getLocalPort();
+  }
+  
+  /**
+   * Stop Tomcat and delete the temporary files.
+   * 
+   * @throws IOException If Tomcat doesn't stop.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      tomcat.stop();
+      tomcat.destroy();
+    }
+    catch ( LifecycleException ex )
+    {
+      throw new IOException( "Unable to stop Tomcat.", ex );
+    }
+    finally
+    {
+      FileUtils.deleteQuietly( basedir.toFile() );
+    }
+  }
+}
@@ -16,13 +16,27 @@
 
 package uk.ac.leedsbeckett.ltidemo.admin;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import uk.ac.leedsbeckett.lti.LtiConfiguration;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import uk.ac.leedsbeckett.ltidemo.app.ConfigurationHolder;
 import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+import uk.ac.leedsbeckett.ltidemo.cluster.TcpStateReplicator;
+import uk.ac.leedsbeckett.ltidemo.launch.NonceReplayGuard;
+import uk.ac.leedsbeckett.ltidemo.launch.PlatformKeyCache;
+import uk.ac.leedsbeckett.ltidemo.metrics.FlightRecordings;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTrace;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTracer;
+import uk.ac.leedsbeckett.ltidemo.persist.ResourcePersistence;
+import uk.ac.leedsbeckett.ltidemo.render.FragmentCache;
+import uk.ac.leedsbeckett.ltidemo.state.DemoLtiStateStore;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceFeed;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
 
 /**
  * This class provides logic for use within an admin JSP page.
@@ -31,10 +45,30 @@ import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
  */
 public class AdminOutcomes
 {
+  /**
+   * The most launch traces listed on the page.
+   */
+  static final int MAX_TRACES = 50;
+  
   HttpServletRequest request;
   String action;
   String rawconfig;
+  ConfigurationHolder configholder;
+  boolean configwatched;
   String importantmessage="";
+  ResourceStore store;
+  DemoLtiStateStore statestore;
+  ResourcePersistence persistence;
+  FragmentCache fragmentcache;
+  ResourceFeed feed;
+  FlightRecordings recordings;
+  String recordingmessage="";
+  LaunchTracer tracer;
+  String tracestateid;
+  double traceminmillis;
+  List<LaunchTrace> traces;
+  PlatformKeyCache keycache;
+  NonceReplayGuard nonceguard;
 
   /**
    * Get the HTTP request associated with the JSP page that uses this object.
@@ -57,21 +91,20 @@ public class AdminOutcomes
     
     // Retrieve information about the application
     DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
-    LtiConfiguration config = appcontext.getConfig();
+    ConfigurationHolder config = appcontext.getConfigHolder();
     
     // Find out if there was a form field called 'action'
     if ( request != null )
       action = request.getParameter( "action" );
     
     // If a saveconfig action was specified take the input from the form and
-    // save it over the config file. Then tell the LTI library to reload it.
+    // save it over the config file. The holder swaps in a new configuration
+    // loaded from it, so requests in progress are not disturbed.
     if ( "saveconfig".equals( action ) )
     {
-      String name = config.getConfigFileName();
       try
       {
-        saveToFile( name, request.getParameter( "config" ) );
-        config.load( name );
+        config.save( request.getParameter( "config" ) );
         importantmessage = "Configuration successfully saved.";
       }
       catch ( IOException ioe )
@@ -80,21 +113,74 @@ public class AdminOutcomes
       }
     }
     
+    recordings = appcontext.getFlightRecordings();
+    if ( action != null && action.endsWith( "recording" ) )
+      processRecordingAction();
+    
+    tracer = appcontext.getLaunchTracer();
+    findTraces();
+    
     // Regardless, fetch the current config now.
-    rawconfig = config.getRawConfiguration();
+    rawconfig = config.get().getRawConfiguration();
+    configholder = config;
+    configwatched = appcontext.getConfigWatcher() != null;
+    
+    store = appcontext.getStore();
+    statestore = appcontext.getStateStore();
+    persistence = appcontext.getPersistence();
+    keycache = appcontext.getKeyCache();
+    nonceguard = appcontext.getNonceGuard();
+    fragmentcache = appcontext.getFragmentCache();
+    feed = appcontext.getResourceFeed();
   }
 
   /**
-   * Simply write the text content into a file with the given name.
-   * @param name Name of the file.
-   * @param content The content to put in the file using UTF encoding.
-   * @throws IOException If there is a problem writing to the file.
+   * Start, dump or stop the flight recording as the action asks.
    */
-  void saveToFile( String name, String content ) throws IOException
+  void processRecordingAction()
   {
-    FileUtils.writeStringToFile( new File( name ), content, StandardCharsets.UTF_8 );
+    try
+    {
+      if ( "startrecording".equals( action ) )
+      {
+        recordingmessage = recordings.start() ? "Recording started." : "A recording is already running.";
+        return;
+      }
+      
+      Path file;
+      if ( "dumprecording".equals( action ) )
+        file = recordings.dump();
+      else if ( "stoprecording".equals( action ) )
+        file = recordings.stop();
+      else
+        return;
+      recordingmessage = file == null ? "No recording is running." : "Recording written to " + file;
+    }
+    catch ( IOException | ParseException e )
+    {
+      recordingmessage = "Recording failed. " + e.getMessage();
+    }
   }
-  
+
+  /**
+   * Find the slowest launch traces that match the state ID and minimum
+   * time given in the request, if any.
+   */
+  void findTraces()
+  {
+    tracestateid = StringUtils.trimToNull( request.getParameter( "tracestateid" ) );
+    try
+    {
+      String min = StringUtils.trimToNull( request.getParameter( "traceminmillis" ) );
+      traceminmillis = min == null ? 0.0 : Double.parseDouble( min );
+    }
+    catch ( NumberFormatException e )
+    {
+      traceminmillis = 0.0;
+    }
+    traces = tracer.find( tracestateid, traceminmillis, MAX_TRACES );
+  }
+
   /**
    * Get the full content of the configuration file as a string.
    * 
@@ -105,6 +191,53 @@ public class AdminOutcomes
     return rawconfig;
   }
 
+  /**
+   * Describe when the configuration was last loaded and whether the file is
+   * watched for changes.
+   * 
+   * @return A description.
+   */
+  public String getConfigStatus()
+  {
+    String status = "Loaded " + configholder.getReloadCount() + " times, most recently at " 
+            + Instant.ofEpochMilli( configholder.getLastLoaded() ) + ". "
+            + ( configwatched ? "Changes to the file on disk are loaded automatically." : "The file is not watched for changes." )
+            + " It registers " + configholder.getClientIndex().getClientCount() + " clients of " 
+            + configholder.getClientIndex().getIssuerCount() + " issuers.";
+    if ( configholder.getLastError() != null )
+      status += " The last attempt to load it failed: " + configholder.getLastError();
+    return status;
+  }
+
+  /**
+   * Describe the use of the platform key cache.
+   * 
+   * @return A description.
+   */
+  public String getKeyCacheStatus()
+  {
+    return "Keys found in the cache: " + keycache.getHits() + ", key set not cached: " + keycache.getMisses()
+            + ", not published by the platform: " + keycache.getUnknown() + ". Key sets fetched: " 
+            + keycache.getFetches() + ", failed: " + keycache.getFailures() 
+            + ", not retried after failing: " + keycache.getSkipped() + ".";
+  }
+
+  /**
+   * Describe the guard against replayed launches.
+   * 
+   * @return A description.
+   */
+  public String getNonceGuardStatus()
+  {
+    if ( nonceguard == null )
+      return "Launches are not checked for replayed nonces.";
+    return String.format( "Nonces checked: %d, replays turned away: %d, not remembered because the table was full: %d. "
+            + "Filter false positive rate: %.4f%%. Remembering %d launches for %d minutes in %dKB.",
+            nonceguard.getChecks(), nonceguard.getReplays(), nonceguard.getUnrecorded(),
+            nonceguard.getFalsePositiveRate() * 100.0, nonceguard.getCapacity(),
+            TimeUnit.MILLISECONDS.toMinutes( nonceguard.getWindowMillis() ), nonceguard.getBytes() / 1024L );
+  }
+
   /**
    * Get the value of the action parameter.
    * 
@@ -125,4 +258,442 @@ public class AdminOutcomes
   {
     return importantmessage;
   }
+
+  /**
+   * Get the number of resources in memory.
+   * 
+   * @return Number of resources.
+   */
+  public int getResourceCount()
+  {
+    return store.size();
+  }
+  
+  /**
+   * Get the estimated memory used by resources.
+   * 
+   * @return Number of kilobytes.
+   */
+  public long getResourceKilobytes()
+  {
+    return store.getEstimatedBytes() / 1024L;
+  }
+  
+  /**
+   * Get the percentage of resource lookups that found the resource in memory.
+   * 
+   * @return Hit ratio as a formatted percentage.
+   */
+  public String getResourceHitRatio()
+  {
+    return String.format( "%.2f%%", store.getHitRatio() * 100.0 );
+  }
+  
+  /**
+   * Get the number of resources evicted from memory.
+   * 
+   * @return Number of resources.
+   */
+  public long getResourceEvictions()
+  {
+    return store.getEvictions();
+  }
+  
+  /**
+   * Get the number of evicted resources that were loaded back into memory.
+   * 
+   * @return Number of resources.
+   */
+  public long getResourceLoads()
+  {
+    return store.getLoads();
+  }
+  
+  /**
+   * Is the resource store being saved to disk?
+   * 
+   * @return True if it is.
+   */
+  public boolean isPersistent()
+  {
+    return persistence != null;
+  }
+  
+  /**
+   * How long it took to rebuild the resource store at start up.
+   * 
+   * @return Time in milliseconds.
+   */
+  public long getStartupMillis()
+  {
+    return persistence == null ? 0L : persistence.getStartupMillis();
+  }
+  
+  /**
+   * How many resources were loaded from a snapshot at start up.
+   * 
+   * @return Number of resources.
+   */
+  public long getSnapshotResources()
+  {
+    return persistence == null ? 0L : persistence.getSnapshotResources();
+  }
+  
+  /**
+   * How many journal records were replayed at start up.
+   * 
+   * @return Number of records.
+   */
+  public long getReplayedRecords()
+  {
+    return persistence == null ? 0L : persistence.getReplayedRecords();
+  }
+  
+  /**
+   * How long the most recent checkpoint took.
+   * 
+   * @return Time in milliseconds.
+   */
+  public long getLastCheckpointMillis()
+  {
+    return persistence == null ? 0L : persistence.getLastCheckpointMillis();
+  }
+
+  /**
+   * How many changes were not journalled because the queue was full or
+   * writing failed.
+   * 
+   * @return Number of changes.
+   */
+  public long getJournalDropped()
+  {
+    return persistence == null ? 0L : persistence.getJournal().getDropped();
+  }
+
+  /**
+   * Get the number of LTI states that have not expired.
+   * 
+   * @return Number of states.
+   */
+  public int getLiveStateCount()
+  {
+    return statestore.getLiveCount();
+  }
+  
+  /**
+   * Get the number of LTI states that have expired since start up.
+   * 
+   * @return Number of states.
+   */
+  public long getExpiredStateCount()
+  {
+    return statestore.getExpiredCount();
+  }
+  
+  /**
+   * Is launch data being replicated to other nodes?
+   * 
+   * @return True if replicating.
+   */
+  public boolean isReplicating()
+  {
+    return statestore.getReplicator() instanceof TcpStateReplicator;
+  }
+  
+  TcpStateReplicator getReplicator()
+  {
+    return (TcpStateReplicator)statestore.getReplicator();
+  }
+  
+  /**
+   * Get the names of the nodes that share launch data.
+   * 
+   * @return The names.
+   */
+  public String getClusterNodes()
+  {
+    return isReplicating() ? String.join( ", ", getReplicator().getNodeNames() ) : "";
+  }
+  
+  /**
+   * Get the number of copies of states received from other nodes.
+   * 
+   * @return Number of copies.
+   */
+  public int getReplicaCount()
+  {
+    return statestore.getReplicaCount();
+  }
+  
+  /**
+   * Get the number of states sent to other nodes.
+   * 
+   * @return Count.
+   */
+  public long getReplicationPublished()
+  {
+    return isReplicating() ? getReplicator().getPublishedCount() : 0L;
+  }
+  
+  /**
+   * Get the number of changes that could not be sent to other nodes.
+   * 
+   * @return Count.
+   */
+  public long getReplicationDropped()
+  {
+    return isReplicating() ? getReplicator().getDroppedCount() : 0L;
+  }
+  
+  /**
+   * Get the number of inbound replication connections that were refused.
+   * 
+   * @return Count.
+   */
+  public long getReplicationRejected()
+  {
+    return isReplicating() ? getReplicator().getRejectedCount() : 0L;
+  }
+  
+  /**
+   * Get the number of changes received from other nodes.
+   * 
+   * @return Count.
+   */
+  public long getReplicationReceived()
+  {
+    return isReplicating() ? getReplicator().getReceivedCount() : 0L;
+  }
+  
+  /**
+   * Get the mean replication lag.
+   * 
+   * @return Lag in milliseconds, formatted.
+   */
+  public String getReplicationMeanLag()
+  {
+    return isReplicating() ? String.format( "%.1f", getReplicator().getMeanLagMillis() ) : "";
+  }
+  
+  /**
+   * Get the longest replication lag.
+   * 
+   * @return Lag in milliseconds.
+   */
+  public long getReplicationMaxLag()
+  {
+    return isReplicating() ? getReplicator().getMaxLagMillis() : 0L;
+  }
+  
+  /**
+   * Get the number of states fetched from other nodes, and how many were
+   * found.
+   * 
+   * @return Counts, formatted.
+   */
+  public String getRemoteFetches()
+  {
+    if ( !isReplicating() )
+      return "";
+    TcpStateReplicator r = getReplicator();
+    return r.getFetchCount() + " (found " + r.getFetchHitCount() + ", failed " + r.getFetchFailureCount() + ")";
+  }
+  
+  /**
+   * Get mean and maximum time taken to fetch a state from another node.
+   * 
+   * @return Times in milliseconds, formatted.
+   */
+  public String getRemoteFetchLatency()
+  {
+    if ( !isReplicating() )
+      return "";
+    TcpStateReplicator r = getReplicator();
+    return String.format( "mean %.2fms, max %.2fms", r.getMeanFetchMillis(), r.getMaxFetchMillis() );
+  }
+  
+  /**
+   * Get the number of entry lists held in the fragment cache.
+   * 
+   * @return Number of fragments.
+   */
+  public int getFragmentCount()
+  {
+    return fragmentcache.size();
+  }
+  
+  /**
+   * Get the size of the fragment cache.
+   * 
+   * @return Size in kilobytes.
+   */
+  public long getFragmentKilobytes()
+  {
+    return fragmentcache.getBytes() / 1024L;
+  }
+  
+  /**
+   * Get the hit ratio of the fragment cache.
+   * 
+   * @return The ratio, formatted.
+   */
+  public String getFragmentHitRatio()
+  {
+    return String.format( "%.2f%%", fragmentcache.getHitRatio() * 100.0 );
+  }
+  
+  /**
+   * Get the hits and misses of the fragment cache.
+   * 
+   * @return Counts, formatted.
+   */
+  public String getFragmentLookups()
+  {
+    return fragmentcache.getHits() + " hits, " + fragmentcache.getMisses() + " misses, " 
+            + fragmentcache.getEvictions() + " evictions";
+  }
+  
+  /**
+   * Get the number of browsers receiving live changes.
+   * 
+   * @return Number of connections.
+   */
+  public int getFeedSubscribers()
+  {
+    return feed.getSubscriberCount();
+  }
+  
+  /**
+   * Get the number of resources with browsers receiving live changes.
+   * 
+   * @return Number of resources.
+   */
+  public int getFeedChannels()
+  {
+    return feed.getChannelCount();
+  }
+  
+  /**
+   * Get the counts of live changes sent.
+   * 
+   * @return Counts, formatted.
+   */
+  public String getFeedActivity()
+  {
+    return feed.getEventCount() + " events in " + feed.getBatchCount() + " batches, "
+            + feed.getSubscribedCount() + " connections since start up, " 
+            + feed.getDroppedCount() + " dropped for falling behind";
+  }
+  
+  /**
+   * Get the outcome of the most recent recording action.
+   * 
+   * @return A message or an empty string.
+   */
+  public String getRecordingMessage()
+  {
+    return recordingmessage;
+  }
+  
+  /**
+   * Is a flight recording running?
+   * 
+   * @return True if it is.
+   */
+  public boolean isRecording()
+  {
+    return recordings.isRecording();
+  }
+  
+  /**
+   * Get when the running flight recording started.
+   * 
+   * @return The time, formatted, or an empty string.
+   */
+  public String getRecordingStarted()
+  {
+    Instant started = recordings.getStartTime();
+    return started == null ? "" : started.toString();
+  }
+  
+  /**
+   * Get how many minutes of data flight recordings keep.
+   * 
+   * @return Time in minutes.
+   */
+  public long getRecordingMaxAgeMinutes()
+  {
+    return recordings.getMaxAgeMinutes();
+  }
+  
+  /**
+   * Get the file most recently written by a flight recording.
+   * 
+   * @return The path or an empty string.
+   */
+  public String getLastRecordingDump()
+  {
+    Path file = recordings.getLastDump();
+    return file == null ? "" : file.toString();
+  }
+  
+  /**
+   * Is launch tracing on?
+   * 
+   * @return True if it is.
+   */
+  public boolean isTracing()
+  {
+    return tracer.isEnabled();
+  }
+  
+  /**
+   * Get the number of launch traces completed since start up.
+   * 
+   * @return Count.
+   */
+  public long getTraceCount()
+  {
+    return tracer.getRecordedCount();
+  }
+  
+  /**
+   * Get the number of launch traces kept.
+   * 
+   * @return Count.
+   */
+  public int getTraceCapacity()
+  {
+    return tracer.getCapacity();
+  }
+  
+  /**
+   * Get the state ID that traces were filtered by.
+   * 
+   * @return The state ID or an empty string.
+   */
+  public String getTraceStateId()
+  {
+    return tracestateid == null ? "" : tracestateid;
+  }
+  
+  /**
+   * Get the minimum time of the traces listed.
+   * 
+   * @return Time in milliseconds.
+   */
+  public String getTraceMinMillis()
+  {
+    return traceminmillis > 0.0 ? Double.toString( traceminmillis ) : "";
+  }
+  
+  /**
+   * Get the slowest launch traces that match the filter.
+   * 
+   * @return The traces, slowest first.
+   */
+  public List<LaunchTrace> getTraces()
+  {
+    return traces;
+  }
 }
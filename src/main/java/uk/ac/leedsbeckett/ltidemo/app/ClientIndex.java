@@ -0,0 +1,211 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.app;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the clients registered in the LTI configuration, built once
+ * when the configuration is loaded and never changed afterwards. Every
+ * Blackboard tenant has its own client registration so there can be
+ * thousands of clients.
+ * 
+ * The index is a map of issuers to maps of clients rather than one map
+ * with a composite key, so that looking up an issuer, client and
+ * deployment doesn't create a key object. Names are interned when the
+ * index is built so that the many registrations that share an issuer
+ * share one copy of its name.
+ * 
+ * @author jon
+ */
+public class ClientIndex
+{
+  /**
+   * An index with no clients.
+   */
+  public static final ClientIndex EMPTY = new ClientIndex( Collections.emptyMap(), 0 );
+  
+  final Map<String,Map<String,Registration>> issuers;
+  final int clientcount;
+  
+  /**
+   * One client registration.
+   */
+  public static class Registration
+  {
+    final String issuer;
+    final String clientid;
+    final String keyseturl;
+    final Set<String> deployments;
+    
+    Registration( String issuer, String clientid, String keyseturl, Set<String> deployments )
+    {
+      this.issuer = issuer;
+      this.clientid = clientid;
+      this.keyseturl = keyseturl;
+      this.deployments = deployments;
+    }
+
+    /**
+     * Simple getter.
+     * 
+     * @return The issuer.
+     */
+    public String getIssuer()
+    {
+      return issuer;
+    }
+
+    /**
+     * Simple getter.
+     * 
+     * @return The client ID.
+     */
+    public String getClientId()
+    {
+      return clientid;
+    }
+
+    /**
+     * Simple getter.
+     * 
+     * @return The URL of the platform's JSON web key set or null.
+     */
+    public String getKeySetUrl()
+    {
+      return keyseturl;
+    }
+    
+    /**
+     * Is a deployment of the tool registered for this client? A client that
+     * lists no deployments accepts any.
+     * 
+     * @param deploymentid The deployment ID.
+     * @return True if it is.
+     */
+    public boolean hasDeployment( String deploymentid )
+    {
+      return deployments.isEmpty() || ( deploymentid != null && deployments.contains( deploymentid ) );
+    }
+  }
+  
+  ClientIndex( Map<String,Map<String,Registration>> issuers, int clientcount )
+  {
+    this.issuers = issuers;
+    this.clientcount = clientcount;
+  }
+  
+  /**
+   * Build an index from the parsed configuration file.
+   * 
+   * @param root The root of the configuration.
+   * @return The index.
+   */
+  public static ClientIndex build( JsonNode root )
+  {
+    HashMap<String,Map<String,Registration>> issuers = new HashMap<>();
+    int count = 0;
+    for ( JsonNode issuer : root.path( "issuers" ) )
+    {
+      String name = issuer.path( "name" ).asText( null );
+      if ( name == null )
+        continue;
+      name = name.intern();
+      Map<String,Registration> clients = issuers.computeIfAbsent( name, k -> new HashMap<>() );
+      for ( JsonNode client : issuer.path( "clients" ) )
+      {
+        String clientid = client.path( "client_id" ).asText( null );
+        if ( clientid == null )
+          continue;
+        HashSet<String> deployments = new HashSet<>();
+        for ( JsonNode deployment : client.path( "deployment_ids" ) )
+          deployments.add( deployment.asText().intern() );
+        String keyseturl = client.path( "key_set_url" ).asText( null );
+        Registration r = new Registration( name, clientid.intern(), keyseturl == null ? null : keyseturl.intern(), deployments );
+        if ( clients.put( r.clientid, r ) == null )
+          count++;
+      }
+    }
+    return new ClientIndex( issuers, count );
+  }
+  
+  /**
+   * Find the registration of a client.
+   * 
+   * @param issuer The issuer.
+   * @param clientid The client ID.
+   * @return The registration or null.
+   */
+  public Registration find( String issuer, String clientid )
+  {
+    if ( issuer == null || clientid == null )
+      return null;
+    Map<String,Registration> clients = issuers.get( issuer );
+    return clients == null ? null : clients.get( clientid );
+  }
+  
+  /**
+   * Is a deployment of the tool registered for an issuer and client?
+   * 
+   * @param issuer The issuer.
+   * @param clientid The client ID.
+   * @param deploymentid The deployment ID.
+   * @return True if it is.
+   */
+  public boolean isRegistered( String issuer, String clientid, String deploymentid )
+  {
+    Registration r = find( issuer, clientid );
+    return r != null && r.hasDeployment( deploymentid );
+  }
+  
+  /**
+   * Is an issuer in the configuration?
+   * 
+   * @param issuer The issuer.
+   * @return True if it is.
+   */
+  public boolean hasIssuer( String issuer )
+  {
+    return issuer != null && issuers.containsKey( issuer );
+  }
+  
+  /**
+   * Get the number of issuers.
+   * 
+   * @return Count.
+   */
+  public int getIssuerCount()
+  {
+    return issuers.size();
+  }
+  
+  /**
+   * Get the number of clients across all issuers.
+   * 
+   * @return Count.
+   */
+  public int getClientCount()
+  {
+    return clientcount;
+  }
+}
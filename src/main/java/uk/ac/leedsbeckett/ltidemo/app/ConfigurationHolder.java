@@ -0,0 +1,276 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.app;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.leedsbeckett.lti.LtiConfiguration;
+
+/**
+ * Holds the LTI configuration as a snapshot behind an atomic reference.
+ * A snapshot is never changed once it has been published. Reloading builds
+ * a new LtiConfiguration from the file and swaps it in, so requests never
+ * lock and never see a configuration that is half loaded. A file that
+ * isn't valid JSON is rejected and the current snapshot is kept. Each
+ * snapshot comes with an index of its clients for fast lookups.
+ * 
+ * @author jon
+ */
+public class ConfigurationHolder
+{
+  static final Logger logger = Logger.getLogger( ConfigurationHolder.class.getName() );
+  
+  static final ObjectMapper MAPPER = new ObjectMapper();
+  static final int MAX_LOAD_ATTEMPTS = 3;
+  
+  final AtomicReference<Snapshot> current = new AtomicReference<>( new Snapshot( new LtiConfiguration(), ClientIndex.EMPTY ) );
+  final AtomicLong reloads = new AtomicLong();
+  
+  /**
+   * Only one thread at a time loads or saves, so that a save from the admin
+   * page and a reload by the watcher don't interleave.
+   */
+  final ReentrantLock loadlock = new ReentrantLock();
+  
+  volatile String filename;
+  volatile long lastloaded;
+  volatile String lasterror;
+  
+  /**
+   * A configuration and the index of its clients, which are replaced
+   * together.
+   */
+  static class Snapshot
+  {
+    final LtiConfiguration config;
+    final ClientIndex index;
+    
+    Snapshot( LtiConfiguration config, ClientIndex index )
+    {
+      this.config = config;
+      this.index = index;
+    }
+  }
+  
+  /**
+   * Get the current configuration. Callers should fetch it once for each
+   * piece of work rather than keeping it.
+   * 
+   * @return The snapshot.
+   */
+  public LtiConfiguration get()
+  {
+    return current.get().config;
+  }
+  
+  /**
+   * Get the index of the clients in the current configuration.
+   * 
+   * @return The index.
+   */
+  public ClientIndex getClientIndex()
+  {
+    return current.get().index;
+  }
+  
+  /**
+   * Load the configuration from a file and make it current.
+   * 
+   * @param filename The name of the file.
+   * @throws IOException If the file can't be read or isn't valid JSON, in
+   * which case the current snapshot is kept.
+   */
+  public void load( String filename ) throws IOException
+  {
+    loadlock.lock();
+    try
+    {
+      this.filename = filename;
+      reload( Files.readString( Paths.get( filename ), StandardCharsets.UTF_8 ) );
+    }
+    finally
+    {
+      loadlock.unlock();
+    }
+  }
+  
+  /**
+   * Reload the current file if its content differs from the current
+   * snapshot. Used by the watcher, which may see several events for one
+   * change to the file.
+   * 
+   * @return True if a new snapshot was made current.
+   * @throws IOException If the file can't be read or isn't valid JSON.
+   */
+  public boolean reloadIfChanged() throws IOException
+  {
+    loadlock.lock();
+    try
+    {
+      if ( filename == null )
+        return false;
+      String content = Files.readString( Paths.get( filename ), StandardCharsets.UTF_8 );
+      if ( Objects.equals( content, get().getRawConfiguration() ) )
+        return false;
+      reload( content );
+      return true;
+    }
+    finally
+    {
+      loadlock.unlock();
+    }
+  }
+  
+  /**
+   * Check new content, write it over the file and make it current. The
+   * file is replaced in one step so that the watcher, or another node
+   * sharing the file, never reads part of it.
+   * 
+   * @param content The new content of the file.
+   * @throws IOException If the content isn't valid JSON or the file can't
+   * be written.
+   */
+  public void save( String content ) throws IOException
+  {
+    loadlock.lock();
+    try
+    {
+      if ( filename == null )
+        throw new IOException( "No configuration file has been loaded." );
+      validate( content );
+      Path file = Paths.get( filename );
+      Path temp = file.resolveSibling( file.getFileName() + ".tmp" );
+      Files.writeString( temp, content, StandardCharsets.UTF_8 );
+      Files.move( temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      reload( content );
+    }
+    finally
+    {
+      loadlock.unlock();
+    }
+  }
+  
+  /**
+   * Build a new snapshot from the file and make it current. The library
+   * reads the file itself, so if the file changed after the content was
+   * checked the library would hold something else. So what the library
+   * read is compared with the checked content and, if they differ, the
+   * file is read and checked again. A file that keeps changing is
+   * rejected.
+   * 
+   * @param content The content of the file.
+   * @throws IOException If the content isn't valid JSON or the file kept
+   * changing.
+   */
+  void reload( String content ) throws IOException
+  {
+    JsonNode root;
+    LtiConfiguration config;
+    try
+    {
+      for ( int attempt=1; ; attempt++ )
+      {
+        root = validate( content );
+        config = new LtiConfiguration();
+        config.load( filename );
+        if ( Objects.equals( content, config.getRawConfiguration() ) )
+          break;
+        if ( attempt == MAX_LOAD_ATTEMPTS )
+          throw new IOException( "The configuration file kept changing while it was being loaded." );
+        content = Files.readString( Paths.get( filename ), StandardCharsets.UTF_8 );
+      }
+    }
+    catch ( IOException e )
+    {
+      lasterror = e.getMessage();
+      throw e;
+    }
+    current.set( new Snapshot( config, ClientIndex.build( root ) ) );
+    reloads.incrementAndGet();
+    lastloaded = System.currentTimeMillis();
+    lasterror = null;
+    logger.log( Level.INFO, "Loaded LTI configuration from {0}", filename );
+  }
+  
+  /**
+   * Check that content is valid JSON before it is used.
+   * 
+   * @param content The content.
+   * @return The parsed content.
+   * @throws IOException If it isn't.
+   */
+  static JsonNode validate( String content ) throws IOException
+  {
+    JsonNode node = content == null ? null : MAPPER.readTree( content );
+    if ( node == null || !node.isObject() )
+      throw new IOException( "The configuration is not a JSON object." );
+    return node;
+  }
+  
+  /**
+   * Simple getter.
+   * 
+   * @return The name of the configuration file or null if none has been loaded.
+   */
+  public String getFileName()
+  {
+    return filename;
+  }
+  
+  /**
+   * Get the number of times a configuration has been made current.
+   * 
+   * @return Count.
+   */
+  public long getReloadCount()
+  {
+    return reloads.get();
+  }
+  
+  /**
+   * When the current snapshot was made current.
+   * 
+   * @return Time in milliseconds since the epoch or zero.
+   */
+  public long getLastLoaded()
+  {
+    return lastloaded;
+  }
+  
+  /**
+   * Why the most recent load failed.
+   * 
+   * @return The message or null if the most recent load worked.
+   */
+  public String getLastError()
+  {
+    return lasterror;
+  }
+}
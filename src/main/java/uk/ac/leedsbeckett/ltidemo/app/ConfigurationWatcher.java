@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.app;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the configuration file and reloads it when it is edited on disk,
+ * so that changes take effect without using the admin page. Editors often
+ * write a file in several steps so the watcher waits until the directory
+ * has been quiet for a moment before reloading.
+ * 
+ * @author jon
+ */
+public class ConfigurationWatcher
+{
+  static final Logger logger = Logger.getLogger( ConfigurationWatcher.class.getName() );
+  
+  /**
+   * How long the directory must be quiet before the file is reloaded.
+   */
+  static final long SETTLE_MILLIS = 250L;
+  
+  final ConfigurationHolder holder;
+  WatchService watcher;
+  Thread thread;
+  
+  /**
+   * Create a watcher for the file of a holder.
+   * 
+   * @param holder The holder, which must have loaded a file.
+   */
+  public ConfigurationWatcher( ConfigurationHolder holder )
+  {
+    this.holder = holder;
+  }
+  
+  /**
+   * Start watching the directory of the configuration file.
+   * 
+   * @throws IOException If the directory can't be watched.
+   */
+  public void start() throws IOException
+  {
+    Path file = Paths.get( holder.getFileName() ).toAbsolutePath();
+    watcher = FileSystems.getDefault().newWatchService();
+    file.getParent().register( watcher, 
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+    thread = new Thread( () -> run( file.getFileName() ), "lti-config-watcher" );
+    thread.setDaemon( true );
+    thread.start();
+  }
+  
+  /**
+   * Stop watching.
+   */
+  public void stop()
+  {
+    if ( watcher == null )
+      return;
+    try
+    {
+      watcher.close();
+      thread.join( 1000L );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Problem closing configuration watcher.", ex );
+    }
+    catch ( InterruptedException ex )
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  void run( Path name )
+  {
+    try
+    {
+      while ( true )
+      {
+        WatchKey key = watcher.take();
+        boolean changed = drain( key, name );
+        // Wait for the directory to settle, collecting later events.
+        while ( ( key = watcher.poll( SETTLE_MILLIS, TimeUnit.MILLISECONDS ) ) != null )
+          changed |= drain( key, name );
+        if ( changed )
+          reload();
+      }
+    }
+    catch ( ClosedWatchServiceException | InterruptedException ex )
+    {
+      // Stopped
+    }
+  }
+  
+  /**
+   * Take the events of a key and reset it.
+   * 
+   * @param key The key.
+   * @param name The name of the configuration file.
+   * @return True if any event was about the configuration file.
+   */
+  boolean drain( WatchKey key, Path name )
+  {
+    boolean changed = false;
+    for ( WatchEvent<?> event : key.pollEvents() )
+      if ( event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals( event.context() ) )
+        changed = true;
+    key.reset();
+    return changed;
+  }
+  
+  void reload()
+  {
+    try
+    {
+      if ( holder.reloadIfChanged() )
+        logger.info( "Configuration file changed on disk and was reloaded." );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Configuration file changed on disk but could not be loaded, the previous configuration is still in use. {0}", ex.getMessage() );
+    }
+  }
+}
@@ -16,9 +16,19 @@
 
 package uk.ac.leedsbeckett.ltidemo.app;
 
+import uk.ac.leedsbeckett.ltidemo.launch.NonceReplayGuard;
+import uk.ac.leedsbeckett.ltidemo.launch.PlatformKeyCache;
+import uk.ac.leedsbeckett.ltidemo.metrics.DemoMetrics;
+import uk.ac.leedsbeckett.ltidemo.metrics.FlightRecordings;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTracer;
+import uk.ac.leedsbeckett.ltidemo.persist.ResourcePersistence;
+import uk.ac.leedsbeckett.ltidemo.render.FragmentCache;
 import uk.ac.leedsbeckett.ltidemo.state.DemoLtiStateStore;
+import uk.ac.leedsbeckett.ltidemo.state.LaunchTokenCodec;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceFeed;
 import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
 import uk.ac.leedsbeckett.lti.LtiConfiguration;
+import java.util.concurrent.ExecutorService;
 import javax.servlet.ServletContext;
 
 /**
@@ -32,10 +42,43 @@ public class DemoApplicationContext
   public static final String KEY = DemoApplicationContext.class.getCanonicalName();
   
   // Our context data is split into these three objects
-  LtiConfiguration config = new LtiConfiguration();
+  ConfigurationHolder config = new ConfigurationHolder();
   ResourceStore store = new ResourceStore();
   DemoLtiStateStore statestore = new DemoLtiStateStore();
   
+  // Reloads the configuration when the file changes, if set
+  ConfigurationWatcher configwatcher;
+  
+  // Keeps the resource store on disk
+  ResourcePersistence persistence;
+  
+  // Set if launch state is passed between pages in signed tokens
+  LaunchTokenCodec tokencodec;
+  
+  // Rendered entry lists shared by everyone viewing a resource
+  FragmentCache fragmentcache = new FragmentCache();
+  
+  // Pushes changes to browsers viewing resources
+  ResourceFeed feed = new ResourceFeed();
+  
+  // Runs launch and tool requests off the container's threads, if set
+  ExecutorService requestexecutor;
+  
+  // Request latency and counts of changes
+  DemoMetrics metrics = new DemoMetrics();
+  
+  // Flight recordings started from the admin page
+  FlightRecordings recordings = new FlightRecordings();
+  
+  // Recent launch traces for the admin page
+  LaunchTracer tracer = new LaunchTracer();
+  
+  // Platforms' public keys for checking launches
+  PlatformKeyCache keycache = new PlatformKeyCache();
+  
+  // Turns away replayed launches, if set
+  NonceReplayGuard nonceguard;
+  
   /**
    * Get this object to add itself to a ServletContext as an attribute.
    * 
@@ -59,15 +102,87 @@ public class DemoApplicationContext
   }
 
   /**
-   * Fetch the application-wide LTIConfiguration.
+   * Fetch the current snapshot of the application-wide LTIConfiguration.
+   * It is replaced, not changed, when the configuration is reloaded.
    * 
    * @return The instance.
    */
   public LtiConfiguration getConfig()
+  {
+    return config.get();
+  }
+
+  /**
+   * Fetch the holder that loads and saves the configuration.
+   * 
+   * @return The holder.
+   */
+  public ConfigurationHolder getConfigHolder()
   {
     return config;
   }
 
+  /**
+   * Fetch the index of registered clients that was built with the current
+   * configuration.
+   * 
+   * @return The index.
+   */
+  public ClientIndex getClientIndex()
+  {
+    return config.getClientIndex();
+  }
+
+  /**
+   * Fetch the cache of platforms' public keys.
+   * 
+   * @return The cache.
+   */
+  public PlatformKeyCache getKeyCache()
+  {
+    return keycache;
+  }
+
+  /**
+   * Fetch the guard against replayed launches.
+   * 
+   * @return The guard or null if launches aren't checked.
+   */
+  public NonceReplayGuard getNonceGuard()
+  {
+    return nonceguard;
+  }
+
+  /**
+   * Set the guard against replayed launches.
+   * 
+   * @param nonceguard The guard or null to stop checking launches.
+   */
+  public void setNonceGuard( NonceReplayGuard nonceguard )
+  {
+    this.nonceguard = nonceguard;
+  }
+
+  /**
+   * Get the watcher that reloads the configuration file.
+   * 
+   * @return The watcher or null if the file isn't watched.
+   */
+  public ConfigurationWatcher getConfigWatcher()
+  {
+    return configwatcher;
+  }
+
+  /**
+   * Set the watcher that reloads the configuration file.
+   * 
+   * @param configwatcher The watcher or null.
+   */
+  public void setConfigWatcher( ConfigurationWatcher configwatcher )
+  {
+    this.configwatcher = configwatcher;
+  }
+
   /**
    * Fetch the application-wide ResourceStore
    * 
@@ -87,4 +202,115 @@ public class DemoApplicationContext
   {
     return statestore;
   }
+
+  /**
+   * Fetch the object that keeps the resource store on disk.
+   * 
+   * @return The persistence object or null if there isn't one.
+   */
+  public ResourcePersistence getPersistence()
+  {
+    return persistence;
+  }
+
+  /**
+   * Set the object that keeps the resource store on disk.
+   * 
+   * @param persistence The persistence object.
+   */
+  public void setPersistence( ResourcePersistence persistence )
+  {
+    this.persistence = persistence;
+  }
+
+  /**
+   * Fetch the codec for signed state tokens.
+   * 
+   * @return The codec or null if the tool keeps launch state on the server.
+   */
+  public LaunchTokenCodec getTokenCodec()
+  {
+    return tokencodec;
+  }
+
+  /**
+   * Set the codec for signed state tokens.
+   * 
+   * @param tokencodec The codec or null to keep launch state on the server.
+   */
+  public void setTokenCodec( LaunchTokenCodec tokencodec )
+  {
+    this.tokencodec = tokencodec;
+  }
+
+  /**
+   * Get the cache of rendered fragments.
+   * 
+   * @return The cache.
+   */
+  public FragmentCache getFragmentCache()
+  {
+    return fragmentcache;
+  }
+
+  /**
+   * Get the feed that pushes changes to browsers.
+   * 
+   * @return The feed.
+   */
+  public ResourceFeed getResourceFeed()
+  {
+    return feed;
+  }
+
+  /**
+   * Get the executor which launch and tool requests are handed to.
+   * 
+   * @return The executor or null if requests run on the container's threads.
+   */
+  public ExecutorService getRequestExecutor()
+  {
+    return requestexecutor;
+  }
+
+  /**
+   * Set the executor which launch and tool requests are handed to.
+   * 
+   * @param requestexecutor The executor or null to run requests on the
+   * container's threads.
+   */
+  public void setRequestExecutor( ExecutorService requestexecutor )
+  {
+    this.requestexecutor = requestexecutor;
+  }
+
+  /**
+   * Get the application's metrics.
+   * 
+   * @return The metrics.
+   */
+  public DemoMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Get the holder of flight recordings started from the admin page.
+   * 
+   * @return The recordings.
+   */
+  public FlightRecordings getFlightRecordings()
+  {
+    return recordings;
+  }
+
+  /**
+   * Get the holder of recent launch traces.
+   * 
+   * @return The tracer.
+   */
+  public LaunchTracer getLaunchTracer()
+  {
+    return tracer;
+  }
 }
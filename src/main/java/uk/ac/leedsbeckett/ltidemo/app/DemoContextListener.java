@@ -16,10 +16,32 @@
 
 package uk.ac.leedsbeckett.ltidemo.app;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import org.apache.commons.lang3.StringUtils;
+import uk.ac.leedsbeckett.ltidemo.cluster.TcpStateReplicator;
+import uk.ac.leedsbeckett.ltidemo.launch.NonceReplayGuard;
+import uk.ac.leedsbeckett.ltidemo.launch.PlatformKeyCache;
+import uk.ac.leedsbeckett.ltidemo.metrics.FlightRecordings;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTracer;
+import uk.ac.leedsbeckett.ltidemo.persist.ResourcePersistence;
+import uk.ac.leedsbeckett.ltidemo.render.FragmentCache;
+import uk.ac.leedsbeckett.ltidemo.state.DemoLtiStateStore;
+import uk.ac.leedsbeckett.ltidemo.state.LaunchTokenCodec;
+import uk.ac.leedsbeckett.ltidemo.state.StateReplicator;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
 
 /**
  * Web application life-cycle listener. Used to instantiate our own
@@ -29,6 +51,189 @@ import org.apache.commons.lang3.StringUtils;
  */
 public class DemoContextListener implements ServletContextListener
 {
+  static final Logger logger = Logger.getLogger( DemoContextListener.class.getName() );
+  
+  /**
+   * Name of the context parameter which gives the directory where the
+   * resource store keeps its files.
+   */
+  public static final String RESOURCE_STORE_DIRECTORY = "resourcestore.directory";
+  
+  /**
+   * Name of the context parameter which gives the number of minutes
+   * between snapshots of the resource store.
+   */
+  public static final String RESOURCE_STORE_CHECKPOINT_MINUTES = "resourcestore.checkpointminutes";
+  
+  /**
+   * Name of the context parameter which limits the number of resources
+   * held in memory.
+   */
+  public static final String RESOURCE_STORE_MAX_RESOURCES = "resourcestore.maxresources";
+  
+  /**
+   * Name of the context parameter which limits the estimated number of
+   * bytes used by resources in memory.
+   */
+  public static final String RESOURCE_STORE_MAX_BYTES = "resourcestore.maxbytes";
+  
+  /**
+   * Name of the context parameter which gives the number of minutes after
+   * creation that an LTI state expires.
+   */
+  public static final String STATE_STORE_TTL_MINUTES = "statestore.ttlminutes";
+  
+  /**
+   * Name of the context parameter which gives the number of minutes
+   * without use after which an LTI state expires.
+   */
+  public static final String STATE_STORE_IDLE_MINUTES = "statestore.idleminutes";
+  
+  /**
+   * Name of the context parameter which says whether the configuration file
+   * is reloaded when it is changed on disk.
+   */
+  public static final String CONFIG_WATCH = "config.watch";
+  
+  /**
+   * Name of the context parameter which says how launch state gets from
+   * the launch to the tool pages. Either 'server' to keep it in the state
+   * store or 'token' to send it to the browser in a signed token.
+   */
+  public static final String STATE_MODE = "launch.statemode";
+  
+  /**
+   * Name of the context parameter which says how the launch sends the user
+   * on to the tool page: 'redirect' sends the browser a redirect and
+   * 'render' forwards the launch request to the tool page so that it is
+   * rendered in the launch response.
+   */
+  public static final String LAUNCH_RESPONSE = "launch.response";
+  
+  /**
+   * Value of the launch.response parameter that renders the tool page in
+   * the launch response.
+   */
+  public static final String LAUNCH_RESPONSE_RENDER = "render";
+  
+  /**
+   * Name of the context parameter holding the base 64 HMAC key used to sign
+   * state tokens. Every node behind a load balancer needs the same key.
+   */
+  public static final String STATE_TOKEN_SIGNING_KEY = "statetoken.signingkey";
+  
+  /**
+   * Name of the context parameter holding an optional base 64 AES key used
+   * to encrypt state tokens.
+   */
+  public static final String STATE_TOKEN_ENCRYPTION_KEY = "statetoken.encryptionkey";
+  
+  /**
+   * Name of the context parameter which says which threads run launch and
+   * tool requests: 'container', 'virtual' or 'platform'.
+   */
+  public static final String DISPATCH_MODE = "dispatch.mode";
+  
+  /**
+   * Name of the context parameter giving the size of the platform thread
+   * pool used in 'platform' mode, or in 'virtual' mode on a JVM without
+   * virtual threads.
+   */
+  public static final String DISPATCH_PLATFORM_THREADS = "dispatch.platformthreads";
+  
+  /**
+   * Name of the context parameter listing, by servlet name, the servlets
+   * which send their pages asynchronously instead of blocking the request
+   * thread while the client reads.
+   */
+  public static final String ASYNC_OUTPUT_SERVLETS = "render.asyncoutput";
+  
+  /**
+   * Name of the context parameter which limits the bytes of rendered
+   * entry lists that are cached. Zero turns the cache off.
+   */
+  public static final String FRAGMENT_CACHE_MAX_BYTES = "fragmentcache.maxbytes";
+  
+  /**
+   * Name of the context parameter giving this node's name for state
+   * replication. If blank, states are not replicated.
+   */
+  public static final String CLUSTER_NODE_NAME = "cluster.nodename";
+  
+  /**
+   * Name of the context parameter giving the port this node listens on for
+   * state replication.
+   */
+  public static final String CLUSTER_PORT = "cluster.port";
+  
+  /**
+   * Name of the context parameter giving the address this node listens on
+   * for state replication. If blank, the host given for this node in the
+   * peer list is used, or the loopback address if it isn't listed.
+   */
+  public static final String CLUSTER_BIND_ADDRESS = "cluster.bindaddress";
+  
+  /**
+   * Name of the context parameter listing every node as
+   * 'name=host:port,name=host:port'. All nodes need the same list.
+   */
+  public static final String CLUSTER_PEERS = "cluster.peers";
+  
+  /**
+   * Name of the context parameter holding the base 64 HMAC key of at least
+   * 32 bytes which authenticates replication traffic. All nodes need the
+   * same key and replication doesn't start without one.
+   */
+  public static final String CLUSTER_SECRET = "cluster.secret";
+  
+  /**
+   * Name of the context parameter giving how many milliseconds to wait for
+   * another node to answer a request for a state.
+   */
+  public static final String CLUSTER_FETCH_TIMEOUT_MILLIS = "cluster.fetchtimeoutmillis";
+  
+  /**
+   * Name of the context parameter giving the directory that flight
+   * recordings started from the admin page are dumped to. If blank, a
+   * directory in the web application's temporary directory is used.
+   */
+  public static final String JFR_DIRECTORY = "jfr.directory";
+  
+  /**
+   * Name of the context parameter giving how many minutes of data a flight
+   * recording started from the admin page keeps.
+   */
+  public static final String JFR_MAX_AGE_MINUTES = "jfr.maxageminutes";
+  
+  /**
+   * Name of the context parameter giving how many completed launch traces
+   * are kept for the admin page. Zero turns tracing off.
+   */
+  public static final String TRACE_CAPACITY = "trace.capacity";
+  
+  /**
+   * Name of the context parameter giving how many seconds platforms'
+   * public keys are cached.
+   */
+  public static final String KEY_CACHE_TTL_SECONDS = "keycache.ttlseconds";
+  
+  /**
+   * Name of the context parameter giving how many seconds a key ID that a
+   * platform doesn't publish is remembered.
+   */
+  public static final String KEY_CACHE_NEGATIVE_TTL_SECONDS = "keycache.negativettlseconds";
+  
+  /**
+   * Name of the context parameter giving how many seconds launch nonces
+   * are remembered. It should be at least the lifetime of id_tokens.
+   */
+  public static final String NONCE_WINDOW_SECONDS = "nonce.windowseconds";
+  
+  /**
+   * Name of the context parameter giving how many launches are expected
+   * within the nonce window. Zero turns the replay check off.
+   */
+  public static final String NONCE_CAPACITY = "nonce.capacity";
 
   /**
    * This will be called when the web application is initialised. So some
@@ -46,17 +251,300 @@ public class DemoContextListener implements ServletContextListener
 
     String configpath = context.getRealPath( "/WEB-INF/config.json" );
     if ( !StringUtils.isEmpty( configpath ) )
-      appcontext.getConfig().load( configpath );
+      loadConfiguration( context, appcontext, configpath );
+    
+    startPersistence( context, appcontext );
+    appcontext.getStore().addListener( appcontext.getResourceFeed() );
+    appcontext.getStore().addListener( appcontext.getMetrics() );
+    appcontext.getResourceFeed().start();
+    appcontext.getFragmentCache().setMaxBytes( getLongParameter( context, FRAGMENT_CACHE_MAX_BYTES, FragmentCache.DEFAULT_MAX_BYTES ) );
+    startRequestExecutor( context, appcontext );
+    configureRecordings( context, appcontext );
+    appcontext.getLaunchTracer().setCapacity( (int)getLongParameter( context, TRACE_CAPACITY, LaunchTracer.DEFAULT_CAPACITY ) );
+    appcontext.getKeyCache().setExpiry( 
+            TimeUnit.SECONDS.toMillis( getLongParameter( context, KEY_CACHE_TTL_SECONDS, PlatformKeyCache.DEFAULT_TTL_SECONDS ) ),
+            TimeUnit.SECONDS.toMillis( getLongParameter( context, KEY_CACHE_NEGATIVE_TTL_SECONDS, PlatformKeyCache.DEFAULT_NEGATIVE_TTL_SECONDS ) ) );
+    appcontext.getKeyCache().start();
+    long noncecapacity = getLongParameter( context, NONCE_CAPACITY, NonceReplayGuard.DEFAULT_CAPACITY );
+    if ( noncecapacity > 0L )
+      appcontext.setNonceGuard( new NonceReplayGuard( 
+              TimeUnit.SECONDS.toMillis( getLongParameter( context, NONCE_WINDOW_SECONDS, NonceReplayGuard.DEFAULT_WINDOW_SECONDS ) ),
+              (int)Math.min( Integer.MAX_VALUE, noncecapacity ) ) );
+    
+    long ttl = TimeUnit.MINUTES.toMillis( getLongParameter( context, STATE_STORE_TTL_MINUTES, 240L ) );
+    DemoLtiStateStore statestore = appcontext.getStateStore();
+    statestore.setExpiry( ttl, TimeUnit.MINUTES.toMillis( getLongParameter( context, STATE_STORE_IDLE_MINUTES, 60L ) ) );
+    statestore.start();
+    startReplication( context, statestore );
+    
+    if ( "token".equalsIgnoreCase( StringUtils.trim( context.getInitParameter( STATE_MODE ) ) ) )
+      appcontext.setTokenCodec( createTokenCodec( context, ttl ) );
+  }
+  
+  /**
+   * Load the LTI configuration and, unless turned off, start watching the
+   * file for changes made on disk.
+   * 
+   * @param context The servlet context.
+   * @param appcontext The application context.
+   * @param configpath The configuration file.
+   */
+  void loadConfiguration( ServletContext context, DemoApplicationContext appcontext, String configpath )
+  {
+    ConfigurationHolder holder = appcontext.getConfigHolder();
+    try
+    {
+      holder.load( configpath );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to load the LTI configuration " + configpath, ex );
+    }
+    
+    String watch = context.getInitParameter( CONFIG_WATCH );
+    if ( !StringUtils.isBlank( watch ) && !Boolean.parseBoolean( watch.trim() ) )
+      return;
+    ConfigurationWatcher watcher = new ConfigurationWatcher( holder );
+    try
+    {
+      watcher.start();
+      appcontext.setConfigWatcher( watcher );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Unable to watch the LTI configuration for changes.", ex );
+    }
+  }
+  
+  /**
+   * Create the codec for signed state tokens from the configured keys. If
+   * there is no signing key a random one is used which means tokens only
+   * work on this node and only until it restarts.
+   * 
+   * @param context The servlet context.
+   * @param lifetime How long tokens are valid in milliseconds.
+   * @return The codec.
+   */
+  LaunchTokenCodec createTokenCodec( ServletContext context, long lifetime )
+  {
+    byte[] signingkey;
+    String value = context.getInitParameter( STATE_TOKEN_SIGNING_KEY );
+    if ( StringUtils.isBlank( value ) )
+    {
+      logger.warning( "No state token signing key configured, using a random key which only this node knows." );
+      signingkey = LaunchTokenCodec.randomSigningKey();
+    }
+    else
+      signingkey = Base64.getDecoder().decode( value.trim() );
+    
+    byte[] encryptionkey = null;
+    value = context.getInitParameter( STATE_TOKEN_ENCRYPTION_KEY );
+    if ( !StringUtils.isBlank( value ) )
+      encryptionkey = Base64.getDecoder().decode( value.trim() );
+    
+    return new LaunchTokenCodec( signingkey, encryptionkey, lifetime );
+  }
+
+  /**
+   * Start replicating launch data to the other nodes if this node has been
+   * given a name.
+   * 
+   * @param context The servlet context.
+   * @param statestore The state store.
+   */
+  void startReplication( ServletContext context, DemoLtiStateStore statestore )
+  {
+    String nodename = StringUtils.trim( context.getInitParameter( CLUSTER_NODE_NAME ) );
+    if ( StringUtils.isEmpty( nodename ) )
+      return;
+    
+    String secret = context.getInitParameter( CLUSTER_SECRET );
+    if ( StringUtils.isBlank( secret ) )
+    {
+      logger.severe( "No replication secret configured, state replication is off." );
+      return;
+    }
+    
+    try
+    {
+      Map<String,InetSocketAddress> peers = TcpStateReplicator.parsePeers( context.getInitParameter( CLUSTER_PEERS ) );
+      String bind = StringUtils.trim( context.getInitParameter( CLUSTER_BIND_ADDRESS ) );
+      if ( StringUtils.isEmpty( bind ) && peers.containsKey( nodename ) )
+        bind = peers.get( nodename ).getHostString();
+      InetAddress bindaddress = InetAddress.getLoopbackAddress();
+      if ( StringUtils.isEmpty( bind ) )
+        logger.warning( "No replication bind address configured, listening on the loopback address." );
+      else
+        bindaddress = InetAddress.getByName( bind );
+      TcpStateReplicator replicator = new TcpStateReplicator( 
+              nodename, 
+              bindaddress,
+              (int)getLongParameter( context, CLUSTER_PORT, 9100L ),
+              peers,
+              Base64.getDecoder().decode( secret.trim() ) );
+      replicator.setFetchTimeoutMillis( getLongParameter( context, CLUSTER_FETCH_TIMEOUT_MILLIS, TcpStateReplicator.DEFAULT_FETCH_TIMEOUT_MILLIS ) );
+      replicator.start( statestore );
+      statestore.setReplicator( replicator );
+    }
+    catch ( IOException | IllegalArgumentException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to start state replication.", ex );
+    }
   }
 
   /**
-   * At present out app doesn't need to do any cleaning up, but it could
-   * be done here.
+   * Rebuild the resource store from the newest snapshot and the journal
+   * on disk and then start journalling new changes. If no directory is
+   * configured a directory in the web application's temporary directory is
+   * used. Limits on the resources kept in memory only apply when the store
+   * is saved to disk.
    * 
-   * @param event 
+   * @param context The servlet context.
+   * @param appcontext Our application context.
+   */
+  void startPersistence( ServletContext context, DemoApplicationContext appcontext )
+  {
+    String dirname = context.getInitParameter( RESOURCE_STORE_DIRECTORY );
+    Path directory;
+    if ( !StringUtils.isBlank( dirname ) )
+      directory = new File( dirname ).toPath();
+    else
+    {
+      File tempdir = (File)context.getAttribute( ServletContext.TEMPDIR );
+      if ( tempdir == null )
+      {
+        logger.warning( "No directory for the resource store, changes will not be saved." );
+        return;
+      }
+      directory = new File( tempdir, "resourcestore" ).toPath();
+    }
+    
+    ResourceStore store = appcontext.getStore();
+    store.setMaxResources( (int)getLongParameter( context, RESOURCE_STORE_MAX_RESOURCES, 0L ) );
+    store.setMaxBytes( getLongParameter( context, RESOURCE_STORE_MAX_BYTES, 0L ) );
+    
+    long minutes = getLongParameter( context, RESOURCE_STORE_CHECKPOINT_MINUTES, 15L );
+    ResourcePersistence persistence = new ResourcePersistence( directory, store, minutes );
+    try
+    {
+      persistence.open();
+      appcontext.setPersistence( persistence );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to start resource persistence in " + directory, ex );
+    }
+  }
+  
+  /**
+   * Create the executor that launch and tool requests are handed to, as
+   * chosen by the dispatch.mode context parameter.
+   * 
+   * @param context The servlet context.
+   * @param appcontext The application context.
+   */
+  void startRequestExecutor( ServletContext context, DemoApplicationContext appcontext )
+  {
+    String mode = StringUtils.trimToNull( context.getInitParameter( DISPATCH_MODE ) );
+    int threads = (int)getLongParameter( context, DISPATCH_PLATFORM_THREADS, 200L );
+    ExecutorService executor = RequestExecutors.create( mode, threads );
+    appcontext.setRequestExecutor( executor );
+    logger.log( Level.INFO, "Launch and tool requests run in {0} mode.", executor == null ? RequestExecutors.MODE_CONTAINER : mode );
+  }
+  
+  /**
+   * Set where flight recordings started from the admin page are dumped and
+   * how much data they keep.
+   * 
+   * @param context The servlet context.
+   * @param appcontext The application context.
+   */
+  void configureRecordings( ServletContext context, DemoApplicationContext appcontext )
+  {
+    FlightRecordings recordings = appcontext.getFlightRecordings();
+    String dirname = context.getInitParameter( JFR_DIRECTORY );
+    if ( !StringUtils.isBlank( dirname ) )
+      recordings.setDirectory( new File( dirname.trim() ).toPath() );
+    else
+    {
+      File tempdir = (File)context.getAttribute( ServletContext.TEMPDIR );
+      if ( tempdir == null )
+        tempdir = new File( System.getProperty( "java.io.tmpdir" ) );
+      recordings.setDirectory( new File( tempdir, "recordings" ).toPath() );
+    }
+    recordings.setMaxAgeMinutes( getLongParameter( context, JFR_MAX_AGE_MINUTES, FlightRecordings.DEFAULT_MAX_AGE_MINUTES ) );
+  }
+  
+  /**
+   * Read a numeric context parameter.
+   * 
+   * @param context The servlet context.
+   * @param name The name of the parameter.
+   * @param defaultValue Value to use if the parameter is missing or not a number.
+   * @return The value.
+   */
+  static long getLongParameter( ServletContext context, String name, long defaultValue )
+  {
+    String value = context.getInitParameter( name );
+    if ( StringUtils.isBlank( value ) )
+      return defaultValue;
+    try
+    {
+      return Long.parseLong( value.trim() );
+    }
+    catch ( NumberFormatException e )
+    {
+      logger.log( Level.WARNING, "Context parameter {0} is not a number.", name );
+      return defaultValue;
+    }
+  }
+  
+  /**
+   * Shuts down everything started when the context was initialised. Closes
+   * connections to the resource feed, stops any flight recording started
+   * from the admin page, the refreshing of platform keys, the watching of
+   * the configuration file and the request executor, then stops expiry and
+   * replication of LTI states. Finally the journal is stopped, so that
+   * everything queued is written to disk, and a final snapshot is written.
+   * 
+   * @param event The event which tells us about the ServletContext.
    */
   @Override
   public void contextDestroyed( ServletContextEvent event )
   {
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( event.getServletContext() );
+    if ( appcontext == null )
+      return;
+    
+    appcontext.getResourceFeed().stop();
+    appcontext.getFlightRecordings().close();
+    appcontext.getKeyCache().stop();
+    
+    ConfigurationWatcher watcher = appcontext.getConfigWatcher();
+    if ( watcher != null )
+    {
+      appcontext.setConfigWatcher( null );
+      watcher.stop();
+    }
+    
+    ExecutorService executor = appcontext.getRequestExecutor();
+    if ( executor != null )
+    {
+      appcontext.setRequestExecutor( null );
+      executor.shutdown();
+    }
+    
+    DemoLtiStateStore statestore = appcontext.getStateStore();
+    statestore.stop();
+    StateReplicator replicator = statestore.getReplicator();
+    if ( replicator != null )
+    {
+      statestore.setReplicator( null );
+      replicator.stop();
+    }
+    
+    ResourcePersistence persistence = appcontext.getPersistence();
+    if ( persistence != null )
+      persistence.close();
   }
 }
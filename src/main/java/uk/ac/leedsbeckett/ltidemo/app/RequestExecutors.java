@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.app;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executors that requests can be handed to. Virtual threads
+ * are used when the JVM has them; the method is looked up at run time so
+ * that the application still builds and runs on a JVM without them.
+ * 
+ * @author jon
+ */
+public class RequestExecutors
+{
+  static final Logger logger = Logger.getLogger( RequestExecutors.class.getName() );
+  
+  /**
+   * Requests run on the container's own threads.
+   */
+  public static final String MODE_CONTAINER = "container";
+  
+  /**
+   * Requests are handed to a new virtual thread each.
+   */
+  public static final String MODE_VIRTUAL = "virtual";
+  
+  /**
+   * Requests are handed to a fixed pool of platform threads.
+   */
+  public static final String MODE_PLATFORM = "platform";
+  
+  static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutorMethod();
+  
+  static Method findVirtualExecutorMethod()
+  {
+    try
+    {
+      return java.util.concurrent.Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+    }
+    catch ( NoSuchMethodException ex )
+    {
+      return null;
+    }
+  }
+  
+  /**
+   * Does this JVM have virtual threads?
+   * 
+   * @return True if it does.
+   */
+  public static boolean isVirtualThreadSupported()
+  {
+    return NEW_VIRTUAL_EXECUTOR != null;
+  }
+  
+  /**
+   * Create an executor that starts a virtual thread per task.
+   * 
+   * @return The executor.
+   * @throws UnsupportedOperationException If the JVM has no virtual threads.
+   */
+  public static ExecutorService newVirtualThreadExecutor()
+  {
+    if ( NEW_VIRTUAL_EXECUTOR == null )
+      throw new UnsupportedOperationException( "Virtual threads need Java 21 or later." );
+    try
+    {
+      return (ExecutorService)NEW_VIRTUAL_EXECUTOR.invoke( null );
+    }
+    catch ( ReflectiveOperationException ex )
+    {
+      throw new UnsupportedOperationException( "Unable to create virtual thread executor.", ex );
+    }
+  }
+  
+  /**
+   * Create a fixed pool of platform threads with an unbounded queue.
+   * 
+   * @param threads Number of threads.
+   * @return The executor.
+   */
+  public static ExecutorService newPlatformThreadExecutor( int threads )
+  {
+    AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS, 
+            new LinkedBlockingQueue<>(), r -> 
+    {
+      Thread t = new Thread( r, "lti-request-" + count.incrementAndGet() );
+      t.setDaemon( true );
+      return t;
+    } );
+    executor.allowCoreThreadTimeOut( true );
+    return executor;
+  }
+  
+  /**
+   * Create the executor for a mode. If virtual threads are asked for but
+   * not available a platform thread pool is used instead.
+   * 
+   * @param mode One of the MODE constants.
+   * @param threads Size of a platform thread pool.
+   * @return The executor or null if requests should stay on container
+   * threads.
+   */
+  public static ExecutorService create( String mode, int threads )
+  {
+    if ( MODE_VIRTUAL.equalsIgnoreCase( mode ) )
+    {
+      if ( isVirtualThreadSupported() )
+        return newVirtualThreadExecutor();
+      logger.log( Level.WARNING, "Virtual threads are not available in Java {0}, using {1} platform threads.", 
+              new Object[] { System.getProperty( "java.specification.version" ), Integer.toString( threads ) } );
+      return newPlatformThreadExecutor( threads );
+    }
+    if ( MODE_PLATFORM.equalsIgnoreCase( mode ) )
+      return newPlatformThreadExecutor( threads );
+    return null;
+  }
+}
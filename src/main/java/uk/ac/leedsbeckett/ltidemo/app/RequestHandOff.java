@@ -0,0 +1,142 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.app;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlResponse;
+
+/**
+ * Moves a request off the container's thread and onto the application's
+ * request executor, which is a virtual thread per request if the JVM
+ * supports them. The request is put into asynchronous mode, the servlet's
+ * work runs on the executor and the request is completed when it returns.
+ * That frees the container thread while the servlet verifies tokens, looks
+ * up state or waits for the disk or another node.
+ * 
+ * Servlets call this from service() because the container's filter chain
+ * can't be used once the container thread has returned.
+ * 
+ * @author jon
+ */
+public class RequestHandOff
+{
+  static final Logger logger = Logger.getLogger( RequestHandOff.class.getName() );
+  
+  /**
+   * How long a handed off request may run.
+   */
+  static final long TIMEOUT_MILLIS = 60000L;
+  
+  /**
+   * The work that is handed off, usually HttpServlet.service().
+   */
+  public interface Handler
+  {
+    /**
+     * Process the request.
+     * 
+     * @param request The request.
+     * @param response The response.
+     * @throws ServletException If processing fails.
+     * @throws IOException If the connection fails.
+     */
+    void handle( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException;
+  }
+  
+  /**
+   * Hand a request to the executor if there is one.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @param handler The work to do.
+   * @return True if the request was handed off, false if the caller must
+   * process it on the current thread.
+   * @throws IOException If the executor is full and the error can't be sent.
+   */
+  public static boolean handOff( HttpServletRequest request, HttpServletResponse response, Handler handler )
+          throws IOException
+  {
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+    ExecutorService executor = appcontext == null ? null : appcontext.getRequestExecutor();
+    if ( executor == null || 
+         !request.isAsyncSupported() || 
+         request.isAsyncStarted() || 
+         request.getDispatcherType() != DispatcherType.REQUEST )
+      return false;
+    
+    AsyncContext async = request.startAsync();
+    async.setTimeout( TIMEOUT_MILLIS );
+    try
+    {
+      executor.execute( () -> run( async, request, response, handler ) );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+      async.complete();
+    }
+    return true;
+  }
+  
+  /**
+   * Do the work on the executor's thread. The request is completed
+   * afterwards unless the servlet has given the response to an asynchronous
+   * writer which will complete it.
+   * 
+   * @param async The asynchronous context.
+   * @param request The request.
+   * @param response The response.
+   * @param handler The work to do.
+   */
+  static void run( AsyncContext async, HttpServletRequest request, HttpServletResponse response, Handler handler )
+  {
+    AtomicBoolean completedbywriter = new AtomicBoolean();
+    request.setAttribute( HtmlResponse.COMPLETED_BY_WRITER, completedbywriter );
+    try
+    {
+      handler.handle( request, response );
+    }
+    catch ( IOException | ServletException | RuntimeException ex )
+    {
+      logger.log( Level.SEVERE, "Problem processing request.", ex );
+      try
+      {
+        if ( !response.isCommitted() )
+          response.sendError( 500, "Problem processing request." );
+      }
+      catch ( IOException ex2 )
+      {
+        // The client has gone.
+      }
+    }
+    finally
+    {
+      if ( !completedbywriter.get() )
+        async.complete();
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Sends and receives authenticated frames on one replication connection.
+ * 
+ * When a node accepts a connection it sends a random challenge. After that
+ * every frame in either direction is a length, the frame itself and an
+ * HMAC-SHA256 of the challenge, the direction, the frame's sequence number
+ * on the connection and the frame, keyed with the secret that all the
+ * nodes share. A frame that fails the check closes the connection, so
+ * nobody without the secret can read states or push replicas, and frames
+ * recorded from one connection can't be replayed or reordered on another.
+ * 
+ * Sending and receiving keep separate state so that one thread can send
+ * while another receives on the same connection.
+ * 
+ * @author jon
+ */
+class FrameChannel
+{
+  static final String ALGORITHM = "HmacSHA256";
+  static final int CHALLENGE_LENGTH = 16;
+  static final int MAC_LENGTH = 32;
+  static final int MAX_FRAME_BYTES = 16 << 20;
+  
+  static final byte TO_ACCEPTOR  = 1;
+  static final byte TO_CONNECTOR = 2;
+  
+  final DataInputStream in;
+  final DataOutputStream out;
+  final byte[] challenge;
+  final byte sendDirection;
+  final byte receiveDirection;
+  final Mac sendMac;
+  final Mac receiveMac;
+  final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  final DataOutputStream frame = new DataOutputStream( buffer );
+  final byte[] expected = new byte[MAC_LENGTH];
+  final byte[] actual = new byte[MAC_LENGTH];
+  long sent = 0L;
+  long received = 0L;
+  
+  /**
+   * Construct.
+   * 
+   * @param secret The key shared by all the nodes.
+   * @param challenge The challenge the accepting node sent.
+   * @param acceptor True on the node that accepted the connection.
+   * @param in The input stream of the connection.
+   * @param out The output stream of the connection.
+   * @throws IOException If HMAC-SHA256 is not available.
+   */
+  FrameChannel( byte[] secret, byte[] challenge, boolean acceptor, DataInputStream in, DataOutputStream out ) throws IOException
+  {
+    this.in = in;
+    this.out = out;
+    this.challenge = challenge.clone();
+    this.sendDirection    = acceptor ? TO_CONNECTOR : TO_ACCEPTOR;
+    this.receiveDirection = acceptor ? TO_ACCEPTOR  : TO_CONNECTOR;
+    this.sendMac = createMac( secret );
+    this.receiveMac = createMac( secret );
+  }
+  
+  static Mac createMac( byte[] secret ) throws IOException
+  {
+    try
+    {
+      Mac mac = Mac.getInstance( ALGORITHM );
+      mac.init( new SecretKeySpec( secret, ALGORITHM ) );
+      return mac;
+    }
+    catch ( GeneralSecurityException ex )
+    {
+      throw new IOException( "Unable to authenticate replication frames.", ex );
+    }
+  }
+  
+  /**
+   * Make a challenge for a connection that has just been accepted.
+   * 
+   * @param random Source of randomness.
+   * @return The challenge.
+   */
+  static byte[] newChallenge( SecureRandom random )
+  {
+    byte[] challenge = new byte[CHALLENGE_LENGTH];
+    random.nextBytes( challenge );
+    return challenge;
+  }
+  
+  /**
+   * Start writing a frame. The frame is sent by calling send.
+   * 
+   * @return A stream to write the frame to.
+   */
+  DataOutputStream begin()
+  {
+    buffer.reset();
+    return frame;
+  }
+  
+  /**
+   * Send the frame that has been written since begin was called.
+   * 
+   * @param flush Whether to flush the connection afterwards.
+   * @throws IOException If writing fails.
+   */
+  void send( boolean flush ) throws IOException
+  {
+    frame.flush();
+    byte[] bytes = buffer.toByteArray();
+    sign( sendMac, sendDirection, sent++, bytes, expected );
+    out.writeInt( bytes.length );
+    out.write( bytes );
+    out.write( expected );
+    if ( flush )
+      out.flush();
+  }
+  
+  /**
+   * Wait for the next frame and check it.
+   * 
+   * @return A stream to read the frame from.
+   * @throws IOException If reading fails or the frame is not authentic.
+   */
+  DataInputStream receive() throws IOException
+  {
+    int length = in.readInt();
+    if ( length < 0 || length > MAX_FRAME_BYTES )
+      throw new IOException( "Replication frame length " + length + " is out of range." );
+    byte[] bytes = new byte[length];
+    in.readFully( bytes );
+    in.readFully( actual );
+    sign( receiveMac, receiveDirection, received++, bytes, expected );
+    if ( !MessageDigest.isEqual( expected, actual ) )
+      throw new IOException( "Replication frame failed authentication." );
+    return new DataInputStream( new ByteArrayInputStream( bytes ) );
+  }
+  
+  /**
+   * Are there bytes waiting to be received without blocking?
+   * 
+   * @return True if there are.
+   * @throws IOException If the connection has failed.
+   */
+  boolean hasMore() throws IOException
+  {
+    return in.available() > 0;
+  }
+  
+  void flush() throws IOException
+  {
+    out.flush();
+  }
+  
+  void sign( Mac mac, byte direction, long sequence, byte[] bytes, byte[] result ) throws IOException
+  {
+    mac.update( challenge );
+    mac.update( direction );
+    for ( int shift=56; shift>=0; shift-=8 )
+      mac.update( (byte)(sequence >>> shift) );
+    mac.update( bytes );
+    try
+    {
+      mac.doFinal( result, 0 );
+    }
+    catch ( GeneralSecurityException ex )
+    {
+      throw new IOException( "Unable to authenticate replication frame.", ex );
+    }
+  }
+}
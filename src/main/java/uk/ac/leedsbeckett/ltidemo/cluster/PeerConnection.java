@@ -0,0 +1,365 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.leedsbeckett.ltidemo.state.ReplicatedState;
+
+/**
+ * The connection from this node to one other node. Request threads put
+ * operations on a bounded queue and a sender thread writes whatever has
+ * accumulated in one go. A reader thread on the same socket matches fetch
+ * replies to the requests that are waiting for them. If the peer can't be
+ * reached the sender keeps trying once a second and fetches fail at once
+ * rather than waiting for a timeout.
+ * 
+ * On connecting it waits for the peer's challenge before anything is sent
+ * so that every frame can be authenticated, see FrameChannel.
+ * 
+ * @author jon
+ */
+class PeerConnection
+{
+  static final Logger logger = Logger.getLogger( PeerConnection.class.getName() );
+  
+  static final byte OP_FETCH = 3;
+  static final int QUEUE_CAPACITY = 10000;
+  static final int MAX_BATCH = 1000;
+  static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  static final long RETRY_MILLIS = 1000L;
+  
+  /**
+   * One queued put, remove or fetch.
+   */
+  static final class Op
+  {
+    final byte type;
+    final String id;
+    final ReplicatedState state;
+    final long queued = System.currentTimeMillis();
+    long request;
+
+    Op( byte type, String id, ReplicatedState state )
+    {
+      this.type = type;
+      this.id = id;
+      this.state = state;
+    }
+  }
+  
+  final TcpStateReplicator parent;
+  final String name;
+  final InetSocketAddress address;
+  final ArrayBlockingQueue<Op> queue = new ArrayBlockingQueue<>( QUEUE_CAPACITY );
+  final ConcurrentHashMap<Long,CompletableFuture<ReplicatedState>> pending = new ConcurrentHashMap<>();
+  final AtomicLong requests = new AtomicLong();
+  // Guards closing the socket. Not synchronized, so that a virtual thread
+  // waiting here does not pin its carrier.
+  final ReentrantLock lock = new ReentrantLock();
+  
+  Thread sender;
+  Socket socket;
+  FrameChannel channel;
+  volatile boolean running;
+  volatile boolean connected;
+  volatile long lastFailure;
+  
+  PeerConnection( TcpStateReplicator parent, String name, InetSocketAddress address )
+  {
+    this.parent = parent;
+    this.name = name;
+    this.address = address;
+  }
+  
+  void start()
+  {
+    running = true;
+    sender = new Thread( this::send, "state-replication-sender-" + name );
+    sender.setDaemon( true );
+    sender.start();
+  }
+  
+  void stop()
+  {
+    running = false;
+    if ( sender != null )
+      sender.interrupt();
+    disconnect();
+  }
+  
+  boolean offer( Op op )
+  {
+    return running && queue.offer( op );
+  }
+  
+  /**
+   * Queue a fetch.
+   * 
+   * @param id The state ID.
+   * @return A future that completes with the state, or null if the peer is
+   * known to be unreachable.
+   */
+  CompletableFuture<ReplicatedState> fetch( String id )
+  {
+    if ( !connected && System.currentTimeMillis() - lastFailure < RETRY_MILLIS )
+      return null;
+    Op op = new Op( OP_FETCH, id, null );
+    op.request = requests.incrementAndGet();
+    CompletableFuture<ReplicatedState> future = new CompletableFuture<>();
+    pending.put( op.request, future );
+    future.whenComplete( (s,e) -> pending.remove( op.request ) );
+    if ( !offer( op ) )
+    {
+      future.cancel( false );
+      return null;
+    }
+    return future;
+  }
+  
+  /**
+   * The sender thread.
+   */
+  void send()
+  {
+    ArrayList<Op> batch = new ArrayList<>();
+    while ( running )
+    {
+      try
+      {
+        Op first = queue.poll( 250L, TimeUnit.MILLISECONDS );
+        if ( first == null )
+          continue;
+        batch.clear();
+        batch.add( first );
+        queue.drainTo( batch, MAX_BATCH - 1 );
+        
+        if ( !connected && !connect() )
+        {
+          fail( batch );
+          Thread.sleep( Math.max( 0L, RETRY_MILLIS - (System.currentTimeMillis() - lastFailure) ) );
+          continue;
+        }
+        
+        try
+        {
+          write( batch );
+        }
+        catch ( IOException ex )
+        {
+          logger.log( Level.WARNING, "Lost replication connection to " + name, ex );
+          lastFailure = System.currentTimeMillis();
+          disconnect();
+          fail( batch );
+        }
+      }
+      catch ( InterruptedException ex )
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+  
+  boolean connect()
+  {
+    try
+    {
+      Socket s = new Socket();
+      s.setTcpNoDelay( true );
+      s.connect( new InetSocketAddress( address.getHostString(), address.getPort() ), CONNECT_TIMEOUT_MILLIS );
+      DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+      DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+      byte[] challenge = new byte[FrameChannel.CHALLENGE_LENGTH];
+      try
+      {
+        s.setSoTimeout( CONNECT_TIMEOUT_MILLIS );
+        in.readFully( challenge );
+        s.setSoTimeout( 0 );
+      }
+      catch ( IOException ex )
+      {
+        s.close();
+        throw ex;
+      }
+      FrameChannel c = new FrameChannel( parent.secret, challenge, false, in, out );
+      socket = s;
+      channel = c;
+      connected = true;
+      Thread reader = new Thread( () -> read( s, c ), "state-replication-reader-" + name );
+      reader.setDaemon( true );
+      reader.start();
+      logger.log( Level.INFO, "Connected to replication peer {0} at {1}", new Object[] { name, address } );
+      return true;
+    }
+    catch ( IOException ex )
+    {
+      // Only log the first failure after being connected.
+      if ( lastFailure == 0L || connected )
+        logger.log( Level.WARNING, "Unable to connect to replication peer " + name + " at " + address, ex );
+      lastFailure = System.currentTimeMillis();
+      return false;
+    }
+  }
+  
+  void disconnect()
+  {
+    lock.lock();
+    try
+    {
+      connected = false;
+      if ( socket != null )
+      {
+        try
+        {
+          socket.close();
+        }
+        catch ( IOException ex )
+        {
+          // Nothing to do.
+        }
+        socket = null;
+      }
+      for ( CompletableFuture<ReplicatedState> future : pending.values() )
+        future.cancel( false );
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Write puts and removes as one batch frame followed by a frame for each
+   * fetch.
+   * 
+   * @param batch The operations.
+   * @throws IOException If writing fails.
+   */
+  void write( ArrayList<Op> batch ) throws IOException
+  {
+    int changes = 0;
+    for ( Op op : batch )
+      if ( op.type != OP_FETCH )
+        changes++;
+    
+    if ( changes > 0 )
+    {
+      DataOutputStream out = channel.begin();
+      out.writeByte( TcpStateReplicator.FRAME_BATCH );
+      out.writeInt( changes );
+      for ( Op op : batch )
+      {
+        if ( op.type == OP_FETCH )
+          continue;
+        out.writeByte( op.type );
+        out.writeLong( op.queued );
+        if ( op.type == TcpStateReplicator.OP_PUT )
+          op.state.write( out );
+        else
+          out.writeUTF( op.id );
+      }
+      channel.send( false );
+    }
+    
+    for ( Op op : batch )
+    {
+      if ( op.type != OP_FETCH )
+        continue;
+      DataOutputStream out = channel.begin();
+      out.writeByte( TcpStateReplicator.FRAME_FETCH );
+      out.writeLong( op.request );
+      out.writeUTF( op.id );
+      channel.send( false );
+    }
+    channel.flush();
+  }
+  
+  /**
+   * Puts and removes that couldn't be sent are counted as dropped and
+   * fetches are failed.
+   * 
+   * @param batch The operations.
+   */
+  void fail( ArrayList<Op> batch )
+  {
+    for ( Op op : batch )
+    {
+      if ( op.type == OP_FETCH )
+      {
+        CompletableFuture<ReplicatedState> future = pending.get( op.request );
+        if ( future != null )
+          future.cancel( false );
+      }
+      else
+        parent.dropped.increment();
+    }
+  }
+  
+  /**
+   * The reader thread for one connection.
+   * 
+   * @param s The socket.
+   * @param c The channel on the socket.
+   */
+  void read( Socket s, FrameChannel c )
+  {
+    try
+    {
+      while ( true )
+      {
+        DataInputStream in = c.receive();
+        byte type = in.readByte();
+        if ( type != TcpStateReplicator.FRAME_REPLY )
+          throw new IOException( "Unexpected replication frame type " + type );
+        long request = in.readLong();
+        ReplicatedState state = in.readBoolean() ? ReplicatedState.read( in ) : null;
+        CompletableFuture<ReplicatedState> future = pending.get( request );
+        if ( future != null )
+          future.complete( state );
+      }
+    }
+    catch ( IOException ex )
+    {
+      // The sender finds out when it next writes; fetches waiting now fail.
+      lock.lock();
+      try
+      {
+        if ( socket == s )
+          disconnect();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.leedsbeckett.ltidemo.state.DemoLtiStateStore;
+import uk.ac.leedsbeckett.ltidemo.state.ReplicatedState;
+import uk.ac.leedsbeckett.ltidemo.state.StateReplicator;
+
+/**
+ * Replicates launch data between a fixed list of nodes over plain TCP.
+ * 
+ * Each state has one owning node, chosen by rendezvous hashing of the state
+ * ID over the node names, so every node agrees on the owner without talking
+ * to the others. The node that handles a launch sends the launch data to
+ * the owner and a node that is asked for a state it doesn't hold asks the
+ * owner for it. Sending is done by one thread per peer which writes
+ * everything queued since its last write as a single frame, so request
+ * threads never wait on the network except when fetching.
+ * 
+ * Frames are a type byte followed by the body. A batch frame holds puts and
+ * removes. A fetch frame holds a request number and a state ID and is
+ * answered on the same connection by a reply frame with the same number.
+ * 
+ * The node only listens on the address it is given and only accepts
+ * connections from the addresses of the nodes in its peer list. Every
+ * frame carries an HMAC keyed with a secret that all the nodes share, see
+ * FrameChannel. Each peer needs one connection, so the threads that serve
+ * inbound connections are limited to a few per peer.
+ * 
+ * @author jon
+ */
+public class TcpStateReplicator implements StateReplicator
+{
+  static final Logger logger = Logger.getLogger( TcpStateReplicator.class.getName() );
+  
+  static final byte FRAME_BATCH = 1;
+  static final byte FRAME_FETCH = 2;
+  static final byte FRAME_REPLY = 3;
+  
+  static final byte OP_PUT    = 1;
+  static final byte OP_REMOVE = 2;
+  
+  public static final long DEFAULT_FETCH_TIMEOUT_MILLIS = 500L;
+  public static final int MIN_SECRET_LENGTH = 32;
+  static final int HANDLERS_PER_PEER = 2;
+  
+  final String nodeName;
+  final InetAddress bindAddress;
+  final int port;
+  final byte[] secret;
+  final SecureRandom random = new SecureRandom();
+  final Map<String,PeerConnection> peers = new LinkedHashMap<>();
+  final List<String> nodeNames;
+  volatile long fetchTimeoutMillis = DEFAULT_FETCH_TIMEOUT_MILLIS;
+  
+  DemoLtiStateStore store;
+  ServerSocket server;
+  Thread acceptor;
+  ThreadPoolExecutor handlers;
+  volatile Set<InetAddress> allowed = Collections.emptySet();
+  volatile boolean running;
+  
+  final LongAdder published = new LongAdder();
+  final LongAdder received  = new LongAdder();
+  final LongAdder dropped   = new LongAdder();
+  final LongAdder lagTotal  = new LongAdder();
+  final AtomicLong lagMax   = new AtomicLong();
+  final LongAdder fetches   = new LongAdder();
+  final LongAdder fetchHits = new LongAdder();
+  final LongAdder fetchFailures  = new LongAdder();
+  final LongAdder fetchNanosTotal = new LongAdder();
+  final AtomicLong fetchNanosMax  = new AtomicLong();
+  final LongAdder rejected = new LongAdder();
+  
+  /**
+   * Construct.
+   * 
+   * @param nodeName The name of this node.
+   * @param bindAddress The address this node listens on.
+   * @param port The port this node listens on.
+   * @param peerAddresses The names and addresses of the other nodes.
+   * @param secret The key shared by all the nodes, at least 32 bytes.
+   */
+  public TcpStateReplicator( String nodeName, InetAddress bindAddress, int port, Map<String,InetSocketAddress> peerAddresses, byte[] secret )
+  {
+    if ( secret == null || secret.length < MIN_SECRET_LENGTH )
+      throw new IllegalArgumentException( "The replication secret must be at least " + MIN_SECRET_LENGTH + " bytes." );
+    this.nodeName = nodeName;
+    this.bindAddress = bindAddress;
+    this.port = port;
+    this.secret = secret.clone();
+    ArrayList<String> names = new ArrayList<>();
+    names.add( nodeName );
+    for ( Map.Entry<String,InetSocketAddress> e : peerAddresses.entrySet() )
+    {
+      if ( nodeName.equals( e.getKey() ) )
+        continue;
+      peers.put( e.getKey(), new PeerConnection( this, e.getKey(), e.getValue() ) );
+      names.add( e.getKey() );
+    }
+    nodeNames = Collections.unmodifiableList( names );
+  }
+  
+  /**
+   * Parse a peer list in the form 'name=host:port,name=host:port'.
+   * 
+   * @param list The list.
+   * @return Names mapped to addresses in the order given.
+   */
+  public static Map<String,InetSocketAddress> parsePeers( String list )
+  {
+    LinkedHashMap<String,InetSocketAddress> map = new LinkedHashMap<>();
+    if ( list == null )
+      return map;
+    for ( String item : list.split( "," ) )
+    {
+      item = item.trim();
+      if ( item.isEmpty() )
+        continue;
+      int eq = item.indexOf( '=' );
+      int colon = item.lastIndexOf( ':' );
+      if ( eq <= 0 || colon < eq )
+        throw new IllegalArgumentException( "Peer must be name=host:port " + item );
+      map.put( item.substring( 0, eq ).trim(),
+              InetSocketAddress.createUnresolved( item.substring( eq+1, colon ).trim(), Integer.parseInt( item.substring( colon+1 ).trim() ) ) );
+    }
+    return map;
+  }
+
+  /**
+   * Set how long a fetch waits for the owner to reply.
+   * 
+   * @param fetchTimeoutMillis Time in milliseconds.
+   */
+  public void setFetchTimeoutMillis( long fetchTimeoutMillis )
+  {
+    this.fetchTimeoutMillis = fetchTimeoutMillis;
+  }
+  
+  @Override
+  public void start( DemoLtiStateStore store ) throws IOException
+  {
+    this.store = store;
+    allowed = resolvePeers();
+    running = true;
+    server = new ServerSocket( port, 50, bindAddress );
+    handlers = new ThreadPoolExecutor( 0, Math.max( 1, peers.size() * HANDLERS_PER_PEER ),
+            60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> 
+    {
+      Thread t = new Thread( r, "state-replication-handler" );
+      t.setDaemon( true );
+      return t;
+    } );
+    acceptor = new Thread( this::accept, "state-replication-acceptor" );
+    acceptor.setDaemon( true );
+    acceptor.start();
+    for ( PeerConnection peer : peers.values() )
+      peer.start();
+    logger.log( Level.INFO, "State replication node {0} listening on {1} port {2} with peers {3}", 
+            new Object[] { nodeName, bindAddress, Integer.toString( port ), peers.keySet() } );
+  }
+  
+  /**
+   * Look up the addresses that the other nodes may connect from.
+   * 
+   * @return The addresses.
+   */
+  Set<InetAddress> resolvePeers()
+  {
+    HashSet<InetAddress> set = new HashSet<>();
+    for ( PeerConnection peer : peers.values() )
+    {
+      try
+      {
+        Collections.addAll( set, InetAddress.getAllByName( peer.address.getHostString() ) );
+      }
+      catch ( UnknownHostException ex )
+      {
+        logger.log( Level.WARNING, "Unable to look up replication peer " + peer.name, ex );
+      }
+    }
+    return Collections.unmodifiableSet( set );
+  }
+
+  @Override
+  public void stop()
+  {
+    running = false;
+    for ( PeerConnection peer : peers.values() )
+      peer.stop();
+    try
+    {
+      if ( server != null )
+        server.close();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Problem closing replication socket.", ex );
+    }
+    if ( handlers != null )
+      handlers.shutdownNow();
+  }
+  
+  /**
+   * Which node owns a state? Each node gets a score mixed from its name and
+   * the state ID and the highest score wins, so adding or removing a node
+   * only moves the states which that node owns or would own.
+   * 
+   * @param id The ID of the state.
+   * @return The name of the owning node.
+   */
+  public String ownerOf( String id )
+  {
+    String owner = null;
+    long best = Long.MIN_VALUE;
+    for ( String name : nodeNames )
+    {
+      long score = mix( name.hashCode() * 0x9E3779B97F4A7C15L + id.hashCode() );
+      if ( owner == null || score > best )
+      {
+        owner = name;
+        best = score;
+      }
+    }
+    return owner;
+  }
+  
+  static long mix( long z )
+  {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+  
+  @Override
+  public void publish( ReplicatedState state )
+  {
+    PeerConnection peer = peers.get( ownerOf( state.getId() ) );
+    if ( peer == null )
+      return;
+    if ( peer.offer( new PeerConnection.Op( OP_PUT, state.getId(), state ) ) )
+      published.increment();
+    else
+      dropped.increment();
+  }
+
+  @Override
+  public void remove( String id )
+  {
+    PeerConnection peer = peers.get( ownerOf( id ) );
+    if ( peer != null && !peer.offer( new PeerConnection.Op( OP_REMOVE, id, null ) ) )
+      dropped.increment();
+  }
+
+  @Override
+  public ReplicatedState fetch( String id )
+  {
+    PeerConnection peer = peers.get( ownerOf( id ) );
+    if ( peer == null )
+      return null;
+    fetches.increment();
+    long start = System.nanoTime();
+    CompletableFuture<ReplicatedState> future = peer.fetch( id );
+    try
+    {
+      if ( future == null )
+      {
+        fetchFailures.increment();
+        return null;
+      }
+      ReplicatedState state = future.get( fetchTimeoutMillis, TimeUnit.MILLISECONDS );
+      if ( state != null )
+        fetchHits.increment();
+      return state;
+    }
+    catch ( InterruptedException ex )
+    {
+      Thread.currentThread().interrupt();
+      fetchFailures.increment();
+      return null;
+    }
+    catch ( ExecutionException | TimeoutException | CancellationException ex )
+    {
+      future.cancel( false );
+      fetchFailures.increment();
+      return null;
+    }
+    finally
+    {
+      long nanos = System.nanoTime() - start;
+      fetchNanosTotal.add( nanos );
+      fetchNanosMax.accumulateAndGet( nanos, Math::max );
+    }
+  }
+  
+  void accept()
+  {
+    while ( running )
+    {
+      try
+      {
+        Socket socket = server.accept();
+        if ( !allowed.contains( socket.getInetAddress() ) )
+        {
+          reject( socket, "not a peer" );
+          continue;
+        }
+        socket.setTcpNoDelay( true );
+        try
+        {
+          handlers.execute( () -> handle( socket ) );
+        }
+        catch ( RejectedExecutionException ex )
+        {
+          reject( socket, "too many connections" );
+        }
+      }
+      catch ( IOException ex )
+      {
+        if ( running )
+          logger.log( Level.WARNING, "Problem accepting replication connection.", ex );
+      }
+    }
+  }
+  
+  void reject( Socket socket, String reason )
+  {
+    rejected.increment();
+    logger.log( Level.WARNING, "Refused replication connection from {0}, {1}.", new Object[] { socket.getInetAddress(), reason } );
+    try
+    {
+      socket.close();
+    }
+    catch ( IOException ex )
+    {
+      // Nothing to do.
+    }
+  }
+  
+  /**
+   * Send a challenge to another node and then read frames from it until it
+   * disconnects.
+   * 
+   * @param socket The connection.
+   */
+  void handle( Socket socket )
+  {
+    try ( socket;
+          DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+          DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) ) )
+    {
+      byte[] challenge = FrameChannel.newChallenge( random );
+      out.write( challenge );
+      out.flush();
+      FrameChannel channel = new FrameChannel( secret, challenge, true, in, out );
+      while ( running )
+      {
+        DataInputStream frame = channel.receive();
+        byte type = frame.readByte();
+        if ( type == FRAME_BATCH )
+          readBatch( frame );
+        else if ( type == FRAME_FETCH )
+        {
+          long request = frame.readLong();
+          ReplicatedState state = store.getStateForPeer( frame.readUTF() );
+          DataOutputStream reply = channel.begin();
+          reply.writeByte( FRAME_REPLY );
+          reply.writeLong( request );
+          reply.writeBoolean( state != null );
+          if ( state != null )
+            state.write( reply );
+          // Replies are flushed only when no more requests are waiting.
+          channel.send( !channel.hasMore() );
+        }
+        else
+          throw new IOException( "Unknown replication frame type " + type );
+      }
+    }
+    catch ( EOFException | SocketException ex )
+    {
+      // Peer went away.
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.WARNING, "Problem reading from replication peer.", ex );
+    }
+  }
+  
+  void readBatch( DataInputStream in ) throws IOException
+  {
+    long now = System.currentTimeMillis();
+    int n = in.readInt();
+    for ( int i=0; i<n; i++ )
+    {
+      byte op = in.readByte();
+      long queued = in.readLong();
+      if ( op == OP_PUT )
+        store.acceptReplica( ReplicatedState.read( in ) );
+      else if ( op == OP_REMOVE )
+        store.removeReplica( in.readUTF() );
+      else
+        throw new IOException( "Unknown replication operation " + op );
+      long lag = Math.max( 0L, now - queued );
+      lagTotal.add( lag );
+      lagMax.accumulateAndGet( lag, Math::max );
+      received.increment();
+    }
+  }
+
+  public String getNodeName()
+  {
+    return nodeName;
+  }
+  
+  public List<String> getNodeNames()
+  {
+    return nodeNames;
+  }
+  
+  /**
+   * How many states have been queued for other nodes.
+   * 
+   * @return Count.
+   */
+  public long getPublishedCount()
+  {
+    return published.sum();
+  }
+  
+  /**
+   * How many puts and removes were dropped because a peer's queue was full.
+   * 
+   * @return Count.
+   */
+  public long getDroppedCount()
+  {
+    return dropped.sum();
+  }
+  
+  /**
+   * How many inbound connections were refused because they didn't come
+   * from a peer or there were too many.
+   * 
+   * @return Count.
+   */
+  public long getRejectedCount()
+  {
+    return rejected.sum();
+  }
+  
+  /**
+   * How many puts and removes have been received from other nodes.
+   * 
+   * @return Count.
+   */
+  public long getReceivedCount()
+  {
+    return received.sum();
+  }
+  
+  /**
+   * Mean time from a change being queued on another node to it being
+   * applied here. Relies on the nodes' clocks agreeing.
+   * 
+   * @return Time in milliseconds.
+   */
+  public double getMeanLagMillis()
+  {
+    long n = received.sum();
+    return n == 0 ? 0.0 : (double)lagTotal.sum() / (double)n;
+  }
+  
+  /**
+   * Longest replication lag seen.
+   * 
+   * @return Time in milliseconds.
+   */
+  public long getMaxLagMillis()
+  {
+    return lagMax.get();
+  }
+  
+  /**
+   * How many states that this node has queued are still waiting to be sent.
+   * 
+   * @return Count.
+   */
+  public int getQueuedCount()
+  {
+    int n = 0;
+    for ( PeerConnection peer : peers.values() )
+      n += peer.queue.size();
+    return n;
+  }
+  
+  /**
+   * How many times other nodes have been asked for a state.
+   * 
+   * @return Count.
+   */
+  public long getFetchCount()
+  {
+    return fetches.sum();
+  }
+  
+  /**
+   * How many fetches found the state.
+   * 
+   * @return Count.
+   */
+  public long getFetchHitCount()
+  {
+    return fetchHits.sum();
+  }
+  
+  /**
+   * How many fetches timed out or couldn't be sent.
+   * 
+   * @return Count.
+   */
+  public long getFetchFailureCount()
+  {
+    return fetchFailures.sum();
+  }
+  
+  /**
+   * Mean time taken by a fetch.
+   * 
+   * @return Time in milliseconds.
+   */
+  public double getMeanFetchMillis()
+  {
+    long n = fetches.sum();
+    return n == 0 ? 0.0 : fetchNanosTotal.sum() / 1.0e6 / (double)n;
+  }
+  
+  /**
+   * Longest time taken by a fetch.
+   * 
+   * @return Time in milliseconds.
+   */
+  public double getMaxFetchMillis()
+  {
+    return fetchNanosMax.get() / 1.0e6;
+  }
+}
@@ -16,20 +16,32 @@
 
 package uk.ac.leedsbeckett.ltidemo.launch;
 
+import uk.ac.leedsbeckett.ltidemo.app.ClientIndex;
 import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+import uk.ac.leedsbeckett.ltidemo.app.DemoContextListener;
 import uk.ac.leedsbeckett.ltidemo.app.FixedLtiConfiguration;
+import uk.ac.leedsbeckett.ltidemo.app.RequestHandOff;
+import uk.ac.leedsbeckett.ltidemo.metrics.DemoMetrics;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchEvent;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTrace;
 import uk.ac.leedsbeckett.ltidemo.state.LaunchState;
 import uk.ac.leedsbeckett.ltidemo.state.CourseLaunchState;
 import uk.ac.leedsbeckett.ltidemo.state.DemoState;
+import uk.ac.leedsbeckett.ltidemo.state.LaunchTokenCodec;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlBuffer;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlResponse;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlTemplate;
+import uk.ac.leedsbeckett.ltidemo.tool.AbstractDemoToolServlet;
 import uk.ac.leedsbeckett.ltidemo.tool.Resource;
 import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
 import uk.ac.leedsbeckett.lti.claims.LtiClaims;
@@ -43,15 +55,134 @@ import uk.ac.leedsbeckett.lti.state.LtiStateStore;
  * 
  * @author jon
  */
-@WebServlet( name = "DemoLtiLaunchServlet", urlPatterns = { FixedLtiConfiguration.LAUNCH_PATTERN } )
+@WebServlet( name = "DemoLtiLaunchServlet", urlPatterns = { FixedLtiConfiguration.LAUNCH_PATTERN }, asyncSupported = true )
 public class DemoLtiLaunchServlet extends LtiLaunchServlet
 {
+  /**
+   * Name of the custom claim which says which tool is being launched.
+   */
+  static final String TOOL_TYPE_CLAIM = "lti.jonmaber.co.uk#tool_type";
+  
+  /**
+   * Name of the request attribute holding when the request arrived, for
+   * the launch trace.
+   */
+  static final String RECEIVED_ATTRIBUTE = DemoLtiLaunchServlet.class.getName() + ".received";
+  
+  HtmlTemplate pagetemplate;
+  HtmlTemplate contexttypetemplate;
+  HtmlTemplate claimtemplate;
+  
+  /**
+   * True if the diagnostic page is sent without blocking the request
+   * thread.
+   */
+  boolean asyncoutput = false;
+  
+  /**
+   * True if the tool page is rendered in the launch response instead of
+   * redirecting the browser to it.
+   */
+  boolean renderdirect = false;
+  
+  /**
+   * Compiles the templates of the diagnostic page and reads how the user is
+   * sent on to the tool page.
+   * 
+   * @throws ServletException If the templates can't be loaded.
+   */
+  @Override
+  public void init() throws ServletException
+  {
+    super.init();
+    Map<String,HtmlTemplate> templates = HtmlResponse.loadTemplates( getServletContext(), "launch.html" );
+    pagetemplate        = HtmlResponse.getTemplate( templates, "page" );
+    contexttypetemplate = HtmlResponse.getTemplate( templates, "contexttype" );
+    claimtemplate       = HtmlResponse.getTemplate( templates, "claim" );
+    asyncoutput = HtmlResponse.isListed( 
+            getServletContext().getInitParameter( DemoContextListener.ASYNC_OUTPUT_SERVLETS ), 
+            getServletName() );
+    renderdirect = DemoContextListener.LAUNCH_RESPONSE_RENDER.equalsIgnoreCase( 
+            StringUtils.trim( getServletContext().getInitParameter( DemoContextListener.LAUNCH_RESPONSE ) ) );
+  }
+  
+  /**
+   * Hands the request to the application's request executor if one is
+   * configured, otherwise processes it on this thread.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @throws ServletException If processing on this thread fails.
+   * @throws IOException If the connection fails.
+   */
+  @Override
+  protected void service( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    request.setAttribute( RECEIVED_ATTRIBUTE, System.nanoTime() );
+    if ( !RequestHandOff.handOff( request, response, super::service ) )
+      super.service( request, response );
+  }
+  
+  /**
+   * Turns away launches from clients that aren't registered, or signed
+   * with keys that the platform doesn't publish, before the parent class
+   * verifies the token. Only keys that are already cached are checked, so
+   * this never waits for a key set. A token that can't be read, or whose
+   * key set isn't cached, is left for the parent class to deal with.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @throws ServletException If processing fails.
+   * @throws IOException If the connection fails.
+   */
+  @Override
+  protected void doPost( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    UnverifiedIdToken token = UnverifiedIdToken.parse( request.getParameter( "id_token" ) );
+    if ( token != null )
+    {
+      ClientIndex.Registration registration = findRegistration( request, token );
+      if ( registration == null )
+      {
+        response.sendError( 500, "The platform is not registered with this tool." );
+        return;
+      }
+      PlatformKeyCache keycache = DemoApplicationContext.getFromServletContext( request.getServletContext() ).getKeyCache();
+      if ( token.getKeyId() != null && 
+           keycache.lookup( registration, token.getKeyId() ) == PlatformKeyCache.Lookup.NOT_PUBLISHED )
+      {
+        response.sendError( 500, "The launch was signed with a key the platform doesn't publish." );
+        return;
+      }
+    }
+    super.doPost( request, response );
+  }
+  
+  /**
+   * Find the client registration that a launch token claims to be for.
+   * 
+   * @param request The request.
+   * @param token The unverified token.
+   * @return The registration or null if the issuer, client and deployment
+   * aren't registered.
+   */
+  ClientIndex.Registration findRegistration( HttpServletRequest request, UnverifiedIdToken token )
+  {
+    ClientIndex index = DemoApplicationContext.getFromServletContext( request.getServletContext() ).getClientIndex();
+    ClientIndex.Registration registration = index.find( token.getIssuer(), token.getClientId() );
+    if ( registration == null || !registration.hasDeployment( token.getDeploymentId() ) )
+      return null;
+    return registration;
+  }
   
   /**
    * The parent class calls this method after it has processed and validated 
    * the launch request. The job here is to look at the claims in the LTI
    * launch and decide how to prepare state and how to forward the user to
-   * the servlet or JSP page that actually implements the tool.
+   * the servlet or JSP page that actually implements the tool. A launch
+   * whose nonce has been seen before is turned away first.
    * 
    * @param lticlaims The validated LTI claims for this launch request.
    * @param ltistate The LTI state that was created by the preceding login request.
@@ -63,6 +194,84 @@ public class DemoLtiLaunchServlet extends LtiLaunchServlet
   @Override
   protected void processLaunchRequest( LtiClaims lticlaims, LtiState ltistate, HttpServletRequest request, HttpServletResponse response )
           throws ServletException, IOException
+  {
+    NonceReplayGuard guard = DemoApplicationContext.getFromServletContext( request.getServletContext() ).getNonceGuard();
+    Object nonce = lticlaims.get( "nonce" );
+    if ( guard != null && nonce != null && !guard.record( nonce.toString() ) )
+    {
+      response.sendError( 500, "This launch has already been used." );
+      return;
+    }
+    
+    LaunchEvent event = new LaunchEvent();
+    event.begin();
+    LaunchTrace trace = ltistate instanceof DemoState ? ((DemoState)ltistate).getTrace() : null;
+    if ( trace != null )
+    {
+      Object received = request.getAttribute( RECEIVED_ATTRIBUTE );
+      if ( received instanceof Long )
+        trace.mark( LaunchTrace.LAUNCH_RECEIVED, (Long)received );
+      trace.mark( LaunchTrace.TOKEN_VALIDATED, System.nanoTime() );
+    }
+    
+    try
+    {
+      processLaunch( lticlaims, ltistate, request, response );
+    }
+    finally
+    {
+      event.end();
+      if ( trace != null && !trace.isMarked( LaunchTrace.LAUNCH_PROCESSED ) )
+        trace.mark( LaunchTrace.LAUNCH_PROCESSED, System.nanoTime() );
+      if ( event.shouldCommit() || trace != null )
+      {
+        String platform = lticlaims.getLtiToolPlatform() == null ? null : lticlaims.getLtiToolPlatform().getUrl();
+        String tooltype = lticlaims.getLtiCustom() == null ? null : lticlaims.getLtiCustom().getAsString( TOOL_TYPE_CLAIM );
+        if ( event.shouldCommit() )
+        {
+          event.platform = platform;
+          event.toolType = tooltype;
+          event.stateId = ltistate == null ? null : ltistate.getId();
+          event.commit();
+        }
+        if ( trace != null )
+          endLaunchTrace( request, response, trace, platform, tooltype );
+      }
+    }
+  }
+  
+  /**
+   * Record the tool in the launch trace. If the tool page won't be able to
+   * find the trace, because it gets launch state from a token or because
+   * there is no tool page, the trace is complete now.
+   * 
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @param trace The trace.
+   * @param platform URL of the platform.
+   * @param tooltype The tool type.
+   */
+  void endLaunchTrace( HttpServletRequest request, HttpServletResponse response, LaunchTrace trace, String platform, String tooltype )
+  {
+    trace.setLaunch( platform, tooltype );
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+    if ( response.getStatus() != HttpServletResponse.SC_FOUND || appcontext.getTokenCodec() != null )
+      appcontext.getLaunchTracer().complete( trace );
+  }
+  
+  /**
+   * Does the work of processLaunchRequest, which records how long this takes
+   * for the flight recorder.
+   * 
+   * @param lticlaims The validated LTI claims for this launch request.
+   * @param ltistate The LTI state that was created by the preceding login request.
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @throws ServletException If there is an internal problem forwarding the user's browser.
+   * @throws IOException If the network connection is broken while sending the forwarding response.
+   */
+  void processLaunch( LtiClaims lticlaims, LtiState ltistate, HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
   {
     DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
     ResourceStore resourcestore = appcontext.getStore();
@@ -71,7 +280,8 @@ public class DemoLtiLaunchServlet extends LtiLaunchServlet
       throw new ServletException( "Wrong type of LtiState." );
     DemoState state = (DemoState)ltistate;
     
-    String tooltype = lticlaims.getLtiCustom().getAsString( "lti.jonmaber.co.uk#tool_type" );
+    String tooltype = lticlaims.getLtiCustom().getAsString( TOOL_TYPE_CLAIM );
+    DemoMetrics.setToolType( request, tooltype );
     LaunchState platformlaunch = null;
     CourseLaunchState courselaunch = null;
     
@@ -86,7 +296,7 @@ public class DemoLtiLaunchServlet extends LtiLaunchServlet
       platformlaunch.setPlatformName( lticlaims.getLtiToolPlatform().getUrl() );
       platformlaunch.setRoles( lticlaims.getLtiRoles() );
       state.setPlatformLaunchState( platformlaunch );
-      response.sendRedirect( response.encodeRedirectURL( request.getContextPath() + "/platformresource?state_id=" + state.getId() ) );
+      sendToTool( request, response, appcontext, state, platformlaunch, "/platformresource" );
       return;
     } 
     
@@ -97,7 +307,7 @@ public class DemoLtiLaunchServlet extends LtiLaunchServlet
       platformlaunch.setPlatformName( lticlaims.getLtiToolPlatform().getUrl() );
       platformlaunch.setRoles( lticlaims.getLtiRoles() );
       state.setPlatformLaunchState( platformlaunch );
-      response.sendRedirect( response.encodeRedirectURL( request.getContextPath() + "/platformresource?state_id=" + state.getId() ) );
+      sendToTool( request, response, appcontext, state, platformlaunch, "/platformresource" );
       return;
     }
     
@@ -106,68 +316,108 @@ public class DemoLtiLaunchServlet extends LtiLaunchServlet
       courselaunch = new CourseLaunchState();
       courselaunch.setPersonName( lticlaims.get( "name" ).toString() );
       courselaunch.setPlatformName( lticlaims.getLtiToolPlatform().getUrl() );      
-      courselaunch.setCourseId( lticlaims.getLtiContext().getId() );
       courselaunch.setCourseTitle( lticlaims.getLtiContext().getLabel() );
       courselaunch.setResourceId( lticlaims.getLtiResource().getId() );
       courselaunch.setRoles( lticlaims.getLtiRoles() );
       Resource resource = resourcestore.get( courselaunch.getPlatformName(), courselaunch.getResourceId(), true );
       courselaunch.setResource( resource );
-      if ( lticlaims.getLtiRoles().isInStandardInstructorRole() )
-        courselaunch.setAllowedToClearResource( true );
+      courselaunch.setAllowedToClearResource( courselaunch.getRoleSet().isInStandardInstructorRole() );
       state.setCourseLaunchState( courselaunch );
-      response.sendRedirect( response.encodeRedirectURL( request.getContextPath() + "/courseresource?state_id=" + state.getId() ) );
+      sendToTool( request, response, appcontext, state, courselaunch, "/courseresource" );
       return;
     }
     
     // What if we couldn't work out what to do?
     // In this demo, send some debugging information in an HTML page.
     
-    response.setContentType( "text/html;charset=UTF-8" );
-    try (  PrintWriter out = response.getWriter() )
-    {
-      /* TODO output your page here. You may use following sample code. */
-      out.println( "<!DOCTYPE html>" );
-      out.println( "<html>" );
-      out.println( "<head>" );
-      out.println( "<title>Servlet LaunchServlet</title>" );      
-      out.println( "<style>" );
-      out.println( "li { padding: 1em 1em 1em 1em; }" );
-      out.println( "</style>" );
-      out.println( "</head>" );
-      out.println( "<body>" );
-      out.println( "<h1>Servlet LaunchServlet at " + request.getContextPath() + "</h1>" );
+    HtmlBuffer out = new HtmlBuffer( 4096 );
+    HtmlTemplate.Render page = pagetemplate.render( out )
+            .text( "contextpath", request.getContextPath() )
+            .text( "guid",  lticlaims.getLtiToolPlatform().getGuid() )
+            .text( "url",   lticlaims.getLtiToolPlatform().getUrl() )
+            .text( "label", lticlaims.getLtiContext().getLabel() )
+            .text( "title", lticlaims.getLtiContext().getTitle() );
+    page.slot( "contexttype" );
+    String type = lticlaims.getLtiContext().getType( 0 );
+    if ( type != null )
+      contexttypetemplate.render( out, type );
 
-      out.println( "<p>The LTI Launch was not configured properly. The following may help understand what happened.</p> " );
+    page.slot( "claims" );
+    ArrayList<String> keylist = new ArrayList<>();
+    for ( String k :  lticlaims.keySet() )
+      keylist.add( k );
+    keylist.sort( Comparator.comparing( String::toString ) );
+    for ( String k : keylist )
+      claimtemplate.render( out, k, String.valueOf( lticlaims.get( k ) ) );
+    page.end();
+    
+    HtmlResponse.send( request, response, out, asyncoutput );
+  }
 
-      out.println( "<h2>About the Launch Request</h2>" );
-      out.println( "<ul>" );
-      out.println( "<li>Tool platform guid<br/>" + lticlaims.getLtiToolPlatform().getGuid() + "</li>" );
-      out.println( "<li>Tool platform url<br/>"  + lticlaims.getLtiToolPlatform().getUrl()  + "</li>" );
-      out.println( "<li>Context label<br/>"      + lticlaims.getLtiContext().getLabel()     + "</li>" );
-      out.println( "<li>Context title<br/>"      + lticlaims.getLtiContext().getTitle()     + "</li>" );
-      String type = lticlaims.getLtiContext().getType( 0 );
-      if ( type != null )
-        out.println( "<li>Context type<br/>"     + type                        + "</li>" );
-      out.println( "</ul>" );
-      
-      
-      out.println( "<h2>Technical breakdown of launch request</h2>" );
-      out.println( "<pre>" );
-      
-      ArrayList<String> keylist = new ArrayList<>();
-      for ( String k :  lticlaims.keySet() )
-        keylist.add( k );
-      keylist.sort( Comparator.comparing( String::toString ) );
-      for ( String k : keylist )
-        out.println( k + " = " + lticlaims.get( k ) + "\n" );
-      out.println( "</pre>" );
-      
-      
-      out.println( "</body>" );
-      out.println( "</html>" );
+  /**
+   * Send the user on to the tool page, either by redirecting the browser or,
+   * in render mode, by forwarding this request to the tool page's servlet
+   * with the launch state it needs already in hand.
+   * 
+   * @param request The HTTP request.
+   * @param response The HTTP response.
+   * @param appcontext The application context.
+   * @param state The LTI state.
+   * @param launch The launch state that was put in the LTI state.
+   * @param path The path of the tool page within the web application.
+   * @throws ServletException If the tool page fails.
+   * @throws IOException If the network connection is broken.
+   */
+  void sendToTool( HttpServletRequest request, HttpServletResponse response, 
+          DemoApplicationContext appcontext, DemoState state, LaunchState launch, String path )
+          throws ServletException, IOException
+  {
+    String query = stateQuery( appcontext, state, launch );
+    LaunchTrace trace = state.getTrace();
+    if ( trace != null )
+      trace.mark( LaunchTrace.LAUNCH_PROCESSED, System.nanoTime() );
+    
+    if ( !renderdirect )
+    {
+      response.sendRedirect( response.encodeRedirectURL( request.getContextPath() + path + "?" + query ) );
+      return;
     }
+    
+    // The query string is merged into the forwarded request's parameters so
+    // the page's forms carry the state on just as they would after a
+    // redirect.
+    request.setAttribute( AbstractDemoToolServlet.LAUNCH_STATE_ATTRIBUTE, launch );
+    request.getRequestDispatcher( path + "?" + query ).forward( request, response );
   }
-
+  
+  /**
+   * Work out the query string that passes the user's launch state on to
+   * the tool page. Either the ID of the state, which the tool page looks up
+   * in the state store, or a signed token containing the launch state which
+   * any node can verify.
+   * 
+   * @param appcontext The application context.
+   * @param state The LTI state.
+   * @param launch The launch state that was put in the LTI state.
+   * @return A query string.
+   */
+  String stateQuery( DemoApplicationContext appcontext, DemoState state, LaunchState launch )
+  {
+    LaunchTokenCodec codec = appcontext.getTokenCodec();
+    if ( codec == null )
+    {
+      appcontext.getStateStore().launched( state );
+      return AbstractDemoToolServlet.STATE_ID_PARAMETER + "=" + state.getId();
+    }
+    
+    String token;
+    if ( launch instanceof CourseLaunchState )
+      token = codec.encode( (CourseLaunchState)launch );
+    else
+      token = codec.encode( launch );
+    return AbstractDemoToolServlet.STATE_TOKEN_PARAMETER + "=" + token;
+  }
+  
   /**
    * This implementation ensures that the library code knows how to store
    * LTI state.
@@ -16,11 +16,18 @@
 
 package uk.ac.leedsbeckett.ltidemo.launch;
 
+import uk.ac.leedsbeckett.ltidemo.app.ClientIndex;
 import uk.ac.leedsbeckett.ltidemo.app.FixedLtiConfiguration;
 import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+import uk.ac.leedsbeckett.ltidemo.app.RequestHandOff;
+import java.io.IOException;
 import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import uk.ac.leedsbeckett.lti.LtiConfiguration;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTracer;
 import uk.ac.leedsbeckett.lti.servlet.LtiLoginServlet;
 import uk.ac.leedsbeckett.lti.state.LtiStateStore;
 
@@ -30,10 +37,86 @@ import uk.ac.leedsbeckett.lti.state.LtiStateStore;
  * 
  * @author jon
  */
-@WebServlet(name = "DemoLtiLoginServlet", urlPatterns = { FixedLtiConfiguration.LOGIN_PATTERN })
+@WebServlet(name = "DemoLtiLoginServlet", urlPatterns = { FixedLtiConfiguration.LOGIN_PATTERN }, asyncSupported = true)
 public class DemoLtiLoginServlet extends LtiLoginServlet
 {
-
+  /**
+   * Hands the request to the application's request executor if one is
+   * configured, otherwise processes it on this thread.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @throws ServletException If processing on this thread fails.
+   * @throws IOException If the connection fails.
+   */
+  @Override
+  protected void service( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    long received = System.nanoTime();
+    if ( !RequestHandOff.handOff( request, response, ( rq, rs ) -> login( rq, rs, received ) ) )
+      login( request, response, received );
+  }
+  
+  /**
+   * Process the login on this thread, tracing it if launch tracing is on.
+   * The state that the library creates on this thread picks up the trace.
+   * The client's keys are fetched in the background if they aren't cached
+   * so that they are ready when the launch arrives.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @param received When the request arrived, from System.nanoTime().
+   * @throws ServletException If processing fails.
+   * @throws IOException If the connection fails.
+   */
+  void login( HttpServletRequest request, HttpServletResponse response, long received )
+          throws ServletException, IOException
+  {
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+    ClientIndex index = appcontext.getClientIndex();
+    if ( !isRegistered( index, request ) )
+    {
+      response.sendError( 500, "The platform is not registered with this tool." );
+      return;
+    }
+    ClientIndex.Registration registration = index.find( request.getParameter( "iss" ), request.getParameter( "client_id" ) );
+    if ( registration != null )
+      appcontext.getKeyCache().warm( registration );
+    LaunchTracer tracer = appcontext.getLaunchTracer();
+    tracer.startLogin( received );
+    try
+    {
+      super.service( request, response );
+    }
+    finally
+    {
+      tracer.endLogin();
+    }
+  }
+  
+  /**
+   * Check the login against the index of registered clients before any
+   * state is created for it. The client and deployment parameters are
+   * optional in a login so they are only checked if they are sent.
+   * 
+   * @param index The index of registered clients.
+   * @param request The login request.
+   * @return True if the issuer, client and deployment are registered.
+   */
+  static boolean isRegistered( ClientIndex index, HttpServletRequest request )
+  {
+    String issuer = request.getParameter( "iss" );
+    String clientid = request.getParameter( "client_id" );
+    if ( clientid == null )
+      return index.hasIssuer( issuer );
+    ClientIndex.Registration registration = index.find( issuer, clientid );
+    if ( registration == null )
+      return false;
+    String deploymentid = request.getParameter( "lti_deployment_id" );
+    return deploymentid == null || registration.hasDeployment( deploymentid );
+  }
+  
   /**
    * This implementation ensures that the library code knows how to store
    * LTI state.
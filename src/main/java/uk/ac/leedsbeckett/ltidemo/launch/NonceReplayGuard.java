@@ -0,0 +1,358 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.launch;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the nonces of recent launches so that a replayed id_token can
+ * be turned away before any state is built for it.
+ * 
+ * Time is divided into buckets and each bucket has a Bloom filter and a
+ * table of 64 bit hashes of the nonces recorded in it. A nonce is looked
+ * for in the Bloom filters first, so most launches are cleared with a few
+ * bit tests, and only a Bloom filter match is confirmed in the table. The
+ * buckets cover the window that id_tokens are valid for; older buckets are
+ * cleared and reused, so the memory used is fixed when the guard is built
+ * and doesn't grow with the number of launches.
+ * 
+ * Each bucket is sized for twice its share of the expected launches. If a
+ * bucket's table fills up, the nonces of further launches in that period
+ * are let through but not remembered, so that a flood of launches can't
+ * saturate the Bloom filter and have every later launch turned away. A
+ * replay of one of those launches would not be caught, so they are counted
+ * and a warning is logged.
+ * 
+ * @author jon
+ */
+public class NonceReplayGuard
+{
+  static final Logger logger = Logger.getLogger( NonceReplayGuard.class.getName() );
+  
+  /**
+   * Default time that nonces are remembered, which should be at least the
+   * lifetime of platforms' id_tokens.
+   */
+  public static final long DEFAULT_WINDOW_SECONDS = 3600L;
+  
+  /**
+   * Default number of launches expected within the window.
+   */
+  public static final int DEFAULT_CAPACITY = 100000;
+  
+  /**
+   * Number of buckets that the window is divided into. One more bucket is
+   * kept so that a nonce is remembered for at least the whole window.
+   */
+  static final int BUCKETS = 8;
+  
+  /**
+   * Number of bits tested for each nonce.
+   */
+  static final int HASHES = 10;
+  
+  /**
+   * Least number of Bloom filter bits for each nonce that a bucket's table
+   * can hold. Rounding up to a power of two gives about 21 bits at the
+   * default capacity. With 10 hashes a full bucket has a false positive
+   * rate of at most about 0.1%, and under 0.01% at 21 bits.
+   */
+  static final int BITS_PER_NONCE = 15;
+  
+  /**
+   * The nonces recorded in one period of time.
+   */
+  static final class Bucket
+  {
+    final long[] bits;
+    final long[] hashes;
+    final int maxcount;
+    long period = -1L;
+    int count;
+    boolean overflowed;
+
+    Bucket( int capacity )
+    {
+      hashes = new long[powerOfTwo( capacity * 2L )];
+      maxcount = hashes.length * 3 / 4;
+      bits = new long[Math.max( 1, powerOfTwo( (long)maxcount * BITS_PER_NONCE ) >> 6 )];
+    }
+    
+    void reset( long period )
+    {
+      Arrays.fill( bits, 0L );
+      Arrays.fill( hashes, 0L );
+      this.period = period;
+      count = 0;
+      overflowed = false;
+    }
+    
+    boolean mightContain( long hash )
+    {
+      int mask = ( bits.length << 6 ) - 1;
+      int h1 = (int)hash;
+      int h2 = (int)( hash >>> 32 ) | 1;
+      for ( int i=0; i<HASHES; i++ )
+      {
+        int bit = ( h1 + i * h2 ) & mask;
+        if ( ( bits[bit >>> 6] & ( 1L << bit ) ) == 0L )
+          return false;
+      }
+      return true;
+    }
+    
+    boolean contains( long hash )
+    {
+      int mask = hashes.length - 1;
+      for ( int i = (int)hash & mask; hashes[i] != 0L; i = ( i + 1 ) & mask )
+        if ( hashes[i] == hash )
+          return true;
+      return false;
+    }
+    
+    /**
+     * Remember a nonce unless the table is full. Bits are only set for
+     * nonces that go in the table, so every Bloom filter match can be
+     * confirmed.
+     * 
+     * @param hash The hash of the nonce.
+     * @return False if the table is full.
+     */
+    boolean add( long hash )
+    {
+      if ( count >= maxcount )
+      {
+        overflowed = true;
+        return false;
+      }
+      int mask = ( bits.length << 6 ) - 1;
+      int h1 = (int)hash;
+      int h2 = (int)( hash >>> 32 ) | 1;
+      for ( int i=0; i<HASHES; i++ )
+      {
+        int bit = ( h1 + i * h2 ) & mask;
+        bits[bit >>> 6] |= 1L << bit;
+      }
+      int tablemask = hashes.length - 1;
+      int i = (int)hash & tablemask;
+      while ( hashes[i] != 0L )
+        i = ( i + 1 ) & tablemask;
+      hashes[i] = hash;
+      count++;
+      return true;
+    }
+  }
+  
+  final Bucket[] buckets;
+  final long periodmillis;
+  final long windowmillis;
+  final int capacity;
+  final ReentrantLock lock = new ReentrantLock();
+  
+  // Only changed with the lock held
+  volatile long checks = 0L;
+  volatile long replays = 0L;
+  volatile long falsepositives = 0L;
+  volatile long unrecorded = 0L;
+  
+  /**
+   * Build a guard.
+   * 
+   * @param windowmillis How long nonces are remembered.
+   * @param capacity The number of launches expected within the window.
+   */
+  public NonceReplayGuard( long windowmillis, int capacity )
+  {
+    this.windowmillis = windowmillis;
+    this.capacity = capacity;
+    periodmillis = Math.max( 1L, ( windowmillis + BUCKETS - 1 ) / BUCKETS );
+    int bucketcapacity = Math.max( 16, (int)Math.min( Integer.MAX_VALUE / 4, 2L * capacity / BUCKETS ) );
+    buckets = new Bucket[BUCKETS + 1];
+    for ( int i=0; i<buckets.length; i++ )
+      buckets[i] = new Bucket( bucketcapacity );
+  }
+  
+  static int powerOfTwo( long n )
+  {
+    int p = 1;
+    while ( p < n && p < ( 1 << 30 ) )
+      p <<= 1;
+    return p;
+  }
+  
+  /**
+   * A 64 bit FNV-1a hash of the nonce, mixed so that both halves can be
+   * used for the Bloom filter. Zero marks an empty slot in the tables so
+   * it is never returned.
+   * 
+   * @param nonce The nonce.
+   * @return The hash.
+   */
+  static long hash( String nonce )
+  {
+    long h = 0xcbf29ce484222325L;
+    for ( int i=0; i<nonce.length(); i++ )
+    {
+      h ^= nonce.charAt( i );
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == 0L ? 1L : h;
+  }
+  
+  /**
+   * Record the nonce of a launch unless it has been seen within the window.
+   * 
+   * @param nonce The nonce from the verified id_token.
+   * @return True if the nonce is new, false if the launch is a replay.
+   */
+  public boolean record( String nonce )
+  {
+    return record( nonce, System.currentTimeMillis() );
+  }
+  
+  boolean record( String nonce, long now )
+  {
+    long hash = hash( nonce );
+    long period = now / periodmillis;
+    lock.lock();
+    try
+    {
+      checks++;
+      for ( Bucket bucket : buckets )
+      {
+        if ( bucket.period < period - BUCKETS || !bucket.mightContain( hash ) )
+          continue;
+        if ( bucket.contains( hash ) )
+        {
+          replays++;
+          return false;
+        }
+        falsepositives++;
+      }
+      
+      Bucket current = buckets[(int)( period % buckets.length )];
+      if ( current.period != period )
+        current.reset( period );
+      boolean overflowed = current.overflowed;
+      if ( !current.add( hash ) )
+        unrecorded++;
+      if ( current.overflowed && !overflowed )
+        logger.log( Level.WARNING, "More than {0} launches in {1} seconds, further nonces are not being remembered. Raise the nonce capacity.", 
+                new Object[] { Integer.toString( current.maxcount ), Long.toString( TimeUnit.MILLISECONDS.toSeconds( periodmillis ) ) } );
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Get the number of nonces checked.
+   * 
+   * @return Count.
+   */
+  public long getChecks()
+  {
+    return checks;
+  }
+  
+  /**
+   * Get the number of launches turned away as replays.
+   * 
+   * @return Count.
+   */
+  public long getReplays()
+  {
+    return replays;
+  }
+  
+  /**
+   * Get the number of Bloom filter matches that the tables showed to be
+   * false.
+   * 
+   * @return Count.
+   */
+  public long getFalsePositives()
+  {
+    return falsepositives;
+  }
+  
+  /**
+   * Get the number of launches let through without their nonces being
+   * remembered because the current bucket's table was full.
+   * 
+   * @return Count.
+   */
+  public long getUnrecorded()
+  {
+    return unrecorded;
+  }
+  
+  /**
+   * Get the proportion of new nonces that a Bloom filter matched.
+   * 
+   * @return The false positive rate.
+   */
+  public double getFalsePositiveRate()
+  {
+    long fresh = checks - replays;
+    return fresh <= 0L ? 0.0 : (double)falsepositives / fresh;
+  }
+  
+  /**
+   * Get the memory used by the filters and tables, which is fixed.
+   * 
+   * @return Bytes.
+   */
+  public long getBytes()
+  {
+    long bytes = 0L;
+    for ( Bucket bucket : buckets )
+      bytes += ( bucket.bits.length + bucket.hashes.length ) * 8L;
+    return bytes;
+  }
+  
+  /**
+   * Get how long nonces are remembered.
+   * 
+   * @return Milliseconds.
+   */
+  public long getWindowMillis()
+  {
+    return windowmillis;
+  }
+  
+  /**
+   * Get the number of launches the guard is sized for.
+   * 
+   * @return Launches within the window.
+   */
+  public int getCapacity()
+  {
+    return capacity;
+  }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.launch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.leedsbeckett.ltidemo.app.ClientIndex;
+
+/**
+ * Caches the public keys that platforms sign id_tokens with, keyed by key
+ * set URL and key ID, so that launches don't wait for the platform's key
+ * set to be fetched. Keys are found through the URL that the client is
+ * registered with, never through the issuer claimed by the token.
+ * 
+ * Looking a key up never waits for the network. Key sets are only fetched
+ * in the background, one fetch per URL at a time, and a launch whose key
+ * set isn't cached yet is left for the LTI library to check. Each fetch
+ * replaces everything cached for its URL, so keys which the platform has
+ * stopped publishing go at once. A key set lives for a fixed time after it
+ * was fetched. A key that is used when most of that time has passed causes
+ * the key set to be fetched again, so keys in regular use never expire. A
+ * key ID that isn't in a key set fetched within the shorter negative time
+ * is reported as not published, and a URL whose fetch failed is not tried
+ * again until the negative time has passed.
+ * 
+ * @author jon
+ */
+public class PlatformKeyCache
+{
+  static final Logger logger = Logger.getLogger( PlatformKeyCache.class.getName() );
+  
+  static final ObjectMapper MAPPER = new ObjectMapper();
+  
+  /**
+   * Default time that fetched keys are kept.
+   */
+  public static final long DEFAULT_TTL_SECONDS = 3600L;
+  
+  /**
+   * Default time that a missing key is remembered.
+   */
+  public static final long DEFAULT_NEGATIVE_TTL_SECONDS = 60L;
+  
+  /**
+   * How long a key set fetch can take.
+   */
+  static final long FETCH_TIMEOUT_MILLIS = 5000L;
+  
+  /**
+   * The keys from one fetch of a key set, which are never changed.
+   */
+  static final class KeySet
+  {
+    final Map<String,PublicKey> keys;
+    final long fetched;
+    final long refreshat;
+    final long expires;
+
+    KeySet( Map<String,PublicKey> keys, long fetched, long lifetime )
+    {
+      this.keys = keys;
+      this.fetched = fetched;
+      this.refreshat = fetched + lifetime * 4L / 5L;
+      this.expires = fetched + lifetime;
+    }
+  }
+  
+  /**
+   * What a lookup found out about a key.
+   */
+  public enum Lookup
+  {
+    /** The key is in the client's cached key set. */
+    FOUND,
+    /** The client's key set was fetched within the negative time and
+     * doesn't have the key. */
+    NOT_PUBLISHED,
+    /** The cache can't say, because the key set isn't cached. */
+    NOT_CACHED
+  }
+  
+  // Key sets by URL
+  final ConcurrentHashMap<String,KeySet> keysets = new ConcurrentHashMap<>();
+  final Set<String> fetching = ConcurrentHashMap.newKeySet();
+  // When the last fetch of a URL failed
+  final ConcurrentHashMap<String,Long> failedat = new ConcurrentHashMap<>();
+  final HttpClient client = HttpClient.newBuilder()
+          .connectTimeout( Duration.ofMillis( FETCH_TIMEOUT_MILLIS ) )
+          .followRedirects( HttpClient.Redirect.NORMAL )
+          .build();
+  
+  volatile long ttl = TimeUnit.SECONDS.toMillis( DEFAULT_TTL_SECONDS );
+  volatile long negativettl = TimeUnit.SECONDS.toMillis( DEFAULT_NEGATIVE_TTL_SECONDS );
+  volatile ExecutorService executor;
+  
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder unknown = new LongAdder();
+  final LongAdder fetchcount = new LongAdder();
+  final LongAdder failures = new LongAdder();
+  final LongAdder skipped = new LongAdder();
+  
+  /**
+   * Set how long keys are kept.
+   * 
+   * @param ttl Milliseconds that fetched keys are kept.
+   * @param negativettl Milliseconds that a missing key or a failed fetch
+   * is remembered.
+   */
+  public void setExpiry( long ttl, long negativettl )
+  {
+    this.ttl = ttl;
+    this.negativettl = negativettl;
+  }
+  
+  /**
+   * Start the threads that fetch key sets.
+   */
+  public void start()
+  {
+    executor = Executors.newFixedThreadPool( 2, r -> 
+    {
+      Thread t = new Thread( r, "lti-key-fetch" );
+      t.setDaemon( true );
+      return t;
+    } );
+  }
+  
+  /**
+   * Stop fetching key sets.
+   */
+  public void stop()
+  {
+    if ( executor != null )
+      executor.shutdownNow();
+  }
+  
+  /**
+   * Look a key up without waiting. If the client's key set isn't cached, or
+   * is due to be refreshed, it is fetched in the background so that later
+   * launches find it.
+   * 
+   * @param registration The registration of the client that the token is for.
+   * @param kid The key ID from the token header.
+   * @return What the cache knows about the key.
+   */
+  public Lookup lookup( ClientIndex.Registration registration, String kid )
+  {
+    String url = registration.getKeySetUrl();
+    if ( url == null )
+      return Lookup.NOT_CACHED;
+    long now = System.currentTimeMillis();
+    KeySet keyset = keysets.get( url );
+    if ( keyset != null && now < keyset.expires )
+    {
+      if ( keyset.keys.containsKey( kid ) )
+      {
+        hits.increment();
+        if ( now >= keyset.refreshat )
+          fetch( url );
+        return Lookup.FOUND;
+      }
+      // A key set fetched moments ago is not fetched again for every
+      // unknown key ID that turns up.
+      if ( now < keyset.fetched + negativettl )
+      {
+        unknown.increment();
+        return Lookup.NOT_PUBLISHED;
+      }
+    }
+    
+    misses.increment();
+    fetch( url );
+    return Lookup.NOT_CACHED;
+  }
+  
+  /**
+   * Start fetching a client's key set if it isn't cached, so that it is
+   * ready when the launch arrives.
+   * 
+   * @param registration The client.
+   */
+  public void warm( ClientIndex.Registration registration )
+  {
+    String url = registration.getKeySetUrl();
+    if ( url == null )
+      return;
+    KeySet keyset = keysets.get( url );
+    if ( keyset == null || System.currentTimeMillis() >= keyset.refreshat )
+      fetch( url );
+  }
+  
+  /**
+   * Fetch a key set in the background unless it is already being fetched
+   * or the last attempt failed within the negative time.
+   * 
+   * @param url The key set URL.
+   */
+  void fetch( String url )
+  {
+    Long failed = failedat.get( url );
+    if ( failed != null && System.currentTimeMillis() < failed + negativettl )
+    {
+      skipped.increment();
+      return;
+    }
+    if ( !fetching.add( url ) )
+      return;
+    ExecutorService e = executor;
+    try
+    {
+      if ( e == null )
+        throw new RejectedExecutionException( "Not started." );
+      e.execute( () -> 
+      {
+        try
+        {
+          load( url );
+          failedat.remove( url );
+        }
+        catch ( IOException | RuntimeException ex )
+        {
+          failures.increment();
+          failedat.put( url, System.currentTimeMillis() );
+          logger.log( Level.WARNING, "Unable to fetch keys from {0}: {1}", new Object[] { url, ex.getMessage() } );
+        }
+        finally
+        {
+          fetching.remove( url );
+        }
+      } );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      fetching.remove( url );
+    }
+  }
+  
+  /**
+   * Fetch a key set and cache the RSA keys in it in place of any keys
+   * cached for the same URL. Key sets for other URLs that have expired are
+   * dropped.
+   * 
+   * @param url The key set URL.
+   * @throws IOException If the key set can't be fetched or read.
+   */
+  void load( String url ) throws IOException
+  {
+    fetchcount.increment();
+    HttpRequest request = HttpRequest.newBuilder( URI.create( url ) )
+            .timeout( Duration.ofMillis( FETCH_TIMEOUT_MILLIS ) )
+            .header( "Accept", "application/json" )
+            .GET().build();
+    HttpResponse<byte[]> response;
+    try
+    {
+      response = client.send( request, HttpResponse.BodyHandlers.ofByteArray() );
+    }
+    catch ( InterruptedException ex )
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted.", ex );
+    }
+    if ( response.statusCode() != 200 )
+      throw new IOException( "Status " + response.statusCode() );
+    
+    JsonNode keys = MAPPER.readTree( response.body() ).path( "keys" );
+    HashMap<String,PublicKey> map = new HashMap<>();
+    Base64.Decoder decoder = Base64.getUrlDecoder();
+    try
+    {
+      KeyFactory factory = KeyFactory.getInstance( "RSA" );
+      for ( JsonNode jwk : keys )
+      {
+        String kid = jwk.path( "kid" ).asText( null );
+        if ( kid == null || !"RSA".equals( jwk.path( "kty" ).asText() ) )
+          continue;
+        BigInteger n = new BigInteger( 1, decoder.decode( jwk.path( "n" ).asText() ) );
+        BigInteger e = new BigInteger( 1, decoder.decode( jwk.path( "e" ).asText() ) );
+        PublicKey key = factory.generatePublic( new RSAPublicKeySpec( n, e ) );
+        map.put( kid, key );
+      }
+    }
+    catch ( GeneralSecurityException | IllegalArgumentException ex )
+    {
+      throw new IOException( "Invalid key set.", ex );
+    }
+    long now = System.currentTimeMillis();
+    keysets.values().removeIf( keyset -> now >= keyset.expires );
+    keysets.put( url, new KeySet( Collections.unmodifiableMap( map ), now, ttl ) );
+  }
+  
+  /**
+   * Get the number of key lookups answered from the cache.
+   * 
+   * @return Count.
+   */
+  public long getHits()
+  {
+    return hits.sum();
+  }
+  
+  /**
+   * Get the number of key lookups that found the key set wasn't cached.
+   * 
+   * @return Count.
+   */
+  public long getMisses()
+  {
+    return misses.sum();
+  }
+  
+  /**
+   * Get the number of lookups for keys that the platform doesn't publish.
+   * 
+   * @return Count.
+   */
+  public long getUnknown()
+  {
+    return unknown.sum();
+  }
+  
+  /**
+   * Get the number of key sets fetched.
+   * 
+   * @return Count.
+   */
+  public long getFetches()
+  {
+    return fetchcount.sum();
+  }
+  
+  /**
+   * Get the number of key set fetches that failed.
+   * 
+   * @return Count.
+   */
+  public long getFailures()
+  {
+    return failures.sum();
+  }
+  
+  /**
+   * Get the number of fetches not made because the last fetch of the same
+   * URL failed recently.
+   * 
+   * @return Count.
+   */
+  public long getSkipped()
+  {
+    return skipped.sum();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.launch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * The header and claims of an id_token read without checking its
+ * signature. This is only used to turn away launches that can't succeed
+ * before the LTI library does the expensive work. The library still
+ * verifies the token and nothing read here is trusted.
+ * 
+ * @author jon
+ */
+public class UnverifiedIdToken
+{
+  static final ObjectMapper MAPPER = new ObjectMapper();
+  
+  /**
+   * Name of the claim that holds the deployment ID.
+   */
+  static final String DEPLOYMENT_ID_CLAIM = "https://purl.imsglobal.org/spec/lti/claim/deployment_id";
+  
+  final JsonNode header;
+  final JsonNode claims;
+  
+  UnverifiedIdToken( JsonNode header, JsonNode claims )
+  {
+    this.header = header;
+    this.claims = claims;
+  }
+  
+  /**
+   * Read a token.
+   * 
+   * @param token The token in compact form.
+   * @return The token or null if it isn't a well formed JWT.
+   */
+  public static UnverifiedIdToken parse( String token )
+  {
+    if ( token == null )
+      return null;
+    int first = token.indexOf( '.' );
+    int second = first < 0 ? -1 : token.indexOf( '.', first + 1 );
+    if ( second < 0 )
+      return null;
+    try
+    {
+      Base64.Decoder decoder = Base64.getUrlDecoder();
+      JsonNode header = MAPPER.readTree( decoder.decode( token.substring( 0, first ) ) );
+      JsonNode claims = MAPPER.readTree( decoder.decode( token.substring( first + 1, second ) ) );
+      if ( header == null || !header.isObject() || claims == null || !claims.isObject() )
+        return null;
+      return new UnverifiedIdToken( header, claims );
+    }
+    catch ( IOException | IllegalArgumentException e )
+    {
+      return null;
+    }
+  }
+  
+  /**
+   * Get the issuer.
+   * 
+   * @return The iss claim or null.
+   */
+  public String getIssuer()
+  {
+    return claims.path( "iss" ).asText( null );
+  }
+  
+  /**
+   * Get the client ID that the token is for. This is the audience, or if
+   * there are several audiences, the authorised party.
+   * 
+   * @return The client ID or null.
+   */
+  public String getClientId()
+  {
+    JsonNode aud = claims.path( "aud" );
+    if ( aud.isArray() )
+      return aud.size() == 1 ? aud.get( 0 ).asText( null ) : claims.path( "azp" ).asText( null );
+    return aud.asText( null );
+  }
+  
+  /**
+   * Get the deployment ID.
+   * 
+   * @return The deployment ID claim or null.
+   */
+  public String getDeploymentId()
+  {
+    return claims.path( DEPLOYMENT_ID_CLAIM ).asText( null );
+  }
+  
+  /**
+   * Get the ID of the key that signed the token.
+   * 
+   * @return The kid header or null.
+   */
+  public String getKeyId()
+  {
+    return header.path( "kid" ).asText( null );
+  }
+  
+  /**
+   * Get the nonce.
+   * 
+   * @return The nonce claim or null.
+   */
+  public String getNonce()
+  {
+    return claims.path( "nonce" ).asText( null );
+  }
+  
+  /**
+   * Get the expiry time.
+   * 
+   * @return The exp claim in seconds since the epoch or zero.
+   */
+  public long getExpires()
+  {
+    return claims.path( "exp" ).asLong( 0L );
+  }
+}
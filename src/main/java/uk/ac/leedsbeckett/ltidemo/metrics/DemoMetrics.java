@@ -0,0 +1,131 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.ServletRequest;
+import uk.ac.leedsbeckett.ltidemo.tool.Resource;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceEntry;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceListener;
+
+/**
+ * Holds the application's own metrics: request latency by servlet, launch
+ * latency by tool type and counts of changes to resources. Counts that the
+ * stores already keep, such as states created, are read from the stores
+ * when metrics are exported rather than counted twice.
+ * 
+ * @author jon
+ */
+public class DemoMetrics implements ResourceListener
+{
+  /**
+   * Name of the request attribute that holds the timing of a request.
+   */
+  static final String TIMING_ATTRIBUTE = DemoMetrics.class.getName() + ".timing";
+  
+  final ConcurrentHashMap<String,LatencyHistogram> requests = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<String,LatencyHistogram> launches = new ConcurrentHashMap<>();
+  final LongAdder entriesadded = new LongAdder();
+  final LongAdder entriescleared = new LongAdder();
+  
+  /**
+   * The timing of one request, kept in a request attribute while the
+   * request runs.
+   */
+  static class Timing
+  {
+    final long start = System.nanoTime();
+    volatile String tooltype;
+  }
+  
+  /**
+   * Record which tool a launch request is for, so that its duration is
+   * also recorded by tool type. Does nothing if the request isn't timed.
+   * 
+   * @param request The launch request.
+   * @param tooltype The tool type from the launch's custom claim.
+   */
+  public static void setToolType( ServletRequest request, String tooltype )
+  {
+    Object timing = request.getAttribute( TIMING_ATTRIBUTE );
+    if ( timing instanceof Timing )
+      ((Timing)timing).tooltype = tooltype == null ? "none" : tooltype;
+  }
+  
+  void record( String servlet, Timing timing )
+  {
+    long nanos = System.nanoTime() - timing.start;
+    requests.computeIfAbsent( servlet, k -> new LatencyHistogram() ).record( nanos );
+    String tooltype = timing.tooltype;
+    if ( tooltype != null )
+      launches.computeIfAbsent( tooltype, k -> new LatencyHistogram() ).record( nanos );
+  }
+  
+  /**
+   * Get request latency by servlet name.
+   * 
+   * @return The histograms.
+   */
+  public Map<String,LatencyHistogram> getRequestHistograms()
+  {
+    return requests;
+  }
+  
+  /**
+   * Get launch latency by tool type.
+   * 
+   * @return The histograms.
+   */
+  public Map<String,LatencyHistogram> getLaunchHistograms()
+  {
+    return launches;
+  }
+
+  /**
+   * Get the number of entries added to resources.
+   * 
+   * @return The count.
+   */
+  public long getEntriesAdded()
+  {
+    return entriesadded.sum();
+  }
+
+  /**
+   * Get the number of times resources were cleared.
+   * 
+   * @return The count.
+   */
+  public long getEntriesCleared()
+  {
+    return entriescleared.sum();
+  }
+
+  @Override
+  public void entryAdded( Resource resource, long sequence, ResourceEntry entry )
+  {
+    entriesadded.increment();
+  }
+
+  @Override
+  public void entriesCleared( Resource resource, long sequence, ResourceEntry entry )
+  {
+    entriescleared.increment();
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * Lets an administrator start a flight recording on a running node and dump
+ * it to a file, without restarting the JVM with recording options. The
+ * recording uses the JDK's 'profile' settings plus this application's own
+ * events and keeps a limited window of data until it is dumped or stopped.
+ * 
+ * @author jon
+ */
+public class FlightRecordings
+{
+  static final Logger logger = Logger.getLogger( FlightRecordings.class.getName() );
+  
+  /**
+   * How long a recording keeps data if not configured.
+   */
+  public static final long DEFAULT_MAX_AGE_MINUTES = 30L;
+  
+  /**
+   * The name given to recordings started here.
+   */
+  static final String RECORDING_NAME = "ltidemo";
+  
+  static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern( "yyyyMMdd-HHmmss" );
+  
+  final ReentrantLock lock = new ReentrantLock();
+  Path directory;
+  long maxageminutes = DEFAULT_MAX_AGE_MINUTES;
+  Recording recording;
+  Path lastdump;
+  
+  /**
+   * Set where dumps are written.
+   * 
+   * @param directory The directory, which is created if needed.
+   */
+  public void setDirectory( Path directory )
+  {
+    this.directory = directory;
+  }
+
+  /**
+   * Set how long recordings keep data. Older data is dropped.
+   * 
+   * @param maxageminutes Time in minutes.
+   */
+  public void setMaxAgeMinutes( long maxageminutes )
+  {
+    this.maxageminutes = maxageminutes;
+  }
+  
+  /**
+   * Start a recording unless one is already running.
+   * 
+   * @return True if started, false if one was already running.
+   * @throws IOException If the settings can't be read.
+   * @throws ParseException If the settings can't be parsed.
+   */
+  public boolean start() throws IOException, ParseException
+  {
+    lock.lock();
+    try
+    {
+      if ( recording != null )
+        return false;
+      Recording r = new Recording( Configuration.getConfiguration( "profile" ) );
+      r.setName( RECORDING_NAME );
+      r.setToDisk( true );
+      r.setMaxAge( Duration.ofMinutes( maxageminutes ) );
+      r.start();
+      recording = r;
+      logger.info( "Flight recording started." );
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Write the data held by the running recording to a new file and carry
+   * on recording.
+   * 
+   * @return The file or null if there is no recording running.
+   * @throws IOException If the file can't be written.
+   */
+  public Path dump() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      if ( recording == null )
+        return null;
+      Files.createDirectories( directory );
+      Path file = directory.resolve( RECORDING_NAME + "-" + FILE_TIME.format( LocalDateTime.now() ) + ".jfr" );
+      recording.dump( file );
+      lastdump = file;
+      logger.log( Level.INFO, "Flight recording dumped to {0}", file );
+      return file;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Dump the running recording and then stop it.
+   * 
+   * @return The file or null if there is no recording running.
+   * @throws IOException If the file can't be written, in which case the
+   * recording is stopped anyway.
+   */
+  public Path stop() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      if ( recording == null )
+        return null;
+      try
+      {
+        return dump();
+      }
+      finally
+      {
+        close();
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Stop the running recording, if any, without dumping it.
+   */
+  public void close()
+  {
+    lock.lock();
+    try
+    {
+      if ( recording == null )
+        return;
+      recording.close();
+      recording = null;
+      logger.info( "Flight recording stopped." );
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Is a recording running?
+   * 
+   * @return True if it is.
+   */
+  public boolean isRecording()
+  {
+    lock.lock();
+    try
+    {
+      return recording != null;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * When the running recording started.
+   * 
+   * @return The time or null if there is no recording running.
+   */
+  public Instant getStartTime()
+  {
+    lock.lock();
+    try
+    {
+      return recording == null ? null : recording.getStartTime();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * The most recent file written.
+   * 
+   * @return The file or null if nothing has been dumped.
+   */
+  public Path getLastDump()
+  {
+    lock.lock();
+    try
+    {
+      return lastdump;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * How long recordings keep data.
+   * 
+   * @return Time in minutes.
+   */
+  public long getMaxAgeMinutes()
+  {
+    return maxageminutes;
+  }
+}
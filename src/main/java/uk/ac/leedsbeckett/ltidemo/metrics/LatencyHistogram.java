@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with fixed buckets, in the form Prometheus
+ * expects. Recording is a binary search and two LongAdder increments, so
+ * threads recording at the same time don't contend for one counter.
+ * 
+ * The bucket bounds run from 100 microseconds to 7 seconds in steps of
+ * 1, 1.5, 2, 3, 5 and 7 in each decade and then 10 and 30 seconds.
+ * 
+ * @author jon
+ */
+public class LatencyHistogram
+{
+  static final long[] BOUNDS_NANOS = bounds();
+  
+  static long[] bounds()
+  {
+    int[] steps = { 10, 15, 20, 30, 50, 70 };
+    long[] bounds = new long[ 5 * steps.length + 2 ];
+    int n = 0;
+    // 100us is 10 x 10^4 nanoseconds.
+    long scale = 10000L;
+    for ( int decade=0; decade<5; decade++ )
+    {
+      for ( int step : steps )
+        bounds[n++] = step * scale;
+      scale *= 10L;
+    }
+    // The last bounds are 10 and 30 seconds.
+    bounds[n++] = 10000000000L;
+    bounds[n++] = 30000000000L;
+    return bounds;
+  }
+  
+  final LongAdder[] counts = new LongAdder[BOUNDS_NANOS.length + 1];
+  final LongAdder sumnanos = new LongAdder();
+
+  /**
+   * Create an empty histogram.
+   */
+  public LatencyHistogram()
+  {
+    for ( int i=0; i<counts.length; i++ )
+      counts[i] = new LongAdder();
+  }
+  
+  /**
+   * Record a duration.
+   * 
+   * @param nanos The duration in nanoseconds.
+   */
+  public void record( long nanos )
+  {
+    int i = Arrays.binarySearch( BOUNDS_NANOS, nanos );
+    if ( i < 0 )
+      i = -(i + 1);
+    counts[i].increment();
+    sumnanos.add( nanos );
+  }
+  
+  /**
+   * Get the upper bounds of the buckets. The last bucket, which has no
+   * bound, is not included.
+   * 
+   * @return The bounds in nanoseconds. Must not be changed.
+   */
+  public static long[] getBoundsNanos()
+  {
+    return BOUNDS_NANOS;
+  }
+  
+  /**
+   * Get the number of durations in each bucket, not cumulative. The last
+   * element counts durations above every bound.
+   * 
+   * @return The counts.
+   */
+  public long[] getCounts()
+  {
+    long[] c = new long[counts.length];
+    for ( int i=0; i<c.length; i++ )
+      c[i] = counts[i].sum();
+    return c;
+  }
+  
+  /**
+   * Get the total of all durations recorded.
+   * 
+   * @return The total in nanoseconds.
+   */
+  public long getSumNanos()
+  {
+    return sumnanos.sum();
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering the processing of a validated LTI launch,
+ * from reading the claims to sending the redirect to the tool page.
+ * 
+ * @author jon
+ */
+@Name( LaunchEvent.NAME )
+@Label( "LTI Launch" )
+@Category( { "LTI Demo", "Launch" } )
+@Description( "Processing of a validated LTI launch." )
+@StackTrace( false )
+public class LaunchEvent extends Event
+{
+  public static final String NAME = "uk.ac.leedsbeckett.ltidemo.Launch";
+  
+  @Label( "Platform" )
+  @Description( "URL of the platform that sent the launch." )
+  public String platform;
+  
+  @Label( "Tool Type" )
+  @Description( "The tool type from the custom claim." )
+  public String toolType;
+  
+  @Label( "State ID" )
+  @Description( "ID of the LTI state created by the login request." )
+  public String stateId;
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The timeline of one user's launch, from the OIDC login request to the
+ * tool page, keyed by the ID of the LTI state that the login created. Each
+ * request that takes part records the time it reaches a point of interest
+ * and the spans between those points show where the time went. The gaps
+ * between requests are the time the browser and platform took.
+ * 
+ * @author jon
+ */
+public class LaunchTrace
+{
+  /**
+   * The login request arrived.
+   */
+  public static final int LOGIN_RECEIVED = 0;
+  
+  /**
+   * The login request was processed and the browser sent to the platform.
+   */
+  public static final int LOGIN_SENT = 1;
+  
+  /**
+   * The launch request arrived.
+   */
+  public static final int LAUNCH_RECEIVED = 2;
+  
+  /**
+   * The library had validated the id_token and passed the claims on.
+   */
+  public static final int TOKEN_VALIDATED = 3;
+  
+  /**
+   * Launch state was prepared and the redirect to the tool page sent.
+   */
+  public static final int LAUNCH_PROCESSED = 4;
+  
+  /**
+   * The tool page request arrived.
+   */
+  public static final int RENDER_RECEIVED = 5;
+  
+  /**
+   * The tool page was rendered.
+   */
+  public static final int RENDER_SENT = 6;
+  
+  static final int MARKS = 7;
+  
+  final String stateid;
+  final long startmillis = System.currentTimeMillis();
+  final AtomicLongArray marks = new AtomicLongArray( MARKS );
+  final AtomicBoolean completed = new AtomicBoolean();
+  volatile String platform;
+  volatile String tooltype;
+  
+  /**
+   * Create a trace for a state.
+   * 
+   * @param stateid The ID of the LTI state.
+   */
+  public LaunchTrace( String stateid )
+  {
+    this.stateid = stateid;
+  }
+  
+  /**
+   * Record the time a point was reached.
+   * 
+   * @param mark The point, e.g. LOGIN_RECEIVED.
+   * @param nanos The time from System.nanoTime().
+   */
+  public void mark( int mark, long nanos )
+  {
+    marks.set( mark, nanos );
+  }
+  
+  /**
+   * Has a point been reached?
+   * 
+   * @param mark The point.
+   * @return True if its time has been recorded.
+   */
+  public boolean isMarked( int mark )
+  {
+    return marks.get( mark ) != 0L;
+  }
+  
+  /**
+   * Record which platform launched which tool.
+   * 
+   * @param platform URL of the platform.
+   * @param tooltype The tool type.
+   */
+  public void setLaunch( String platform, String tooltype )
+  {
+    this.platform = platform;
+    this.tooltype = tooltype;
+  }
+  
+  /**
+   * Mark the trace as complete. Only the first call succeeds so that a
+   * page which is reloaded doesn't record the trace again.
+   * 
+   * @return True if this call completed the trace.
+   */
+  public boolean complete()
+  {
+    return !completed.get() && completed.compareAndSet( false, true );
+  }
+  
+  /**
+   * Has the trace been completed?
+   * 
+   * @return True if it has.
+   */
+  public boolean isCompleted()
+  {
+    return completed.get();
+  }
+  
+  /**
+   * Time between two points.
+   * 
+   * @param from The earlier point.
+   * @param to The later point.
+   * @return Time in milliseconds or a negative number if either point
+   * wasn't reached.
+   */
+  public double getMillis( int from, int to )
+  {
+    long a = marks.get( from );
+    long b = marks.get( to );
+    if ( a == 0L || b == 0L )
+      return -1.0;
+    return ( b - a ) / 1e6;
+  }
+  
+  /**
+   * Time from the login request arriving to the last point reached.
+   * 
+   * @return Time in milliseconds.
+   */
+  public double getTotalMillis()
+  {
+    for ( int i=MARKS-1; i>LOGIN_RECEIVED; i-- )
+      if ( marks.get( i ) != 0L )
+        return getMillis( LOGIN_RECEIVED, i );
+    return 0.0;
+  }
+  
+  String format( int from, int to )
+  {
+    double millis = getMillis( from, to );
+    return millis < 0.0 ? "" : String.format( "%.1f", millis );
+  }
+  
+  /**
+   * Simple getter.
+   * 
+   * @return The ID of the LTI state.
+   */
+  public String getStateId()
+  {
+    return stateid;
+  }
+  
+  /**
+   * When the login request arrived.
+   * 
+   * @return The time, formatted.
+   */
+  public String getStarted()
+  {
+    return Instant.ofEpochMilli( startmillis ).toString();
+  }
+  
+  /**
+   * Simple getter.
+   * 
+   * @return URL of the platform or null if the launch wasn't reached.
+   */
+  public String getPlatform()
+  {
+    return platform;
+  }
+  
+  /**
+   * Simple getter.
+   * 
+   * @return The tool type or null if the launch wasn't reached.
+   */
+  public String getToolType()
+  {
+    return tooltype;
+  }
+  
+  /**
+   * How long the login request took.
+   * 
+   * @return Milliseconds, formatted, or empty.
+   */
+  public String getLoginMillis()
+  {
+    return format( LOGIN_RECEIVED, LOGIN_SENT );
+  }
+  
+  /**
+   * How long the browser and platform took between the login and launch
+   * requests.
+   * 
+   * @return Milliseconds, formatted, or empty.
+   */
+  public String getPlatformMillis()
+  {
+    return format( LOGIN_SENT, LAUNCH_RECEIVED );
+  }
+  
+  /**
+   * How long the library took to find the state and validate the id_token.
+   * 
+   * @return Milliseconds, formatted, or empty.
+   */
+  public String getValidationMillis()
+  {
+    return format( LAUNCH_RECEIVED, TOKEN_VALIDATED );
+  }
+  
+  /**
+   * How long it took to prepare the launch state and send the redirect.
+   * 
+   * @return Milliseconds, formatted, or empty.
+   */
+  public String getLaunchMillis()
+  {
+    return format( TOKEN_VALIDATED, LAUNCH_PROCESSED );
+  }
+  
+  /**
+   * How long it took for the tool page request to arrive after the
+   * redirect was sent.
+   * 
+   * @return Milliseconds, formatted, or empty.
+   */
+  public String getRedirectMillis()
+  {
+    return format( LAUNCH_PROCESSED, RENDER_RECEIVED );
+  }
+  
+  /**
+   * How long the tool page took.
+   * 
+   * @return Milliseconds, formatted, or empty.
+   */
+  public String getRenderMillis()
+  {
+    return format( RENDER_RECEIVED, RENDER_SENT );
+  }
+  
+  /**
+   * Time from the login request arriving to the last point reached.
+   * 
+   * @return Milliseconds, formatted.
+   */
+  public String getTotal()
+  {
+    return String.format( "%.1f", getTotalMillis() );
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent completed launch traces in a fixed size ring so
+ * that slow launches can be found from the admin page. When the ring is
+ * full the oldest trace is overwritten.
+ * 
+ * The login request doesn't know the ID of the state that the LTI library
+ * creates for it, so the login servlet starts a pending trace on its thread
+ * and the state store attaches it to the state it creates on that thread.
+ * 
+ * @author jon
+ */
+public class LaunchTracer
+{
+  /**
+   * The number of traces kept if not configured.
+   */
+  public static final int DEFAULT_CAPACITY = 1000;
+  
+  /**
+   * The login being processed on this thread, if it is being traced.
+   */
+  static final ThreadLocal<Login> LOGIN = new ThreadLocal<>();
+  
+  static class Login
+  {
+    final long received;
+    LaunchTrace trace;
+    
+    Login( long received )
+    {
+      this.received = received;
+    }
+  }
+  
+  volatile AtomicReferenceArray<LaunchTrace> ring = new AtomicReferenceArray<>( DEFAULT_CAPACITY );
+  final AtomicLong recorded = new AtomicLong();
+  
+  /**
+   * Set the number of traces kept. Zero turns tracing off. Traces already
+   * kept are dropped.
+   * 
+   * @param capacity The number of traces.
+   */
+  public void setCapacity( int capacity )
+  {
+    ring = capacity > 0 ? new AtomicReferenceArray<>( capacity ) : null;
+  }
+  
+  /**
+   * Is tracing on?
+   * 
+   * @return True if it is.
+   */
+  public boolean isEnabled()
+  {
+    return ring != null;
+  }
+  
+  /**
+   * Called by the login servlet on the thread that will process the login.
+   * 
+   * @param received When the login request arrived, from System.nanoTime().
+   */
+  public void startLogin( long received )
+  {
+    if ( isEnabled() )
+      LOGIN.set( new Login( received ) );
+  }
+  
+  /**
+   * Called by the state store when it creates a state. If a login is being
+   * traced on this thread the trace is started for the state.
+   * 
+   * @param stateid The ID of the new state.
+   * @return The trace or null if the login isn't being traced.
+   */
+  public static LaunchTrace stateCreated( String stateid )
+  {
+    Login login = LOGIN.get();
+    if ( login == null || login.trace != null )
+      return null;
+    login.trace = new LaunchTrace( stateid );
+    login.trace.mark( LaunchTrace.LOGIN_RECEIVED, login.received );
+    return login.trace;
+  }
+  
+  /**
+   * Called by the login servlet when it has finished with the login.
+   */
+  public void endLogin()
+  {
+    Login login = LOGIN.get();
+    if ( login == null )
+      return;
+    LOGIN.remove();
+    if ( login.trace != null )
+      login.trace.mark( LaunchTrace.LOGIN_SENT, System.nanoTime() );
+  }
+  
+  /**
+   * Put a trace in the ring unless it has already been completed.
+   * 
+   * @param trace The trace.
+   */
+  public void complete( LaunchTrace trace )
+  {
+    AtomicReferenceArray<LaunchTrace> r = ring;
+    if ( r == null || !trace.complete() )
+      return;
+    r.set( (int)( recorded.getAndIncrement() % r.length() ), trace );
+  }
+  
+  /**
+   * Find completed traces, slowest first.
+   * 
+   * @param stateid Only find the trace of this state, or null for any.
+   * @param minmillis Only find traces which took at least this long.
+   * @param limit The maximum number of traces to return.
+   * @return The traces.
+   */
+  public List<LaunchTrace> find( String stateid, double minmillis, int limit )
+  {
+    ArrayList<LaunchTrace> list = new ArrayList<>();
+    AtomicReferenceArray<LaunchTrace> r = ring;
+    if ( r == null )
+      return list;
+    for ( int i=0; i<r.length(); i++ )
+    {
+      LaunchTrace t = r.get( i );
+      if ( t == null )
+        continue;
+      if ( stateid != null && !stateid.equals( t.getStateId() ) )
+        continue;
+      if ( t.getTotalMillis() < minmillis )
+        continue;
+      list.add( t );
+    }
+    list.sort( Comparator.comparingDouble( LaunchTrace::getTotalMillis ).reversed() );
+    return list.size() > limit ? new ArrayList<>( list.subList( 0, limit ) ) : list;
+  }
+  
+  /**
+   * Get the number of traces completed since start up, including those no
+   * longer in the ring.
+   * 
+   * @return Count.
+   */
+  public long getRecordedCount()
+  {
+    return recorded.get();
+  }
+  
+  /**
+   * Get the number of traces the ring holds.
+   * 
+   * @return Capacity or zero if tracing is off.
+   */
+  public int getCapacity()
+  {
+    AtomicReferenceArray<LaunchTrace> r = ring;
+    return r == null ? 0 : r.length();
+  }
+}
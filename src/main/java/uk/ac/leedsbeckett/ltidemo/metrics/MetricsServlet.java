@@ -0,0 +1,186 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+import uk.ac.leedsbeckett.ltidemo.launch.NonceReplayGuard;
+import uk.ac.leedsbeckett.ltidemo.persist.ResourcePersistence;
+import uk.ac.leedsbeckett.ltidemo.render.FragmentCache;
+import uk.ac.leedsbeckett.ltidemo.state.DemoLtiStateStore;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceFeed;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
+
+/**
+ * Exports metrics in the Prometheus text format. It is under /admin so the
+ * same security constraint as the admin page applies; give the scraper a
+ * user in the manager-gui role.
+ * 
+ * @author jon
+ */
+@WebServlet( name = "MetricsServlet", urlPatterns =
+{
+  "/admin/metrics"
+} )
+public class MetricsServlet extends HttpServlet
+{
+  /**
+   * Write every metric.
+   *
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void doGet( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+    DemoMetrics metrics = appcontext.getMetrics();
+    ResourceStore store = appcontext.getStore();
+    DemoLtiStateStore statestore = appcontext.getStateStore();
+    FragmentCache fragmentcache = appcontext.getFragmentCache();
+    ResourceFeed feed = appcontext.getResourceFeed();
+    NonceReplayGuard nonceguard = appcontext.getNonceGuard();
+    ResourcePersistence persistence = appcontext.getPersistence();
+    
+    response.setContentType( "text/plain;version=0.0.4;charset=UTF-8" );
+    response.setHeader( "Cache-Control", "no-store" );
+    PrintWriter out = response.getWriter();
+    
+    histograms( out, "ltidemo_request_duration_seconds", "Time taken to process requests.", "servlet", metrics.getRequestHistograms() );
+    histograms( out, "ltidemo_launch_duration_seconds", "Time taken to process launch requests.", "tool_type", metrics.getLaunchHistograms() );
+    
+    counter( out, "ltidemo_states_created_total",      "Launch states created.",              statestore.getCreatedCount() );
+    counter( out, "ltidemo_states_expired_total",      "Launch states expired.",              statestore.getExpiredCount() );
+    counter( out, "ltidemo_resources_created_total",   "Resources created.",                  store.getCreations() );
+    counter( out, "ltidemo_resources_loaded_total",    "Resources loaded from disk.",         store.getLoads() );
+    counter( out, "ltidemo_resources_evicted_total",   "Resources evicted from memory.",      store.getEvictions() );
+    counter( out, "ltidemo_entries_added_total",       "Entries added to resources.",         metrics.getEntriesAdded() );
+    counter( out, "ltidemo_entries_cleared_total",     "Times resources were cleared.",       metrics.getEntriesCleared() );
+    counter( out, "ltidemo_fragment_cache_hits_total", "Entry lists found in the cache.",     fragmentcache.getHits() );
+    counter( out, "ltidemo_fragment_cache_misses_total", "Entry lists not found in the cache.", fragmentcache.getMisses() );
+    if ( persistence != null )
+      counter( out, "ltidemo_journal_dropped_total", "Changes not written to the journal.", persistence.getJournal().getDropped() );
+    
+    gauge( out, "ltidemo_state_store_states",       "Launch states held.",                      statestore.getLiveCount() );
+    gauge( out, "ltidemo_state_store_replicas",     "Launch states held for other nodes.",      statestore.getReplicaCount() );
+    gauge( out, "ltidemo_resource_store_resources", "Resources held in memory.",                store.size() );
+    gauge( out, "ltidemo_resource_store_bytes",     "Estimated size of resources in memory.",   store.getEstimatedBytes() );
+    gauge( out, "ltidemo_fragment_cache_bytes",     "Size of the rendered fragment cache.",     fragmentcache.getBytes() );
+    gauge( out, "ltidemo_event_subscribers",        "Browsers receiving resource changes.",     feed.getSubscriberCount() );
+    
+    if ( nonceguard != null )
+    {
+      counter( out, "ltidemo_nonce_checks_total",          "Launch nonces checked for replay.",              nonceguard.getChecks() );
+      counter( out, "ltidemo_nonce_replays_total",         "Launches turned away as replays.",               nonceguard.getReplays() );
+      counter( out, "ltidemo_nonce_false_positives_total", "Bloom filter matches that were not replays.",     nonceguard.getFalsePositives() );
+      counter( out, "ltidemo_nonce_unrecorded_total",      "Launches whose nonces could not be remembered.", nonceguard.getUnrecorded() );
+      gauge( out, "ltidemo_nonce_false_positive_ratio",    "Proportion of new nonces that a filter matched.", nonceguard.getFalsePositiveRate() );
+      gauge( out, "ltidemo_nonce_bytes",                   "Memory used by the nonce filters and tables.",    nonceguard.getBytes() );
+    }
+    out.flush();
+  }
+  
+  static void header( PrintWriter out, String name, String help, String type )
+  {
+    out.print( "# HELP " );
+    out.print( name );
+    out.print( ' ' );
+    out.println( help );
+    out.print( "# TYPE " );
+    out.print( name );
+    out.print( ' ' );
+    out.println( type );
+  }
+  
+  static void counter( PrintWriter out, String name, String help, long value )
+  {
+    header( out, name, help, "counter" );
+    out.print( name );
+    out.print( ' ' );
+    out.println( value );
+  }
+  
+  static void gauge( PrintWriter out, String name, String help, long value )
+  {
+    header( out, name, help, "gauge" );
+    out.print( name );
+    out.print( ' ' );
+    out.println( value );
+  }
+  
+  static void gauge( PrintWriter out, String name, String help, double value )
+  {
+    header( out, name, help, "gauge" );
+    out.print( name );
+    out.print( ' ' );
+    out.println( value );
+  }
+  
+  static String seconds( long nanos )
+  {
+    return Double.toString( nanos / 1e9 );
+  }
+  
+  static void histograms( PrintWriter out, String name, String help, String label, Map<String,LatencyHistogram> histograms )
+  {
+    header( out, name, help, "histogram" );
+    long[] bounds = LatencyHistogram.getBoundsNanos();
+    for ( Map.Entry<String,LatencyHistogram> e : new TreeMap<>( histograms ).entrySet() )
+    {
+      String labels = label + "=\"" + escape( e.getKey() ) + "\"";
+      long[] counts = e.getValue().getCounts();
+      long cumulative = 0L;
+      for ( int i=0; i<counts.length; i++ )
+      {
+        cumulative += counts[i];
+        out.print( name );
+        out.print( "_bucket{" );
+        out.print( labels );
+        out.print( ",le=\"" );
+        out.print( i < bounds.length ? seconds( bounds[i] ) : "+Inf" );
+        out.print( "\"} " );
+        out.println( cumulative );
+      }
+      out.print( name );
+      out.print( "_sum{" );
+      out.print( labels );
+      out.print( "} " );
+      out.println( seconds( e.getValue().getSumNanos() ) );
+      out.print( name );
+      out.print( "_count{" );
+      out.print( labels );
+      out.print( "} " );
+      out.println( cumulative );
+    }
+  }
+  
+  static String escape( String value )
+  {
+    return value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" );
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import java.io.IOException;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+
+/**
+ * Times requests and records the durations by servlet name. A request that
+ * goes asynchronous, because it was handed to another thread or its page
+ * is written without blocking, is timed until it completes.
+ * 
+ * @author jon
+ */
+public class RequestTimingFilter implements Filter
+{
+  DemoMetrics metrics;
+  
+  /**
+   * Find the metrics registry.
+   * 
+   * @param config The filter configuration.
+   */
+  @Override
+  public void init( FilterConfig config )
+  {
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( config.getServletContext() );
+    metrics = appcontext.getMetrics();
+  }
+
+  /**
+   * Time the rest of the chain.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @param chain The rest of the chain.
+   * @throws IOException If the chain fails.
+   * @throws ServletException If the chain fails.
+   */
+  @Override
+  public void doFilter( ServletRequest request, ServletResponse response, FilterChain chain )
+          throws IOException, ServletException
+  {
+    String servlet = ((HttpServletRequest)request).getHttpServletMapping().getServletName();
+    DemoMetrics.Timing timing = new DemoMetrics.Timing();
+    request.setAttribute( DemoMetrics.TIMING_ATTRIBUTE, timing );
+    try
+    {
+      chain.doFilter( request, response );
+    }
+    finally
+    {
+      if ( request.isAsyncStarted() )
+        request.getAsyncContext().addListener( new Completion( servlet, timing ) );
+      else
+        metrics.record( servlet, timing );
+    }
+  }
+  
+  /**
+   * Records the duration of an asynchronous request when it ends.
+   */
+  class Completion implements AsyncListener
+  {
+    final String servlet;
+    final DemoMetrics.Timing timing;
+
+    Completion( String servlet, DemoMetrics.Timing timing )
+    {
+      this.servlet = servlet;
+      this.timing = timing;
+    }
+
+    @Override
+    public void onComplete( AsyncEvent event )
+    {
+      metrics.record( servlet, timing );
+    }
+
+    @Override
+    public void onTimeout( AsyncEvent event )
+    {
+      // onComplete follows.
+    }
+
+    @Override
+    public void onError( AsyncEvent event )
+    {
+      // onComplete follows.
+    }
+
+    @Override
+    public void onStartAsync( AsyncEvent event )
+    {
+      event.getAsyncContext().addListener( this );
+    }
+  }
+  
+  @Override
+  public void destroy()
+  {
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering an entry being added to a resource or the
+ * entries of a resource being cleared, including telling the listeners.
+ * 
+ * @author jon
+ */
+@Name( ResourceChangeEvent.NAME )
+@Label( "Resource Change" )
+@Category( { "LTI Demo", "Resource" } )
+@Description( "An entry added to a resource or its entries cleared." )
+@StackTrace( false )
+public class ResourceChangeEvent extends Event
+{
+  public static final String NAME = "uk.ac.leedsbeckett.ltidemo.ResourceChange";
+  
+  @Label( "Platform" )
+  public String platform;
+  
+  @Label( "Resource ID" )
+  public String resourceId;
+  
+  @Label( "Cleared" )
+  @Description( "True if the entries were cleared, false if one was added." )
+  public boolean cleared;
+  
+  @Label( "Sequence" )
+  @Description( "Sequence number of the new entry." )
+  public long sequence;
+}
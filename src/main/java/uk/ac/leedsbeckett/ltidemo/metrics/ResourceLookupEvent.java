@@ -0,0 +1,74 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering a lookup in the resource store.
+ * 
+ * @author jon
+ */
+@Name( ResourceLookupEvent.NAME )
+@Label( "Resource Lookup" )
+@Category( { "LTI Demo", "Resource" } )
+@Description( "A lookup in the resource store." )
+@StackTrace( false )
+public class ResourceLookupEvent extends Event
+{
+  public static final String NAME = "uk.ac.leedsbeckett.ltidemo.ResourceLookup";
+  
+  /**
+   * Outcome when the resource was already in memory.
+   */
+  public static final String HIT = "hit";
+  
+  /**
+   * Outcome when an evicted resource was loaded from disk.
+   */
+  public static final String LOADED = "loaded";
+  
+  /**
+   * Outcome when a new resource was created.
+   */
+  public static final String CREATED = "created";
+  
+  /**
+   * Outcome when the resource didn't exist and creation wasn't asked for.
+   */
+  public static final String MISSING = "missing";
+  
+  @Label( "Platform" )
+  public String platform;
+  
+  @Label( "Resource ID" )
+  public String resourceId;
+  
+  @Label( "Create" )
+  @Description( "True if the caller asked for the resource to be created if missing." )
+  public boolean create;
+  
+  @Label( "Outcome" )
+  @Description( "'hit', 'loaded', 'created' or 'missing'." )
+  public String outcome;
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering a tool page finding the launch state that
+ * the request refers to, in the state store, in a signed token or passed on
+ * by the launch.
+ * 
+ * @author jon
+ */
+@Name( StateLookupEvent.NAME )
+@Label( "LTI State Lookup" )
+@Category( { "LTI Demo", "State" } )
+@Description( "A tool page finding the launch state of a request." )
+@StackTrace( false )
+public class StateLookupEvent extends Event
+{
+  public static final String NAME = "uk.ac.leedsbeckett.ltidemo.StateLookup";
+  
+  @Label( "State ID" )
+  @Description( "The state ID in the request, null if a token was used." )
+  public String stateId;
+  
+  @Label( "Kind" )
+  @Description( "Which state was wanted: 'state', 'platform' or 'course'." )
+  public String kind;
+  
+  @Label( "Source" )
+  @Description( "Where the state came from: 'store', 'token' or 'launch'." )
+  public String source;
+  
+  @Label( "Found" )
+  public boolean found;
+}
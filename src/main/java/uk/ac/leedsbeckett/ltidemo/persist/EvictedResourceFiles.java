@@ -0,0 +1,234 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.persist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import uk.ac.leedsbeckett.ltidemo.tool.Resource;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceBacking;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceEntry;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceKey;
+
+/**
+ * Keeps resources that have been evicted from memory in a directory with a
+ * file for each resource. The file name is a SHA-256 hash of the key and
+ * files are spread over 256 sub-directories. Each file holds the key, so
+ * that it can be checked, followed by the resource's entries in the same
+ * compact form as a snapshot except that strings are written in place and
+ * not in a dictionary.
+ * 
+ * @author jon
+ */
+public class EvictedResourceFiles implements ResourceBacking
+{
+  static final int MAGIC = 0x4C425552;
+  
+  final Path directory;
+
+  /**
+   * Construct.
+   * 
+   * @param directory The directory to keep files in.
+   */
+  public EvictedResourceFiles( Path directory )
+  {
+    this.directory = directory;
+  }
+
+  @Override
+  public boolean load( ResourceKey key, Resource resource ) throws IOException
+  {
+    byte[] data;
+    try
+    {
+      data = Files.readAllBytes( path( key ) );
+    }
+    catch ( NoSuchFileException e )
+    {
+      return false;
+    }
+    
+    ByteBuffer buffer = ByteBuffer.wrap( data );
+    if ( data.length < 8 || buffer.getInt() != MAGIC )
+      throw new IOException( "Evicted resource file for " + key + " is not in a recognised format." );
+    ByteBuffer body = buffer.slice();
+    body.limit( data.length - 8 );
+    CRC32 crc = new CRC32();
+    crc.update( body.duplicate() );
+    if ( (int)crc.getValue() != buffer.getInt( data.length - 4 ) )
+      throw new IOException( "Evicted resource file for " + key + " failed its checksum." );
+    
+    try
+    {
+      String platform = getString( body );
+      String resourceid = getString( body );
+      if ( !key.getPlatform().equals( platform ) || !key.getResource().equals( resourceid ) )
+        throw new IOException( "Evicted resource file for " + key + " belongs to a different resource." );
+      long floor = VarInts.getVarLong( body );
+      int size = (int)VarInts.getVarLong( body );
+      long sequence = 0L;
+      long timestamp = 0L;
+      for ( int i=0; i<size; i++ )
+      {
+        sequence += VarInts.getVarLong( body );
+        timestamp += VarInts.unZigZag( VarInts.getVarLong( body ) );
+        String person = getString( body );
+        String message = getString( body );
+        resource.restoreEntry( sequence, new ResourceEntry( timestamp, person, message ), sequence == floor );
+      }
+    }
+    catch ( RuntimeException e )
+    {
+      throw new IOException( "Evicted resource file for " + key + " could not be decoded.", e );
+    }
+    return true;
+  }
+
+  @Override
+  public void save( ResourceKey key, Resource resource ) throws IOException
+  {
+    ArrayList<Long> sequences = new ArrayList<>( Resource.CAPACITY );
+    ArrayList<ResourceEntry> entries = new ArrayList<>( Resource.CAPACITY );
+    long floor = resource.getClearedSequence();
+    resource.visitEntries( ( s, e ) -> { sequences.add( s ); entries.add( e ); } );
+    
+    byte[] platform = bytes( key.getPlatform() );
+    byte[] resourceid = bytes( key.getResource() );
+    ArrayList<byte[]> strings = new ArrayList<>();
+    int needed = 4 + 4 + platform.length + resourceid.length + 4 * 10 + 20;
+    for ( ResourceEntry e : entries )
+    {
+      byte[] person = bytes( e.getPerson() );
+      byte[] message = bytes( e.getMessage() );
+      strings.add( person );
+      strings.add( message );
+      needed += 40 + length( person ) + length( message );
+    }
+    
+    ByteBuffer buffer = ByteBuffer.allocate( needed );
+    buffer.putInt( MAGIC );
+    putString( buffer, platform );
+    putString( buffer, resourceid );
+    VarInts.putVarLong( buffer, floor );
+    VarInts.putVarLong( buffer, entries.size() );
+    long sequence = 0L;
+    long timestamp = 0L;
+    for ( int i=0; i<entries.size(); i++ )
+    {
+      VarInts.putVarLong( buffer, sequences.get( i ) - sequence );
+      VarInts.putVarLong( buffer, VarInts.zigZag( entries.get( i ).getTimestamp() - timestamp ) );
+      putString( buffer, strings.get( 2*i ) );
+      putString( buffer, strings.get( 2*i + 1 ) );
+      sequence = sequences.get( i );
+      timestamp = entries.get( i ).getTimestamp();
+    }
+    ByteBuffer body = buffer.duplicate();
+    body.flip();
+    body.position( 4 );
+    CRC32 crc = new CRC32();
+    crc.update( body );
+    buffer.putInt( (int)crc.getValue() );
+    buffer.flip();
+    
+    Path file = path( key );
+    Files.createDirectories( file.getParent() );
+    Path temp = file.resolveSibling( file.getFileName().toString() + ".tmp" );
+    try ( FileChannel channel = FileChannel.open( temp, 
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) )
+    {
+      while ( buffer.hasRemaining() )
+        channel.write( buffer );
+      channel.force( false );
+    }
+    Files.move( temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+  }
+  
+  /**
+   * Work out the file for a resource.
+   * 
+   * @param key The key of the resource.
+   * @return The path of the file.
+   */
+  Path path( ResourceKey key )
+  {
+    MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance( "SHA-256" );
+    }
+    catch ( NoSuchAlgorithmException ex )
+    {
+      throw new IllegalStateException( ex );
+    }
+    digest.update( key.getPlatform().getBytes( StandardCharsets.UTF_8 ) );
+    digest.update( (byte)0 );
+    digest.update( key.getResource().getBytes( StandardCharsets.UTF_8 ) );
+    StringBuilder name = new StringBuilder( 72 );
+    for ( byte b : digest.digest() )
+    {
+      name.append( Character.forDigit( (b >> 4) & 0xF, 16 ) );
+      name.append( Character.forDigit( b & 0xF, 16 ) );
+    }
+    return directory.resolve( name.substring( 0, 2 ) ).resolve( name.append( ".res" ).toString() );
+  }
+  
+  static byte[] bytes( String s )
+  {
+    return s == null ? null : s.getBytes( StandardCharsets.UTF_8 );
+  }
+  
+  static int length( byte[] b )
+  {
+    return b == null ? 0 : b.length;
+  }
+  
+  /**
+   * Strings are written as one more than their length followed by the
+   * bytes, so zero can stand for null.
+   */
+  static void putString( ByteBuffer buffer, byte[] s )
+  {
+    if ( s == null )
+    {
+      VarInts.putVarLong( buffer, 0L );
+      return;
+    }
+    VarInts.putVarLong( buffer, s.length + 1L );
+    buffer.put( s );
+  }
+  
+  static String getString( ByteBuffer buffer )
+  {
+    int length = (int)VarInts.getVarLong( buffer );
+    if ( length == 0 )
+      return null;
+    byte[] bytes = new byte[length - 1];
+    buffer.get( bytes );
+    return new String( bytes, StandardCharsets.UTF_8 );
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.persist;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceEntry;
+
+/**
+ * A single change to a resource as recorded in the journal. On disk each
+ * record is a four byte length, a four byte CRC32 of the body and then the
+ * body itself. A record that is cut short or fails its CRC check marks the
+ * end of the usable part of a segment, which is what a crash part way
+ * through a write would leave behind.
+ * 
+ * @author jon
+ */
+public class JournalRecord
+{
+  /**
+   * Record type for an added entry.
+   */
+  public static final byte ADD   = 1;
+  
+  /**
+   * Record type for the clearing of entries.
+   */
+  public static final byte CLEAR = 2;
+  
+  static final int HEADER_LENGTH = 8;
+  
+  final byte type;
+  final String platform;
+  final String resource;
+  final long sequence;
+  final long timestamp;
+  final String person;
+  final String message;
+
+  /**
+   * Construct a record.
+   * 
+   * @param type ADD or CLEAR.
+   * @param platform ID of the platform.
+   * @param resource ID of the resource.
+   * @param sequence Sequence number of the entry within the resource.
+   * @param entry The entry.
+   */
+  public JournalRecord( byte type, String platform, String resource, long sequence, ResourceEntry entry )
+  {
+    this( type, platform, resource, sequence, entry.getTimestamp(), entry.getPerson(), entry.getMessage() );
+  }
+
+  JournalRecord( byte type, String platform, String resource, long sequence, long timestamp, String person, String message )
+  {
+    this.type = type;
+    this.platform = platform;
+    this.resource = resource;
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.person = person;
+    this.message = message;
+  }
+
+  public byte getType()
+  {
+    return type;
+  }
+
+  public String getPlatform()
+  {
+    return platform;
+  }
+
+  public String getResource()
+  {
+    return resource;
+  }
+
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * Create the entry that this record describes.
+   * 
+   * @return A new entry object.
+   */
+  public ResourceEntry toEntry()
+  {
+    return new ResourceEntry( timestamp, person, message );
+  }
+  
+  /**
+   * Encode this record onto the end of a buffer.
+   * 
+   * @param buffer A buffer with enough space remaining.
+   */
+  void encode( ByteBuffer buffer, CRC32 crc )
+  {
+    int start = buffer.position();
+    buffer.position( start + HEADER_LENGTH );
+    int bodystart = buffer.position();
+    buffer.put( type );
+    buffer.putLong( sequence );
+    buffer.putLong( timestamp );
+    putString( buffer, platform );
+    putString( buffer, resource );
+    putString( buffer, person );
+    putString( buffer, message );
+    int end = buffer.position();
+    
+    ByteBuffer body = buffer.duplicate();
+    body.position( bodystart );
+    body.limit( end );
+    crc.reset();
+    crc.update( body );
+    buffer.putInt( start, end - bodystart );
+    buffer.putInt( start + 4, (int)crc.getValue() );
+  }
+  
+  /**
+   * An upper bound on the number of bytes encode will use.
+   * 
+   * @return Number of bytes.
+   */
+  int maxEncodedLength()
+  {
+    return HEADER_LENGTH + 1 + 8 + 8 + 4 * 4 + 
+            3 * ( length( platform ) + length( resource ) + length( person ) + length( message ) );
+  }
+  
+  private static int length( String s )
+  {
+    return s == null ? 0 : s.length();
+  }
+  
+  /**
+   * Decode the next record from a buffer.
+   * 
+   * @param buffer The buffer positioned at the start of a record.
+   * @return The record or null if the rest of the buffer does not hold a
+   * complete, undamaged record.
+   */
+  static JournalRecord decode( ByteBuffer buffer, CRC32 crc )
+  {
+    if ( buffer.remaining() < HEADER_LENGTH )
+      return null;
+    int length = buffer.getInt();
+    int check = buffer.getInt();
+    if ( length <= 0 || length > buffer.remaining() )
+      return null;
+    
+    ByteBuffer body = buffer.slice();
+    body.limit( length );
+    crc.reset();
+    crc.update( body.duplicate() );
+    if ( (int)crc.getValue() != check )
+      return null;
+    buffer.position( buffer.position() + length );
+    
+    try
+    {
+      byte type = body.get();
+      long sequence = body.getLong();
+      long timestamp = body.getLong();
+      String platform = getString( body );
+      String resource = getString( body );
+      String person = getString( body );
+      String message = getString( body );
+      return new JournalRecord( type, platform, resource, sequence, timestamp, person, message );
+    }
+    catch ( BufferUnderflowException | IllegalArgumentException e )
+    {
+      return null;
+    }
+  }
+  
+  static void putString( ByteBuffer buffer, String s )
+  {
+    if ( s == null )
+    {
+      buffer.putInt( -1 );
+      return;
+    }
+    byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+    buffer.putInt( bytes.length );
+    buffer.put( bytes );
+  }
+  
+  static String getString( ByteBuffer buffer )
+  {
+    int length = buffer.getInt();
+    if ( length == -1 )
+      return null;
+    if ( length < 0 || length > buffer.remaining() )
+      throw new IllegalArgumentException( "Bad string length." );
+    byte[] bytes = new byte[length];
+    buffer.get( bytes );
+    return new String( bytes, StandardCharsets.UTF_8 );
+  }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.persist;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import uk.ac.leedsbeckett.ltidemo.tool.Resource;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceEntry;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceKey;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceListener;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
+
+/**
+ * An append only journal of changes to the resources in a ResourceStore.
+ * It listens to the store and puts a record of every change on a bounded
+ * queue. A single writer thread takes everything that has queued up, writes
+ * it to the current segment file and then forces it to disk, so a burst of
+ * changes costs one fsync rather than one per change. Request threads never
+ * wait for the disk. If the queue is full, or a batch can't be written,
+ * the change is still made in memory but it is not journalled and the
+ * dropped count goes up.
+ * 
+ * Segment files are named with an increasing number. A new segment is
+ * started each time the journal is started and whenever the current one
+ * grows past the segment size. When the web application starts the journal
+ * is replayed into an empty store before the writer is started.
+ * 
+ * @author jon
+ */
+public class ResourceJournal implements ResourceListener, Closeable
+{
+  static final Logger logger = Logger.getLogger( ResourceJournal.class.getName() );
+  
+  public static final int  DEFAULT_QUEUE_CAPACITY = 10000;
+  public static final long DEFAULT_SEGMENT_SIZE   = 16L * 1024L * 1024L;
+  
+  static final int    MAX_BATCH      = 1000;
+  static final String SEGMENT_PREFIX = "journal-";
+  static final String SEGMENT_SUFFIX = ".log";
+  
+  final Path directory;
+  final long segmentSize;
+  final ArrayBlockingQueue<JournalRecord> queue;
+  
+  /**
+   * Guards the current segment so that it can be switched by another
+   * thread while the writer is running.
+   */
+  final ReentrantLock lock = new ReentrantLock();
+  FileChannel channel;
+  long segmentNumber;
+  long segmentBytes;
+  
+  Thread writer;
+  volatile boolean running = false;
+  
+  final LongAdder recordsWritten = new LongAdder();
+  final LongAdder syncs          = new LongAdder();
+  final AtomicLong dropped       = new AtomicLong();
+
+  /**
+   * Construct a journal with default settings.
+   * 
+   * @param directory The directory that holds the segment files.
+   */
+  public ResourceJournal( Path directory )
+  {
+    this( directory, DEFAULT_QUEUE_CAPACITY, DEFAULT_SEGMENT_SIZE );
+  }
+
+  /**
+   * Construct a journal.
+   * 
+   * @param directory The directory that holds the segment files.
+   * @param queueCapacity How many changes can wait to be written.
+   * @param segmentSize Size in bytes after which a new segment is started.
+   */
+  public ResourceJournal( Path directory, int queueCapacity, long segmentSize )
+  {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.queue = new ArrayBlockingQueue<>( queueCapacity );
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return The directory that holds the segment files.
+   */
+  public Path getDirectory()
+  {
+    return directory;
+  }
+  
+  /**
+   * Read every segment in order and apply the changes to a store. This
+   * should be called before the journal is started and before the journal
+   * is added to the store as a listener.
+   * 
+   * @param store The store to rebuild.
+   * @return The number of records that changed the store.
+   * @throws IOException If the segments could not be read.
+   */
+  public long replay( ResourceStore store ) throws IOException
+  {
+    return replay( store, 0L );
+  }
+  
+  /**
+   * Read the segments from a given segment number onwards and apply the
+   * changes to a store. Used to replay the tail of the journal on top of
+   * a snapshot.
+   * 
+   * @param store The store to rebuild.
+   * @param fromSegment The first segment number to read.
+   * @return The number of records that changed the store.
+   * @throws IOException If the segments could not be read.
+   */
+  public long replay( ResourceStore store, long fromSegment ) throws IOException
+  {
+    long applied = 0L;
+    CRC32 crc = new CRC32();
+    for ( Path segment : listSegments() )
+    {
+      if ( segmentNumber( segment ) < fromSegment )
+        continue;
+      try ( FileChannel in = FileChannel.open( segment, StandardOpenOption.READ ) )
+      {
+        MappedByteBuffer buffer = in.map( FileChannel.MapMode.READ_ONLY, 0L, in.size() );
+        JournalRecord record;
+        while ( (record = JournalRecord.decode( buffer, crc )) != null )
+        {
+          Resource resource = store.get( record.getPlatform(), record.getResource(), true );
+          if ( resource.restoreEntry( record.getSequence(), record.toEntry(), record.getType() == JournalRecord.CLEAR ) )
+            applied++;
+        }
+        if ( buffer.hasRemaining() )
+          logger.log( Level.WARNING, "Ignored {0} bytes of incomplete records at end of {1}", 
+                  new Object[] { buffer.remaining(), segment } );
+      }
+    }
+    return applied;
+  }
+  
+  /**
+   * Open a new segment and start the writer thread.
+   * 
+   * @throws IOException If the directory or segment could not be created.
+   */
+  public void start() throws IOException
+  {
+    start( 1L );
+  }
+  
+  /**
+   * Open a new segment numbered at least as high as the given number and
+   * start the writer thread.
+   * 
+   * @param minimumSegment The lowest acceptable segment number.
+   * @throws IOException If the directory or segment could not be created.
+   */
+  public void start( long minimumSegment ) throws IOException
+  {
+    Files.createDirectories( directory );
+    openSegment( Math.max( minimumSegment, nextSegmentNumber() ) );
+    running = true;
+    writer = new Thread( this::run, "resource-journal-writer" );
+    writer.setDaemon( true );
+    writer.start();
+  }
+
+  /**
+   * Stop accepting changes, write everything that is queued and close the
+   * current segment.
+   */
+  @Override
+  public void close()
+  {
+    running = false;
+    if ( writer != null )
+    {
+      try
+      {
+        writer.join( TimeUnit.SECONDS.toMillis( 30 ) );
+      }
+      catch ( InterruptedException ex )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    lock.lock();
+    try
+    {
+      closeSegment();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void entryAdded( Resource resource, long sequence, ResourceEntry entry )
+  {
+    enqueue( JournalRecord.ADD, resource, sequence, entry );
+  }
+
+  @Override
+  public void entriesCleared( Resource resource, long sequence, ResourceEntry entry )
+  {
+    enqueue( JournalRecord.CLEAR, resource, sequence, entry );
+  }
+  
+  void enqueue( byte type, Resource resource, long sequence, ResourceEntry entry )
+  {
+    ResourceKey key = resource.getKey();
+    if ( key == null || !running )
+      return;
+    if ( !queue.offer( new JournalRecord( type, key.getPlatform(), key.getResource(), sequence, entry ) ) )
+    {
+      long n = dropped.incrementAndGet();
+      if ( n == 1L || n % 1000L == 0L )
+        logger.log( Level.WARNING, "Journal queue is full, {0} changes not recorded so far.", n );
+    }
+  }
+  
+  /**
+   * The writer thread's main loop. It keeps going after it has been told to
+   * stop until the queue is empty.
+   */
+  void run()
+  {
+    ArrayList<JournalRecord> batch = new ArrayList<>( MAX_BATCH );
+    ByteBuffer buffer = ByteBuffer.allocateDirect( 64 * 1024 );
+    CRC32 crc = new CRC32();
+    while ( running || !queue.isEmpty() )
+    {
+      try
+      {
+        JournalRecord first = queue.poll( 100L, TimeUnit.MILLISECONDS );
+        if ( first == null )
+          continue;
+        batch.add( first );
+        queue.drainTo( batch, MAX_BATCH - 1 );
+        buffer = writeBatch( batch, buffer, crc );
+      }
+      catch ( InterruptedException ex )
+      {
+        // Only stop when running has been cleared and the queue is drained.
+      }
+      catch ( IOException | RuntimeException ex )
+      {
+        // Keep the thread going; the next batch reopens the segment if
+        // this one lost it.
+        dropped.addAndGet( batch.size() );
+        logger.log( Level.SEVERE, "Unable to write " + batch.size() + " journal records.", ex );
+      }
+      finally
+      {
+        batch.clear();
+      }
+    }
+  }
+  
+  /**
+   * Encode and write a batch of records and then force the segment to disk
+   * once for the whole batch.
+   * 
+   * Replay stops at the first damaged record in a segment, so a batch that
+   * fails part way through is cut off the end of the segment again before
+   * anything else is written after it. If that can't be done the segment is
+   * closed and the next batch starts a new one. Once the whole batch has
+   * been written it counts as written even if forcing it to disk or
+   * rolling the segment fails; in that case the segment is closed too.
+   * 
+   * @param batch The records.
+   * @param buffer A buffer to encode into.
+   * @param crc Used to calculate record checksums.
+   * @return The buffer that was used, which is bigger than the one passed in
+   * if that was too small.
+   * @throws IOException If writing fails, in which case none of the batch
+   * is left in the segment.
+   */
+  ByteBuffer writeBatch( List<JournalRecord> batch, ByteBuffer buffer, CRC32 crc ) throws IOException
+  {
+    int needed = 0;
+    for ( JournalRecord record : batch )
+      needed += record.maxEncodedLength();
+    if ( needed > buffer.capacity() )
+      buffer = ByteBuffer.allocateDirect( Math.max( needed, buffer.capacity() * 2 ) );
+    
+    buffer.clear();
+    for ( JournalRecord record : batch )
+      record.encode( buffer, crc );
+    buffer.flip();
+    
+    lock.lock();
+    try
+    {
+      // A failed roll leaves no segment open.
+      if ( channel == null )
+        openSegment( nextSegmentNumber() );
+      long start = segmentBytes;
+      try
+      {
+        while ( buffer.hasRemaining() )
+          segmentBytes += channel.write( buffer );
+      }
+      catch ( IOException | RuntimeException ex )
+      {
+        discardFrom( start );
+        throw ex;
+      }
+      recordsWritten.add( batch.size() );
+      try
+      {
+        channel.force( false );
+        syncs.increment();
+        if ( segmentBytes >= segmentSize )
+          rollSegment();
+      }
+      catch ( IOException ex )
+      {
+        logger.log( Level.SEVERE, "Problem finishing journal segment " + segmentNumber + ", starting a new one.", ex );
+        closeSegment();
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    return buffer;
+  }
+  
+  /**
+   * Remove a partly written batch from the end of the current segment. If
+   * the segment can't be cut the segment is closed so that nothing is
+   * written after the damaged records. Must be called holding the lock.
+   * 
+   * @param start Where the batch started in the segment.
+   */
+  void discardFrom( long start )
+  {
+    try
+    {
+      channel.truncate( start );
+      channel.position( start );
+      segmentBytes = start;
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to remove a partly written batch from journal segment " + segmentNumber, ex );
+      closeSegment();
+    }
+  }
+  
+  /**
+   * Finish the current segment and start writing to a new one. Everything
+   * written before this call is in earlier segments.
+   * 
+   * @return The number of the new segment.
+   * @throws IOException If the new segment could not be opened.
+   */
+  public long startNewSegment() throws IOException
+  {
+    lock.lock();
+    try
+    {
+      if ( channel == null )
+        return nextSegmentNumber();
+      return rollSegment();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * The number that the next new segment would take.
+   * 
+   * @return Segment number.
+   * @throws IOException If the directory could not be read.
+   */
+  long nextSegmentNumber() throws IOException
+  {
+    List<Path> segments = listSegments();
+    long last = segments.isEmpty() ? 0L : segmentNumber( segments.get( segments.size() - 1 ) );
+    return Math.max( last, segmentNumber ) + 1L;
+  }
+  
+  /**
+   * Delete segments that are no longer needed because a snapshot covers
+   * them.
+   * 
+   * @param segment Segments numbered lower than this are deleted.
+   * @throws IOException If the directory could not be read.
+   */
+  public void deleteSegmentsBefore( long segment ) throws IOException
+  {
+    for ( Path p : listSegments() )
+    {
+      if ( segmentNumber( p ) < segment )
+        Files.deleteIfExists( p );
+    }
+  }
+  
+  /**
+   * Close the current segment and open the next one. Must be called
+   * holding the lock.
+   * 
+   * @return The number of the new segment.
+   * @throws IOException If the new segment could not be opened.
+   */
+  long rollSegment() throws IOException
+  {
+    closeSegment();
+    openSegment( segmentNumber + 1L );
+    return segmentNumber;
+  }
+  
+  void openSegment( long number ) throws IOException
+  {
+    channel = FileChannel.open( segmentPath( number ), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+    segmentNumber = number;
+    segmentBytes = 0L;
+  }
+  
+  void closeSegment()
+  {
+    if ( channel == null )
+      return;
+    try
+    {
+      channel.force( true );
+      channel.close();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Problem closing journal segment " + segmentNumber, ex );
+    }
+    channel = null;
+  }
+  
+  Path segmentPath( long number )
+  {
+    return directory.resolve( String.format( "%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX ) );
+  }
+  
+  static long segmentNumber( Path segment )
+  {
+    String name = segment.getFileName().toString();
+    return Long.parseLong( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) );
+  }
+  
+  /**
+   * Find all the segment files in order.
+   * 
+   * @return A list of paths, oldest segment first.
+   * @throws IOException If the directory could not be read.
+   */
+  List<Path> listSegments() throws IOException
+  {
+    ArrayList<Path> list = new ArrayList<>();
+    if ( !Files.isDirectory( directory ) )
+      return list;
+    try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX ) )
+    {
+      for ( Path p : stream )
+        list.add( p );
+    }
+    list.sort( ( a, b ) -> Long.compare( segmentNumber( a ), segmentNumber( b ) ) );
+    return list;
+  }
+
+  /**
+   * How many records have been written to disk since the journal started.
+   * 
+   * @return Number of records.
+   */
+  public long getRecordsWritten()
+  {
+    return recordsWritten.sum();
+  }
+
+  /**
+   * How many times the journal has been forced to disk. Comparing this with
+   * the number of records shows how well group commit is working.
+   * 
+   * @return Number of fsyncs.
+   */
+  public long getSyncs()
+  {
+    return syncs.sum();
+  }
+
+  /**
+   * How many changes were not recorded because the queue was full or
+   * writing them failed.
+   * 
+   * @return Number of changes.
+   */
+  public long getDropped()
+  {
+    return dropped.get();
+  }
+  
+  /**
+   * How many changes are waiting to be written.
+   * 
+   * @return Number of changes.
+   */
+  public int getQueueSize()
+  {
+    return queue.size();
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.persist;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
+
+/**
+ * Keeps a ResourceStore on disk using a journal of changes and periodic
+ * snapshots. At start up the newest snapshot is loaded and then only the
+ * journal segments written after it are replayed. A checkpoint starts a new
+ * journal segment, writes a snapshot of the whole store and then deletes
+ * the older segments and snapshots.
+ * 
+ * Resources which the store evicts from memory are saved in a directory
+ * of their own, one file per resource, and loaded back when they are next
+ * used. Snapshots only hold the resources that are in memory.
+ * 
+ * @author jon
+ */
+public class ResourcePersistence implements Closeable
+{
+  static final Logger logger = Logger.getLogger( ResourcePersistence.class.getName() );
+  
+  final Path directory;
+  final ResourceStore store;
+  final long checkpointMinutes;
+  final ResourceJournal journal;
+  
+  /**
+   * Makes sure only one checkpoint runs at a time.
+   */
+  final ReentrantLock checkpointLock = new ReentrantLock();
+  ScheduledExecutorService scheduler;
+  
+  long startupMillis      = 0L;
+  long snapshotResources  = 0L;
+  long replayedRecords    = 0L;
+  long lastCheckpointMillis = 0L;
+
+  /**
+   * Construct.
+   * 
+   * @param directory Directory for the journal and snapshots.
+   * @param store The store to keep on disk.
+   * @param checkpointMinutes How often to write a snapshot or zero for
+   * only at shut down.
+   */
+  public ResourcePersistence( Path directory, ResourceStore store, long checkpointMinutes )
+  {
+    this.directory = directory;
+    this.store = store;
+    this.checkpointMinutes = checkpointMinutes;
+    this.journal = new ResourceJournal( directory );
+  }
+
+  /**
+   * Rebuild the store from disk, start journalling changes and schedule
+   * checkpoints.
+   * 
+   * @throws IOException If the journal could not be started.
+   */
+  public void open() throws IOException
+  {
+    long start = System.nanoTime();
+    Files.createDirectories( directory );
+    
+    long fromsegment;
+    store.setEvictionPaused( true );
+    try
+    {
+      store.setBacking( new EvictedResourceFiles( directory.resolve( "evicted" ) ) );
+      fromsegment = loadNewestSnapshot();
+      replayedRecords = journal.replay( store, fromsegment );
+    }
+    finally
+    {
+      store.setEvictionPaused( false );
+    }
+    store.evictIfNeeded();
+    startupMillis = (System.nanoTime() - start) / 1000000L;
+    logger.log( Level.INFO, 
+            "Resource store ready in {0}ms with {1} resources, {2} from snapshot and {3} journal records replayed.", 
+            new Object[] { startupMillis, store.size(), snapshotResources, replayedRecords } );
+    
+    journal.start( fromsegment );
+    store.addListener( journal );
+    
+    if ( checkpointMinutes > 0L )
+    {
+      scheduler = Executors.newSingleThreadScheduledExecutor( r -> 
+      {
+        Thread t = new Thread( r, "resource-checkpoint" );
+        t.setDaemon( true );
+        return t;
+      } );
+      scheduler.scheduleWithFixedDelay( this::scheduledCheckpoint, checkpointMinutes, checkpointMinutes, TimeUnit.MINUTES );
+    }
+  }
+  
+  /**
+   * Try the snapshots newest first until one loads.
+   * 
+   * @return The first journal segment that needs to be replayed.
+   * @throws IOException If the directory could not be read.
+   */
+  long loadNewestSnapshot() throws IOException
+  {
+    List<Path> snapshots = listSnapshots();
+    for ( int i=snapshots.size()-1; i>=0; i-- )
+    {
+      try
+      {
+        ResourceSnapshot snapshot = ResourceSnapshot.read( snapshots.get( i ), store );
+        snapshotResources = snapshot.getResourceCount();
+        return snapshot.getJournalSegment();
+      }
+      catch ( IOException ex )
+      {
+        logger.log( Level.WARNING, "Unable to load snapshot, trying an older one.", ex );
+      }
+    }
+    return 0L;
+  }
+
+  void scheduledCheckpoint()
+  {
+    try
+    {
+      checkpoint();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Checkpoint of resource store failed.", ex );
+    }
+  }
+  
+  /**
+   * Write a snapshot of the store and delete the journal segments and
+   * snapshots that it makes redundant.
+   * 
+   * @return Description of the snapshot.
+   * @throws IOException If the snapshot could not be written.
+   */
+  public ResourceSnapshot checkpoint() throws IOException
+  {
+    checkpointLock.lock();
+    try
+    {
+      long start = System.nanoTime();
+      // Changes written to the journal before the new segment starts are
+      // already in memory, once any made to evicted objects have been
+      // copied on, so the snapshot will include them. Changes after might
+      // also be in the snapshot but replaying them is harmless.
+      long segment = journal.startNewSegment();
+      store.awaitForwarding();
+      ResourceSnapshot snapshot = ResourceSnapshot.write( ResourceSnapshot.path( directory, segment ), store, segment );
+      journal.deleteSegmentsBefore( segment );
+      for ( Path p : listSnapshots() )
+        if ( ResourceSnapshot.journalSegment( p ) < segment )
+          Files.deleteIfExists( p );
+      lastCheckpointMillis = (System.nanoTime() - start) / 1000000L;
+      logger.log( Level.INFO, "Checkpoint of {0} resources written in {1}ms.", 
+              new Object[] { snapshot.getResourceCount(), lastCheckpointMillis } );
+      return snapshot;
+    }
+    finally
+    {
+      checkpointLock.unlock();
+    }
+  }
+  
+  List<Path> listSnapshots() throws IOException
+  {
+    ArrayList<Path> list = new ArrayList<>();
+    try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory, ResourceSnapshot.PREFIX + "*" + ResourceSnapshot.SUFFIX ) )
+    {
+      for ( Path p : stream )
+        list.add( p );
+    }
+    list.sort( ( a, b ) -> Long.compare( ResourceSnapshot.journalSegment( a ), ResourceSnapshot.journalSegment( b ) ) );
+    return list;
+  }
+
+  /**
+   * Stop checkpoints and the journal and write a final snapshot so the
+   * next start up doesn't need to replay the journal.
+   */
+  @Override
+  public void close()
+  {
+    if ( scheduler != null )
+    {
+      scheduler.shutdownNow();
+      try
+      {
+        scheduler.awaitTermination( 30L, TimeUnit.SECONDS );
+      }
+      catch ( InterruptedException ex )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    store.removeListener( journal );
+    journal.close();
+    try
+    {
+      checkpoint();
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Final checkpoint of resource store failed.", ex );
+    }
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return The journal.
+   */
+  public ResourceJournal getJournal()
+  {
+    return journal;
+  }
+  
+  /**
+   * How long it took to load the snapshot and replay the journal.
+   * 
+   * @return Time in milliseconds.
+   */
+  public long getStartupMillis()
+  {
+    return startupMillis;
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return Number of resources that were loaded from the snapshot.
+   */
+  public long getSnapshotResources()
+  {
+    return snapshotResources;
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return Number of journal records that were replayed at start up.
+   */
+  public long getReplayedRecords()
+  {
+    return replayedRecords;
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return How long the last checkpoint took in milliseconds.
+   */
+  public long getLastCheckpointMillis()
+  {
+    return lastCheckpointMillis;
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.persist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import uk.ac.leedsbeckett.ltidemo.tool.EntryRing;
+import uk.ac.leedsbeckett.ltidemo.tool.EntrySource;
+import uk.ac.leedsbeckett.ltidemo.tool.Resource;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceEntry;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceKey;
+import uk.ac.leedsbeckett.ltidemo.tool.ResourceStore;
+
+/**
+ * Reads and writes a compact binary snapshot of a whole ResourceStore. The
+ * file is written through a memory mapping and is laid out like this:
+ * 
+ * <pre>
+ * magic (4 bytes) version (1 byte) journal segment (8 bytes) body length (8 bytes)
+ * body
+ *   string count, then each string as a length and UTF-8 bytes
+ *   resource count, then each resource as
+ *     platform string, resource string, cleared sequence, entry count
+ *     then each entry, oldest first, as
+ *       sequence delta, timestamp delta (zig-zag), person string, message string
+ * CRC32 of body (4 bytes)
+ * </pre>
+ * 
+ * Every number in the body is a variable length integer and every string is
+ * an index into the string dictionary, where index zero stands for null.
+ * The journal segment is the first segment that must be replayed on top of
+ * the snapshot.
+ * 
+ * Loading copies the body into a single array and only decodes the keys.
+ * Each resource decodes its own entries from the array when it is first
+ * used, which keeps the number of objects built at start up, and so the
+ * time spent collecting garbage, down to a few per resource. Nothing is put
+ * into the store until the whole body has been checked and decoded.
+ * 
+ * @author jon
+ */
+public class ResourceSnapshot
+{
+  static final int    MAGIC   = 0x4C425553;
+  static final byte   VERSION = 1;
+  static final int    HEADER_LENGTH = 4 + 1 + 8 + 8;
+  static final String PREFIX  = "snapshot-";
+  static final String SUFFIX  = ".bin";
+  
+  final long journalSegment;
+  final long resourceCount;
+  final long entryCount;
+
+  ResourceSnapshot( long journalSegment, long resourceCount, long entryCount )
+  {
+    this.journalSegment = journalSegment;
+    this.resourceCount = resourceCount;
+    this.entryCount = entryCount;
+  }
+
+  /**
+   * The first journal segment that is not covered by the snapshot.
+   * 
+   * @return Segment number.
+   */
+  public long getJournalSegment()
+  {
+    return journalSegment;
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return Number of resources in the snapshot.
+   */
+  public long getResourceCount()
+  {
+    return resourceCount;
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return Number of entries in the snapshot.
+   */
+  public long getEntryCount()
+  {
+    return entryCount;
+  }
+  
+  /**
+   * The entries of one resource copied out of the store so that the
+   * dictionary pass and the writing pass see the same data.
+   */
+  static class Captured implements EntryRing.Visitor
+  {
+    final ResourceKey key;
+    final long floor;
+    final long[] sequences = new long[Resource.CAPACITY];
+    final ResourceEntry[] entries = new ResourceEntry[Resource.CAPACITY];
+    int size = 0;
+
+    Captured( ResourceKey key, Resource resource )
+    {
+      this.key = key;
+      this.floor = resource.getClearedSequence();
+      resource.visitEntries( this );
+    }
+
+    @Override
+    public void visit( long sequence, ResourceEntry entry )
+    {
+      if ( size == entries.length )
+        return;
+      sequences[size] = sequence;
+      entries[size++] = entry;
+    }
+  }
+  
+  /**
+   * Writes numbers either into a buffer or, when there is no buffer, just
+   * adds up how many bytes they would take.
+   */
+  static class Encoder
+  {
+    final ByteBuffer buffer;
+    long size = 0L;
+
+    Encoder( ByteBuffer buffer )
+    {
+      this.buffer = buffer;
+    }
+    
+    void number( long value )
+    {
+      if ( buffer == null )
+        size += VarInts.sizeOfVarLong( value );
+      else
+        VarInts.putVarLong( buffer, value );
+    }
+    
+    void bytes( byte[] value )
+    {
+      number( value.length );
+      if ( buffer == null )
+        size += value.length;
+      else
+        buffer.put( value );
+    }
+  }
+  
+  /**
+   * Builds the dictionary of strings used by a snapshot.
+   */
+  static class Dictionary
+  {
+    final HashMap<String,Integer> indices = new HashMap<>();
+    final ArrayList<byte[]> strings = new ArrayList<>();
+    
+    int index( String s )
+    {
+      if ( s == null )
+        return 0;
+      Integer i = indices.get( s );
+      if ( i == null )
+      {
+        strings.add( s.getBytes( StandardCharsets.UTF_8 ) );
+        i = strings.size();
+        indices.put( s, i );
+      }
+      return i;
+    }
+  }
+  
+  /**
+   * Write a snapshot of a store. The file is written under a temporary name
+   * and then moved into place so a crash never leaves a partial snapshot
+   * with the final name.
+   * 
+   * @param file The file to write.
+   * @param store The store.
+   * @param journalSegment The first journal segment that will need to be
+   * replayed on top of this snapshot.
+   * @return Description of what was written.
+   * @throws IOException If the file could not be written.
+   */
+  public static ResourceSnapshot write( Path file, ResourceStore store, long journalSegment ) throws IOException
+  {
+    ArrayList<Captured> captured = new ArrayList<>( store.size() );
+    store.forEach( ( key, resource ) -> captured.add( new Captured( key, resource ) ) );
+    
+    Dictionary dictionary = new Dictionary();
+    long entrycount = 0L;
+    for ( Captured c : captured )
+    {
+      dictionary.index( c.key.getPlatform() );
+      dictionary.index( c.key.getResource() );
+      for ( int i=0; i<c.size; i++ )
+      {
+        dictionary.index( c.entries[i].getPerson() );
+        dictionary.index( c.entries[i].getMessage() );
+      }
+      entrycount += c.size;
+    }
+    
+    Encoder counter = new Encoder( null );
+    encodeBody( counter, dictionary, captured );
+    long total = HEADER_LENGTH + counter.size + 4L;
+    if ( total > Integer.MAX_VALUE )
+      throw new IOException( "Snapshot is too big to map into memory." );
+
+    Path temp = file.resolveSibling( file.getFileName().toString() + ".tmp" );
+    try ( FileChannel channel = FileChannel.open( temp, 
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, 
+            StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+    {
+      MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0L, total );
+      buffer.putInt( MAGIC );
+      buffer.put( VERSION );
+      buffer.putLong( journalSegment );
+      buffer.putLong( counter.size );
+      encodeBody( new Encoder( buffer ), dictionary, captured );
+      
+      ByteBuffer body = buffer.duplicate();
+      body.position( HEADER_LENGTH );
+      body.limit( buffer.position() );
+      CRC32 crc = new CRC32();
+      crc.update( body );
+      buffer.putInt( (int)crc.getValue() );
+      buffer.force();
+    }
+    Files.move( temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+    return new ResourceSnapshot( journalSegment, captured.size(), entrycount );
+  }
+  
+  static void encodeBody( Encoder encoder, Dictionary dictionary, ArrayList<Captured> captured )
+  {
+    encoder.number( dictionary.strings.size() );
+    for ( byte[] s : dictionary.strings )
+      encoder.bytes( s );
+    
+    encoder.number( captured.size() );
+    for ( Captured c : captured )
+    {
+      encoder.number( dictionary.index( c.key.getPlatform() ) );
+      encoder.number( dictionary.index( c.key.getResource() ) );
+      encoder.number( c.floor );
+      encoder.number( c.size );
+      long sequence = 0L;
+      long timestamp = 0L;
+      for ( int i=0; i<c.size; i++ )
+      {
+        ResourceEntry entry = c.entries[i];
+        encoder.number( c.sequences[i] - sequence );
+        encoder.number( VarInts.zigZag( entry.getTimestamp() - timestamp ) );
+        encoder.number( dictionary.index( entry.getPerson() ) );
+        encoder.number( dictionary.index( entry.getMessage() ) );
+        sequence = c.sequences[i];
+        timestamp = entry.getTimestamp();
+      }
+    }
+  }
+  
+  /**
+   * The body of a loaded snapshot, from which resources decode their
+   * entries when they are first used.
+   */
+  static class Body implements EntrySource
+  {
+    final byte[] bytes;
+    final String[] strings;
+
+    Body( byte[] bytes, String[] strings )
+    {
+      this.bytes = bytes;
+      this.strings = strings;
+    }
+
+    @Override
+    public void restore( int offset, EntryRing ring )
+    {
+      ByteBuffer buffer = ByteBuffer.wrap( bytes );
+      buffer.position( offset );
+      long floor = VarInts.getVarLong( buffer );
+      int size = (int)VarInts.getVarLong( buffer );
+      long sequence = 0L;
+      long timestamp = 0L;
+      for ( int i=0; i<size; i++ )
+      {
+        sequence += VarInts.getVarLong( buffer );
+        timestamp += VarInts.unZigZag( VarInts.getVarLong( buffer ) );
+        String person = strings[(int)VarInts.getVarLong( buffer )];
+        String message = strings[(int)VarInts.getVarLong( buffer )];
+        ring.restore( sequence, new ResourceEntry( timestamp, person, message ), sequence == floor );
+      }
+    }
+  }
+  
+  /**
+   * Load a snapshot into a store. The store would normally be empty. If
+   * the file is damaged nothing is put into the store.
+   * 
+   * @param file The snapshot file.
+   * @param store The store to put resources into.
+   * @return Description of what was loaded.
+   * @throws IOException If the file could not be read or is damaged.
+   */
+  public static ResourceSnapshot read( Path file, ResourceStore store ) throws IOException
+  {
+    try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+    {
+      if ( channel.size() < HEADER_LENGTH + 4 || channel.size() > Integer.MAX_VALUE )
+        throw new IOException( "Snapshot " + file + " has the wrong size." );
+      MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0L, channel.size() );
+      if ( buffer.getInt() != MAGIC || buffer.get() != VERSION )
+        throw new IOException( "Snapshot " + file + " is not in a recognised format." );
+      long journalsegment = buffer.getLong();
+      long length = buffer.getLong();
+      if ( length != channel.size() - HEADER_LENGTH - 4 )
+        throw new IOException( "Snapshot " + file + " is incomplete." );
+      
+      byte[] body = new byte[(int)length];
+      buffer.get( body );
+      CRC32 crc = new CRC32();
+      crc.update( body );
+      if ( (int)crc.getValue() != buffer.getInt() )
+        throw new IOException( "Snapshot " + file + " failed its checksum." );
+      
+      try
+      {
+        return decodeBody( body, store, journalsegment );
+      }
+      catch ( RuntimeException e )
+      {
+        throw new IOException( "Snapshot " + file + " could not be decoded.", e );
+      }
+    }
+  }
+  
+  static ResourceSnapshot decodeBody( byte[] bytes, ResourceStore store, long journalsegment )
+  {
+    ByteBuffer body = ByteBuffer.wrap( bytes );
+    int stringcount = (int)VarInts.getVarLong( body );
+    if ( stringcount < 0 || stringcount > bytes.length )
+      throw new IllegalStateException( "Bad string count." );
+    String[] strings = new String[stringcount + 1];
+    for ( int i=1; i<=stringcount; i++ )
+    {
+      int length = (int)VarInts.getVarLong( body );
+      strings[i] = new String( bytes, body.position(), length, StandardCharsets.UTF_8 );
+      body.position( body.position() + length );
+    }
+    Body source = new Body( bytes, strings );
+
+    long resourcecount = VarInts.getVarLong( body );
+    if ( resourcecount < 0L || resourcecount > bytes.length )
+      throw new IllegalStateException( "Bad resource count." );
+    Resource[] resources = new Resource[(int)resourcecount];
+    long entrycount = 0L;
+    for ( int r=0; r<resources.length; r++ )
+    {
+      String platform = strings[(int)VarInts.getVarLong( body )];
+      String resourceid = strings[(int)VarInts.getVarLong( body )];
+      int offset = body.position();
+      VarInts.getVarLong( body );
+      int size = (int)VarInts.getVarLong( body );
+      if ( size < 0 || size > Resource.CAPACITY )
+        throw new IllegalStateException( "Bad entry count." );
+      // Check the entries decode now so a damaged body is found before
+      // anything is published, but don't build them.
+      for ( int i=0; i<size; i++ )
+      {
+        VarInts.getVarLong( body );
+        VarInts.getVarLong( body );
+        checkIndex( VarInts.getVarLong( body ), strings );
+        checkIndex( VarInts.getVarLong( body ), strings );
+      }
+      resources[r] = store.prepare( platform, resourceid, source, offset );
+      entrycount += size;
+    }
+    store.publish( resources, resources.length );
+    return new ResourceSnapshot( journalsegment, resourcecount, entrycount );
+  }
+  
+  static void checkIndex( long index, String[] strings )
+  {
+    if ( index < 0L || index >= strings.length )
+      throw new IllegalStateException( "Bad string index." );
+  }
+  
+  /**
+   * The name of the snapshot file that covers journal segments before the
+   * given one.
+   * 
+   * @param directory The directory.
+   * @param journalSegment The segment number.
+   * @return The path.
+   */
+  static Path path( Path directory, long journalSegment )
+  {
+    return directory.resolve( String.format( "%s%016d%s", PREFIX, journalSegment, SUFFIX ) );
+  }
+  
+  static long journalSegment( Path file )
+  {
+    String name = file.getFileName().toString();
+    return Long.parseLong( name.substring( PREFIX.length(), name.length() - SUFFIX.length() ) );
+  }
+}
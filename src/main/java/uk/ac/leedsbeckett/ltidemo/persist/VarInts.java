@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.persist;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Static methods for variable length integer encoding. Seven bits are
+ * stored per byte with the top bit set on every byte except the last, so
+ * small numbers take a single byte. Signed values are zig-zag encoded first
+ * so that small negative numbers are also short.
+ * 
+ * @author jon
+ */
+public class VarInts
+{
+  private VarInts()
+  {
+  }
+  
+  /**
+   * Write an unsigned variable length number.
+   * 
+   * @param buffer Where to write.
+   * @param value The value which is treated as unsigned.
+   */
+  public static void putVarLong( ByteBuffer buffer, long value )
+  {
+    while ( (value & ~0x7FL) != 0L )
+    {
+      buffer.put( (byte)((value & 0x7FL) | 0x80L) );
+      value >>>= 7;
+    }
+    buffer.put( (byte)value );
+  }
+  
+  /**
+   * Read an unsigned variable length number.
+   * 
+   * @param buffer Where to read from.
+   * @return The value.
+   */
+  public static long getVarLong( ByteBuffer buffer )
+  {
+    long value = 0L;
+    for ( int shift = 0; shift < 64; shift += 7 )
+    {
+      byte b = buffer.get();
+      value |= (long)(b & 0x7F) << shift;
+      if ( (b & 0x80) == 0 )
+        return value;
+    }
+    throw new IllegalArgumentException( "Malformed variable length number." );
+  }
+  
+  /**
+   * How many bytes are needed to encode a number.
+   * 
+   * @param value The value which is treated as unsigned.
+   * @return Number of bytes.
+   */
+  public static int sizeOfVarLong( long value )
+  {
+    int size = 1;
+    while ( (value & ~0x7FL) != 0L )
+    {
+      size++;
+      value >>>= 7;
+    }
+    return size;
+  }
+  
+  /**
+   * Map a signed value onto an unsigned one so that values close to zero
+   * encode in few bytes.
+   * 
+   * @param value Signed value.
+   * @return Zig-zag encoded value.
+   */
+  public static long zigZag( long value )
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+  
+  /**
+   * Reverse of zigZag.
+   * 
+   * @param value Zig-zag encoded value.
+   * @return Signed value.
+   */
+  public static long unZigZag( long value )
+  {
+    return (value >>> 1) ^ -(value & 1L);
+  }
+}
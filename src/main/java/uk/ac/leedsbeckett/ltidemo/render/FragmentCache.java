@@ -0,0 +1,175 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.render;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps one rendered, encoded fragment per key together with the epoch and
+ * version of the data it was rendered from. A lookup only hits if both
+ * match, so changing the data invalidates the fragment without anyone
+ * having to remove it. The total size of the fragments is bounded; when it
+ * is exceeded the keys that were added longest ago are dropped.
+ * 
+ * @author jon
+ */
+public class FragmentCache
+{
+  public static final long DEFAULT_MAX_BYTES = 8L * 1024L * 1024L;
+  
+  static final class Fragment
+  {
+    final long epoch;
+    final long version;
+    final byte[] bytes;
+
+    Fragment( long epoch, long version, byte[] bytes )
+    {
+      this.epoch = epoch;
+      this.version = version;
+      this.bytes = bytes;
+    }
+  }
+  
+  final ConcurrentHashMap<Object,Fragment> map = new ConcurrentHashMap<>();
+  final ConcurrentLinkedQueue<Object> order = new ConcurrentLinkedQueue<>();
+  final AtomicLong bytes = new AtomicLong();
+  volatile long maxBytes = DEFAULT_MAX_BYTES;
+  
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  
+  /**
+   * Set the limit on the total size of fragments. Zero turns the cache
+   * off.
+   * 
+   * @param maxBytes The limit in bytes.
+   */
+  public void setMaxBytes( long maxBytes )
+  {
+    this.maxBytes = maxBytes;
+    trim();
+  }
+  
+  /**
+   * Look up a fragment.
+   * 
+   * @param key The key.
+   * @param epoch The epoch of the data as it is now.
+   * @param version The version of the data as it is now.
+   * @return The fragment or null if there isn't one for this version.
+   */
+  public byte[] get( Object key, long epoch, long version )
+  {
+    Fragment f = map.get( key );
+    if ( f == null || f.epoch != epoch || f.version != version )
+    {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return f.bytes;
+  }
+  
+  /**
+   * Store a fragment unless the cache already has one for a later version
+   * of the same data.
+   * 
+   * @param key The key.
+   * @param epoch The epoch of the data the fragment was rendered from.
+   * @param version The version read before rendering.
+   * @param fragment The fragment which must not be changed afterwards.
+   */
+  public void put( Object key, long epoch, long version, byte[] fragment )
+  {
+    if ( fragment.length > maxBytes )
+      return;
+    Fragment f = new Fragment( epoch, version, fragment );
+    boolean[] added = new boolean[1];
+    map.compute( key, ( k, old ) -> 
+    {
+      if ( old != null && old.epoch == epoch && old.version > version )
+        return old;
+      bytes.addAndGet( fragment.length - (old == null ? 0 : old.bytes.length) );
+      added[0] = old == null;
+      return f;
+    } );
+    if ( added[0] )
+      order.add( key );
+    trim();
+  }
+  
+  /**
+   * Drop the oldest keys until the fragments fit.
+   */
+  void trim()
+  {
+    while ( bytes.get() > maxBytes )
+    {
+      Object key = order.poll();
+      if ( key == null )
+        return;
+      Fragment f = map.remove( key );
+      if ( f != null )
+      {
+        bytes.addAndGet( -f.bytes.length );
+        evictions.increment();
+      }
+    }
+  }
+  
+  public long getHits()
+  {
+    return hits.sum();
+  }
+  
+  public long getMisses()
+  {
+    return misses.sum();
+  }
+  
+  /**
+   * Proportion of lookups that found a fragment.
+   * 
+   * @return A number from 0 to 1.
+   */
+  public double getHitRatio()
+  {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0L ? 0.0 : (double)h / (double)total;
+  }
+  
+  public long getEvictions()
+  {
+    return evictions.sum();
+  }
+  
+  public int size()
+  {
+    return map.size();
+  }
+  
+  public long getBytes()
+  {
+    return bytes.get();
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.render;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects the bytes of an HTML page. Template fragments are copied in as
+ * they are and text is HTML escaped and encoded as UTF-8 in one pass, so a
+ * page is built without intermediate strings and its length is known
+ * before anything is sent.
+ * 
+ * @author jon
+ */
+public class HtmlBuffer
+{
+  byte[] buf;
+  int count;
+  
+  /**
+   * Construct.
+   * 
+   * @param capacity Initial size in bytes.
+   */
+  public HtmlBuffer( int capacity )
+  {
+    buf = new byte[Math.max( 64, capacity )];
+  }
+  
+  void ensure( int needed )
+  {
+    if ( needed > buf.length )
+      buf = Arrays.copyOf( buf, Math.max( needed, buf.length * 2 ) );
+  }
+  
+  /**
+   * Append bytes which are already encoded HTML.
+   * 
+   * @param b The bytes.
+   * @return This buffer.
+   */
+  public HtmlBuffer raw( byte[] b )
+  {
+    return raw( b, 0, b.length );
+  }
+  
+  /**
+   * Append bytes which are already encoded HTML.
+   * 
+   * @param b The bytes.
+   * @param off Where to start in b.
+   * @param len How many bytes.
+   * @return This buffer.
+   */
+  public HtmlBuffer raw( byte[] b, int off, int len )
+  {
+    ensure( count + len );
+    System.arraycopy( b, off, buf, count, len );
+    count += len;
+    return this;
+  }
+  
+  /**
+   * Append text, escaping characters that are special in HTML content and
+   * in quoted attribute values. Null is written as nothing.
+   * 
+   * @param s The text.
+   * @return This buffer.
+   */
+  public HtmlBuffer text( String s )
+  {
+    if ( s == null )
+      return this;
+    int n = s.length();
+    // The longest replacement for one char is "&quot;".
+    ensure( count + n * 6 );
+    byte[] b = buf;
+    int c = count;
+    for ( int i=0; i<n; i++ )
+    {
+      char ch = s.charAt( i );
+      if ( ch < 0x80 )
+      {
+        switch ( ch )
+        {
+          case '&':  c = put( b, c, AMP );  break;
+          case '<':  c = put( b, c, LT );   break;
+          case '>':  c = put( b, c, GT );   break;
+          case '"':  c = put( b, c, QUOT ); break;
+          case '\'': c = put( b, c, APOS ); break;
+          default:   b[c++] = (byte)ch;
+        }
+      }
+      else if ( ch < 0x800 )
+      {
+        b[c++] = (byte)(0xc0 | (ch >> 6));
+        b[c++] = (byte)(0x80 | (ch & 0x3f));
+      }
+      else if ( Character.isHighSurrogate( ch ) && i+1 < n && Character.isLowSurrogate( s.charAt( i+1 ) ) )
+      {
+        int cp = Character.toCodePoint( ch, s.charAt( ++i ) );
+        b[c++] = (byte)(0xf0 | (cp >> 18));
+        b[c++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+        b[c++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+        b[c++] = (byte)(0x80 | (cp & 0x3f));
+      }
+      else if ( Character.isSurrogate( ch ) )
+        b[c++] = '?';
+      else
+      {
+        b[c++] = (byte)(0xe0 | (ch >> 12));
+        b[c++] = (byte)(0x80 | ((ch >> 6) & 0x3f));
+        b[c++] = (byte)(0x80 | (ch & 0x3f));
+      }
+    }
+    count = c;
+    return this;
+  }
+  
+  static final byte[] AMP  = { '&', 'a', 'm', 'p', ';' };
+  static final byte[] LT   = { '&', 'l', 't', ';' };
+  static final byte[] GT   = { '&', 'g', 't', ';' };
+  static final byte[] QUOT = { '&', 'q', 'u', 'o', 't', ';' };
+  static final byte[] APOS = { '&', '#', '3', '9', ';' };
+  
+  static int put( byte[] b, int c, byte[] entity )
+  {
+    for ( byte e : entity )
+      b[c++] = e;
+    return c;
+  }
+  
+  /**
+   * Number of bytes in the buffer.
+   * 
+   * @return The size.
+   */
+  public int size()
+  {
+    return count;
+  }
+  
+  /**
+   * Copy the content out.
+   * 
+   * @return A new array.
+   */
+  public byte[] toByteArray()
+  {
+    return Arrays.copyOf( buf, count );
+  }
+  
+  /**
+   * Send the content to a stream.
+   * 
+   * @param out The stream.
+   * @throws IOException If writing fails.
+   */
+  public void writeTo( OutputStream out ) throws IOException
+  {
+    out.write( buf, 0, count );
+  }
+}
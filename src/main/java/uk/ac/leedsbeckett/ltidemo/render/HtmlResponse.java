@@ -0,0 +1,227 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.render;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Helpers for servlets that send pages built from templates.
+ * 
+ * A rendered page can be sent in two ways. The blocking way writes it on
+ * the request thread, which waits while a slow client reads it. The
+ * asynchronous way puts the request into asynchronous mode and writes the
+ * page from a WriteListener whenever the connection can take more, so the
+ * request thread is returned to the container straight away.
+ * 
+ * @author jon
+ */
+public class HtmlResponse
+{
+  static final Logger logger = Logger.getLogger( HtmlResponse.class.getName() );
+  
+  /**
+   * Name of a request attribute which whoever started asynchronous
+   * processing can set to an AtomicBoolean. It is set true if the page is
+   * then written asynchronously, in which case completing the request must
+   * be left to the writer. The flag is kept by the caller because the
+   * request may already have been completed and recycled when it looks.
+   */
+  public static final String COMPLETED_BY_WRITER = HtmlResponse.class.getName() + ".completedbywriter";
+  
+  /**
+   * Largest slice of a page written in one go in asynchronous mode.
+   */
+  static final int CHUNK = 8192;
+  
+  /**
+   * How long an asynchronous write may take before it is abandoned.
+   */
+  static final long ASYNC_TIMEOUT_MILLIS = 60000L;
+  
+  /**
+   * Load a file of page templates from WEB-INF/templates.
+   * 
+   * @param context The servlet context.
+   * @param filename The name of the file.
+   * @return Templates by name.
+   * @throws ServletException If the file is missing or can't be read.
+   */
+  public static Map<String,HtmlTemplate> loadTemplates( ServletContext context, String filename ) throws ServletException
+  {
+    String path = "/WEB-INF/templates/" + filename;
+    InputStream in = context.getResourceAsStream( path );
+    if ( in == null )
+      throw new ServletException( "Missing templates " + path );
+    try
+    {
+      return HtmlTemplate.load( in );
+    }
+    catch ( IOException ex )
+    {
+      throw new ServletException( "Unable to load templates " + path, ex );
+    }
+  }
+  
+  /**
+   * Find a template that must be present.
+   * 
+   * @param templates Templates by name.
+   * @param name The template's name.
+   * @return The template.
+   * @throws ServletException If it is missing.
+   */
+  public static HtmlTemplate getTemplate( Map<String,HtmlTemplate> templates, String name ) throws ServletException
+  {
+    HtmlTemplate template = templates.get( name );
+    if ( template == null )
+      throw new ServletException( "Missing template " + name );
+    return template;
+  }
+  
+  /**
+   * Is a servlet named in a comma separated list?
+   * 
+   * @param list The list, may be null.
+   * @param servletname The servlet's name.
+   * @return True if listed.
+   */
+  public static boolean isListed( String list, String servletname )
+  {
+    if ( list == null )
+      return false;
+    for ( String item : list.split( "," ) )
+      if ( item.trim().equals( servletname ) )
+        return true;
+    return false;
+  }
+  
+  /**
+   * Send a rendered page. The length is known so it is sent as the content
+   * length and the bytes are written without further encoding. If
+   * asynchronous output is asked for but the request doesn't support it
+   * the page is sent the blocking way.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @param page The rendered page, which must not be changed afterwards.
+   * @param async True to write without blocking the request thread.
+   * @throws IOException If the page couldn't be sent.
+   */
+  public static void send( HttpServletRequest request, HttpServletResponse response, HtmlBuffer page, boolean async )
+          throws IOException
+  {
+    response.setContentType( "text/html;charset=UTF-8" );
+    response.setContentLength( page.size() );
+    
+    if ( async && request.isAsyncSupported() )
+    {
+      // The request may already be asynchronous if it was handed off to
+      // another thread.
+      AsyncContext context = request.isAsyncStarted() ? request.getAsyncContext() : request.startAsync();
+      context.setTimeout( ASYNC_TIMEOUT_MILLIS );
+      Object completedbywriter = request.getAttribute( COMPLETED_BY_WRITER );
+      if ( completedbywriter instanceof AtomicBoolean )
+        ((AtomicBoolean)completedbywriter).set( true );
+      PageWriter writer = new PageWriter( context, response.getOutputStream(), page );
+      context.addListener( writer );
+      writer.out.setWriteListener( writer );
+      return;
+    }
+    
+    try ( ServletOutputStream out = response.getOutputStream() )
+    {
+      page.writeTo( out );
+    }
+  }
+  
+  /**
+   * Writes a page in slices whenever the connection is ready and completes
+   * the request when it has all been written.
+   */
+  static final class PageWriter implements WriteListener, AsyncListener
+  {
+    final AsyncContext context;
+    final ServletOutputStream out;
+    final HtmlBuffer page;
+    int written = 0;
+
+    PageWriter( AsyncContext context, ServletOutputStream out, HtmlBuffer page )
+    {
+      this.context = context;
+      this.out = out;
+      this.page = page;
+    }
+    
+    @Override
+    public void onWritePossible() throws IOException
+    {
+      while ( out.isReady() )
+      {
+        if ( written == page.count )
+        {
+          context.complete();
+          return;
+        }
+        int n = Math.min( CHUNK, page.count - written );
+        out.write( page.buf, written, n );
+        written += n;
+      }
+    }
+
+    @Override
+    public void onError( Throwable t )
+    {
+      logger.log( Level.FINE, "Page not sent.", t );
+      context.complete();
+    }
+
+    @Override
+    public void onTimeout( AsyncEvent event )
+    {
+      context.complete();
+    }
+
+    @Override
+    public void onComplete( AsyncEvent event )
+    {
+    }
+
+    @Override
+    public void onError( AsyncEvent event )
+    {
+    }
+
+    @Override
+    public void onStartAsync( AsyncEvent event )
+    {
+    }
+  }
+}
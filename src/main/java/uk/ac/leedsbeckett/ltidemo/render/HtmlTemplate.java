@@ -0,0 +1,200 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.render;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A piece of HTML with named slots written as ${name}. The text between
+ * slots is encoded to UTF-8 once when the template is compiled. Rendering
+ * writes the fragments and the slot values into an HtmlBuffer in the order
+ * they appear; the slot names given while rendering are checked against
+ * the template so that a template and the code that fills it can't
+ * silently drift apart.
+ * 
+ * @author jon
+ */
+public class HtmlTemplate
+{
+  static final String SECTION_START = "<!-- template: ";
+  static final String SECTION_END   = " -->";
+  
+  final String name;
+  final byte[][] fragments;
+  final String[] slots;
+  
+  /**
+   * Compile a template.
+   * 
+   * @param name A name used in error messages.
+   * @param source The HTML with slots.
+   */
+  public HtmlTemplate( String name, String source )
+  {
+    this.name = name;
+    ArrayList<byte[]> f = new ArrayList<>();
+    ArrayList<String> s = new ArrayList<>();
+    int pos = 0;
+    while ( true )
+    {
+      int start = source.indexOf( "${", pos );
+      if ( start < 0 )
+        break;
+      int end = source.indexOf( '}', start );
+      if ( end < 0 )
+        throw new IllegalArgumentException( "Unterminated slot in template " + name );
+      f.add( source.substring( pos, start ).getBytes( StandardCharsets.UTF_8 ) );
+      s.add( source.substring( start+2, end ).trim() );
+      pos = end + 1;
+    }
+    f.add( source.substring( pos ).getBytes( StandardCharsets.UTF_8 ) );
+    fragments = f.toArray( new byte[f.size()][] );
+    slots = s.toArray( new String[s.size()] );
+  }
+  
+  /**
+   * Read a file of templates. Each template starts with a line of the form
+   * &lt;!-- template: name --&gt; and runs to the next such line.
+   * 
+   * @param in The file content.
+   * @return Templates by name.
+   * @throws IOException If the file can't be read.
+   */
+  public static Map<String,HtmlTemplate> load( InputStream in ) throws IOException
+  {
+    LinkedHashMap<String,HtmlTemplate> map = new LinkedHashMap<>();
+    try ( BufferedReader reader = new BufferedReader( new InputStreamReader( in, StandardCharsets.UTF_8 ) ) )
+    {
+      String current = null;
+      StringBuilder text = new StringBuilder();
+      String line;
+      while ( (line = reader.readLine()) != null )
+      {
+        String trimmed = line.trim();
+        if ( trimmed.startsWith( SECTION_START ) && trimmed.endsWith( SECTION_END ) )
+        {
+          if ( current != null )
+            map.put( current, new HtmlTemplate( current, text.toString() ) );
+          current = trimmed.substring( SECTION_START.length(), trimmed.length() - SECTION_END.length() ).trim();
+          text.setLength( 0 );
+        }
+        else if ( current != null )
+          text.append( line ).append( '\n' );
+      }
+      if ( current != null )
+        map.put( current, new HtmlTemplate( current, text.toString() ) );
+    }
+    return Collections.unmodifiableMap( map );
+  }
+  
+  /**
+   * Start rendering this template.
+   * 
+   * @param out Where to write.
+   * @return A cursor that is moved through the slots.
+   */
+  public Render render( HtmlBuffer out )
+  {
+    return new Render( out );
+  }
+  
+  /**
+   * Render a template whose slots are all filled with text.
+   * 
+   * @param out Where to write.
+   * @param values Values for the slots in order.
+   */
+  public void render( HtmlBuffer out, String... values )
+  {
+    if ( values.length != slots.length )
+      throw new IllegalStateException( "Template " + name + " has " + slots.length + " slots." );
+    for ( int i=0; i<slots.length; i++ )
+    {
+      out.raw( fragments[i] );
+      out.text( values[i] );
+    }
+    out.raw( fragments[slots.length] );
+  }
+
+  /**
+   * Moves through the slots of a template. Each call writes the fragment
+   * before the named slot and then the slot.
+   */
+  public final class Render
+  {
+    final HtmlBuffer out;
+    int next = 0;
+
+    Render( HtmlBuffer out )
+    {
+      this.out = out;
+    }
+    
+    void advance( String slot )
+    {
+      if ( next >= slots.length || !slots[next].equals( slot ) )
+        throw new IllegalStateException( "Template " + name + " expected slot " 
+                + (next < slots.length ? slots[next] : "end") + " not " + slot );
+      out.raw( fragments[next++] );
+    }
+    
+    /**
+     * Fill a slot with escaped text.
+     * 
+     * @param slot The name of the slot.
+     * @param value The text.
+     * @return This cursor.
+     */
+    public Render text( String slot, String value )
+    {
+      advance( slot );
+      out.text( value );
+      return this;
+    }
+    
+    /**
+     * Move to a slot which the caller fills by writing to the buffer,
+     * usually by rendering other templates.
+     * 
+     * @param slot The name of the slot.
+     * @return The buffer to write to.
+     */
+    public HtmlBuffer slot( String slot )
+    {
+      advance( slot );
+      return out;
+    }
+    
+    /**
+     * Write the rest of the template.
+     */
+    public void end()
+    {
+      if ( next != slots.length )
+        throw new IllegalStateException( "Template " + name + " slot " + slots[next] + " not filled." );
+      out.raw( fragments[next] );
+    }
+  }
+}
@@ -20,16 +20,15 @@ import uk.ac.leedsbeckett.ltidemo.tool.Resource;
 
 
 /**
- * State information which is needed by the CourseResourceServlet
- * 
- * course.
+ * State information which is needed by the CourseResourceServlet. Only
+ * the fields that the page uses are kept and the course title is interned
+ * because everyone launching from a course has the same one.
  * 
  * @author jon
  */
 public class CourseLaunchState extends LaunchState
 {
   private String resourceId;
-  private String courseId;
   private String courseTitle;
   
   /**
@@ -64,26 +63,6 @@ public class CourseLaunchState extends LaunchState
     this.resourceId = resourceId;
   }
 
-  /**
-   * Simple getter.
-   * 
-   * @return The LTI course ID.
-   */
-  public String getCourseId()
-  {
-    return courseId;
-  }
-
-  /**
-   * Simple setter.
-   * 
-   * @param courseId The LTI course ID.
-   */
-  public void setCourseId( String courseId )
-  {
-    this.courseId = courseId;
-  }
-  
   /**
    * Simple getter.
    * 
@@ -95,13 +74,13 @@ public class CourseLaunchState extends LaunchState
   }
 
   /**
-   * Simple setter.
+   * Set the title of the course, interned.
    * 
    * @param courseTitle The LTI title of the course.
    */
   public void setCourseTitle( String courseTitle )
   {
-    this.courseTitle = courseTitle;
+    this.courseTitle = courseTitle == null ? null : courseTitle.intern();
   }
 
   /**
@@ -16,23 +16,82 @@
 
 package uk.ac.leedsbeckett.ltidemo.state;
 
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import uk.ac.leedsbeckett.lti.LtiConfiguration;
 import uk.ac.leedsbeckett.lti.state.LtiState;
 import uk.ac.leedsbeckett.lti.state.LtiStateStore;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTrace;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTracer;
 
 /**
- * A customised subclass of the standard LtiStateStore. The only different
- * from the base class is that it creates a DemoState which is a subclass
- * of the standard LtiState. This ensures that we can put customised data
- * and functionality into the state that suits this tool.
+ * A customised subclass of the standard LtiStateStore. It creates a
+ * DemoState which is a subclass of the standard LtiState. This ensures that
+ * we can put customised data and functionality into the state that suits
+ * this tool.
+ * 
+ * States expire a fixed time after they are created or after a period
+ * without being looked up, whichever comes first. Expiry times are kept on
+ * a timing wheel which a background thread advances once a tick, so there
+ * is never a scan of all states. Looking up a state only records the time;
+ * when the wheel reaches a state that has been used since it was scheduled
+ * the state is simply scheduled again for its new expiry time.
+ * 
+ * States are created and looked up here rather than in the table kept by
+ * the base class, so once a state expires nothing holds on to it and the
+ * live count is the number of states actually in memory.
+ * 
+ * If a StateReplicator is set the launch data of each state is shared with
+ * other nodes, and launch data that isn't held locally is asked for from
+ * the node that owns it. Copies received from other nodes are kept in a
+ * separate table on a wheel of their own until their creator's TTL runs
+ * out. The state the library creates at login is not shared, because the
+ * library gives it its ID and nonce, so a login and its launch must be
+ * handled by the same node.
  * 
  * @author jon
  */
 public class DemoLtiStateStore extends LtiStateStore
 {
+  public static final long DEFAULT_TTL_MILLIS  = TimeUnit.HOURS.toMillis( 4L );
+  public static final long DEFAULT_IDLE_MILLIS = TimeUnit.HOURS.toMillis( 1L );
+  static final long TICK_MILLIS = 1000L;
+  
+  final ConcurrentHashMap<String,DemoState> states = new ConcurrentHashMap<>();
+  final TimingWheel<DemoState> wheel = new TimingWheel<>( TICK_MILLIS, System.currentTimeMillis() );
+  volatile long ttlMillis  = DEFAULT_TTL_MILLIS;
+  volatile long idleMillis = DEFAULT_IDLE_MILLIS;
+  ScheduledExecutorService sweeper;
+  
+  final ConcurrentHashMap<String,ReplicatedState> replicas = new ConcurrentHashMap<>();
+  final TimingWheel<ReplicatedState> replicaWheel = new TimingWheel<>( TICK_MILLIS, System.currentTimeMillis() );
+  volatile StateReplicator replicator;
+  
+  final LongAdder created = new LongAdder();
+  final LongAdder expired = new LongAdder();
+  
+  /**
+   * Create a state for a login. The base class would also put the state
+   * into its own table, which is never emptied, so the state is only put
+   * into this store's table.
+   * 
+   * @param client The issuer client configuration.
+   * @return The new state.
+   */
+  @Override
+  public LtiState createState( LtiConfiguration.Client client )
+  {
+    return newState( client );
+  }
+  
   /**
    * Makes sure that the state object used throughout the LTI handling
-   * is a customised LtiState.
+   * is a customised LtiState and schedules its expiry. If the login that
+   * is creating the state is being traced the trace is attached.
    * 
    * @param client The issuer client configuration.
    * @return An implementation of LtiState.
@@ -40,6 +99,293 @@ public class DemoLtiStateStore extends LtiStateStore
   @Override
   protected LtiState newState( LtiConfiguration.Client client )
   {
-    return new DemoState( client );    
-  }  
+    DemoState state = new DemoState( client );
+    state.trace = LaunchTracer.stateCreated( state.getId() );
+    states.put( state.getId(), state );
+    wheel.schedule( state, expiryTime( state ) );
+    created.increment();
+    return state;
+  }
+  
+  /**
+   * Look up a state. States that have expired are not found even if the
+   * sweeper hasn't removed them yet.
+   * 
+   * @param id The ID of the state.
+   * @return The state or null.
+   */
+  @Override
+  public LtiState getState( String id )
+  {
+    if ( id == null )
+      return null;
+    DemoState state = states.get( id );
+    if ( state == null )
+      return null;
+    long now = System.currentTimeMillis();
+    if ( state.expired || now >= expiryTime( state ) )
+      return null;
+    state.touch( now );
+    return state;
+  }
+  
+  /**
+   * Find the trace of the launch that a state on this node belongs to.
+   * 
+   * @param id The ID of the state.
+   * @return The trace or null if the state isn't here or isn't traced.
+   */
+  public LaunchTrace getTrace( String id )
+  {
+    DemoState state = id == null ? null : states.get( id );
+    return state == null ? null : state.trace;
+  }
+  
+  /**
+   * Find the platform launch data for a state, from this node if possible
+   * or otherwise from the node that owns it.
+   * 
+   * @param id The ID of the state.
+   * @return The launch data or null.
+   */
+  public LaunchState getPlatformLaunchState( String id )
+  {
+    DemoState state = (DemoState)getState( id );
+    if ( state != null )
+      return state.getPlatformLaunchState();
+    ReplicatedState replica = getReplica( id );
+    return replica == null ? null : replica.getPlatformLaunchState();
+  }
+  
+  /**
+   * Find the course launch data for a state, from this node if possible
+   * or otherwise from the node that owns it.
+   * 
+   * @param id The ID of the state.
+   * @return The launch data or null.
+   */
+  public CourseLaunchState getCourseLaunchState( String id )
+  {
+    DemoState state = (DemoState)getState( id );
+    if ( state != null )
+      return state.getCourseLaunchState();
+    ReplicatedState replica = getReplica( id );
+    return replica == null ? null : replica.getCourseLaunchState();
+  }
+  
+  /**
+   * Find a copy of a state that was created on another node. A copy which
+   * has to be fetched is kept so that later requests don't go back to the
+   * owner.
+   * 
+   * @param id The ID of the state.
+   * @return The copy or null.
+   */
+  ReplicatedState getReplica( String id )
+  {
+    if ( id == null )
+      return null;
+    ReplicatedState replica = replicas.get( id );
+    if ( replica == null && replicator != null )
+    {
+      replica = replicator.fetch( id );
+      if ( replica != null )
+        acceptReplica( replica );
+    }
+    if ( replica == null || System.currentTimeMillis() >= replica.getExpires() )
+      return null;
+    return replica;
+  }
+  
+  /**
+   * Find launch data on behalf of another node. Only this node's own
+   * tables are consulted.
+   * 
+   * @param id The ID of the state.
+   * @return A copy of the launch data or null.
+   */
+  public ReplicatedState getStateForPeer( String id )
+  {
+    DemoState state = (DemoState)getState( id );
+    if ( state != null )
+      return toReplicatedState( state );
+    ReplicatedState replica = replicas.get( id );
+    if ( replica == null || System.currentTimeMillis() >= replica.getExpires() )
+      return null;
+    return replica;
+  }
+  
+  /**
+   * Keep a copy of a state that was sent by another node.
+   * 
+   * @param replica The copy.
+   */
+  public void acceptReplica( ReplicatedState replica )
+  {
+    if ( System.currentTimeMillis() >= replica.getExpires() )
+      return;
+    // A copy that is replaced or removed stays on the wheel until it is
+    // due but the sweep only removes the exact copy that it scheduled.
+    replicas.put( replica.getId(), replica );
+    replicaWheel.schedule( replica, replica.getExpires() );
+  }
+  
+  /**
+   * Forget a copy of a state because its creator has expired it.
+   * 
+   * @param id The ID of the state.
+   */
+  public void removeReplica( String id )
+  {
+    replicas.remove( id );
+  }
+  
+  /**
+   * Called once launch data has been put into a state so that it can be
+   * shared with other nodes.
+   * 
+   * @param state The state.
+   */
+  public void launched( DemoState state )
+  {
+    StateReplicator r = replicator;
+    if ( r != null )
+      r.publish( toReplicatedState( state ) );
+  }
+  
+  ReplicatedState toReplicatedState( DemoState state )
+  {
+    return new ReplicatedState( 
+            state.getId(), 
+            state.created + ttlMillis, 
+            state.getPlatformLaunchState(), 
+            state.getCourseLaunchState() );
+  }
+  
+  /**
+   * Set the replicator that shares states with other nodes.
+   * 
+   * @param replicator The replicator or null for a single node.
+   */
+  public void setReplicator( StateReplicator replicator )
+  {
+    this.replicator = replicator;
+  }
+  
+  /**
+   * Get the replicator.
+   * 
+   * @return The replicator or null.
+   */
+  public StateReplicator getReplicator()
+  {
+    return replicator;
+  }
+  
+  long expiryTime( DemoState state )
+  {
+    return Math.min( state.created + ttlMillis, state.lastAccessed + idleMillis );
+  }
+  
+  /**
+   * Set how long states live.
+   * 
+   * @param ttlMillis Time from creation to expiry in milliseconds.
+   * @param idleMillis Time from last use to expiry in milliseconds.
+   */
+  public void setExpiry( long ttlMillis, long idleMillis )
+  {
+    this.ttlMillis = ttlMillis;
+    this.idleMillis = idleMillis;
+  }
+  
+  /**
+   * Start the background thread that expires states.
+   */
+  public void start()
+  {
+    sweeper = Executors.newSingleThreadScheduledExecutor( r -> 
+    {
+      Thread t = new Thread( r, "lti-state-sweeper" );
+      t.setDaemon( true );
+      return t;
+    } );
+    sweeper.scheduleAtFixedRate( this::sweep, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS );
+  }
+  
+  /**
+   * Stop the background thread.
+   */
+  public void stop()
+  {
+    if ( sweeper != null )
+      sweeper.shutdownNow();
+  }
+  
+  /**
+   * Advance the wheel to now, then expire the states that are due and put
+   * back the ones that have been used in the meantime.
+   */
+  void sweep()
+  {
+    long now = System.currentTimeMillis();
+    ArrayList<DemoState> due = new ArrayList<>();
+    wheel.advance( now, due::add );
+    for ( DemoState state : due )
+    {
+      long expiry = expiryTime( state );
+      if ( expiry > now )
+      {
+        wheel.schedule( state, expiry );
+        continue;
+      }
+      states.remove( state.getId(), state );
+      state.expire();
+      expired.increment();
+      StateReplicator r = replicator;
+      if ( r != null )
+        r.remove( state.getId() );
+    }
+    replicaWheel.advance( now, replica -> replicas.remove( replica.getId(), replica ) );
+  }
+  
+  /**
+   * How many states are live.
+   * 
+   * @return Number of states.
+   */
+  public int getLiveCount()
+  {
+    return states.size();
+  }
+  
+  /**
+   * How many copies of states from other nodes are held.
+   * 
+   * @return Number of copies.
+   */
+  public int getReplicaCount()
+  {
+    return replicas.size();
+  }
+  
+  /**
+   * How many states have been created since start up.
+   * 
+   * @return Number of states.
+   */
+  public long getCreatedCount()
+  {
+    return created.sum();
+  }
+  
+  /**
+   * How many states have expired since start up.
+   * 
+   * @return Number of states.
+   */
+  public long getExpiredCount()
+  {
+    return expired.sum();
+  }
 }
@@ -18,6 +18,7 @@ package uk.ac.leedsbeckett.ltidemo.state;
 
 import uk.ac.leedsbeckett.lti.LtiConfiguration;
 import uk.ac.leedsbeckett.lti.state.LtiState;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTrace;
 
 /**
  * This demo's customised subclass of LtiState which can store additional
@@ -37,6 +38,27 @@ public class DemoState extends LtiState
    */
   LaunchState       platformLaunchState = null;
   
+  /**
+   * When this state was created.
+   */
+  final long created;
+  
+  /**
+   * When this state was last looked up.
+   */
+  volatile long lastAccessed;
+  
+  /**
+   * Set when the store has expired this state.
+   */
+  volatile boolean expired = false;
+  
+  /**
+   * The timeline of the launch that this state belongs to, or null if it
+   * isn't being traced.
+   */
+  LaunchTrace trace;
+  
   /**
    * Constructor of this state must make sure the superclass constructor
    * is called.
@@ -46,6 +68,72 @@ public class DemoState extends LtiState
   public DemoState( LtiConfiguration.Client client )
   {
     super( client );
+    created = lastAccessed = System.currentTimeMillis();
+  }
+  
+  /**
+   * Simple getter.
+   * 
+   * @return When this state was created.
+   */
+  public long getCreated()
+  {
+    return created;
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return When this state was last looked up.
+   */
+  public long getLastAccessed()
+  {
+    return lastAccessed;
+  }
+  
+  /**
+   * Record that the state has been used.
+   * 
+   * @param now The current time.
+   */
+  void touch( long now )
+  {
+    // Avoid writing the shared field on every lookup.
+    if ( now - lastAccessed >= 1000L )
+      lastAccessed = now;
+  }
+  
+  /**
+   * Simple getter.
+   * 
+   * @return The trace of this state's launch or null.
+   */
+  public LaunchTrace getTrace()
+  {
+    return trace;
+  }
+  
+  /**
+   * Has the store expired this state?
+   * 
+   * @return True if expired.
+   */
+  public boolean isExpired()
+  {
+    return expired;
+  }
+  
+  /**
+   * Called by the store when the state expires. The launch data is dropped
+   * so that it can be garbage collected even if something still refers to
+   * this object.
+   */
+  void expire()
+  {
+    expired = true;
+    courseLaunchState = null;
+    platformLaunchState = null;
+    trace = null;
   }
   
   /**
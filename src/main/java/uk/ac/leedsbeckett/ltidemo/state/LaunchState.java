@@ -16,18 +16,22 @@
 
 package uk.ac.leedsbeckett.ltidemo.state;
 
+import java.util.List;
 import uk.ac.leedsbeckett.lti.claims.LtiRoleClaims;
 
 /**
  * This contains data that a user of the platform-wide tool might need.
  * 
+ * Many thousands of these are held at once so they are kept small. The
+ * platform name is interned and the roles are a shared RoleSet.
+ * 
  * @author jon
  */
 public class LaunchState
 {
   private String personName;
   private String platformName;
-  private LtiRoleClaims roles;
+  private RoleSet roles = RoleSet.EMPTY;
 
   public String getPersonName()
   {
@@ -44,20 +48,54 @@ public class LaunchState
     return platformName;
   }
 
+  /**
+   * Set the platform name, interned because every launch from a platform
+   * has the same one.
+   * 
+   * @param platformName The platform name.
+   */
   public void setPlatformName( String platformName )
   {
-    this.platformName = platformName;
+    this.platformName = platformName == null ? null : platformName.intern();
+  }
+
+  /**
+   * Get the names of the user's roles.
+   * 
+   * @return Unmodifiable list of role names.
+   */
+  public List<String> getRoles()
+  {
+    return roles.getNames();
   }
 
-  public LtiRoleClaims getRoles()
+  /**
+   * Get the user's roles.
+   * 
+   * @return The role set.
+   */
+  public RoleSet getRoleSet()
   {
     return roles;
   }
 
+  /**
+   * Set the roles from the LTI role claims.
+   * 
+   * @param roles The role claims.
+   */
   public void setRoles( LtiRoleClaims roles )
   {
-    this.roles = roles;
+    this.roles = RoleSet.of( roles );
+  }
+
+  /**
+   * Set the names of the user's roles.
+   * 
+   * @param roles List of role names.
+   */
+  public void setRoles( List<String> roles )
+  {
+    this.roles = RoleSet.of( roles );
   }
-  
-  
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.state;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns launch state into a signed token which the browser carries from
+ * page to page instead of a state ID. Any node that shares the signing key
+ * can verify the token and rebuild the launch state without looking
+ * anything up, so requests do not need to go back to the node that handled
+ * the launch.
+ * 
+ * The token is a JWT signed with HMAC-SHA256. If an encryption key is
+ * configured the launch data is encrypted with AES-GCM and carried in a
+ * single claim so the browser can't read it.
+ * 
+ * @author jon
+ */
+public class LaunchTokenCodec
+{
+  static final String TYPE         = "typ";
+  static final String PERSON       = "pn";
+  static final String PLATFORM     = "pl";
+  static final String COURSE_TITLE = "ct";
+  static final String RESOURCE_ID  = "ri";
+  static final String ROLES        = "ro";
+  static final String CLEAR        = "cl";
+  static final String ENCRYPTED    = "enc";
+  
+  static final String TYPE_PLATFORM = "platform";
+  static final String TYPE_COURSE   = "course";
+  
+  static final int IV_LENGTH = 12;
+  
+  final Key signingKey;
+  final SecretKeySpec encryptionKey;
+  final long lifetimeMillis;
+  final ObjectMapper mapper = new ObjectMapper();
+  final SecureRandom random = new SecureRandom();
+
+  /**
+   * Construct a codec.
+   * 
+   * @param signingKey HMAC key of at least 32 bytes.
+   * @param encryptionKey AES key of 16, 24 or 32 bytes or null to leave
+   * the launch data readable.
+   * @param lifetimeMillis How long tokens remain valid.
+   */
+  public LaunchTokenCodec( byte[] signingKey, byte[] encryptionKey, long lifetimeMillis )
+  {
+    this.signingKey = Keys.hmacShaKeyFor( signingKey );
+    this.encryptionKey = encryptionKey == null ? null : new SecretKeySpec( encryptionKey, "AES" );
+    this.lifetimeMillis = lifetimeMillis;
+  }
+  
+  /**
+   * Make a random key suitable for signing, for use when no key is
+   * configured. Tokens signed with it can only be verified by this node.
+   * 
+   * @return Key bytes.
+   */
+  public static byte[] randomSigningKey()
+  {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes( key );
+    return key;
+  }
+  
+  /**
+   * Create a token for a platform level launch.
+   * 
+   * @param launch The launch state.
+   * @return The token.
+   */
+  public String encode( LaunchState launch )
+  {
+    HashMap<String,Object> data = new HashMap<>();
+    data.put( TYPE, TYPE_PLATFORM );
+    putCommon( data, launch );
+    return sign( data );
+  }
+  
+  /**
+   * Create a token for a course content launch.
+   * 
+   * @param launch The launch state.
+   * @return The token.
+   */
+  public String encode( CourseLaunchState launch )
+  {
+    HashMap<String,Object> data = new HashMap<>();
+    data.put( TYPE, TYPE_COURSE );
+    putCommon( data, launch );
+    data.put( COURSE_TITLE, launch.getCourseTitle() );
+    data.put( RESOURCE_ID,  launch.getResourceId() );
+    data.put( CLEAR,        launch.isAllowedToClearResource() );
+    return sign( data );
+  }
+  
+  void putCommon( Map<String,Object> data, LaunchState launch )
+  {
+    data.put( PERSON,   launch.getPersonName() );
+    data.put( PLATFORM, launch.getPlatformName() );
+    data.put( ROLES,    launch.getRoles() );
+  }
+  
+  String sign( Map<String,Object> data )
+  {
+    long now = System.currentTimeMillis();
+    Map<String,Object> claims = data;
+    if ( encryptionKey != null )
+    {
+      claims = new HashMap<>();
+      claims.put( ENCRYPTED, encrypt( data ) );
+    }
+    return Jwts.builder()
+            .setClaims( claims )
+            .setIssuedAt( new Date( now ) )
+            .setExpiration( new Date( now + lifetimeMillis ) )
+            .signWith( signingKey, SignatureAlgorithm.HS256 )
+            .compact();
+  }
+  
+  /**
+   * Verify a token and rebuild the launch state in it.
+   * 
+   * @param token The token.
+   * @return A LaunchState for a platform launch or a CourseLaunchState for
+   * a course content launch.
+   * @throws JwtException If the token is not valid or has expired.
+   */
+  public LaunchState decode( String token ) throws JwtException
+  {
+    Claims claims = Jwts.parserBuilder()
+            .setSigningKey( signingKey )
+            .build()
+            .parseClaimsJws( token )
+            .getBody();
+    
+    Map<String,Object> data = claims;
+    String encrypted = claims.get( ENCRYPTED, String.class );
+    if ( encrypted != null )
+      data = decrypt( encrypted );
+    
+    LaunchState launch;
+    if ( TYPE_COURSE.equals( data.get( TYPE ) ) )
+    {
+      CourseLaunchState course = new CourseLaunchState();
+      course.setCourseTitle( (String)data.get( COURSE_TITLE ) );
+      course.setResourceId(  (String)data.get( RESOURCE_ID ) );
+      course.setAllowedToClearResource( Boolean.TRUE.equals( data.get( CLEAR ) ) );
+      launch = course;
+    }
+    else
+      launch = new LaunchState();
+    
+    launch.setPersonName(   (String)data.get( PERSON ) );
+    launch.setPlatformName( (String)data.get( PLATFORM ) );
+    Object roles = data.get( ROLES );
+    if ( roles instanceof List )
+    {
+      @SuppressWarnings( "unchecked" )
+      List<String> list = (List<String>)roles;
+      launch.setRoles( list );
+    }
+    return launch;
+  }
+  
+  String encrypt( Map<String,Object> data )
+  {
+    try
+    {
+      byte[] plain = mapper.writeValueAsBytes( data );
+      byte[] iv = new byte[IV_LENGTH];
+      random.nextBytes( iv );
+      Cipher cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
+      cipher.init( Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec( 128, iv ) );
+      byte[] sealed = cipher.doFinal( plain );
+      ByteBuffer out = ByteBuffer.allocate( iv.length + sealed.length );
+      out.put( iv ).put( sealed );
+      return Base64.getUrlEncoder().withoutPadding().encodeToString( out.array() );
+    }
+    catch ( JsonProcessingException | GeneralSecurityException ex )
+    {
+      throw new IllegalStateException( "Unable to encrypt launch state.", ex );
+    }
+  }
+  
+  Map<String,Object> decrypt( String encrypted )
+  {
+    try
+    {
+      byte[] sealed = Base64.getUrlDecoder().decode( encrypted );
+      if ( sealed.length <= IV_LENGTH )
+        throw new JwtException( "Encrypted launch state is too short." );
+      Cipher cipher = Cipher.getInstance( "AES/GCM/NoPadding" );
+      cipher.init( Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec( 128, sealed, 0, IV_LENGTH ) );
+      byte[] plain = cipher.doFinal( sealed, IV_LENGTH, sealed.length - IV_LENGTH );
+      @SuppressWarnings( "unchecked" )
+      Map<String,Object> data = mapper.readValue( plain, Map.class );
+      return data;
+    }
+    catch ( GeneralSecurityException | IOException | IllegalArgumentException ex )
+    {
+      throw new JwtException( "Unable to decrypt launch state.", ex );
+    }
+  }
+}
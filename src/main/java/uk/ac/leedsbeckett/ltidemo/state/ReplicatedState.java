@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.state;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A copy of the launch data in a DemoState which can be sent to another
+ * node. It holds only what the tool pages need, not the LTI state that the
+ * library uses during the launch itself.
+ * 
+ * @author jon
+ */
+public class ReplicatedState
+{
+  final String id;
+  final long expires;
+  final LaunchState platformLaunchState;
+  final CourseLaunchState courseLaunchState;
+
+  /**
+   * Construct.
+   * 
+   * @param id The ID of the state.
+   * @param expires When the state expires.
+   * @param platformLaunchState The platform launch data or null.
+   * @param courseLaunchState The course launch data or null.
+   */
+  public ReplicatedState( String id, long expires, LaunchState platformLaunchState, CourseLaunchState courseLaunchState )
+  {
+    this.id = id;
+    this.expires = expires;
+    this.platformLaunchState = platformLaunchState;
+    this.courseLaunchState = courseLaunchState;
+  }
+
+  public String getId()
+  {
+    return id;
+  }
+
+  public long getExpires()
+  {
+    return expires;
+  }
+
+  public LaunchState getPlatformLaunchState()
+  {
+    return platformLaunchState;
+  }
+
+  public CourseLaunchState getCourseLaunchState()
+  {
+    return courseLaunchState;
+  }
+  
+  /**
+   * Write this state to a stream.
+   * 
+   * @param out The stream.
+   * @throws IOException If writing fails.
+   */
+  public void write( DataOutput out ) throws IOException
+  {
+    out.writeUTF( id );
+    out.writeLong( expires );
+    out.writeBoolean( platformLaunchState != null );
+    if ( platformLaunchState != null )
+      writeLaunch( out, platformLaunchState );
+    out.writeBoolean( courseLaunchState != null );
+    if ( courseLaunchState != null )
+    {
+      writeLaunch( out, courseLaunchState );
+      writeString( out, courseLaunchState.getCourseTitle() );
+      writeString( out, courseLaunchState.getResourceId() );
+      out.writeBoolean( courseLaunchState.isAllowedToClearResource() );
+    }
+  }
+  
+  /**
+   * Read a state from a stream.
+   * 
+   * @param in The stream.
+   * @return The state.
+   * @throws IOException If reading fails.
+   */
+  public static ReplicatedState read( DataInput in ) throws IOException
+  {
+    String id = in.readUTF();
+    long expires = in.readLong();
+    LaunchState platform = null;
+    if ( in.readBoolean() )
+    {
+      platform = new LaunchState();
+      readLaunch( in, platform );
+    }
+    CourseLaunchState course = null;
+    if ( in.readBoolean() )
+    {
+      course = new CourseLaunchState();
+      readLaunch( in, course );
+      course.setCourseTitle( readString( in ) );
+      course.setResourceId( readString( in ) );
+      course.setAllowedToClearResource( in.readBoolean() );
+    }
+    return new ReplicatedState( id, expires, platform, course );
+  }
+  
+  static void writeLaunch( DataOutput out, LaunchState launch ) throws IOException
+  {
+    writeString( out, launch.getPersonName() );
+    writeString( out, launch.getPlatformName() );
+    out.writeShort( launch.getRoles().size() );
+    for ( String role : launch.getRoles() )
+      out.writeUTF( role );
+  }
+  
+  static void readLaunch( DataInput in, LaunchState launch ) throws IOException
+  {
+    launch.setPersonName( readString( in ) );
+    launch.setPlatformName( readString( in ) );
+    int n = in.readUnsignedShort();
+    ArrayList<String> roles = new ArrayList<>( n );
+    for ( int i=0; i<n; i++ )
+      roles.add( in.readUTF() );
+    launch.setRoles( roles );
+  }
+  
+  static void writeString( DataOutput out, String s ) throws IOException
+  {
+    out.writeBoolean( s != null );
+    if ( s != null )
+      out.writeUTF( s );
+  }
+  
+  static String readString( DataInput in ) throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+}
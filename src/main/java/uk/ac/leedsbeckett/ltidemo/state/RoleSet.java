@@ -0,0 +1,244 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.ltidemo.state;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import uk.ac.leedsbeckett.lti.claims.LtiRoleClaims;
+
+/**
+ * The roles of a user in a launch, held as a bit mask over a vocabulary of
+ * role names. The standard LTI roles are in the vocabulary from the start
+ * and other roles are added when they are first seen, up to 64 in all.
+ * 
+ * Role sets are shared. There are only a few combinations of roles in
+ * practice, so every launch with the same roles gets the same object and
+ * a launch state only holds a reference to it. A role set with a role that
+ * doesn't fit in the vocabulary isn't shared.
+ * 
+ * @author jon
+ */
+public final class RoleSet
+{
+  static final String LIS = "http://purl.imsglobal.org/vocab/lis/v2/";
+  
+  /**
+   * The role that the LTI library treats as the standard instructor role.
+   */
+  public static final String INSTRUCTOR = LIS + "membership#Instructor";
+  
+  static final String[] STANDARD_ROLES =
+  {
+    INSTRUCTOR,
+    LIS + "membership#Learner",
+    LIS + "membership#Administrator",
+    LIS + "membership#ContentDeveloper",
+    LIS + "membership#Mentor",
+    LIS + "membership/Instructor#TeachingAssistant",
+    LIS + "institution/person#Administrator",
+    LIS + "institution/person#Faculty",
+    LIS + "institution/person#Guest",
+    LIS + "institution/person#Instructor",
+    LIS + "institution/person#Learner",
+    LIS + "institution/person#Mentor",
+    LIS + "institution/person#None",
+    LIS + "institution/person#Other",
+    LIS + "institution/person#Staff",
+    LIS + "institution/person#Student",
+    LIS + "system/person#Administrator",
+    LIS + "system/person#None",
+    LIS + "system/person#SysAdmin",
+    LIS + "system/person#SysSupport",
+    LIS + "system/person#User",
+  };
+  
+  static final long INSTRUCTOR_BIT = 1L;
+  
+  // The vocabulary. Names are only added, with the lock held, and a bit
+  // is published in the map after its name is in the array.
+  static final String[] vocabulary = new String[64];
+  static final ConcurrentHashMap<String,Long> bits = new ConcurrentHashMap<>();
+  static final ReentrantLock vocabularylock = new ReentrantLock();
+  static volatile int vocabularysize = 0;
+  
+  // Shared role sets by mask
+  static final ConcurrentHashMap<Long,RoleSet> sets = new ConcurrentHashMap<>();
+  
+  static
+  {
+    for ( String role : STANDARD_ROLES )
+      bit( role );
+  }
+  
+  /**
+   * A set with no roles.
+   */
+  public static final RoleSet EMPTY = new RoleSet( 0L, Collections.emptyList() );
+  
+  final long mask;
+  final List<String> names;
+  
+  RoleSet( long mask, List<String> names )
+  {
+    this.mask = mask;
+    this.names = names;
+  }
+  
+  /**
+   * Find the bit for a role, adding the role to the vocabulary if it is
+   * new and there is room.
+   * 
+   * @param role The role name.
+   * @return The bit or zero if the vocabulary is full.
+   */
+  static long bit( String role )
+  {
+    Long bit = bits.get( role );
+    if ( bit != null )
+      return bit;
+    vocabularylock.lock();
+    try
+    {
+      bit = bits.get( role );
+      if ( bit != null )
+        return bit;
+      int n = vocabularysize;
+      if ( n == vocabulary.length )
+        return 0L;
+      String name = role.intern();
+      vocabulary[n] = name;
+      vocabularysize = n + 1;
+      bits.put( name, 1L << n );
+      return 1L << n;
+    }
+    finally
+    {
+      vocabularylock.unlock();
+    }
+  }
+  
+  /**
+   * Get the role set for the roles in a launch.
+   * 
+   * @param claims The role claims.
+   * @return The role set.
+   */
+  public static RoleSet of( LtiRoleClaims claims )
+  {
+    if ( claims == null )
+      return EMPTY;
+    ArrayList<String> roles = new ArrayList<>( claims.getSize() );
+    for ( int i=0; i<claims.getSize(); i++ )
+      roles.add( claims.getAsString( i ) );
+    return of( roles );
+  }
+  
+  /**
+   * Get the role set for a list of role names.
+   * 
+   * @param roles The role names.
+   * @return The role set.
+   */
+  public static RoleSet of( List<String> roles )
+  {
+    long mask = 0L;
+    ArrayList<String> others = null;
+    for ( String role : roles )
+    {
+      if ( role == null )
+        continue;
+      long bit = bit( role );
+      if ( bit != 0L )
+        mask |= bit;
+      else
+      {
+        if ( others == null )
+          others = new ArrayList<>();
+        if ( !others.contains( role ) )
+          others.add( role );
+      }
+    }
+    if ( others != null )
+      return new RoleSet( mask, names( mask, others ) );
+    if ( mask == 0L )
+      return EMPTY;
+    RoleSet set = sets.get( mask );
+    if ( set == null )
+    {
+      RoleSet created = new RoleSet( mask, names( mask, Collections.emptyList() ) );
+      set = sets.putIfAbsent( mask, created );
+      if ( set == null )
+        set = created;
+    }
+    return set;
+  }
+  
+  static List<String> names( long mask, List<String> others )
+  {
+    ArrayList<String> list = new ArrayList<>( Long.bitCount( mask ) + others.size() );
+    for ( long m = mask; m != 0L; m &= m - 1L )
+      list.add( vocabulary[Long.numberOfTrailingZeros( m )] );
+    list.addAll( others );
+    return Collections.unmodifiableList( list );
+  }
+  
+  /**
+   * Get the names of the roles.
+   * 
+   * @return Unmodifiable list of role names.
+   */
+  public List<String> getNames()
+  {
+    return names;
+  }
+  
+  /**
+   * Is the user in a role?
+   * 
+   * @param role The role name.
+   * @return True if the user is.
+   */
+  public boolean hasRole( String role )
+  {
+    Long bit = bits.get( role );
+    return bit != null ? ( mask & bit ) != 0L : names.contains( role );
+  }
+  
+  /**
+   * Is the user in the standard instructor role?
+   * 
+   * @return True if the user is.
+   */
+  public boolean isInStandardInstructorRole()
+  {
+    return ( mask & INSTRUCTOR_BIT ) != 0L;
+  }
+  
+  /**
+   * Get the bit mask of the roles in the vocabulary.
+   * 
+   * @return The mask.
+   */
+  public long getMask()
+  {
+    return mask;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.state;
+
+import java.io.IOException;
+
+/**
+ * Shares launch data between nodes so that a tool page request can be
+ * handled by a different node from the one that handled the launch.
+ * Implementations must not block in publish or remove.
+ * 
+ * @author jon
+ */
+public interface StateReplicator
+{
+  /**
+   * Start replicating.
+   * 
+   * @param store The local state store, which answers requests from other
+   * nodes and receives their states.
+   * @throws IOException If network resources could not be opened.
+   */
+  void start( DemoLtiStateStore store ) throws IOException;
+  
+  /**
+   * Stop replicating and release network resources.
+   */
+  void stop();
+  
+  /**
+   * Send a state to the nodes that need it. Returns without waiting.
+   * 
+   * @param state The state.
+   */
+  void publish( ReplicatedState state );
+  
+  /**
+   * Tell the nodes that have a copy of a state that it has gone. Returns
+   * without waiting.
+   * 
+   * @param id The ID of the state.
+   */
+  void remove( String id );
+  
+  /**
+   * Ask the node that owns a state for a copy of it.
+   * 
+   * @param id The ID of the state.
+   * @return The state or null if it couldn't be found.
+   */
+  ReplicatedState fetch( String id );
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.state;
+
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hierarchical timing wheel. Each level is a ring of 64 slots and a slot
+ * on one level covers a whole revolution of the level below. Scheduling and
+ * cancelling take constant time and advancing the wheel by one tick only
+ * touches the items that are due, plus an occasional cascade of one slot
+ * from a higher level into the levels below. So the cost of expiring items
+ * does not depend on how many items are waiting.
+ * 
+ * The wheel is driven by calling advance with the current time. Items whose
+ * deadline has passed are handed to a consumer.
+ * 
+ * @param <T> The type of item scheduled.
+ * @author jon
+ */
+public class TimingWheel<T>
+{
+  static final int SLOT_BITS = 6;
+  static final int SLOTS     = 1 << SLOT_BITS;
+  static final int SLOT_MASK = SLOTS - 1;
+  static final int LEVELS    = 4;
+  
+  /**
+   * An item on the wheel. Held in a doubly linked list in its slot so it
+   * can be cancelled in constant time.
+   * 
+   * @param <T> The type of item.
+   */
+  public static final class Timeout<T>
+  {
+    final T item;
+    final long deadline;
+    Timeout<T> previous;
+    Timeout<T> next;
+    Bucket<T> bucket;
+
+    Timeout( T item, long deadline )
+    {
+      this.item = item;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Simple getter.
+     * 
+     * @return The scheduled item.
+     */
+    public T getItem()
+    {
+      return item;
+    }
+  }
+  
+  static final class Bucket<T>
+  {
+    Timeout<T> head;
+    
+    void add( Timeout<T> t )
+    {
+      t.bucket = this;
+      t.previous = null;
+      t.next = head;
+      if ( head != null )
+        head.previous = t;
+      head = t;
+    }
+    
+    void remove( Timeout<T> t )
+    {
+      if ( t.previous != null )
+        t.previous.next = t.next;
+      else
+        head = t.next;
+      if ( t.next != null )
+        t.next.previous = t.previous;
+      t.previous = t.next = null;
+      t.bucket = null;
+    }
+    
+    Timeout<T> takeAll()
+    {
+      Timeout<T> all = head;
+      head = null;
+      return all;
+    }
+  }
+  
+  final long tickMillis;
+  final Bucket<T>[][] wheel;
+  final ReentrantLock lock = new ReentrantLock();
+  long currentTick;
+  int size = 0;
+
+  /**
+   * Construct a wheel.
+   * 
+   * @param tickMillis The length of one tick. Items expire on a tick
+   * boundary so this is the resolution of the wheel.
+   * @param nowMillis The current time.
+   */
+  public TimingWheel( long tickMillis, long nowMillis )
+  {
+    this.tickMillis = tickMillis;
+    this.currentTick = nowMillis / tickMillis;
+    wheel = newWheel();
+    for ( int l=0; l<LEVELS; l++ )
+      for ( int s=0; s<SLOTS; s++ )
+        wheel[l][s] = new Bucket<>();
+  }
+  
+  /**
+   * Java can't create an array of a generic type so this creates a raw one
+   * and casts it.
+   * 
+   * @param <T> The type of item held in the buckets.
+   * @return An empty array of levels of slots.
+   */
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  private static <T> Bucket<T>[][] newWheel()
+  {
+    return (Bucket<T>[][])new Bucket[LEVELS][SLOTS];
+  }
+  
+  /**
+   * Schedule an item.
+   * 
+   * @param item The item.
+   * @param deadlineMillis When the item should expire.
+   * @return A handle which can be used to cancel.
+   */
+  public Timeout<T> schedule( T item, long deadlineMillis )
+  {
+    // Round up so an item never fires before its deadline.
+    Timeout<T> t = new Timeout<>( item, (deadlineMillis + tickMillis - 1L) / tickMillis );
+    lock.lock();
+    try
+    {
+      place( t );
+      size++;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    return t;
+  }
+  
+  /**
+   * Remove an item from the wheel before it expires.
+   * 
+   * @param t The handle returned by schedule.
+   * @return True if it was removed, false if it had already expired.
+   */
+  public boolean cancel( Timeout<T> t )
+  {
+    lock.lock();
+    try
+    {
+      if ( t.bucket == null )
+        return false;
+      t.bucket.remove( t );
+      size--;
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Put a timeout into the slot that covers its deadline. Deadlines that
+   * have already passed go into the next slot to be processed and deadlines
+   * beyond the top level go into the furthest slot of the top level and will
+   * be cascaded down again when it comes round.
+   */
+  void place( Timeout<T> t )
+  {
+    long deadline = Math.max( t.deadline, currentTick + 1L );
+    long delta = deadline - currentTick;
+    for ( int level=0; level<LEVELS; level++ )
+    {
+      int shift = SLOT_BITS * level;
+      if ( delta < ( (long)SLOTS << shift ) || level == LEVELS - 1 )
+      {
+        if ( level == LEVELS - 1 && delta >= ( (long)SLOTS << shift ) )
+          deadline = currentTick + ( (long)SLOT_MASK << shift );
+        wheel[level][(int)( (deadline >>> shift) & SLOT_MASK )].add( t );
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Move the wheel forward to the current time, handing every item whose
+   * deadline has passed to the consumer. The consumer is called with the
+   * wheel locked so it must not schedule or cancel on this wheel - it
+   * should collect items and deal with them afterwards.
+   * 
+   * @param nowMillis The current time.
+   * @param expired Receives expired items.
+   */
+  public void advance( long nowMillis, Consumer<T> expired )
+  {
+    long target = nowMillis / tickMillis;
+    lock.lock();
+    try
+    {
+      while ( currentTick < target )
+      {
+        currentTick++;
+        // Cascade from the highest level that has completed a revolution.
+        for ( int level=LEVELS-1; level>0; level-- )
+        {
+          int shift = SLOT_BITS * level;
+          if ( (currentTick & ( (1L << shift) - 1L )) == 0L )
+          {
+            Timeout<T> t = wheel[level][(int)( (currentTick >>> shift) & SLOT_MASK )].takeAll();
+            while ( t != null )
+            {
+              Timeout<T> next = t.next;
+              place( t );
+              t = next;
+            }
+          }
+        }
+        
+        Timeout<T> t = wheel[0][(int)( currentTick & SLOT_MASK )].takeAll();
+        while ( t != null )
+        {
+          Timeout<T> next = t.next;
+          t.bucket = null;
+          t.previous = t.next = null;
+          if ( t.deadline <= currentTick )
+          {
+            size--;
+            expired.accept( t.item );
+          }
+          else
+            place( t );
+          t = next;
+        }
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * How many items are waiting.
+   * 
+   * @return Number of items.
+   */
+  public int size()
+  {
+    lock.lock();
+    try
+    {
+      return size;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+}
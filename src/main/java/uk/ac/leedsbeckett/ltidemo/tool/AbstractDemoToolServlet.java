@@ -16,14 +16,28 @@
 
 package uk.ac.leedsbeckett.ltidemo.tool;
 
+import io.jsonwebtoken.JwtException;
 import uk.ac.leedsbeckett.lti.state.LtiStateStore;
 import java.io.IOException;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+import uk.ac.leedsbeckett.ltidemo.app.DemoContextListener;
+import uk.ac.leedsbeckett.ltidemo.app.RequestHandOff;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTrace;
+import uk.ac.leedsbeckett.ltidemo.metrics.LaunchTracer;
+import uk.ac.leedsbeckett.ltidemo.metrics.StateLookupEvent;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlBuffer;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlResponse;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlTemplate;
+import uk.ac.leedsbeckett.ltidemo.state.CourseLaunchState;
+import uk.ac.leedsbeckett.ltidemo.state.DemoLtiStateStore;
 import uk.ac.leedsbeckett.ltidemo.state.DemoState;
+import uk.ac.leedsbeckett.ltidemo.state.LaunchState;
+import uk.ac.leedsbeckett.ltidemo.state.LaunchTokenCodec;
 import uk.ac.leedsbeckett.lti.state.LtiState;
 
 /**
@@ -34,6 +48,427 @@ import uk.ac.leedsbeckett.lti.state.LtiState;
  */
 public abstract class AbstractDemoToolServlet extends HttpServlet
 {
+  /**
+   * Name of the parameter that carries a state ID.
+   */
+  public static final String STATE_ID_PARAMETER = "state_id";
+  
+  /**
+   * Name of the parameter that carries a signed state token.
+   */
+  public static final String STATE_TOKEN_PARAMETER = "state_token";
+  
+  /**
+   * Name of the request attribute that carries the launch state when the
+   * launch servlet forwards to a tool page instead of redirecting.
+   */
+  public static final String LAUNCH_STATE_ATTRIBUTE = AbstractDemoToolServlet.class.getName() + ".launchstate";
+  
+  /**
+   * True if this servlet sends pages without blocking the request thread.
+   */
+  boolean asyncoutput = false;
+  
+  /**
+   * Finds out whether this servlet is configured to send pages
+   * asynchronously. Subclasses that override this must call it.
+   * 
+   * @throws ServletException Not thrown here.
+   */
+  @Override
+  public void init() throws ServletException
+  {
+    asyncoutput = HtmlResponse.isListed( 
+            getServletContext().getInitParameter( DemoContextListener.ASYNC_OUTPUT_SERVLETS ), 
+            getServletName() );
+  }
+  
+  /**
+   * Hands the request to the application's request executor if one is
+   * configured, otherwise processes it on this thread. The time the request
+   * arrived is kept for the launch trace.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @throws ServletException If processing on this thread fails.
+   * @throws IOException If the connection fails.
+   */
+  @Override
+  protected void service( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    long received = System.nanoTime();
+    if ( !isHandedOff() || !RequestHandOff.handOff( request, response, ( rq, rs ) -> render( rq, rs, received ) ) )
+      render( request, response, received );
+  }
+  
+  /**
+   * Process the request on this thread and then complete the launch trace
+   * of the state, if there is one that hasn't been completed.
+   * 
+   * @param request The request.
+   * @param response The response.
+   * @param received When the request arrived, from System.nanoTime().
+   * @throws ServletException If processing fails.
+   * @throws IOException If the connection fails.
+   */
+  void render( HttpServletRequest request, HttpServletResponse response, long received )
+          throws ServletException, IOException
+  {
+    super.service( request, response );
+    
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+    LaunchTracer tracer = appcontext.getLaunchTracer();
+    if ( !tracer.isEnabled() || appcontext.getStateStore() == null )
+      return;
+    LaunchTrace trace = appcontext.getStateStore().getTrace( request.getParameter( STATE_ID_PARAMETER ) );
+    if ( trace == null || trace.isCompleted() )
+      return;
+    trace.mark( LaunchTrace.RENDER_RECEIVED, received );
+    trace.mark( LaunchTrace.RENDER_SENT, System.nanoTime() );
+    tracer.complete( trace );
+  }
+  
+  /**
+   * Should requests to this servlet be handed to the request executor?
+   * 
+   * @return True here. Subclasses that start their own asynchronous
+   * processing return false.
+   */
+  protected boolean isHandedOff()
+  {
+    return true;
+  }
+  
+  /**
+   * Load a file of page templates from WEB-INF/templates. Intended to be
+   * called from init so that templates are compiled once.
+   * 
+   * @param filename The name of the file.
+   * @return Templates by name.
+   * @throws ServletException If the file is missing or can't be read.
+   */
+  protected Map<String,HtmlTemplate> loadTemplates( String filename ) throws ServletException
+  {
+    return HtmlResponse.loadTemplates( getServletContext(), filename );
+  }
+  
+  /**
+   * Find a template that must be present.
+   * 
+   * @param templates Templates by name.
+   * @param name The template's name.
+   * @return The template.
+   * @throws ServletException If it is missing.
+   */
+  protected static HtmlTemplate getTemplate( Map<String,HtmlTemplate> templates, String name ) throws ServletException
+  {
+    return HtmlResponse.getTemplate( templates, name );
+  }
+  
+  /**
+   * Send a rendered page, blocking or asynchronously depending on how
+   * this servlet is configured.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @param page The rendered page.
+   * @throws IOException If the page couldn't be sent.
+   */
+  protected void sendHtml( HttpServletRequest request, HttpServletResponse response, HtmlBuffer page ) throws IOException
+  {
+    HtmlResponse.send( request, response, page, asyncoutput );
+  }
+  
+  /**
+   * Does the request's If-None-Match header list this entity tag? Weak
+   * tags are compared as if strong since the pages are only compared
+   * for being unchanged.
+   * 
+   * @param request The HTTP servlet request.
+   * @param etag The current entity tag, quoted.
+   * @return True if the browser already has the current page.
+   */
+  protected static boolean matchesETag( HttpServletRequest request, String etag )
+  {
+    String header = request.getHeader( "If-None-Match" );
+    if ( header == null )
+      return false;
+    int start = 0;
+    while ( start < header.length() )
+    {
+      int end = header.indexOf( ',', start );
+      if ( end < 0 )
+        end = header.length();
+      String tag = header.substring( start, end ).trim();
+      if ( tag.startsWith( "W/" ) )
+        tag = tag.substring( 2 );
+      if ( tag.equals( etag ) || tag.equals( "*" ) )
+        return true;
+      start = end + 1;
+    }
+    return false;
+  }
+  
+  /**
+   * Which parameter carries the user's state in this request? Pages should
+   * pass the same parameter on in their links and forms.
+   * 
+   * @param request The HTTP servlet request.
+   * @return The name of the parameter.
+   */
+  protected String getStateParameterName( HttpServletRequest request )
+  {
+    return request.getParameter( STATE_TOKEN_PARAMETER ) != null ? STATE_TOKEN_PARAMETER : STATE_ID_PARAMETER;
+  }
+  
+  /**
+   * The value of the parameter that carries the user's state.
+   * 
+   * @param request The HTTP servlet request.
+   * @return The state ID or token.
+   */
+  protected String getStateParameterValue( HttpServletRequest request )
+  {
+    return request.getParameter( getStateParameterName( request ) );
+  }
+  
+  /**
+   * Fetch the launch state for the platform level tool. It comes either
+   * from a signed token in the request or from the user's state object, or
+   * from the launch itself if the launch forwarded to this page.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @return The launch state, if found or NULL. If NULL an error will have already been sent to browser.
+   * @throws ServletException If problem occurred in processing.
+   * @throws IOException If it wasn't possible to send an error page over the network.
+   */
+  protected LaunchState getPlatformLaunchState( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    StateLookupEvent event = new StateLookupEvent();
+    event.begin();
+    LaunchState state = null;
+    try
+    {
+      state = findPlatformLaunchState( request, response );
+      return state;
+    }
+    finally
+    {
+      commit( event, request, "platform", getStateSource( request ), state != null );
+    }
+  }
+  
+  /**
+   * Does the work of getPlatformLaunchState, which records how long this takes for the
+   * flight recorder.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @return The launch state, if found or NULL.
+   * @throws ServletException If problem occurred in processing.
+   * @throws IOException If it wasn't possible to send an error page over the network.
+   */
+  LaunchState findPlatformLaunchState( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    Object launched = request.getAttribute( LAUNCH_STATE_ATTRIBUTE );
+    if ( launched instanceof LaunchState )
+      return (LaunchState)launched;
+    
+    if ( request.getParameter( STATE_TOKEN_PARAMETER ) != null )
+      return decodeStateToken( request, response );
+    
+    DemoLtiStateStore statestore = getStateStoreForId( request, response );
+    if ( statestore == null ) return null;
+    
+    LaunchState launch = statestore.getPlatformLaunchState( request.getParameter( STATE_ID_PARAMETER ) );
+    if ( launch == null )
+      response.sendError( 500, "Could not find data about the requested resource." );
+    return launch;
+  }
+  
+  /**
+   * Fetch the launch state for the course content tool. It comes either
+   * from a signed token in the request or from the user's state object, or
+   * from the launch itself if the launch forwarded to this page.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @return The launch state, if found or NULL. If NULL an error will have already been sent to browser.
+   * @throws ServletException If problem occurred in processing.
+   * @throws IOException If it wasn't possible to send an error page over the network.
+   */
+  protected CourseLaunchState getCourseLaunchState( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    StateLookupEvent event = new StateLookupEvent();
+    event.begin();
+    CourseLaunchState state = null;
+    try
+    {
+      state = findCourseLaunchState( request, response );
+      return state;
+    }
+    finally
+    {
+      commit( event, request, "course", getStateSource( request ), state != null );
+    }
+  }
+  
+  /**
+   * Does the work of getCourseLaunchState, which records how long this takes for the
+   * flight recorder.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @return The launch state, if found or NULL.
+   * @throws ServletException If problem occurred in processing.
+   * @throws IOException If it wasn't possible to send an error page over the network.
+   */
+  CourseLaunchState findCourseLaunchState( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    Object launched = request.getAttribute( LAUNCH_STATE_ATTRIBUTE );
+    if ( launched instanceof CourseLaunchState )
+      return (CourseLaunchState)launched;
+    
+    if ( request.getParameter( STATE_TOKEN_PARAMETER ) != null )
+    {
+      LaunchState launch = decodeStateToken( request, response );
+      if ( launch == null ) return null;
+      if ( !(launch instanceof CourseLaunchState) )
+      {
+        response.sendError( 500, "Could not find data about the requested resource." );
+        return null;
+      }
+      return (CourseLaunchState)launch;
+    }
+    
+    DemoLtiStateStore statestore = getStateStoreForId( request, response );
+    if ( statestore == null ) return null;
+    
+    CourseLaunchState launch = statestore.getCourseLaunchState( request.getParameter( STATE_ID_PARAMETER ) );
+    if ( launch == null )
+      response.sendError( 500, "Could not find data about the requested resource." );
+    return launch;
+  }
+  
+  /**
+   * Where the launch state of a request comes from.
+   * 
+   * @param request The HTTP servlet request.
+   * @return 'launch' if forwarded from the launch, 'token' or 'store'.
+   */
+  static String getStateSource( HttpServletRequest request )
+  {
+    if ( request.getAttribute( LAUNCH_STATE_ATTRIBUTE ) != null )
+      return "launch";
+    return request.getParameter( STATE_TOKEN_PARAMETER ) != null ? "token" : "store";
+  }
+  
+  /**
+   * Fill in and commit a flight recorder event for a state lookup, if it is
+   * being recorded.
+   * 
+   * @param event The event.
+   * @param request The HTTP servlet request.
+   * @param kind Which state was wanted.
+   * @param source Where the state came from.
+   * @param found True if the state was found.
+   */
+  static void commit( StateLookupEvent event, HttpServletRequest request, String kind, String source, boolean found )
+  {
+    event.end();
+    if ( !event.shouldCommit() )
+      return;
+    event.stateId = request.getParameter( STATE_ID_PARAMETER );
+    event.kind = kind;
+    event.source = source;
+    event.found = found;
+    event.commit();
+  }
+  
+  /**
+   * Find the shared resource that a course launch refers to. Launch state
+   * that came from a token or another node doesn't hold the object and if
+   * the store has evicted the object held by the state since launch it is
+   * fetched again.
+   * 
+   * @param request The HTTP servlet request.
+   * @param course The course launch state.
+   * @return The resource.
+   */
+  protected Resource getResource( HttpServletRequest request, CourseLaunchState course )
+  {
+    Resource resource = course.getResource();
+    if ( resource == null || resource.isEvicted() )
+    {
+      DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+      resource = appcontext.getStore().get( course.getPlatformName(), course.getResourceId(), true );
+      course.setResource( resource );
+    }
+    return resource;
+  }
+  
+  /**
+   * Check that the request has a state ID and find the state store to look
+   * it up in. The store will ask other nodes for launch data that it
+   * doesn't hold itself.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @return The store or NULL. If NULL an error will have already been sent to browser.
+   * @throws IOException If it wasn't possible to send an error page over the network.
+   */
+  DemoLtiStateStore getStateStoreForId( HttpServletRequest request, HttpServletResponse response )
+          throws IOException
+  {
+    if ( request.getParameter( STATE_ID_PARAMETER ) == null )
+    {
+      response.sendError( 500, "State ID missing." );
+      return null;
+    }
+
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+    DemoLtiStateStore statestore = appcontext.getStateStore();
+    if ( statestore == null )
+      response.sendError( 500, "State store missing." );
+    return statestore;
+  }
+  
+  /**
+   * Verify the signed state token in the request and rebuild the launch
+   * state from it without looking anything up.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @return The launch state or NULL. If NULL an error will have already been sent to browser.
+   * @throws IOException If it wasn't possible to send an error page over the network.
+   */
+  LaunchState decodeStateToken( HttpServletRequest request, HttpServletResponse response )
+          throws IOException
+  {
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+    LaunchTokenCodec codec = appcontext.getTokenCodec();
+    if ( codec == null )
+    {
+      response.sendError( 500, "State tokens are not enabled." );
+      return null;
+    }
+    
+    try
+    {
+      return codec.decode( request.getParameter( STATE_TOKEN_PARAMETER ) );
+    }
+    catch ( JwtException e )
+    {
+      response.sendError( 500, "State token is not valid. " + e.getMessage() );
+      return null;
+    }
+  }
   
   /**
    * This provides subclasses with the ability to fetch the user's state
@@ -50,7 +485,34 @@ public abstract class AbstractDemoToolServlet extends HttpServlet
   protected DemoState getState( HttpServletRequest request, HttpServletResponse response )
           throws ServletException, IOException
   {
-    String stateid = request.getParameter( "state_id" );
+    StateLookupEvent event = new StateLookupEvent();
+    event.begin();
+    DemoState state = null;
+    try
+    {
+      state = findState( request, response );
+      return state;
+    }
+    finally
+    {
+      commit( event, request, "state", "store", state != null );
+    }
+  }
+  
+  /**
+   * Does the work of getState, which records how long this takes for the
+   * flight recorder.
+   * 
+   * @param request The HTTP servlet request.
+   * @param response The HTTP servlet response.
+   * @return The state, if found or NULL.
+   * @throws ServletException If problem occurred in processing.
+   * @throws IOException If it wasn't possible to send an error page over the network.
+   */
+  DemoState findState( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    String stateid = request.getParameter( STATE_ID_PARAMETER );
     if ( stateid == null )
     {
       response.sendError( 500, "State ID missing." );
@@ -17,16 +17,22 @@
 package uk.ac.leedsbeckett.ltidemo.tool;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+import uk.ac.leedsbeckett.ltidemo.render.FragmentCache;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlBuffer;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlTemplate;
 import uk.ac.leedsbeckett.ltidemo.state.CourseLaunchState;
-import uk.ac.leedsbeckett.ltidemo.state.DemoState;
-import uk.ac.leedsbeckett.lti.state.LtiState;
 
 /**
  * This is a fairly trivial tool. It presents a single page on which user's
@@ -38,10 +44,43 @@ import uk.ac.leedsbeckett.lti.state.LtiState;
 @WebServlet( name = "CourseResourceServlet", urlPatterns =
 {
   "/courseresource"
-} )
+}, asyncSupported = true )
 public class CourseResourceServlet extends AbstractDemoToolServlet
 {
-  SimpleDateFormat dateformat = new SimpleDateFormat();
+  static final DateTimeFormatter DATE_FORMAT = 
+          DateTimeFormatter.ofLocalizedDateTime( FormatStyle.SHORT ).withZone( ZoneId.systemDefault() );
+  
+  HtmlTemplate pagetemplate;
+  HtmlTemplate entrylisttemplate;
+  HtmlTemplate entrytemplate;
+  HtmlTemplate noresourcetemplate;
+  HtmlTemplate formtemplate;
+  HtmlTemplate actionformtemplate;
+  HtmlTemplate roletemplate;
+  
+  /**
+   * Size of the last page sent, used as the starting size of the next.
+   */
+  volatile int sizehint = 4096;
+
+  /**
+   * Compiles the page templates.
+   * 
+   * @throws ServletException If the templates can't be loaded.
+   */
+  @Override
+  public void init() throws ServletException
+  {
+    super.init();
+    Map<String,HtmlTemplate> templates = loadTemplates( "courseresource.html" );
+    pagetemplate       = getTemplate( templates, "page" );
+    entrylisttemplate  = getTemplate( templates, "entrylist" );
+    entrytemplate      = getTemplate( templates, "entry" );
+    noresourcetemplate = getTemplate( templates, "noresource" );
+    formtemplate       = getTemplate( templates, "form" );
+    actionformtemplate = getTemplate( templates, "actionform" );
+    roletemplate       = getTemplate( templates, "role" );
+  }
   
   /**
    * Uses state object to find an object that represents a shared object
@@ -57,22 +96,17 @@ public class CourseResourceServlet extends AbstractDemoToolServlet
           throws ServletException, IOException
   {    
     // Super class provides this functionality.
-    DemoState state = getState( request, response );
-    if ( state == null ) return;
+    CourseLaunchState course = getCourseLaunchState( request, response );
+    if ( course == null ) return;
     
-    CourseLaunchState course = state.getCourseLaunchState();
-    if ( course == null )
-    {
-      response.sendError( 500, "Could not find data about the requested resource." );
-      return;
-    }
-    
-    // Find the shared object that contains log entries
-    Resource resource = course.getResource();
+    // Find the shared object that contains log entries.
+    Resource resource = getResource( request, course );
     
     // If an action has been specified in form data take appropriate
     // action.
     String action = request.getParameter( "action" );
+    String statename  = getStateParameterName( request );
+    String statevalue = getStateParameterValue( request );
     if ( "add".equals( action ) )
       resource.addEntry( course.getPersonName() );
     else if ( "clear".equals( action ) )
@@ -81,91 +115,111 @@ public class CourseResourceServlet extends AbstractDemoToolServlet
         resource.clearEntries( course.getPersonName() );
     }
                 
-    // Now send the HTML output to the user
-    response.setContentType( "text/html;charset=UTF-8" );
-    try (  PrintWriter out = response.getWriter() )
+    // If the browser already has this version of the page, as it is seen by
+    // this user, don't render it again. Requests that change the resource
+    // always get a new page.
+    long version = resource == null ? 0L : resource.getVersion();
+    if ( resource != null )
     {
-      out.println( "<!DOCTYPE html>" );
-      out.println( "<html>" );
-      out.println( "<head>" );
-      out.println( "<title>Servlet CourseResourceServlet</title>" );      
-      out.println( "</head>" );
-      out.println( "<body>" );
-      out.println( "<h1>A Course Level Tool On " + request.getServerName() + "</h1>" );
-      
-      out.println( "<h2>The Resource</h2>" );
-      out.println( "<p>This is an extremely simple, not very useful web resource "    );
-      out.println( "which serves to demonstrate how to build an LTI 1.3 tool. "       );
-      out.println( "It consists of a simple log of activity. All users can click a "  );
-      out.println( "button and add an entry and users with 'instructor' role in the " );
-      out.println( "course that launched this resource can clear entries.</p>"        );
-      
-      if ( resource == null )
+      String etag = getETag( resource, version, statevalue, course.isAllowedToClearResource() );
+      response.setHeader( "ETag", etag );
+      response.setHeader( "Cache-Control", "private, no-cache" );
+      if ( action == null && "GET".equals( request.getMethod() ) && matchesETag( request, etag ) )
       {
-        out.println( "Unable to load the resource." );
+        response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+        return;
       }
-      else
-      {
-        out.println( "<ol>" );
-        for ( ResourceEntry entry : resource.getEntries() )
-        {
-          out.print( "<li><em>" );
-          out.print( dateformat.format( new Date( entry.getTimestamp() ) ) );
-          out.print( "</em> <strong>" );
-          out.print( entry.getPerson() );
-          out.print( "</strong> {" );
-          out.print( entry.getMessage() );
-          out.println( "}</li>" );
-        }
-        out.println( "</ol>" );
-      }
-      
-      String baseurl = request.getContextPath() + "/courseresource";
-      
-      out.print( "<form method=\"get\" action=\"" );
-      out.print( response.encodeURL( baseurl ) );
-      out.println( "\">" );
-      out.println( "<input type=\"hidden\" name=\"state_id\" value=\"" + state.getId() + "\"/>" );
-      out.println( "<input type=\"submit\"                   value=\"Reload\"/>" );
-      out.println( "</form>" );
-      
-      out.print( "<form method=\"get\" action=\"" );
-      out.print( response.encodeURL( baseurl ) );
-      out.println( "\">" );
-      out.println( "<input type=\"hidden\" name=\"state_id\" value=\"" + state.getId() + "\"/>" );
-      out.println( "<input type=\"hidden\" name=\"action\"   value=\"add\"/>" );
-      out.println( "<input type=\"submit\"                   value=\"Add Entry\"/>" );
-      out.println( "</form>" );
-      
-      if ( course.isAllowedToClearResource() )
+    }
+    
+    // Now send the HTML output to the user
+    String baseurl = response.encodeURL( request.getContextPath() + "/courseresource" );
+    String eventsurl = response.encodeURL( request.getContextPath() + "/courseresource/events?" 
+            + statename + "=" + URLEncoder.encode( statevalue, StandardCharsets.UTF_8 ) );
+    HtmlBuffer out = new HtmlBuffer( sizehint );
+    HtmlTemplate.Render page = pagetemplate.render( out )
+            .text( "server", request.getServerName() );
+    
+    page.slot( "resource" );
+    if ( resource == null )
+      noresourcetemplate.render( out );
+    else
+    {
+      // The list of entries is the same for everyone so it is rendered
+      // once per version of the resource.
+      DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+      FragmentCache cache = appcontext.getFragmentCache();
+      byte[] list = resource.getKey() == null ? null : cache.get( resource.getKey(), resource.getEpoch(), version );
+      if ( list == null )
       {
-        out.print( "<form method=\"get\" action=\"" );
-        out.print( response.encodeURL( baseurl ) );
-        out.println( "\">" );
-        out.println( "<input type=\"hidden\" name=\"state_id\" value=\"" + state.getId() + "\"/>" );
-        out.println( "<input type=\"hidden\" name=\"action\"   value=\"clear\"/>" );
-        out.println( "<input type=\"submit\"                   value=\"Clear Entries\"/>" );
-        out.println( "</form>" );
+        list = renderEntryList( resource );
+        if ( resource.getKey() != null )
+          cache.put( resource.getKey(), resource.getEpoch(), version, list );
       }
-
-      
-      out.println( "<h2>About the Resource</h2>" );
-      out.println( "<p>Information of interest to developers.</p>" );
-      out.println( "<p>According to <strong>" + course.getPlatformName() + "</strong> " );
-      out.println( "you are <strong>" + course.getPersonName() + "</strong></p>" );
-      out.println( "<p>You are accessing a resource with link ID <strong>" + course.getResourceId() + "</strong>, ");
-      out.println( "In the course <strong>" + course.getCourseTitle() + "</strong></p>" );
-      out.println( "<p>Your roles for this resource</p><ul>" );
-      for ( int i=0; i<course.getRoles().getSize(); i++ )
-        out.println( "<li><strong>" + course.getRoles().getAsString( i ) + "</strong></li>" );
-      out.println( "</ul>" );
-            
-      out.println( "</body>" );
-      out.println( "</html>" );
+      out.raw( list );
     }
+    
+    page.slot( "forms" );
+    formtemplate.render( out, baseurl, statename, statevalue, "Reload" );
+    actionformtemplate.render( out, baseurl, statename, statevalue, "add", "Add Entry" );
+    if ( course.isAllowedToClearResource() )
+      actionformtemplate.render( out, baseurl, statename, statevalue, "clear", "Clear Entries" );
+
+    page.text( "eventsurl",   eventsurl )
+        .text( "platform",    course.getPlatformName() )
+        .text( "person",      course.getPersonName() )
+        .text( "resourceid",  course.getResourceId() )
+        .text( "coursetitle", course.getCourseTitle() );
+    page.slot( "roles" );
+    for ( String role : course.getRoles() )
+      roletemplate.render( out, role );
+    page.end();
+    
+    sizehint = out.size();
+    sendHtml( request, response, out );
   }
 
   
+  /**
+   * Render the list of entries in a resource.
+   * 
+   * @param resource The resource.
+   * @return The encoded HTML.
+   */
+  byte[] renderEntryList( Resource resource )
+  {
+    HtmlBuffer out = new HtmlBuffer( 1024 );
+    HtmlTemplate.Render list = entrylisttemplate.render( out );
+    list.slot( "entries" );
+    for ( ResourceEntry entry : resource.getEntries() )
+      entrytemplate.render( out )
+              .text( "time",    DATE_FORMAT.format( Instant.ofEpochMilli( entry.getTimestamp() ) ) )
+              .text( "person",  entry.getPerson() )
+              .text( "message", entry.getMessage() )
+              .end();
+    list.end();
+    return out.toByteArray();
+  }
+  
+  /**
+   * Build the entity tag of a page. It must be worked out before the
+   * entries are read. It changes when the resource changes and differs
+   * between users, because the page shows the user's details, and between
+   * views with and without the clear button.
+   * 
+   * @param resource The resource.
+   * @param version The version of the resource read before its entries.
+   * @param statevalue The state ID or token, which identifies the user.
+   * @param canclear Whether the user can clear entries.
+   * @return The quoted entity tag.
+   */
+  static String getETag( Resource resource, long version, String statevalue, boolean canclear )
+  {
+    int view = 31 * (statevalue == null ? 0 : statevalue.hashCode()) + (canclear ? 1 : 0);
+    return "\"" + Long.toHexString( resource.getEpoch() ) 
+            + "-" + Long.toHexString( version ) 
+            + "-" + Integer.toHexString( view ) + "\"";
+  }
+  
   // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
   /**
    * Handles the HTTP <code>GET</code> method.
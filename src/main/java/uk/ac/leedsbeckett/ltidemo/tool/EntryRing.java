@@ -0,0 +1,264 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.tool;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed capacity ring of log entries which keeps only the most recent
+ * entries. Every entry is given a sequence number and is written into the
+ * slot that the sequence number maps onto, overwriting the oldest entry.
+ * Writers never lock and readers take a snapshot without blocking writers.
+ * 
+ * A reset discards all earlier entries by moving a 'floor' sequence number
+ * up so readers ignore anything older.
+ * 
+ * @author jon
+ */
+public class EntryRing
+{
+  /**
+   * An entry paired with the sequence number it was written under so
+   * readers can tell a current slot from one left over from an earlier
+   * trip around the ring.
+   */
+  static final class Slot
+  {
+    final long sequence;
+    final ResourceEntry entry;
+
+    Slot( long sequence, ResourceEntry entry )
+    {
+      this.sequence = sequence;
+      this.entry = entry;
+    }
+  }
+  
+  /**
+   * Receives entries together with their sequence numbers.
+   */
+  public interface Visitor
+  {
+    /**
+     * Called once for each entry.
+     * 
+     * @param sequence The sequence number of the entry.
+     * @param entry The entry.
+     */
+    void visit( long sequence, ResourceEntry entry );
+  }
+  
+  private final int capacity;
+  private final AtomicReferenceArray<Slot> slots;
+  
+  // Field updaters rather than AtomicLong objects because there is a ring
+  // for every resource in memory.
+  private static final AtomicLongFieldUpdater<EntryRing> NEXT  = AtomicLongFieldUpdater.newUpdater( EntryRing.class, "next" );
+  private static final AtomicLongFieldUpdater<EntryRing> FLOOR = AtomicLongFieldUpdater.newUpdater( EntryRing.class, "floor" );
+  
+  /**
+   * The sequence number that the next entry will take.
+   */
+  private volatile long next = 0L;
+  
+  /**
+   * Entries with sequence numbers lower than this have been cleared.
+   */
+  private volatile long floor = 0L;
+
+  /**
+   * Construct an empty ring.
+   * 
+   * @param capacity The maximum number of entries retained.
+   */
+  public EntryRing( int capacity )
+  {
+    if ( capacity < 1 )
+      throw new IllegalArgumentException( "Capacity must be at least one." );
+    this.capacity = capacity;
+    this.slots = new AtomicReferenceArray<>( capacity );
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return The maximum number of entries retained.
+   */
+  public int getCapacity()
+  {
+    return capacity;
+  }
+  
+  /**
+   * Add an entry, displacing the oldest if the ring is full.
+   * 
+   * @param entry The entry to add.
+   * @return The sequence number given to the entry.
+   */
+  public long add( ResourceEntry entry )
+  {
+    long sequence = NEXT.getAndIncrement( this );
+    publish( sequence, entry );
+    return sequence;
+  }
+  
+  /**
+   * Discard all existing entries and add a single new one.
+   * 
+   * @param entry The entry that will be the only one left.
+   * @return The sequence number given to the entry.
+   */
+  public long reset( ResourceEntry entry )
+  {
+    long sequence = NEXT.getAndIncrement( this );
+    // Raise the floor first. A snapshot that sees the new entry then sees
+    // the new floor when it checks the floor again, and starts over.
+    raiseFloor( sequence );
+    publish( sequence, entry );
+    return sequence;
+  }
+
+  /**
+   * Put back an entry that was recorded earlier, for example when replaying
+   * a journal. The entry keeps its original sequence number. Entries that
+   * the ring has already moved past are ignored so restoring is safe to
+   * repeat.
+   * 
+   * @param sequence The sequence number originally given to the entry.
+   * @param entry The entry.
+   * @param reset True if the entry was recorded by a reset.
+   * @return True if the entry was restored, false if it was ignored.
+   */
+  public boolean restore( long sequence, ResourceEntry entry, boolean reset )
+  {
+    if ( sequence < next )
+      return false;
+    NEXT.accumulateAndGet( this, sequence + 1, Math::max );
+    if ( reset )
+      raiseFloor( sequence );
+    publish( sequence, entry );
+    return true;
+  }
+
+  /**
+   * Write into the slot for a sequence number unless a writer that took a
+   * later sequence number has already lapped us and used the slot.
+   * 
+   * @param sequence The sequence number.
+   * @param entry The entry.
+   */
+  private void publish( long sequence, ResourceEntry entry )
+  {
+    int index = (int)(sequence % capacity);
+    Slot slot = new Slot( sequence, entry );
+    for ( ;; )
+    {
+      Slot current = slots.get( index );
+      if ( current != null && current.sequence > sequence )
+        return;
+      if ( slots.compareAndSet( index, current, slot ) )
+        return;
+    }
+  }
+  
+  private void raiseFloor( long sequence )
+  {
+    FLOOR.accumulateAndGet( this, sequence, Math::max );
+  }
+  
+  /**
+   * The sequence number the next entry will take. This increases every
+   * time the ring is changed.
+   * 
+   * @return The next sequence number.
+   */
+  public long getNextSequence()
+  {
+    return next;
+  }
+  
+  /**
+   * The sequence number below which entries have been cleared.
+   * 
+   * @return The floor sequence number.
+   */
+  public long getFloor()
+  {
+    return floor;
+  }
+  
+  /**
+   * Pass each current entry to a visitor, oldest first, along with its
+   * sequence number.
+   * 
+   * @param visitor The visitor.
+   */
+  public void visit( Visitor visitor )
+  {
+    long low = floor;
+    long end = next;
+    for ( long s = Math.max( low, end - capacity ); s < end; s++ )
+    {
+      Slot slot = slots.get( (int)(s % capacity) );
+      if ( slot != null && slot.sequence == s )
+        visitor.visit( s, slot.entry );
+    }
+  }
+  
+  /**
+   * Take a snapshot of the current entries, newest first. The list is
+   * unmodifiable and is not affected by later changes to the ring.
+   * 
+   * @return A list of entries.
+   */
+  public List<ResourceEntry> snapshot()
+  {
+    for ( ;; )
+    {
+      // Read the floor before the next sequence so that start never
+      // exceeds end.
+      long low = floor;
+      long end = next;
+      long start = Math.max( low, end - capacity );
+      if ( end <= start )
+        return Collections.emptyList();
+
+      ResourceEntry[] list = new ResourceEntry[(int)(end - start)];
+      int n = 0;
+      for ( long s = end - 1; s >= start; s-- )
+      {
+        Slot slot = slots.get( (int)(s % capacity) );
+        // Skip slots that a slow writer has not filled in yet or that
+        // already hold a later entry.
+        if ( slot != null && slot.sequence == s )
+          list[n++] = slot.entry;
+      }
+      // A reset raises the floor before it publishes its entry, so if the
+      // floor hasn't moved the list can't hold a reset's entry alongside
+      // entries that it cleared.
+      if ( floor != low )
+        continue;
+      if ( n < list.length )
+        list = Arrays.copyOf( list, n );
+      return Collections.unmodifiableList( Arrays.asList( list ) );
+    }
+  }
+}
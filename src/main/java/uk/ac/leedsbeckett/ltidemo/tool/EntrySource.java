@@ -0,0 +1,38 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.tool;
+
+/**
+ * Entries of restored resources that are still in the encoded form they were
+ * read from disk in. A resource restored this way only decodes its entries
+ * when it is first used, so a large store can be loaded without building
+ * every entry of every resource up front.
+ *
+ * @author jon
+ */
+public interface EntrySource
+{
+  /**
+   * Decode the entries of one resource into an empty ring. This may be
+   * called more than once for the same offset and must give the same
+   * entries every time.
+   *
+   * @param offset Where the entries of the resource start.
+   * @param ring The ring to restore the entries into.
+   */
+  void restore( int offset, EntryRing ring );
+}
@@ -17,12 +17,13 @@
 package uk.ac.leedsbeckett.ltidemo.tool;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import uk.ac.leedsbeckett.ltidemo.state.DemoState;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlBuffer;
+import uk.ac.leedsbeckett.ltidemo.render.HtmlTemplate;
 import uk.ac.leedsbeckett.ltidemo.state.LaunchState;
 
 /**
@@ -35,9 +36,25 @@ import uk.ac.leedsbeckett.ltidemo.state.LaunchState;
 @WebServlet( name = "PlatformResourceServlet", urlPatterns =
 {
   "/platformresource"
-} )
+}, asyncSupported = true )
 public class PlatformResourceServlet extends AbstractDemoToolServlet
 {
+  HtmlTemplate pagetemplate;
+  HtmlTemplate roletemplate;
+
+  /**
+   * Compiles the page templates.
+   * 
+   * @throws ServletException If the templates can't be loaded.
+   */
+  @Override
+  public void init() throws ServletException
+  {
+    super.init();
+    Map<String,HtmlTemplate> templates = loadTemplates( "platformresource.html" );
+    pagetemplate = getTemplate( templates, "page" );
+    roletemplate = getTemplate( templates, "role" );
+  }
 
   /**
    * Just outputs some technical information that relates to LTI launch
@@ -51,40 +68,20 @@ public class PlatformResourceServlet extends AbstractDemoToolServlet
   protected void processRequest( HttpServletRequest request, HttpServletResponse response )
           throws ServletException, IOException
   {
-    DemoState state = getState( request, response );
-    if ( state == null ) return;
+    LaunchState platform = getPlatformLaunchState( request, response );
+    if ( platform == null ) return;
     
-    LaunchState platform = state.getPlatformLaunchState();
-    if ( platform == null )
-    {
-      response.sendError( 500, "Could not find data about the requested resource." );
-      return;
-    }
+    HtmlBuffer out = new HtmlBuffer( 1024 );
+    HtmlTemplate.Render page = pagetemplate.render( out )
+            .text( "server",   request.getServerName() )
+            .text( "platform", platform.getPlatformName() )
+            .text( "person",   platform.getPersonName() );
+    page.slot( "roles" );
+    for ( String role : platform.getRoles() )
+      roletemplate.render( out, role );
+    page.end();
     
-    response.setContentType( "text/html;charset=UTF-8" );
-    try (  PrintWriter out = response.getWriter() )
-    {
-      /* TODO output your page here. You may use following sample code. */
-      out.println( "<!DOCTYPE html>" );
-      out.println( "<html>" );
-      out.println( "<head>" );
-      out.println( "<title>Servlet PlatformResourceServlet</title>" );      
-      out.println( "</head>" );
-      out.println( "<body>" );
-      out.println( "<h1>A Platform Level Tool On " + request.getServerName() + "</h1>" );
-      out.println( "<h2>About the Resource</h2>" );
-      out.println( "<p>According to <strong>" + platform.getPlatformName() + "</strong> " );
-      out.println( "you are <strong>" + platform.getPersonName() + "</strong></p>" );
-      out.println( "<p>Your roles for this resource</p><ul>" );
-      for ( int i=0; i<platform.getRoles().getSize(); i++ )
-        out.println( "<li><strong>" + platform.getRoles().getAsString( i ) + "</strong></li>" );
-      out.println( "</ul>" );
-      out.println( "<h2>The Resource</h2>" );
-      out.println( "<p>This resource is currently empty and cannot be edited yet.</p>" );
-      
-      out.println( "</body>" );
-      out.println( "</html>" );
-    }
+    sendHtml( request, response, out );
   }
 
   // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
@@ -17,38 +17,340 @@
 package uk.ac.leedsbeckett.ltidemo.tool;
 
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import uk.ac.leedsbeckett.ltidemo.metrics.ResourceChangeEvent;
 
 /**
  * An object that represents the resource which the user is accessing after the
- * LTI launch. A simple stack of log entries.
+ * LTI launch. A simple log of the most recent entries, newest first.
+ * 
+ * The entries are kept in a lock free ring so that many users can add
+ * entries while others are viewing the page. A resource restored from a
+ * snapshot keeps its entries encoded until they are first needed.
  * 
  * @author jon
  */
 public class Resource
 {
-  Stack<ResourceEntry> entries = new Stack<>();
+  /**
+   * The maximum number of entries that are retained.
+   */
+  public static final int CAPACITY = 10;
+  
+  static final AtomicReferenceFieldUpdater<Resource,EntryRing> ENTRIES = 
+          AtomicReferenceFieldUpdater.newUpdater( Resource.class, EntryRing.class, "entries" );
+  
+  /**
+   * The entries, or null if they are still waiting in the source they were
+   * restored from.
+   */
+  volatile EntryRing entries;
+  
+  /**
+   * Where the entries will be decoded from when they are first needed. It
+   * is cleared once entries has been set.
+   */
+  volatile EntrySource source;
+  
+  /**
+   * Where in the source the entries of this resource start.
+   */
+  final int sourceOffset;
+  
+  static final AtomicLongFieldUpdater<Resource> VERSION = 
+          AtomicLongFieldUpdater.newUpdater( Resource.class, "version" );
+  
+  /**
+   * Counts changes that have completed. It is only bumped once an entry is
+   * visible to readers so content read after the version is never older
+   * than the version.
+   */
+  volatile long version = 0L;
+  
+  /**
+   * Random value which distinguishes this object from earlier objects for
+   * the same resource, e.g. before a restart or an eviction, whose
+   * versions started from the same count.
+   */
+  final long epoch = ThreadLocalRandom.current().nextLong();
+  
+  /**
+   * The key under which this resource is stored or null if it isn't in
+   * a store.
+   */
+  final ResourceKey key;
+  
+  /**
+   * The store which is told about changes or null.
+   */
+  final ResourceStore store;
+  
+  /**
+   * Set when the resource is used and cleared by the store's eviction
+   * sweep, which gives used resources a second chance to stay in memory.
+   */
+  volatile boolean referenced = true;
+  
+  /**
+   * Set when the store has saved the resource and dropped it from memory.
+   */
+  volatile boolean evicted = false;
 
   public Resource()
   {
-    entries.add( new ResourceEntry( "System", "Resource initiallised by system." ) );
+    this( null, null );
   }
   
-  public synchronized void addEntry( String person )
+  /**
+   * Construct a resource that belongs in a store.
+   * 
+   * @param key The key of the resource in the store.
+   * @param store The store that will be told about changes.
+   */
+  Resource( ResourceKey key, ResourceStore store )
   {
-    entries.insertElementAt( new ResourceEntry( person, "Added Entry" ), 0 );
-    while ( entries.size() > 10 )
-      entries.pop();
+    this( key, store, true );
   }
   
-  public synchronized void clearEntries( String person )
+  /**
+   * Construct a resource that belongs in a store, optionally without the
+   * first entry. Leaving out the entry is for resources that are about to
+   * be restored from disk.
+   * 
+   * @param key The key of the resource in the store.
+   * @param store The store that will be told about changes.
+   * @param initialise False to leave out the first entry.
+   */
+  Resource( ResourceKey key, ResourceStore store, boolean initialise )
   {
-    entries.clear();
-    entries.push( new ResourceEntry( person, "Cleared entries" ) );
+    this.key = key;
+    this.store = store;
+    this.entries = new EntryRing( CAPACITY );
+    this.sourceOffset = 0;
+    if ( initialise )
+      initialise();
   }
   
-  public List<ResourceEntry> getEntries()
+  /**
+   * Construct a resource restored from disk whose entries stay encoded
+   * until they are first needed.
+   * 
+   * @param key The key of the resource in the store.
+   * @param store The store that will be told about changes.
+   * @param source Where the entries are decoded from.
+   * @param offset Where the entries of this resource start in the source.
+   */
+  Resource( ResourceKey key, ResourceStore store, EntrySource source, int offset )
+  {
+    this.key = key;
+    this.store = store;
+    this.source = source;
+    this.sourceOffset = offset;
+  }
+  
+  /**
+   * The ring of entries, decoding it from the source first if that hasn't
+   * been done yet. If two threads decode at once the first to finish wins
+   * and the other uses its ring.
+   * 
+   * @return The ring.
+   */
+  EntryRing ring()
   {
+    EntryRing ring = entries;
+    if ( ring != null )
+      return ring;
+    EntrySource s = source;
+    // The source is only cleared after entries is set.
+    if ( s == null )
+      return entries;
+    ring = decode( s );
+    if ( ENTRIES.compareAndSet( this, null, ring ) )
+    {
+      source = null;
+      return ring;
+    }
     return entries;
   }
+  
+  /**
+   * The ring of entries for reading only. If the entries haven't been
+   * decoded yet they are decoded into a ring that is thrown away after
+   * use, so that saving a resource that nobody has used doesn't keep its
+   * entries in memory.
+   * 
+   * @return The ring.
+   */
+  EntryRing peek()
+  {
+    EntryRing ring = entries;
+    if ( ring != null )
+      return ring;
+    EntrySource s = source;
+    return s == null ? entries : decode( s );
+  }
+  
+  EntryRing decode( EntrySource s )
+  {
+    EntryRing ring = new EntryRing( CAPACITY );
+    s.restore( sourceOffset, ring );
+    return ring;
+  }
+  
+  /**
+   * Add the entry that every new resource starts with.
+   */
+  final void initialise()
+  {
+    ring().add( new ResourceEntry( "System", "Resource initiallised by system." ) );
+  }
+  
+  /**
+   * Has this object been dropped from its store? If so the store will have
+   * a different object for the same resource and that should be used
+   * instead.
+   * 
+   * @return True if evicted.
+   */
+  public boolean isEvicted()
+  {
+    return evicted;
+  }
+  
+  /**
+   * Simple getter.
+   * 
+   * @return The key of this resource in its store or null.
+   */
+  public ResourceKey getKey()
+  {
+    return key;
+  }
+  
+  public void addEntry( String person )
+  {
+    ResourceChangeEvent event = new ResourceChangeEvent();
+    event.begin();
+    ResourceEntry entry = new ResourceEntry( person, "Added Entry" );
+    long sequence = ring().add( entry );
+    VERSION.incrementAndGet( this );
+    if ( store != null )
+      store.changed( this, sequence, entry, false );
+    commit( event, sequence, false );
+  }
+  
+  public void clearEntries( String person )
+  {
+    ResourceChangeEvent event = new ResourceChangeEvent();
+    event.begin();
+    ResourceEntry entry = new ResourceEntry( person, "Cleared entries" );
+    long sequence = ring().reset( entry );
+    VERSION.incrementAndGet( this );
+    if ( store != null )
+      store.changed( this, sequence, entry, true );
+    commit( event, sequence, true );
+  }
+  
+  /**
+   * Fill in and commit a flight recorder event for a change, if it is
+   * being recorded.
+   * 
+   * @param event The event.
+   * @param sequence The sequence number of the new entry.
+   * @param cleared True if the entries were cleared.
+   */
+  void commit( ResourceChangeEvent event, long sequence, boolean cleared )
+  {
+    event.end();
+    if ( !event.shouldCommit() )
+      return;
+    if ( key != null )
+    {
+      event.platform = key.getPlatform();
+      event.resourceId = key.getResource();
+    }
+    event.cleared = cleared;
+    event.sequence = sequence;
+    event.commit();
+  }
+  
+  /**
+   * Put back an entry that was recorded earlier without telling listeners.
+   * This is used when rebuilding the store from disk. Like a new entry, an
+   * entry put back on an object that has been evicted is passed on to the
+   * object that replaced it.
+   * 
+   * @param sequence The original sequence number of the entry.
+   * @param entry The entry.
+   * @param clear True if the entry recorded the clearing of entries.
+   * @return True if restored or false if the resource already has the entry.
+   */
+  public boolean restoreEntry( long sequence, ResourceEntry entry, boolean clear )
+  {
+    if ( !ring().restore( sequence, entry, clear ) )
+      return false;
+    VERSION.incrementAndGet( this );
+    // The eviction marks the object before it reads the version, and this
+    // reads the mark after changing the version, so at least one of them
+    // sees the other: either the eviction saves again or this forwards.
+    if ( evicted && store != null )
+      store.forward( this, sequence, entry, clear );
+    return true;
+  }
+  
+  /**
+   * The number of changes made to this resource object. It increases with
+   * every entry added or cleared. Read it before reading the entries.
+   * 
+   * @return The version.
+   */
+  public long getVersion()
+  {
+    return version;
+  }
+  
+  /**
+   * A random value fixed for the life of this object. Together with the
+   * version it identifies the content of the resource.
+   * 
+   * @return The epoch.
+   */
+  public long getEpoch()
+  {
+    return epoch;
+  }
+  
+  /**
+   * Pass the current entries to a visitor, oldest first, with their sequence
+   * numbers. Used when saving the resource.
+   * 
+   * @param visitor The visitor.
+   */
+  public void visitEntries( EntryRing.Visitor visitor )
+  {
+    peek().visit( visitor );
+  }
+  
+  /**
+   * Entries below this sequence number have been cleared.
+   * 
+   * @return The sequence number of the most recent clearing.
+   */
+  public long getClearedSequence()
+  {
+    return peek().getFloor();
+  }
+  
+  /**
+   * Get a snapshot of the entries, newest first. The list cannot be modified
+   * and will not change if entries are added later.
+   * 
+   * @return The entries.
+   */
+  public List<ResourceEntry> getEntries()
+  {
+    return ring().snapshot();
+  }
 }
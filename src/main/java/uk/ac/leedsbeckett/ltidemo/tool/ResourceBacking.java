@@ -0,0 +1,47 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.tool;
+
+import java.io.IOException;
+
+/**
+ * Somewhere that resources evicted from a ResourceStore are kept so that
+ * they can be loaded again when they are next needed.
+ * 
+ * @author jon
+ */
+public interface ResourceBacking
+{
+  /**
+   * Fill an empty resource with the entries that were saved for it.
+   * 
+   * @param key The key of the resource.
+   * @param resource An empty resource to restore entries into.
+   * @return True if the resource was found, false if nothing was saved.
+   * @throws IOException If the saved data could not be read.
+   */
+  boolean load( ResourceKey key, Resource resource ) throws IOException;
+  
+  /**
+   * Save a resource which is about to be evicted from memory.
+   * 
+   * @param key The key of the resource.
+   * @param resource The resource.
+   * @throws IOException If the resource could not be saved.
+   */
+  void save( ResourceKey key, Resource resource ) throws IOException;
+}
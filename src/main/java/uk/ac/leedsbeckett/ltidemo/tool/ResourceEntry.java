@@ -40,6 +40,21 @@ public class ResourceEntry
     this.message = message;
   }
   
+  /**
+   * Construct a log entry that was created earlier, for example when it
+   * is read back from a journal.
+   * 
+   * @param timestamp When the entry was originally created.
+   * @param person Name of author of the message.
+   * @param message The message itself.
+   */
+  public ResourceEntry( long timestamp, String person, String message )
+  {
+    this.timestamp = timestamp;
+    this.person = person;
+    this.message = message;
+  }
+  
   /**
    * When the log entry was created.
    * 
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.tool;
+
+import java.io.IOException;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import uk.ac.leedsbeckett.ltidemo.app.DemoApplicationContext;
+import uk.ac.leedsbeckett.ltidemo.state.CourseLaunchState;
+
+/**
+ * Sends new entries in the user's resource to their browser as they are
+ * added, as server-sent events. The state is looked up once when the
+ * browser connects. After that the request is asynchronous and holds no
+ * thread while it waits for changes.
+ * 
+ * @author jon
+ */
+@WebServlet( name = "ResourceEventServlet", urlPatterns =
+{
+  "/courseresource/events"
+}, asyncSupported = true )
+public class ResourceEventServlet extends AbstractDemoToolServlet
+{
+  /**
+   * Subscribing is quick and the stream is already asynchronous, so these
+   * requests stay on the container's thread.
+   * 
+   * @return False.
+   */
+  @Override
+  protected boolean isHandedOff()
+  {
+    return false;
+  }
+  
+  /**
+   * Handles the HTTP <code>GET</code> method by subscribing the browser
+   * to the resource's feed.
+   *
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void doGet( HttpServletRequest request, HttpServletResponse response )
+          throws ServletException, IOException
+  {
+    CourseLaunchState course = getCourseLaunchState( request, response );
+    if ( course == null ) return;
+    
+    Resource resource = getResource( request, course );
+    if ( resource == null || resource.getKey() == null )
+    {
+      response.sendError( 500, "Unable to load the resource." );
+      return;
+    }
+    
+    DemoApplicationContext appcontext = DemoApplicationContext.getFromServletContext( request.getServletContext() );
+    response.setContentType( "text/event-stream;charset=UTF-8" );
+    response.setHeader( "Cache-Control", "no-cache" );
+    AsyncContext async = request.startAsync();
+    appcontext.getResourceFeed().subscribe( resource, async, request.getHeader( "Last-Event-ID" ) );
+  }
+
+  /**
+   * Returns a short description of the servlet.
+   *
+   * @return a String containing servlet description
+   */
+  @Override
+  public String getServletInfo()
+  {
+    return "Server-sent events for a course resource";
+  }
+}
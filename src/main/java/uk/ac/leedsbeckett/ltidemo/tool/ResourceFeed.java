@@ -0,0 +1,526 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.tool;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Pushes changes to resources to browsers as server-sent events.
+ * 
+ * Browsers viewing a resource are grouped into a channel per resource. The
+ * store tells this object about each change on the thread that made it,
+ * which only queues the change on the resource's channel. A single
+ * dispatcher thread takes every channel with queued changes, encodes the
+ * changes once and hands the same bytes to each browser in the channel.
+ * Each browser connection is written without blocking, so a slow browser
+ * only delays itself and is dropped if it falls too far behind.
+ * 
+ * @author jon
+ */
+public class ResourceFeed implements ResourceListener
+{
+  static final Logger logger = Logger.getLogger( ResourceFeed.class.getName() );
+  
+  /**
+   * How often a comment is sent so that idle connections stay open and
+   * dead ones are noticed.
+   */
+  static final long HEARTBEAT_MILLIS = 15000L;
+  
+  /**
+   * How long a connection lasts before the browser has to reconnect.
+   */
+  static final long CONNECTION_MILLIS = TimeUnit.MINUTES.toMillis( 10L );
+  
+  /**
+   * How much unsent data a browser can have before it is dropped.
+   */
+  static final int MAX_PENDING_BYTES = 64 * 1024;
+  
+  static final byte[] HEARTBEAT = ":\n\n".getBytes( StandardCharsets.UTF_8 );
+  static final byte[] PREAMBLE = "retry: 2000\n\n".getBytes( StandardCharsets.UTF_8 );
+  
+  /**
+   * One change waiting to be sent.
+   */
+  static final class Event
+  {
+    final long sequence;
+    final ResourceEntry entry;
+    final boolean clear;
+
+    Event( long sequence, ResourceEntry entry, boolean clear )
+    {
+      this.sequence = sequence;
+      this.entry = entry;
+      this.clear = clear;
+    }
+  }
+  
+  /**
+   * The browsers viewing one resource and the changes not yet sent to
+   * them.
+   */
+  final class Channel
+  {
+    final ResourceKey key;
+    final CopyOnWriteArraySet<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+    final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean queued = new AtomicBoolean();
+
+    Channel( ResourceKey key )
+    {
+      this.key = key;
+    }
+    
+    void add( Event event )
+    {
+      events.add( event );
+      if ( queued.compareAndSet( false, true ) )
+        dirty.add( this );
+    }
+  }
+  
+  /**
+   * One browser connection.
+   */
+  final class Subscriber implements WriteListener, AsyncListener
+  {
+    final ResourceKey key;
+    final AsyncContext async;
+    final ServletOutputStream out;
+    final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    // A lock rather than synchronized so that a thread blocked here does
+    // not pin a virtual thread's carrier.
+    final ReentrantLock lock = new ReentrantLock();
+    int pendingbytes = 0;
+    boolean started = false;
+    boolean unflushed = false;
+    boolean closed = false;
+
+    Subscriber( ResourceKey key, AsyncContext async ) throws IOException
+    {
+      this.key = key;
+      this.async = async;
+      this.out = async.getResponse().getOutputStream();
+    }
+    
+    /**
+     * Queue bytes and write as much as the connection will take now.
+     * 
+     * @param bytes The bytes, which must not be changed afterwards.
+     */
+    void send( byte[] bytes )
+    {
+      lock.lock();
+      try
+      {
+        if ( closed )
+          return;
+        if ( pendingbytes + bytes.length > MAX_PENDING_BYTES )
+        {
+          dropped.increment();
+          close();
+          return;
+        }
+        pending.add( bytes );
+        pendingbytes += bytes.length;
+        // Nothing can be written until the container has called
+        // onWritePossible for the first time.
+        if ( started )
+          drain();
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+    
+    void drain()
+    {
+      lock.lock();
+      try
+      {
+        started = true;
+        try
+        {
+          while ( !closed && out.isReady() )
+          {
+            byte[] bytes = pending.poll();
+            if ( bytes == null )
+            {
+              if ( !unflushed )
+                return;
+              unflushed = false;
+              out.flush();
+              continue;
+            }
+            pendingbytes -= bytes.length;
+            out.write( bytes );
+            unflushed = true;
+          }
+        }
+        catch ( IOException | IllegalStateException ex )
+        {
+          close();
+        }
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+    
+    void close()
+    {
+      lock.lock();
+      try
+      {
+        if ( closed )
+          return;
+        closed = true;
+        pending.clear();
+        unsubscribe( this );
+        try
+        {
+          async.complete();
+        }
+        catch ( IllegalStateException ex )
+        {
+          // Already completed by the container.
+        }
+      }
+      finally
+      {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void onWritePossible()
+    {
+      drain();
+    }
+
+    @Override
+    public void onError( Throwable t )
+    {
+      close();
+    }
+
+    @Override
+    public void onComplete( AsyncEvent event )
+    {
+      close();
+    }
+
+    @Override
+    public void onTimeout( AsyncEvent event )
+    {
+      close();
+    }
+
+    @Override
+    public void onError( AsyncEvent event )
+    {
+      close();
+    }
+
+    @Override
+    public void onStartAsync( AsyncEvent event )
+    {
+    }
+  }
+  
+  final ConcurrentHashMap<ResourceKey,Channel> channels = new ConcurrentHashMap<>();
+  final LinkedBlockingQueue<Channel> dirty = new LinkedBlockingQueue<>();
+  final JsonFactory jsonfactory = new JsonFactory();
+  Thread dispatcher;
+  volatile boolean running;
+  
+  final LongAdder subscribed = new LongAdder();
+  final LongAdder batches = new LongAdder();
+  final LongAdder eventssent = new LongAdder();
+  final LongAdder dropped = new LongAdder();
+  
+  /**
+   * Start the dispatcher thread.
+   */
+  public void start()
+  {
+    running = true;
+    dispatcher = new Thread( this::dispatch, "resource-feed-dispatcher" );
+    dispatcher.setDaemon( true );
+    dispatcher.start();
+  }
+  
+  /**
+   * Stop the dispatcher and close every connection.
+   */
+  public void stop()
+  {
+    running = false;
+    if ( dispatcher != null )
+      dispatcher.interrupt();
+    for ( Channel channel : channels.values() )
+      for ( Subscriber s : channel.subscribers )
+        s.close();
+  }
+  
+  /**
+   * Start sending changes to a resource to a browser. The request must
+   * already be in asynchronous mode. If the browser is reconnecting and
+   * says which event it saw last, the entries it missed are sent first.
+   * 
+   * @param resource The resource.
+   * @param async The asynchronous request.
+   * @param lasteventid The Last-Event-ID header or null.
+   * @throws IOException If the response can't be written.
+   */
+  public void subscribe( Resource resource, AsyncContext async, String lasteventid ) throws IOException
+  {
+    Subscriber subscriber = new Subscriber( resource.getKey(), async );
+    async.setTimeout( CONNECTION_MILLIS );
+    async.addListener( subscriber );
+    channels.compute( resource.getKey(), ( k, c ) -> 
+    {
+      Channel channel = c == null ? new Channel( k ) : c;
+      channel.subscribers.add( subscriber );
+      return channel;
+    } );
+    subscribed.increment();
+    
+    // Queue what to send first. It is written when the container first
+    // calls onWritePossible.
+    ArrayList<Event> missed = new ArrayList<>();
+    long last = parseEventId( lasteventid );
+    if ( last >= 0L )
+    {
+      long floor = resource.getClearedSequence();
+      resource.visitEntries( ( sequence, entry ) -> 
+      {
+        if ( sequence > last )
+          missed.add( new Event( sequence, entry, sequence == floor && floor > last ) );
+      } );
+    }
+    subscriber.send( PREAMBLE );
+    if ( !missed.isEmpty() )
+      subscriber.send( encode( missed ) );
+    subscriber.out.setWriteListener( subscriber );
+  }
+  
+  static long parseEventId( String id )
+  {
+    if ( id == null )
+      return -1L;
+    try
+    {
+      return Long.parseLong( id.trim() );
+    }
+    catch ( NumberFormatException ex )
+    {
+      return -1L;
+    }
+  }
+  
+  void unsubscribe( Subscriber subscriber )
+  {
+    channels.computeIfPresent( subscriber.key, ( k, c ) -> 
+    {
+      c.subscribers.remove( subscriber );
+      return c.subscribers.isEmpty() ? null : c;
+    } );
+  }
+
+  @Override
+  public void entryAdded( Resource resource, long sequence, ResourceEntry entry )
+  {
+    Channel channel = resource.getKey() == null ? null : channels.get( resource.getKey() );
+    if ( channel != null )
+      channel.add( new Event( sequence, entry, false ) );
+  }
+
+  @Override
+  public void entriesCleared( Resource resource, long sequence, ResourceEntry entry )
+  {
+    Channel channel = resource.getKey() == null ? null : channels.get( resource.getKey() );
+    if ( channel != null )
+      channel.add( new Event( sequence, entry, true ) );
+  }
+  
+  /**
+   * The dispatcher thread. Everything queued on a channel since it was
+   * last sent goes out as one write per browser.
+   */
+  void dispatch()
+  {
+    ArrayList<Event> batch = new ArrayList<>();
+    long nextheartbeat = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+    while ( running )
+    {
+      try
+      {
+        Channel channel = dirty.poll( Math.max( 1L, nextheartbeat - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+        if ( channel != null )
+        {
+          // Clear the flag before taking events so that an event added
+          // while sending queues the channel again.
+          channel.queued.set( false );
+          batch.clear();
+          Event event;
+          while ( (event = channel.events.poll()) != null )
+            batch.add( event );
+          if ( !batch.isEmpty() && !channel.subscribers.isEmpty() )
+          {
+            batch.sort( Comparator.comparingLong( e -> e.sequence ) );
+            byte[] bytes = encode( batch );
+            for ( Subscriber s : channel.subscribers )
+              s.send( bytes );
+            batches.increment();
+            eventssent.add( batch.size() );
+          }
+        }
+        
+        if ( System.currentTimeMillis() >= nextheartbeat )
+        {
+          for ( Channel c : channels.values() )
+            for ( Subscriber s : c.subscribers )
+              s.send( HEARTBEAT );
+          nextheartbeat = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+        }
+      }
+      catch ( InterruptedException ex )
+      {
+        return;
+      }
+      catch ( RuntimeException ex )
+      {
+        logger.log( Level.WARNING, "Problem sending resource events.", ex );
+      }
+    }
+  }
+  
+  /**
+   * Encode events in the text/event-stream format. The data of each event
+   * is a JSON object with the entry's sequence number, formatted time,
+   * person and message.
+   * 
+   * @param events The events.
+   * @return The encoded events.
+   */
+  byte[] encode( ArrayList<Event> events )
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream( 128 * events.size() );
+    try
+    {
+      for ( Event event : events )
+      {
+        bytes.write( ("id: " + event.sequence + "\nevent: " + (event.clear ? "clear" : "entry") + "\ndata: ")
+                .getBytes( StandardCharsets.UTF_8 ) );
+        try ( JsonGenerator json = jsonfactory.createGenerator( bytes ) )
+        {
+          json.disable( JsonGenerator.Feature.AUTO_CLOSE_TARGET );
+          json.writeStartObject();
+          json.writeNumberField( "seq", event.sequence );
+          json.writeStringField( "time", CourseResourceServlet.DATE_FORMAT.format( Instant.ofEpochMilli( event.entry.getTimestamp() ) ) );
+          json.writeStringField( "person", event.entry.getPerson() );
+          json.writeStringField( "message", event.entry.getMessage() );
+          json.writeEndObject();
+        }
+        bytes.write( '\n' );
+        bytes.write( '\n' );
+      }
+    }
+    catch ( IOException ex )
+    {
+      // Not possible when writing to memory.
+      throw new IllegalStateException( ex );
+    }
+    return bytes.toByteArray();
+  }
+  
+  /**
+   * How many browsers are connected.
+   * 
+   * @return Count.
+   */
+  public int getSubscriberCount()
+  {
+    int n = 0;
+    for ( Channel channel : channels.values() )
+      n += channel.subscribers.size();
+    return n;
+  }
+  
+  /**
+   * How many resources have browsers connected.
+   * 
+   * @return Count.
+   */
+  public int getChannelCount()
+  {
+    return channels.size();
+  }
+  
+  /**
+   * How many connections have been made since start up.
+   * 
+   * @return Count.
+   */
+  public long getSubscribedCount()
+  {
+    return subscribed.sum();
+  }
+  
+  public long getBatchCount()
+  {
+    return batches.sum();
+  }
+  
+  public long getEventCount()
+  {
+    return eventssent.sum();
+  }
+  
+  public long getDroppedCount()
+  {
+    return dropped.sum();
+  }
+}
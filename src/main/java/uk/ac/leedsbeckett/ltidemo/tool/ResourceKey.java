@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.tool;
+
+import java.util.Objects;
+
+/**
+ * An immutable key that identifies a resource by the platform that launched
+ * it and the resource link ID within that platform. A flat composite key
+ * means the resource store can use a single concurrent map instead of a map
+ * of maps.
+ * 
+ * @author jon
+ */
+public final class ResourceKey
+{
+  private final String platform;
+  private final String resource;
+  private final int hash;
+
+  /**
+   * Construct a key.
+   * 
+   * @param platform ID of the platform.
+   * @param resource ID of the resource.
+   */
+  public ResourceKey( String platform, String resource )
+  {
+    this.platform = Objects.requireNonNull( platform );
+    this.resource = Objects.requireNonNull( resource );
+    this.hash = 31 * platform.hashCode() + resource.hashCode();
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return ID of the platform.
+   */
+  public String getPlatform()
+  {
+    return platform;
+  }
+
+  /**
+   * Simple getter.
+   * 
+   * @return ID of the resource.
+   */
+  public String getResource()
+  {
+    return resource;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return hash;
+  }
+
+  @Override
+  public boolean equals( Object obj )
+  {
+    if ( this == obj ) return true;
+    if ( !(obj instanceof ResourceKey) ) return false;
+    ResourceKey other = (ResourceKey)obj;
+    return hash == other.hash && 
+           platform.equals( other.platform ) && 
+           resource.equals( other.resource );
+  }
+
+  @Override
+  public String toString()
+  {
+    return platform + " " + resource;
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.ltidemo.tool;
+
+/**
+ * Implemented by objects that want to know when resources in a store are
+ * changed, for example to record the changes on disk. Methods are called on
+ * the request thread that made the change so implementations must return
+ * quickly and must not block.
+ * 
+ * @author jon
+ */
+public interface ResourceListener
+{
+  /**
+   * An entry was added to a resource.
+   * 
+   * @param resource The resource that changed.
+   * @param sequence The sequence number given to the entry.
+   * @param entry The new entry.
+   */
+  void entryAdded( Resource resource, long sequence, ResourceEntry entry );
+  
+  /**
+   * The entries of a resource were cleared and replaced with a single entry.
+   * 
+   * @param resource The resource that changed.
+   * @param sequence The sequence number given to the entry.
+   * @param entry The entry that records the clearing.
+   */
+  void entriesCleared( Resource resource, long sequence, ResourceEntry entry );
+}
@@ -16,25 +16,245 @@
 
 package uk.ac.leedsbeckett.ltidemo.tool;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.leedsbeckett.ltidemo.metrics.ResourceLookupEvent;
 
 /**
- * A store of resources which can be retrieved using keys. At present all
- * resources stay in the store until the store is garbage collected after the
- * web application shuts down. All resources are lost entirely at shut down
- * in this demo. A proper implementation would store data on file or in a 
- * database and would purge memory of resources that haven't been used for a
- * while.
+ * A store of resources which can be retrieved using keys. Changes can be
+ * recorded on disk by adding a listener, such as a journal, so the store
+ * can be rebuilt when the web application restarts.
+ * 
+ * The store is safe to use from many request threads at once. Resources are
+ * held in a single concurrent map keyed on platform and resource ID so
+ * lookups never take a global lock and creation of a resource is atomic -
+ * when many users launch the same item at the same moment they all receive
+ * the same Resource object.
+ * 
+ * The number of resources in memory, or an estimate of the memory they use,
+ * can be limited. When the limit is exceeded idle resources are saved to the
+ * backing and dropped from memory using the CLOCK approximation of least
+ * recently used: resources wait in a queue in the order they came into
+ * memory and each lookup marks the resource as referenced. The sweep takes
+ * resources off the head of the queue, sending referenced ones to the back
+ * with the mark cleared and evicting the first unreferenced one. Evicted
+ * resources are loaded back from the backing when they are next asked for.
+ * Eviction runs on a background thread and neither loading nor saving is
+ * done while holding a lock in the map. Changes made to a resource object
+ * after it was evicted are copied to the object that replaced it on the
+ * same thread, so a request never waits for an eviction to finish.
  * 
  * @author jon
  */
 public class ResourceStore
 {
-  HashMap<String,HashMap<String,Resource>> map = new HashMap<>();
+  static final Logger logger = Logger.getLogger( ResourceStore.class.getName() );
+  
+  /**
+   * Rough number of bytes a resource with a full log uses, not counting the
+   * strings in its key.
+   */
+  public static final long ESTIMATED_RESOURCE_BYTES = 2048L;
+  
+  ConcurrentHashMap<ResourceKey,Resource> map = new ConcurrentHashMap<>();
+  CopyOnWriteArrayList<ResourceListener> listeners = new CopyOnWriteArrayList<>();
+  
+  // Keys that one thread is loading or evicting
+  final ConcurrentHashMap<ResourceKey,CompletableFuture<Resource>> busy = new ConcurrentHashMap<>();
+  
+  // Eviction
+  ConcurrentLinkedQueue<ResourceKey> clock = new ConcurrentLinkedQueue<>();
+  final ReentrantLock evictionlock = new ReentrantLock();
+  final AtomicBoolean evictionqueued = new AtomicBoolean();
+  final ThreadPoolExecutor evictor = createEvictor();
+  volatile ResourceBacking backing;
+  volatile int maxResources = 0;
+  volatile long maxBytes = 0L;
+  volatile boolean evictionPaused = false;
+  final LongAdder estimatedBytes = new LongAdder();
+  
+  // Statistics
+  final LongAdder hits      = new LongAdder();
+  final LongAdder misses    = new LongAdder();
+  final LongAdder loads     = new LongAdder();
+  final LongAdder creations = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  
+  /**
+   * Create the executor that evicts resources in the background. Its one
+   * thread stops when there is nothing to do, so a store that never needs
+   * eviction never starts it.
+   * 
+   * @return The executor.
+   */
+  static ThreadPoolExecutor createEvictor()
+  {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor( 1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> 
+    {
+      Thread t = new Thread( r, "resource-evictor" );
+      t.setDaemon( true );
+      return t;
+    } );
+    executor.allowCoreThreadTimeOut( true );
+    return executor;
+  }
+  
+  /**
+   * Add an object that will be told whenever a resource in this store
+   * changes.
+   * 
+   * @param listener The listener.
+   */
+  public void addListener( ResourceListener listener )
+  {
+    listeners.add( listener );
+  }
+  
+  /**
+   * Remove a listener that was added earlier.
+   * 
+   * @param listener The listener.
+   */
+  public void removeListener( ResourceListener listener )
+  {
+    listeners.remove( listener );
+  }
+  
+  /**
+   * Set where evicted resources are saved and loaded from. Without a backing
+   * the limits are ignored and nothing is evicted.
+   * 
+   * @param backing The backing or null.
+   */
+  public void setBacking( ResourceBacking backing )
+  {
+    this.backing = backing;
+  }
+  
+  /**
+   * Limit the number of resources held in memory.
+   * 
+   * @param maxResources Maximum number of resources or zero for no limit.
+   */
+  public void setMaxResources( int maxResources )
+  {
+    this.maxResources = maxResources;
+  }
+  
+  /**
+   * Limit the estimated memory used by resources.
+   * 
+   * @param maxBytes Maximum number of bytes or zero for no limit.
+   */
+  public void setMaxBytes( long maxBytes )
+  {
+    this.maxBytes = maxBytes;
+  }
+  
+  /**
+   * Stop or restart eviction. While the store is being rebuilt from disk
+   * nothing should be evicted, because a resource could be evicted between
+   * having entries restored to it and the rest of its entries arriving.
+   * 
+   * @param paused True to stop eviction.
+   */
+  public void setEvictionPaused( boolean paused )
+  {
+    this.evictionPaused = paused;
+  }
+  
+  /**
+   * Called by a resource after it has been changed.
+   * 
+   * @param resource The resource.
+   * @param sequence The sequence number of the new entry.
+   * @param entry The new entry.
+   * @param clear True if the entries were cleared.
+   */
+  void changed( Resource resource, long sequence, ResourceEntry entry, boolean clear )
+  {
+    if ( resource.evicted )
+      forward( resource, sequence, entry, clear );
+    
+    for ( ResourceListener listener : listeners )
+    {
+      if ( clear )
+        listener.entriesCleared( resource, sequence, entry );
+      else
+        listener.entryAdded( resource, sequence, entry );
+    }
+  }
+  
+  /**
+   * Someone holding on to an evicted object changed it. The eviction may or
+   * may not have saved the change so copy it to the current object. Finding
+   * the current object can mean waiting for the eviction's save or loading
+   * the resource back, so it is done on the evictor's thread, which also
+   * means the eviction of this object has finished first.
+   * 
+   * @param resource The evicted resource.
+   * @param sequence The sequence number of the entry.
+   * @param entry The entry.
+   * @param clear True if the entry cleared the entries.
+   */
+  void forward( Resource resource, long sequence, ResourceEntry entry, boolean clear )
+  {
+    Runnable copy = () -> 
+    {
+      Resource current = get( resource.key.getPlatform(), resource.key.getResource(), true );
+      if ( current != resource )
+        current.restoreEntry( sequence, entry, clear );
+    };
+    try
+    {
+      evictor.execute( copy );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      copy.run();
+    }
+  }
+  
+  /**
+   * Wait until every change that was waiting to be copied to a current
+   * object when this was called has been copied. A checkpoint calls this
+   * so that its snapshot holds every change that went into the journal
+   * segments it replaces.
+   */
+  public void awaitForwarding()
+  {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    try
+    {
+      evictor.execute( () -> done.complete( null ) );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      return;
+    }
+    done.join();
+  }
   
   /**
    * Find a resource keyed by platform ID and resource ID with option to
-   * create the resource if it doesn't exist yet.
+   * create the resource if it doesn't exist yet. A resource that was evicted
+   * is loaded from the backing.
    * 
    * @param platform ID of the platform.
    * @param resource ID of the resource.
@@ -43,48 +263,474 @@ public class ResourceStore
    */
   public Resource get( String platform, String resource, boolean create )
   {
-    HashMap<String,Resource> platformmap = map.get( platform );
-    if ( platformmap == null )
+    ResourceLookupEvent event = new ResourceLookupEvent();
+    event.begin();
+    ResourceKey key = new ResourceKey( platform, resource );
+    Resource r = map.get( key );
+    if ( r != null )
+    {
+      hits.increment();
+      if ( !r.referenced )
+        r.referenced = true;
+      event.outcome = ResourceLookupEvent.HIT;
+      commit( event, key, create );
+      return r;
+    }
+    
+    misses.increment();
+    // The outcome is only set by the thread that runs load, any other
+    // thread waiting on the same key found the resource it loaded.
+    event.outcome = ResourceLookupEvent.HIT;
+    r = find( key, create, event );
+    scheduleEviction();
+    commit( event, key, create );
+    return r;
+  }
+  
+  /**
+   * Find a resource that wasn't in the map. Only one thread at a time loads
+   * or evicts a key, and it does so without holding any lock in the map, so
+   * reading or writing the backing doesn't hold up lookups of other keys.
+   * Other threads that want the same key wait for it.
+   * 
+   * @param key The key.
+   * @param create Create the resource if the backing doesn't have it.
+   * @param event The flight recorder event whose outcome is set.
+   * @return The resource or null.
+   */
+  Resource find( ResourceKey key, boolean create, ResourceLookupEvent event )
+  {
+    for ( ;; )
     {
-      if ( create )
+      Resource r = map.get( key );
+      if ( r != null )
+        return r;
+      
+      CompletableFuture<Resource> pending = new CompletableFuture<>();
+      CompletableFuture<Resource> running = busy.putIfAbsent( key, pending );
+      if ( running != null )
       {
-        platformmap = new HashMap<>();
-        map.put( platform, platformmap );
+        // Another thread is loading or evicting this key. If it didn't
+        // leave a resource in the map, perhaps because it was an eviction
+        // or a load that didn't create one, go round again.
+        r = running.join();
+        if ( r != null )
+          return r;
+        continue;
       }
-      else
+      
+      try
+      {
+        r = map.get( key );
+        if ( r == null )
+        {
+          r = load( key, create, event );
+          if ( r != null )
+          {
+            Resource existing = map.putIfAbsent( key, r );
+            if ( existing != null )
+              r = existing;
+            else
+              added( key );
+          }
+        }
+        pending.complete( r );
+        return r;
+      }
+      catch ( RuntimeException ex )
+      {
+        pending.completeExceptionally( ex );
+        throw ex;
+      }
+      finally
+      {
+        busy.remove( key, pending );
+      }
+    }
+  }
+  
+  /**
+   * Fill in and commit a flight recorder event for a lookup, if it is
+   * being recorded.
+   * 
+   * @param event The event with its outcome set.
+   * @param key The key looked up.
+   * @param create True if creation was asked for.
+   */
+  static void commit( ResourceLookupEvent event, ResourceKey key, boolean create )
+  {
+    event.end();
+    if ( !event.shouldCommit() )
+      return;
+    event.platform = key.getPlatform();
+    event.resourceId = key.getResource();
+    event.create = create;
+    event.commit();
+  }
+  
+  /**
+   * Load a resource from the backing or create a new one. Called by the
+   * only thread working on this key.
+   * 
+   * @param key The key.
+   * @param create Create a resource if the backing doesn't have it.
+   * @param event The flight recorder event whose outcome is set.
+   * @return The resource or null.
+   */
+  Resource load( ResourceKey key, boolean create, ResourceLookupEvent event )
+  {
+    event.outcome = ResourceLookupEvent.MISSING;
+    ResourceBacking b = backing;
+    if ( b != null )
+    {
+      Resource r = new Resource( key, this, false );
+      try
+      {
+        if ( b.load( key, r ) )
+        {
+          loads.increment();
+          event.outcome = ResourceLookupEvent.LOADED;
+          return r;
+        }
+      }
+      catch ( IOException ex )
+      {
+        logger.log( Level.SEVERE, "Unable to load evicted resource " + key, ex );
+      }
+      if ( !create )
         return null;
+      r.initialise();
+      creations.increment();
+      event.outcome = ResourceLookupEvent.CREATED;
+      return r;
     }
     
-    Resource r = platformmap.get( resource );
-    if ( r == null && create )
+    if ( !create )
+      return null;
+    creations.increment();
+    event.outcome = ResourceLookupEvent.CREATED;
+    return new Resource( key, this );
+  }
+  
+  void added( ResourceKey key )
+  {
+    clock.offer( key );
+    estimatedBytes.add( estimateBytes( key ) );
+  }
+  
+  static long estimateBytes( ResourceKey key )
+  {
+    return ESTIMATED_RESOURCE_BYTES + 2L * ( key.getPlatform().length() + key.getResource().length() );
+  }
+  
+  boolean isOverLimit()
+  {
+    int maxr = maxResources;
+    long maxb = maxBytes;
+    return ( maxr > 0 && map.size() > maxr ) || ( maxb > 0L && estimatedBytes.sum() > maxb );
+  }
+  
+  /**
+   * Ask the background evictor to bring the store within its limits, if it
+   * is over them and the evictor isn't already going to.
+   */
+  void scheduleEviction()
+  {
+    if ( backing == null || evictionPaused || !isOverLimit() || !evictionqueued.compareAndSet( false, true ) )
+      return;
+    try
     {
-      r = new Resource();
-      platformmap.put( resource, r );
+      evictor.execute( () -> 
+      {
+        evictionqueued.set( false );
+        evictIfNeeded();
+      } );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      evictionqueued.set( false );
     }
-    return r;
   }
   
   /**
-   * Fetch a dump of the entire store for debugging.
+   * Evict resources until the store is within its limits. If another thread
+   * is already evicting this returns straight away. Lookups leave this to
+   * a background thread.
+   */
+  public void evictIfNeeded()
+  {
+    if ( backing == null || evictionPaused || !isOverLimit() || !evictionlock.tryLock() )
+      return;
+    try
+    {
+      // Each resource can be passed over at most once before it is evicted
+      // so this bound only matters if the queue and map disagree.
+      long budget = 2L * map.size() + 16L;
+      boolean refilled = false;
+      while ( isOverLimit() && budget-- > 0L )
+      {
+        ResourceKey key = clock.poll();
+        if ( key == null && !refilled )
+        {
+          // Resources published without limits set are not in the queue.
+          refilled = true;
+          clock.addAll( map.keySet() );
+          key = clock.poll();
+        }
+        if ( key == null )
+          break;
+        Resource r = map.get( key );
+        if ( r == null )
+          continue;
+        if ( r.referenced )
+        {
+          r.referenced = false;
+          clock.offer( key );
+          continue;
+        }
+        evict( key, r );
+      }
+    }
+    finally
+    {
+      evictionlock.unlock();
+    }
+  }
+  
+  /**
+   * Save and remove one resource. No lock in the map is held while the
+   * resource is saved. Instead the key is marked busy, so a lookup that
+   * misses waits rather than loading a copy that isn't complete, and the
+   * resource is saved again if it changed while it was being saved.
+   * 
+   * @param key The key of the resource.
+   * @param r The resource.
+   */
+  void evict( ResourceKey key, Resource r )
+  {
+    ResourceBacking b = backing;
+    CompletableFuture<Resource> pending = new CompletableFuture<>();
+    if ( busy.putIfAbsent( key, pending ) != null )
+    {
+      clock.offer( key );
+      return;
+    }
+    try
+    {
+      // Mark first so anyone changing the resource from now on sees the
+      // mark and, once it is out of the map, copies the change to the
+      // reloaded resource.
+      r.evicted = true;
+      long version = r.getVersion();
+      b.save( key, r );
+      if ( !map.remove( key, r ) )
+        return;
+      // Changes made before the removal were copied to r itself. Save
+      // until a save has seen all of them.
+      while ( r.getVersion() != version )
+      {
+        version = r.getVersion();
+        b.save( key, r );
+      }
+      evictions.increment();
+      estimatedBytes.add( -estimateBytes( key ) );
+    }
+    catch ( IOException ex )
+    {
+      logger.log( Level.SEVERE, "Unable to save resource " + key + " so it will stay in memory.", ex );
+      r.evicted = false;
+      r.referenced = true;
+      // Nobody else can have put the key back while it is busy.
+      map.putIfAbsent( key, r );
+      clock.offer( key );
+    }
+    finally
+    {
+      busy.remove( key, pending );
+      pending.complete( null );
+    }
+  }
+  
+  /**
+   * Find or create a resource which is about to be rebuilt from entries
+   * saved on disk. A newly created resource has no entries at all.
+   * 
+   * @param platform ID of the platform.
+   * @param resource ID of the resource.
+   * @return The resource.
+   */
+  public Resource restore( String platform, String resource )
+  {
+    return map.computeIfAbsent( new ResourceKey( platform, resource ), k -> 
+    {
+      added( k );
+      return new Resource( k, this, false );
+    } );
+  }
+  
+  /**
+   * Create a resource restored from disk whose entries stay encoded in a
+   * source until they are first needed. The resource is not put into the
+   * store until it is published.
+   * 
+   * @param platform ID of the platform.
+   * @param resource ID of the resource.
+   * @param source Where the entries are decoded from.
+   * @param offset Where the entries of the resource start in the source.
+   * @return The resource.
+   */
+  public Resource prepare( String platform, String resource, EntrySource source, int offset )
+  {
+    return new Resource( new ResourceKey( platform, resource ), this, source, offset );
+  }
+  
+  /**
+   * Put prepared resources into the store all at once. Into an empty store
+   * this goes straight into a map that is sized for them up front and the
+   * resources only join the eviction queue if limits are set. Resources
+   * whose keys are already in the store are left out.
+   * 
+   * @param resources The prepared resources.
+   * @param count How many of the array's elements to publish.
+   */
+  public void publish( Resource[] resources, int count )
+  {
+    boolean limited = maxResources > 0 || maxBytes > 0L;
+    if ( map.isEmpty() )
+      map = new ConcurrentHashMap<>( count );
+    long bytes = 0L;
+    for ( int i=0; i<count; i++ )
+    {
+      ResourceKey key = resources[i].key;
+      if ( map.putIfAbsent( key, resources[i] ) != null )
+        continue;
+      if ( limited )
+        clock.offer( key );
+      bytes += estimateBytes( key );
+    }
+    estimatedBytes.add( bytes );
+  }
+  
+  /**
+   * How many resources are in memory?
+   * 
+   * @return The number of resources.
+   */
+  public int size()
+  {
+    return map.size();
+  }
+
+  /**
+   * Rough estimate of the memory used by the resources in memory.
+   * 
+   * @return Number of bytes.
+   */
+  public long getEstimatedBytes()
+  {
+    return estimatedBytes.sum();
+  }
+  
+  /**
+   * How many lookups found the resource in memory.
+   * 
+   * @return Number of lookups.
+   */
+  public long getHits()
+  {
+    return hits.sum();
+  }
+  
+  /**
+   * How many lookups did not find the resource in memory.
+   * 
+   * @return Number of lookups.
+   */
+  public long getMisses()
+  {
+    return misses.sum();
+  }
+  
+  /**
+   * Proportion of lookups that found the resource in memory.
+   * 
+   * @return A number from zero to one.
+   */
+  public double getHitRatio()
+  {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0L ? 1.0 : (double)h / (double)total;
+  }
+  
+  /**
+   * How many resources were loaded back from the backing.
+   * 
+   * @return Number of resources.
+   */
+  public long getLoads()
+  {
+    return loads.sum();
+  }
+  
+  /**
+   * How many new resources were created.
+   * 
+   * @return Number of resources.
+   */
+  public long getCreations()
+  {
+    return creations.sum();
+  }
+  
+  /**
+   * How many resources were evicted from memory.
+   * 
+   * @return Number of resources.
+   */
+  public long getEvictions()
+  {
+    return evictions.sum();
+  }
+  
+  /**
+   * Pass every resource in memory to an action. Resources added while
+   * this is in progress may or may not be passed.
+   * 
+   * @param action The action.
+   */
+  public void forEach( BiConsumer<ResourceKey,Resource> action )
+  {
+    map.forEach( action );
+  }
+  
+  /**
+   * Fetch a dump of the resources in memory for debugging. The map is not
+   * locked so resources added while the dump is in progress may or may not
+   * be listed.
    * 
    * @return Multi-line text containing description of all resources.
    */
-  public synchronized String dump()
+  public String dump()
   {
-    StringBuilder sb = new StringBuilder();
+    ArrayList<Map.Entry<ResourceKey,Resource>> list = new ArrayList<>( map.entrySet() );
+    list.sort( Comparator.comparing( (Map.Entry<ResourceKey,Resource> e) -> e.getKey().getPlatform() )
+                         .thenComparing( e -> e.getKey().getResource() ) );
     
+    StringBuilder sb = new StringBuilder();
     sb.append( "Resource Store Contents\n" );
-    for ( String p : map.keySet() )
+    String currentplatform = null;
+    for ( Map.Entry<ResourceKey,Resource> e : list )
     {
-      sb.append( "  Platform " + p + "\n" );
-      HashMap<String,Resource> platformmap = map.get( p );
-      for ( String rid : platformmap.keySet() )
+      String p = e.getKey().getPlatform();
+      if ( !p.equals( currentplatform ) )
       {
-        sb.append( "    Resource " + rid + "\n" );
-        Resource r = platformmap.get( rid );
-        for ( ResourceEntry entry : r.getEntries() )
-          sb.append( "      Entry " + entry.timestamp + " " + entry.person + " {" + entry.message + "}\n" );
+        sb.append( "  Platform " + p + "\n" );
+        currentplatform = p;
       }
+      sb.append( "    Resource " + e.getKey().getResource() + "\n" );
+      for ( ResourceEntry entry : e.getValue().getEntries() )
+        sb.append( "      Entry " + entry.timestamp + " " + entry.person + " {" + entry.message + "}\n" );
     }
     return sb.toString();
   }
@@ -26,10 +26,91 @@
     <p>Action = ${outcomes.action}</p>
     <h2>Configuration File</h2>
     <p>${outcomes.importantMessage}</p>
+    <p><c:out value="${outcomes.configStatus}"/></p>
     <form method="POST" action=".">
       <input type="hidden" name="action" value="saveconfig" />
       <p><textarea name="config">${outcomes.rawConfiguration}</textarea></p>
       <p><input type="submit" value="Save Config"></input></p>
     </form>
+    <h2>LTI States</h2>
+    <p>Live states: ${outcomes.liveStateCount}, expired since start up: ${outcomes.expiredStateCount}</p>
+    <h2>Platform Keys</h2>
+    <p>${outcomes.keyCacheStatus}</p>
+    <p>${outcomes.nonceGuardStatus}</p>
+    <c:if test="${outcomes.replicating}">
+      <h2>State Replication</h2>
+      <p>Nodes: ${outcomes.clusterNodes}, copies held here: ${outcomes.replicaCount}</p>
+      <p>Only launch data is shared. A user's login and launch requests must be routed to the same
+        node; the tool pages after the launch can be served by any node.</p>
+      <p>Sent: ${outcomes.replicationPublished}, dropped: ${outcomes.replicationDropped},
+        received: ${outcomes.replicationReceived}, connections refused: ${outcomes.replicationRejected}</p>
+      <p>Replication lag: mean ${outcomes.replicationMeanLag}ms, max ${outcomes.replicationMaxLag}ms</p>
+      <p>Fetched from other nodes: ${outcomes.remoteFetches}, ${outcomes.remoteFetchLatency}</p>
+    </c:if>
+    <h2>Resource Store</h2>
+    <p>Resources in memory: ${outcomes.resourceCount} (about ${outcomes.resourceKilobytes}KB)</p>
+    <p>Hit ratio: ${outcomes.resourceHitRatio}, evictions: ${outcomes.resourceEvictions},
+      reloaded after eviction: ${outcomes.resourceLoads}</p>
+    <p>Rendered entry lists cached: ${outcomes.fragmentCount} (${outcomes.fragmentKilobytes}KB),
+      hit ratio: ${outcomes.fragmentHitRatio}, ${outcomes.fragmentLookups}</p>
+    <p>Browsers receiving live changes: ${outcomes.feedSubscribers} on ${outcomes.feedChannels} resources,
+      ${outcomes.feedActivity}</p>
+    <c:if test="${outcomes.persistent}">
+      <p>Start up took ${outcomes.startupMillis}ms, loading ${outcomes.snapshotResources} resources
+        from the snapshot and replaying ${outcomes.replayedRecords} journal records.</p>
+      <p>Last checkpoint took ${outcomes.lastCheckpointMillis}ms.
+        Changes not journalled: ${outcomes.journalDropped}.</p>
+    </c:if>
+    <c:if test="${not outcomes.persistent}">
+      <p>The resource store is not being saved to disk.</p>
+    </c:if>
+    <h2>Metrics</h2>
+    <p>Request latency and counters in Prometheus format: <a href="metrics">metrics</a></p>
+    <h2>Launch Traces</h2>
+    <c:if test="${outcomes.tracing}">
+      <p>${outcomes.traceCount} launches traced since start up, the last ${outcomes.traceCapacity} are kept.
+        Times are in milliseconds. 'Platform' is the time between the login and launch requests and
+        'Redirect' the time between the launch and tool page requests.</p>
+      <form method="GET" action=".">
+        <p>State ID: <input type="text" name="tracestateid" value="<c:out value="${outcomes.traceStateId}"/>" />
+          At least: <input type="text" name="traceminmillis" value="<c:out value="${outcomes.traceMinMillis}"/>" />ms
+          <input type="submit" value="Find Slowest"></input></p>
+      </form>
+      <table>
+        <tr><th>Started</th><th>State ID</th><th>Tool</th><th>Login</th><th>Platform</th><th>Validation</th>
+          <th>Launch</th><th>Redirect</th><th>Render</th><th>Total</th></tr>
+        <c:forEach var="trace" items="${outcomes.traces}">
+          <tr><td>${trace.started}</td><td>${trace.stateId}</td><td><c:out value="${trace.toolType}"/></td>
+            <td>${trace.loginMillis}</td><td>${trace.platformMillis}</td><td>${trace.validationMillis}</td>
+            <td>${trace.launchMillis}</td><td>${trace.redirectMillis}</td><td>${trace.renderMillis}</td>
+            <td>${trace.total}</td></tr>
+        </c:forEach>
+      </table>
+    </c:if>
+    <c:if test="${not outcomes.tracing}">
+      <p>Launch tracing is off.</p>
+    </c:if>
+    <h2>Flight Recording</h2>
+    <p>${outcomes.recordingMessage}</p>
+    <c:if test="${outcomes.recording}">
+      <p>Recording since ${outcomes.recordingStarted}, keeping the last ${outcomes.recordingMaxAgeMinutes} minutes.</p>
+      <form method="POST" action=".">
+        <input type="hidden" name="action" value="dumprecording" />
+        <p><input type="submit" value="Dump Recording"></input></p>
+      </form>
+      <form method="POST" action=".">
+        <input type="hidden" name="action" value="stoprecording" />
+        <p><input type="submit" value="Dump and Stop Recording"></input></p>
+      </form>
+    </c:if>
+    <c:if test="${not outcomes.recording}">
+      <form method="POST" action=".">
+        <input type="hidden" name="action" value="startrecording" />
+        <p><input type="submit" value="Start Recording"></input></p>
+      </form>
+    </c:if>
+    <c:if test="${not empty outcomes.lastRecordingDump}">
+      <p>Last written to ${outcomes.lastRecordingDump}</p>
+    </c:if>
   </body>
 </html>